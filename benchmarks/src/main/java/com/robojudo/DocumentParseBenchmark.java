@@ -0,0 +1,79 @@
+package com.robojudo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses complete generated documents through each public entry point.
+ * Run with {@code -prof gc} to report the allocation rate alongside throughput and bytes/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DocumentParseBenchmark
+{
+    @Param({ "1000", "100000", "10000000" })
+    public int sequenceLength;
+
+    @Param({ "0", "1000", "50000" })
+    public int featureCount;
+
+    @Param({ "4" })
+    public int qualifiersPerFeature;
+
+    private byte[] bytes;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException
+    {
+        SnapGeneCorpusGenerator.Spec spec = new SnapGeneCorpusGenerator.Spec(sequenceLength, featureCount, qualifiersPerFeature);
+        bytes = spec.generate();
+        file = Files.createTempFile("snapgene-bench", ".dna");
+        Files.write(file, bytes);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public SnapGene.SnapGeneDoc inputStream(ParseBytes counter) throws IOException
+    {
+        counter.bytes += bytes.length;
+        return SnapGene.parse(new ByteArrayInputStream(bytes));
+    }
+
+    @Benchmark
+    public SnapGene.SnapGeneDoc buffer(ParseBytes counter)
+    {
+        counter.bytes += bytes.length;
+        return SnapGene.parse(ByteBuffer.wrap(bytes));
+    }
+
+    @Benchmark
+    public SnapGene.SnapGeneDoc mappedFile(ParseBytes counter) throws IOException
+    {
+        counter.bytes += bytes.length;
+        return SnapGene.parse(file);
+    }
+
+    /** Index only and read the notes, as a metadata catalog scan would. */
+    @Benchmark
+    public SnapGene.NotesSegment indexedNotes(ParseBytes counter) throws IOException
+    {
+        counter.bytes += bytes.length;
+        return SnapGene.index(file).notes();
+    }
+}
@@ -0,0 +1,21 @@
+package com.robojudo;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Counts input bytes consumed per benchmark operation; JMH reports it as a rate, i.e. bytes/s. */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class ParseBytes
+{
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset()
+    {
+        bytes = 0;
+    }
+}
@@ -0,0 +1,108 @@
+package com.robojudo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses individual segment payloads generated by {@link SnapGeneCorpusGenerator}.
+ * Run with {@code -prof gc} to report the allocation rate alongside throughput and bytes/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SegmentParseBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class DnaData
+    {
+        @Param({ "1000", "100000", "10000000" })
+        public int sequenceLength;
+
+        ByteBuffer data;
+
+        @Setup
+        public void setup()
+        {
+            data = ByteBuffer.wrap(new SnapGeneCorpusGenerator.Spec(sequenceLength, 0, 0).dnaSegment());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class FeaturesData
+    {
+        @Param({ "0", "1000", "50000" })
+        public int featureCount;
+
+        @Param({ "0", "4", "16" })
+        public int qualifiersPerFeature;
+
+        ByteBuffer data;
+
+        @Setup
+        public void setup()
+        {
+            data = ByteBuffer.wrap(new SnapGeneCorpusGenerator.Spec(100_000, featureCount, qualifiersPerFeature).featuresSegment());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SmallSegments
+    {
+        ByteBuffer notes;
+        ByteBuffer description;
+
+        @Setup
+        public void setup()
+        {
+            SnapGeneCorpusGenerator.Spec spec = new SnapGeneCorpusGenerator.Spec(1000, 0, 0);
+            notes = ByteBuffer.wrap(spec.notesSegment());
+            description = ByteBuffer.wrap(spec.descriptionSegment());
+        }
+    }
+
+    @Benchmark
+    public SnapGene.DNASegment dna(DnaData d, ParseBytes bytes)
+    {
+        bytes.bytes += d.data.remaining();
+        return SnapGene.DNASegment.parse(d.data);
+    }
+
+    @Benchmark
+    public SnapGene.FeaturesSegment features(FeaturesData d, ParseBytes bytes)
+    {
+        bytes.bytes += d.data.remaining();
+        return SnapGene.FeaturesSegment.parse(d.data);
+    }
+
+    @Benchmark
+    public SnapGene.FeaturesSegment featuresDom(FeaturesData d, ParseBytes bytes)
+    {
+        bytes.bytes += d.data.remaining();
+        return SnapGene.FeaturesSegment.parse(SnapGene.createDocument(d.data));
+    }
+
+    @Benchmark
+    public SnapGene.NotesSegment notes(SmallSegments d, ParseBytes bytes)
+    {
+        bytes.bytes += d.notes.remaining();
+        return SnapGene.NotesSegment.parse(d.notes);
+    }
+
+    @Benchmark
+    public SnapGene.NotesSegment notesDom(SmallSegments d, ParseBytes bytes)
+    {
+        bytes.bytes += d.notes.remaining();
+        return SnapGene.NotesSegment.parse(SnapGene.createDocument(d.notes));
+    }
+
+    @Benchmark
+    public SnapGene.DescriptionSegment description(SmallSegments d, ParseBytes bytes)
+    {
+        bytes.bytes += d.description.remaining();
+        return SnapGene.DescriptionSegment.parse(d.description);
+    }
+}
@@ -0,0 +1,75 @@
+package com.robojudo;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scalar and Vector API kernels of {@link SequenceAnalytics} on a synthetic DNA segment.
+ * The fork adds the incubator module, so both kernels are available.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+public class SequenceAnalyticsBenchmark
+{
+    @State(Scope.Benchmark)
+    public static class Sequence
+    {
+        @Param({ "1000", "100000", "10000000" })
+        public int sequenceLength;
+
+        @Param({ "scalar", "vector" })
+        public String kernel;
+
+        SequenceAnalytics analytics;
+
+        @Setup
+        public void setup()
+        {
+            SequenceKernels kernels = "vector".equals(kernel) ? SequenceKernels.VECTOR : SequenceKernels.SCALAR;
+            if (kernels == null)
+                throw new IllegalStateException("Vector API not available");
+            ByteBuffer payload = ByteBuffer.wrap(new SnapGeneCorpusGenerator.Spec(sequenceLength, 0, 0).dnaSegment());
+            analytics = SequenceAnalytics.ofSegment(payload).using(kernels);
+        }
+    }
+
+    @Benchmark
+    public long gcCount(Sequence s, ParseBytes bytes)
+    {
+        bytes.bytes += s.analytics.length();
+        return s.analytics.gcCount();
+    }
+
+    @Benchmark
+    public SequenceAnalytics.Composition composition(Sequence s, ParseBytes bytes)
+    {
+        bytes.bytes += s.analytics.length();
+        return s.analytics.composition();
+    }
+
+    @Benchmark
+    public double[] slidingGc(Sequence s, ParseBytes bytes)
+    {
+        bytes.bytes += s.analytics.length();
+        return s.analytics.slidingGc(100, 50);
+    }
+
+    @Benchmark
+    public SequenceAnalytics.Runs homopolymers(Sequence s, ParseBytes bytes)
+    {
+        bytes.bytes += s.analytics.length();
+        return s.analytics.homopolymers(6);
+    }
+
+    @Benchmark
+    public byte[] reverseComplement(Sequence s, ParseBytes bytes)
+    {
+        bytes.bytes += s.analytics.length();
+        return s.analytics.reverseComplement();
+    }
+}
@@ -0,0 +1,278 @@
+package com.robojudo;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Writes synthetic but valid .dna files so benchmarks can run without proprietary data.
+ *
+ * Output is fully determined by the {@link Spec}: the same spec and seed always produce the same bytes.
+ */
+public class SnapGeneCorpusGenerator
+{
+    private static final String[] FEATURE_TYPES = { "CDS", "gene", "promoter", "terminator", "misc_feature", "primer_bind", "rep_origin", "RBS" };
+    private static final String[] COLORS = { "#993366", "#31849b", "#ffff00", "#b7e6d7", "#ff9ccd", "#75c6a9" };
+    private static final String[] TEXT_KEYS = { "gene", "product", "note", "label", "locus_tag", "protein_id" };
+    private static final String[] PREDEF_VALUES = { "similar to", "experimental", "non-experimental", "inferred" };
+
+    public static class Spec
+    {
+        public final int sequenceLength;
+        public final int featureCount;
+        public final int qualifiersPerFeature;
+        public boolean circular = true;
+        public long seed = 42;
+
+        public Spec(int sequenceLength, int featureCount, int qualifiersPerFeature) {
+            if (sequenceLength < 1)
+                throw new IllegalArgumentException("sequenceLength must be positive");
+            this.sequenceLength = sequenceLength;
+            this.featureCount = featureCount;
+            this.qualifiersPerFeature = qualifiersPerFeature;
+        }
+
+        public Spec circular(boolean circular)
+        {
+            this.circular = circular;
+            return this;
+        }
+
+        public Spec seed(long seed)
+        {
+            this.seed = seed;
+            return this;
+        }
+
+        public String fileName()
+        {
+            return String.format("seq%d_feat%d_q%d.dna", sequenceLength, featureCount, qualifiersPerFeature);
+        }
+
+        /** Complete file contents: description, DNA, notes and features segments. */
+        public byte[] generate()
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(sequenceLength + 256 * featureCount + 1024);
+            writeSegment(out, SnapGene.DescriptionSegment.TYPE, descriptionSegment());
+            writeSegment(out, SnapGene.DNASegment.TYPE, dnaSegment());
+            writeSegment(out, SnapGene.NotesSegment.TYPE, notesSegment());
+            writeSegment(out, SnapGene.FeaturesSegment.TYPE, featuresSegment());
+            return out.toByteArray();
+        }
+
+        public void write(Path file) throws IOException
+        {
+            Files.write(file, generate());
+        }
+
+        public byte[] descriptionSegment()
+        {
+            ByteBuffer bb = ByteBuffer.allocate(14);
+            bb.put("SnapGene".getBytes(StandardCharsets.US_ASCII));
+            bb.putShort((short) 1);   // DNA
+            bb.putShort((short) 15);  // export version
+            bb.putShort((short) 19);  // import version
+            return bb.array();
+        }
+
+        public byte[] dnaSegment()
+        {
+            Random random = new Random(seed);
+            byte[] data = new byte[sequenceLength + 1];
+            // circular, double-stranded, Dam and Dcm methylated
+            data[0] = (byte) ((circular ? 1 : 0) | 2 | 4 | 8);
+            byte[] bases = { 'a', 'c', 'g', 't' };
+            byte[] ambiguous = { 'n', 'r', 'y', 'k', 'm', 's', 'w' };
+            for (int i = 1; i <= sequenceLength; i++)
+                data[i] = random.nextInt(5000) == 0 ? ambiguous[random.nextInt(ambiguous.length)] : bases[random.nextInt(4)];
+            return data;
+        }
+
+        public byte[] notesSegment()
+        {
+            return xml(w -> {
+                w.writeStartElement("Notes");
+                element(w, "UUID", new UUID(seed, sequenceLength).toString());
+                element(w, "Type", "Synthetic");
+                element(w, "ConfirmedExperimentally", "0");
+                element(w, "Description", "<html><body>Synthetic construct &amp; test vector</body></html>");
+                element(w, "Created", "2019.3.4");
+                element(w, "LastModified", "2020.11.27");
+                element(w, "CreatedBy", "SnapGeneCorpusGenerator");
+                element(w, "AccessionNumber", "SYN" + seed);
+                element(w, "Organism", "synthetic DNA construct");
+                element(w, "SequenceClass", "SYN");
+                element(w, "TransformedInto", "DH5α™");
+                element(w, "CustomMapLabel", "pSynth-" + sequenceLength);
+                element(w, "UseCustomMapLabel", "1");
+                element(w, "Comments", "Generated for benchmarking.");
+                w.writeStartElement("References");
+                for (int i = 0; i < 3; i++) {
+                    w.writeEmptyElement("Reference");
+                    w.writeAttribute("title", "Reference title " + i);
+                    w.writeAttribute("pubMedID", String.valueOf(10000000 + i));
+                    w.writeAttribute("journal", "J Synth Biol " + (2000 + i));
+                    w.writeAttribute("authors", "Doe J, Roe R");
+                }
+                w.writeEndElement();
+                w.writeEndElement();
+            });
+        }
+
+        public byte[] featuresSegment()
+        {
+            Random random = new Random(seed * 31 + featureCount);
+            return xml(w -> {
+                w.writeStartElement("Features");
+                w.writeAttribute("nextValidID", String.valueOf(featureCount));
+                for (int i = 0; i < featureCount; i++)
+                    writeFeature(w, random, i);
+                w.writeEndElement();
+            });
+        }
+
+        private void writeFeature(XMLStreamWriter w, Random random, int id) throws XMLStreamException
+        {
+            String type = FEATURE_TYPES[random.nextInt(FEATURE_TYPES.length)];
+            boolean cds = "CDS".equals(type);
+
+            w.writeStartElement("Feature");
+            w.writeAttribute("recentID", String.valueOf(id));
+            w.writeAttribute("name", type + "-" + id);
+            w.writeAttribute("directionality", String.valueOf(random.nextInt(3)));
+            w.writeAttribute("type", type);
+            w.writeAttribute("allowSegmentOverlaps", "0");
+            w.writeAttribute("consecutiveTranslationNumbering", "1");
+            if (cds) {
+                w.writeAttribute("readingFrame", "1");
+                w.writeAttribute("translationMW", String.format(Locale.ROOT, "%.2f", 10000 + random.nextDouble() * 90000));
+                w.writeAttribute("hitsStopCodon", "1");
+            }
+
+            int segments = cds ? 1 + random.nextInt(3) : 1;
+            int len = Math.min(sequenceLength, cds ? 3 * (50 + random.nextInt(500)) : 20 + random.nextInt(1000));
+            int start = 1 + random.nextInt(sequenceLength);
+            // origin-spanning features are only valid on circular sequences
+            if (!circular && start + len - 1 > sequenceLength)
+                start = sequenceLength - len + 1;
+
+            int segLen = Math.max(1, len / segments);
+            for (int s = 0; s < segments; s++) {
+                int segStart = (start - 1 + s * segLen) % sequenceLength + 1;
+                int segEnd = (segStart - 1 + segLen - 1) % sequenceLength + 1;
+                w.writeEmptyElement("Segment");
+                w.writeAttribute("range", segStart + "-" + segEnd);
+                w.writeAttribute("color", COLORS[random.nextInt(COLORS.length)]);
+                w.writeAttribute("type", "standard");
+                if (cds)
+                    w.writeAttribute("translated", "1");
+            }
+
+            for (int q = 0; q < qualifiersPerFeature; q++) {
+                w.writeStartElement("Q");
+                switch (q % 4) {
+                    case 1:
+                        w.writeAttribute("name", "codon_start");
+                        w.writeEmptyElement("V");
+                        w.writeAttribute("int", String.valueOf(1 + random.nextInt(3)));
+                        break;
+                    case 2:
+                        w.writeAttribute("name", "evidence");
+                        w.writeEmptyElement("V");
+                        w.writeAttribute("predef", PREDEF_VALUES[random.nextInt(PREDEF_VALUES.length)]);
+                        break;
+                    default:
+                        w.writeAttribute("name", TEXT_KEYS[(q / 2) % TEXT_KEYS.length]);
+                        w.writeEmptyElement("V");
+                        w.writeAttribute("text", "value " + random.nextInt(100000));
+                }
+                w.writeEndElement();
+            }
+            w.writeEndElement();
+        }
+    }
+
+    private interface XmlBody
+    {
+        void write(XMLStreamWriter w) throws XMLStreamException;
+    }
+
+    private static byte[] xml(XmlBody body)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            XMLStreamWriter w = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            w.writeStartDocument("UTF-8", "1.0");
+            body.write(w);
+            w.writeEndDocument();
+            w.close();
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static void element(XMLStreamWriter w, String name, String text) throws XMLStreamException
+    {
+        w.writeStartElement(name);
+        w.writeCharacters(text);
+        w.writeEndElement();
+    }
+
+    private static void writeSegment(ByteArrayOutputStream out, int type, byte[] data)
+    {
+        out.write(type);
+        out.write(data.length >>> 24);
+        out.write(data.length >>> 16);
+        out.write(data.length >>> 8);
+        out.write(data.length);
+        out.write(data, 0, data.length);
+    }
+
+    /**
+     * Usage: SnapGeneCorpusGenerator outputDir [sequenceLength featureCount qualifiersPerFeature]...
+     * With no size triples a default grid from 1 kb to 10 Mb and 0 to 50k features is written.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 0 || (args.length - 1) % 3 != 0) {
+            System.err.println("usage: SnapGeneCorpusGenerator outputDir [sequenceLength featureCount qualifiersPerFeature]...");
+            System.exit(2);
+        }
+
+        Path dir = Paths.get(args[0]);
+        Files.createDirectories(dir);
+
+        if (args.length == 1) {
+            int[] lengths = { 1_000, 100_000, 10_000_000 };
+            int[] features = { 0, 1_000, 50_000 };
+            int[] qualifiers = { 0, 4, 16 };
+            for (int len : lengths)
+                for (int f : features)
+                    for (int q : qualifiers)
+                        if (f != 0 || q == 0)
+                            write(dir, new Spec(len, f, q));
+        }
+        else {
+            for (int i = 1; i < args.length; i += 3)
+                write(dir, new Spec(Integer.parseInt(args[i]), Integer.parseInt(args[i + 1]), Integer.parseInt(args[i + 2])));
+        }
+    }
+
+    private static void write(Path dir, Spec spec) throws IOException
+    {
+        Path file = dir.resolve(spec.fileName());
+        spec.write(file);
+        System.out.println("wrote " + file + " (" + Files.size(file) + " bytes)");
+    }
+}
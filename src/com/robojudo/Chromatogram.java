@@ -0,0 +1,419 @@
+package com.robojudo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A Sanger chromatogram decoded from a ZTR trace, as stored in Sequence Trace segments (type 18).
+ *
+ * Samples, peak positions, base calls and quality values are held in primitive buffers, on the heap or
+ * off-heap, and are never boxed. Channels are numbered like {@link PackedSequence#code}: A=0, C=1, G=2,
+ * T=3. Samples are unsigned 16-bit values; read them with {@link #sample} or {@link Short#toUnsignedInt}.
+ *
+ * Chunks are decoded through the ZTR raw, RLE, zlib, delta, 16-to-8, 32-to-8 and follow formats.
+ * Other formats are rejected; chunk types other than BASE, BPOS, CNF1, CNF4, SMP0 and SMP4 are skipped.
+ */
+public final class Chromatogram
+{
+    private static final byte[] MAGIC = { (byte) 0xAE, 'Z', 'T', 'R', '\r', '\n', 0x1A, '\n' };
+
+    // chunk types
+    private static final int BASE = fourCC("BASE");
+    private static final int BPOS = fourCC("BPOS");
+    private static final int CNF1 = fourCC("CNF1");
+    private static final int CNF4 = fourCC("CNF4");
+    private static final int SMP0 = fourCC("SMP0");
+    private static final int SMP4 = fourCC("SMP4");
+
+    // data formats
+    private static final int RAW = 0;
+    private static final int RLE = 1;
+    private static final int ZLIB = 2;
+    private static final int DELTA1 = 64;
+    private static final int DELTA2 = 65;
+    private static final int DELTA4 = 66;
+    private static final int SHRINK_16TO8 = 67;
+    private static final int SHRINK_32TO8 = 69;
+    private static final int FOLLOW1 = 70;
+
+    private static final ShortBuffer NO_SAMPLES = ShortBuffer.allocate(0);
+
+    private final ShortBuffer[] channels;
+    private final IntBuffer peaks;
+    private final ByteBuffer bases;
+    private final ByteBuffer qualities;
+
+    private Chromatogram(ShortBuffer[] channels, IntBuffer peaks, ByteBuffer bases, ByteBuffer qualities)
+    {
+        this.channels = channels;
+        this.peaks = peaks;
+        this.bases = bases;
+        this.qualities = qualities;
+    }
+
+    /** Decodes a ZTR trace onto the heap. */
+    public static Chromatogram decode(ByteBuffer ztr)
+    {
+        return decode(ztr, false);
+    }
+
+    /** Decodes a ZTR trace; with offHeap, the decoded values are kept in direct buffers. */
+    public static Chromatogram decode(ByteBuffer ztr, boolean offHeap)
+    {
+        ByteBuffer bb = ztr.duplicate().order(ByteOrder.BIG_ENDIAN);
+        if (!isZtr(bb))
+            throw new IllegalArgumentException("Expected ZTR trace");
+        bb.position(bb.position() + MAGIC.length);
+        if (bb.remaining() < 2 || bb.get() != 1)
+            throw new IllegalArgumentException("Unsupported ZTR version");
+        bb.get();
+
+        ShortBuffer[] channels = { NO_SAMPLES, NO_SAMPLES, NO_SAMPLES, NO_SAMPLES };
+        IntBuffer peaks = IntBuffer.allocate(0);
+        ByteBuffer bases = ByteBuffer.allocate(0);
+        ByteBuffer qualities = null, calledQualities = null;
+        while (bb.remaining() >= 12)
+        {
+            int type = bb.getInt();
+            ByteBuffer meta = chunk(bb);
+            ByteBuffer data = chunk(bb);
+
+            if (type == BASE)
+                bases = copy(uncompress(data), offHeap);
+            else if (type == BPOS)
+                peaks = copy(skip(uncompress(data), 3), offHeap).asIntBuffer();
+            else if (type == CNF1)
+                qualities = copy(uncompress(data), offHeap);
+            else if (type == CNF4)
+                // the called base's confidence for every base comes first, then those of the other three
+                calledQualities = uncompress(data);
+            else if (type == SMP4)
+                splitChannels(copy(skip(uncompress(data), 1), offHeap).asShortBuffer(), channels);
+            else if (type == SMP0)
+            {
+                int channel = channel(meta);
+                if (channel != -1)
+                    channels[channel] = copy(skip(uncompress(data), 1), offHeap).asShortBuffer();
+            }
+        }
+        if (qualities == null && calledQualities != null)
+            qualities = copy(calledQualities.limit(Math.min(calledQualities.limit(), bases.capacity())), offHeap);
+        if (qualities == null)
+            qualities = ByteBuffer.allocate(0);
+
+        return new Chromatogram(channels, peaks, bases, qualities);
+    }
+
+    static boolean isZtr(ByteBuffer data)
+    {
+        if (data.remaining() < MAGIC.length)
+            return false;
+        for (int i = 0; i < MAGIC.length; i++)
+            if (data.get(data.position() + i) != MAGIC[i])
+                return false;
+        return true;
+    }
+
+    public int sampleCount()
+    {
+        int ret = 0;
+        for (ShortBuffer channel : channels)
+            ret = Math.max(ret, channel.capacity());
+        return ret;
+    }
+
+    public int baseCount()
+    {
+        return bases.capacity();
+    }
+
+    /** Read-only view of one channel's samples. */
+    public ShortBuffer samples(int channel)
+    {
+        return channels[channel].asReadOnlyBuffer();
+    }
+
+    /** Sample i of a channel as an unsigned value. */
+    public int sample(int channel, int i)
+    {
+        return Short.toUnsignedInt(channels[channel].get(i));
+    }
+
+    /** Copies one channel's samples into a new array. */
+    public short[] samplesArray(int channel)
+    {
+        ShortBuffer s = channels[channel].duplicate();
+        s.clear();
+        short[] ret = new short[s.remaining()];
+        s.get(ret);
+        return ret;
+    }
+
+    /** Read-only view of the sample index of each base call. */
+    public IntBuffer peaks()
+    {
+        return peaks.asReadOnlyBuffer();
+    }
+
+    public int[] peaksArray()
+    {
+        IntBuffer p = peaks.duplicate();
+        p.clear();
+        int[] ret = new int[p.remaining()];
+        p.get(ret);
+        return ret;
+    }
+
+    /** Read-only view of the ASCII base calls. */
+    public ByteBuffer bases()
+    {
+        return bases.asReadOnlyBuffer();
+    }
+
+    public String baseCalls()
+    {
+        byte[] b = new byte[bases.capacity()];
+        bases.duplicate().clear().get(b);
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    /** Read-only view of the confidence of each base call, or an empty buffer if the trace has none. */
+    public ByteBuffer qualities()
+    {
+        return qualities.asReadOnlyBuffer();
+    }
+
+    public byte[] qualitiesArray()
+    {
+        byte[] ret = new byte[qualities.capacity()];
+        qualities.duplicate().clear().get(ret);
+        return ret;
+    }
+
+    private static ByteBuffer chunk(ByteBuffer bb)
+    {
+        if (bb.remaining() < 4)
+            throw new IllegalArgumentException("Truncated ZTR chunk");
+        int len = bb.getInt();
+        if (len < 0 || len > bb.remaining())
+            throw new IllegalArgumentException("Invalid ZTR chunk length");
+        ByteBuffer ret = bb.slice(bb.position(), len);
+        bb.position(bb.position() + len);
+        return ret;
+    }
+
+    // SMP0 metadata is a list of NUL-terminated key/value strings; TYPE names the channel
+    private static int channel(ByteBuffer meta)
+    {
+        String[] parts = StandardCharsets.US_ASCII.decode(meta.duplicate()).toString().split("\0");
+        for (int i = 0; i + 1 < parts.length; i += 2)
+            if ("TYPE".equals(parts[i]))
+                return "ACGT".indexOf(parts[i + 1]);
+        return -1;
+    }
+
+    // SMP4 holds the A samples, then C, G and T
+    private static void splitChannels(ShortBuffer samples, ShortBuffer[] channels)
+    {
+        int n = samples.remaining() / 4;
+        for (int i = 0; i < 4; i++)
+            channels[i] = samples.slice(i * n, n);
+    }
+
+    private static ByteBuffer skip(ByteBuffer data, int padding)
+    {
+        if (data.remaining() < padding)
+            throw new IllegalArgumentException("Truncated ZTR chunk");
+        return data.position(data.position() + padding);
+    }
+
+    private static ByteBuffer copy(ByteBuffer data, boolean offHeap)
+    {
+        ByteBuffer ret = offHeap ? ByteBuffer.allocateDirect(data.remaining()) : ByteBuffer.allocate(data.remaining());
+        ret.put(data.duplicate()).flip();
+        return ret;
+    }
+
+    /** Undoes the chain of formats applied to a chunk, returning the raw bytes after the final format byte. */
+    static ByteBuffer uncompress(ByteBuffer data)
+    {
+        ByteBuffer bb = data;
+        while (true)
+        {
+            if (!bb.hasRemaining())
+                throw new IllegalArgumentException("Empty ZTR chunk");
+            int format = bb.get(bb.position()) & 0xFF;
+            if (format == RAW)
+                return bb.position(bb.position() + 1).slice().order(ByteOrder.BIG_ENDIAN);
+
+            byte[] b;
+            if (bb.hasArray() && bb.arrayOffset() == 0 && bb.position() == 0 && bb.limit() == bb.array().length) {
+                // the output of the previous format
+                b = bb.array();
+            }
+            else {
+                b = new byte[bb.remaining()];
+                bb.duplicate().get(b);
+            }
+            switch (format)
+            {
+                case RLE:          b = unrle(b); break;
+                case ZLIB:         b = inflate(b); break;
+                case DELTA1:       b = recorrelate(b, 1); break;
+                case DELTA2:       b = recorrelate(b, 2); break;
+                case DELTA4:       b = recorrelate(b, 4); break;
+                case SHRINK_16TO8: b = expand(b, 2); break;
+                case SHRINK_32TO8: b = expand(b, 4); break;
+                case FOLLOW1:      b = unfollow(b); break;
+                default:
+                    throw new IllegalArgumentException("Unsupported ZTR format " + format);
+            }
+            bb = ByteBuffer.wrap(b);
+        }
+    }
+
+    private static int littleEndianInt(byte[] b, int i)
+    {
+        if (b.length < i + 4)
+            throw new IllegalArgumentException("Truncated ZTR chunk");
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static byte[] unrle(byte[] b)
+    {
+        int len = littleEndianInt(b, 1);
+        if (len < 0 || b.length < 6)
+            throw new IllegalArgumentException("Invalid ZTR RLE chunk");
+        byte guard = b[5];
+        byte[] ret = new byte[len];
+        try {
+            for (int i = 6, j = 0; j < len; i++)
+            {
+                if (b[i] != guard) {
+                    ret[j++] = b[i];
+                }
+                else if (b[++i] == 0) {
+                    ret[j++] = guard;
+                }
+                else {
+                    int run = b[i] & 0xFF;
+                    byte value = b[++i];
+                    for (int k = 0; k < run; k++)
+                        ret[j++] = value;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid ZTR RLE chunk", e);
+        }
+        return ret;
+    }
+
+    private static byte[] inflate(byte[] b)
+    {
+        int len = littleEndianInt(b, 1);
+        if (len < 0)
+            throw new IllegalArgumentException("Invalid ZTR zlib chunk");
+        byte[] ret = new byte[len];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(b, 5, b.length - 5);
+            int n = 0;
+            while (n < len && !inflater.finished())
+            {
+                int k = inflater.inflate(ret, n, len - n);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += k;
+            }
+            if (n != len)
+                throw new IllegalArgumentException("Truncated ZTR zlib chunk");
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Invalid ZTR zlib chunk", e);
+        } finally {
+            inflater.end();
+        }
+        return ret;
+    }
+
+    // Reverses 1st to 3rd order differences of 1, 2 or 4 byte big-endian values
+    private static byte[] recorrelate(byte[] b, int width)
+    {
+        if (b.length < 2)
+            throw new IllegalArgumentException("Truncated ZTR chunk");
+        int level = b[1];
+        if (level < 1 || level > 3)
+            throw new IllegalArgumentException("Invalid ZTR delta level " + level);
+        // 4-byte values are aligned after two bytes of padding
+        int start = width == 4 ? 4 : 2;
+        int n = (b.length - start) / width;
+        byte[] ret = new byte[n * width];
+        ByteBuffer in = ByteBuffer.wrap(b, start, n * width);
+        ByteBuffer out = ByteBuffer.wrap(ret);
+        int u1 = 0, u2 = 0, u3 = 0;
+        for (int i = 0; i < n; i++)
+        {
+            int z = level == 1 ? u1 : level == 2 ? 2 * u1 - u2 : 3 * u1 - 3 * u2 + u3;
+            int v;
+            switch (width)
+            {
+                case 1:  v = (byte) (in.get() + z); out.put((byte) v); break;
+                case 2:  v = (short) (in.getShort() + z); out.putShort((short) v); break;
+                default: v = in.getInt() + z; out.putInt(v); break;
+            }
+            u3 = u2;
+            u2 = u1;
+            u1 = v;
+        }
+        return ret;
+    }
+
+    // Values that fit in a signed byte are stored as one; others are escaped with -128 and stored in full
+    private static byte[] expand(byte[] b, int width)
+    {
+        int n = 0;
+        for (int i = 1; i < b.length; i++, n++)
+            if (b[i] == -128)
+                i += width;
+        ByteBuffer out = ByteBuffer.allocate(n * width);
+        try {
+            for (int i = 1; i < b.length; i++)
+            {
+                if (b[i] != -128) {
+                    if (width == 2)
+                        out.putShort(b[i]);
+                    else
+                        out.putInt(b[i]);
+                }
+                else {
+                    out.put(b, i + 1, width);
+                    i += width;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Truncated ZTR chunk", e);
+        }
+        return out.array();
+    }
+
+    // Each byte is stored as its difference from a predicted successor of the previous byte
+    private static byte[] unfollow(byte[] b)
+    {
+        if (b.length < 258)
+            throw new IllegalArgumentException("Truncated ZTR follow chunk");
+        byte[] ret = new byte[b.length - 257];
+        ret[0] = b[257];
+        for (int i = 1; i < ret.length; i++)
+            ret[i] = (byte) (b[1 + (ret[i - 1] & 0xFF)] - b[257 + i]);
+        return ret;
+    }
+
+    private static int fourCC(String s)
+    {
+        return s.charAt(0) << 24 | s.charAt(1) << 16 | s.charAt(2) << 8 | s.charAt(3);
+    }
+}
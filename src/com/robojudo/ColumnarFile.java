@@ -0,0 +1,752 @@
+package com.robojudo;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A table file stored column by column, for bulk analytics over many documents.
+ *
+ * Rows are buffered into row groups, which are written out one column at a time once they reach the
+ * configured number of rows or their strings the configured size, so a writer holds one row group at most.
+ * Numbers and booleans are stored as primitive arrays; strings are dictionary-encoded per row group, each
+ * distinct value stored once and rows holding 1, 2 or 4 byte codes. Every column is nullable.
+ *
+ * A footer at the end lists the columns and the offset of every column chunk, so a reader decodes only
+ * the row groups and columns it asks for.
+ *
+ * <pre>
+ * file:   "SGCF" chunk* footer footerLength:int "SGCF"
+ * footer: columnCount:int (nameLength:int UTF-8 type:byte)* rowGroupCount:int (rows:int (offset:long length:int)*)*
+ * chunk:  hasNulls:byte [null bitmap] values
+ * values: INT 4 bytes, LONG and DOUBLE 8 bytes, BOOL bitmap, or for STRING
+ *         entryCount:int (length:int UTF-8)* codeWidth:byte code*
+ * </pre>
+ * All numbers are big-endian; bitmaps hold a bit per row, lowest bit first, set for nulls or true values.
+ */
+public final class ColumnarFile
+{
+    private static final int MAGIC = 0x53474346; // "SGCF"
+
+    public enum Type
+    {
+        INT,
+        LONG,
+        DOUBLE,
+        BOOL,
+        STRING
+    }
+
+    public static final class Column
+    {
+        public final String name;
+        public final Type type;
+
+        public Column(String name, Type type) {
+            this.name = Objects.requireNonNull(name);
+            this.type = Objects.requireNonNull(type);
+        }
+
+        @Override
+        public String toString()
+        {
+            return name + " " + type;
+        }
+    }
+
+    private ColumnarFile()
+    {
+    }
+
+    public static Writer.Builder writer(Path path, List<Column> columns)
+    {
+        return new Writer.Builder(path, columns);
+    }
+
+    public static Reader open(Path path) throws IOException
+    {
+        return new Reader(path);
+    }
+
+    /**
+     * Appends rows: set the values of a row with the typed setters, leaving out nulls, then call
+     * {@link #endRow()}. Not thread-safe.
+     */
+    public static final class Writer implements Closeable
+    {
+        public static final class Builder
+        {
+            private final Path path;
+            private final List<Column> columns;
+            private int rowGroupSize = 64 * 1024;
+            private long rowGroupBytes = 16 * 1024 * 1024;
+
+            private Builder(Path path, List<Column> columns) {
+                this.path = path;
+                this.columns = List.copyOf(columns);
+            }
+
+            /** Most rows per row group; 65536 by default. */
+            public Builder rowGroupSize(int rows)
+            {
+                if (rows < 1)
+                    throw new IllegalArgumentException("Row group size must be positive: " + rows);
+                this.rowGroupSize = rows;
+                return this;
+            }
+
+            /** Size of distinct strings at which a row group is written early; 16 MB by default. */
+            public Builder rowGroupBytes(long bytes)
+            {
+                if (bytes < 1)
+                    throw new IllegalArgumentException("Row group bytes must be positive: " + bytes);
+                this.rowGroupBytes = bytes;
+                return this;
+            }
+
+            public Writer build() throws IOException
+            {
+                return new Writer(this);
+            }
+        }
+
+        private final Column[] columns;
+        private final Map<String, Integer> columnIndex = new HashMap<>();
+        private final ColumnBuffer[] buffers;
+        private final int rowGroupSize;
+        private final long rowGroupBytes;
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        // per row group: rows, then offset and length of each chunk
+        private final List<long[]> rowGroups = new ArrayList<>();
+        private int rows;
+        private long rowCount;
+        private boolean closed;
+
+        private Writer(Builder builder) throws IOException {
+            if (builder.columns.isEmpty())
+                throw new IllegalArgumentException("Expected at least one column");
+            this.columns = builder.columns.toArray(new Column[0]);
+            this.buffers = new ColumnBuffer[columns.length];
+            for (int i = 0; i < columns.length; i++)
+            {
+                if (columnIndex.put(columns[i].name, i) != null)
+                    throw new IllegalArgumentException("Duplicate column " + columns[i].name);
+                buffers[i] = new ColumnBuffer(columns[i].type);
+            }
+            this.rowGroupSize = builder.rowGroupSize;
+            this.rowGroupBytes = builder.rowGroupBytes;
+            this.counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(builder.path), 64 * 1024));
+            this.out = new DataOutputStream(counter);
+            out.writeInt(MAGIC);
+        }
+
+        /** Index of the named column, for the setters. */
+        public int column(String name)
+        {
+            Integer i = columnIndex.get(name);
+            if (i == null)
+                throw new IllegalArgumentException("No column " + name);
+            return i;
+        }
+
+        public void setInt(int column, int value)
+        {
+            buffer(column, Type.INT).set(rows, value);
+        }
+
+        public void setLong(int column, long value)
+        {
+            buffer(column, Type.LONG).set(rows, value);
+        }
+
+        public void setDouble(int column, double value)
+        {
+            buffer(column, Type.DOUBLE).set(rows, Double.doubleToRawLongBits(value));
+        }
+
+        public void setBool(int column, boolean value)
+        {
+            buffer(column, Type.BOOL).set(rows, value ? 1 : 0);
+        }
+
+        /** A null value leaves the column null. */
+        public void setString(int column, String value)
+        {
+            if (value != null)
+                buffer(column, Type.STRING).setString(rows, value);
+        }
+
+        private ColumnBuffer buffer(int column, Type type)
+        {
+            if (closed)
+                throw new IllegalStateException("Writer is closed");
+            ColumnBuffer b = buffers[column];
+            if (b.type != type)
+                throw new IllegalArgumentException("Column " + columns[column].name + " is " + b.type + ", not " + type);
+            return b;
+        }
+
+        /** Ends the current row; columns that were not set are null. */
+        public void endRow() throws IOException
+        {
+            if (closed)
+                throw new IllegalStateException("Writer is closed");
+            rows++;
+            rowCount++;
+            if (rows == rowGroupSize || stringBytes() >= rowGroupBytes)
+                flushRowGroup();
+        }
+
+        public long rowCount()
+        {
+            return rowCount;
+        }
+
+        private long stringBytes()
+        {
+            long n = 0;
+            for (ColumnBuffer b : buffers)
+                n += b.stringBytes;
+            return n;
+        }
+
+        private void flushRowGroup() throws IOException
+        {
+            if (rows == 0)
+                return;
+            long[] group = new long[1 + 2 * columns.length];
+            group[0] = rows;
+            for (int i = 0; i < columns.length; i++)
+            {
+                long offset = counter.count;
+                buffers[i].write(out, rows);
+                group[1 + 2 * i] = offset;
+                group[2 + 2 * i] = counter.count - offset;
+                buffers[i].clear();
+            }
+            rowGroups.add(group);
+            rows = 0;
+        }
+
+        /** Writes the last row group and the footer. */
+        @Override
+        public void close() throws IOException
+        {
+            if (closed)
+                return;
+            try {
+                flushRowGroup();
+                long start = counter.count;
+                out.writeInt(columns.length);
+                for (Column c : columns)
+                {
+                    byte[] name = c.name.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    out.writeByte(c.type.ordinal());
+                }
+                out.writeInt(rowGroups.size());
+                for (long[] group : rowGroups)
+                {
+                    out.writeInt((int) group[0]);
+                    for (int i = 0; i < columns.length; i++)
+                    {
+                        out.writeLong(group[1 + 2 * i]);
+                        out.writeInt((int) group[2 + 2 * i]);
+                    }
+                }
+                out.writeInt((int) (counter.count - start));
+                out.writeInt(MAGIC);
+            }
+            finally {
+                closed = true;
+                out.close();
+            }
+        }
+    }
+
+    /** Values of one column of the row group being written. */
+    private static final class ColumnBuffer
+    {
+        final Type type;
+        // INT and BOOL values, or string codes
+        int[] ints;
+        // LONG and DOUBLE values
+        long[] longs;
+        // bit set for each row that was given a value
+        long[] present = new long[16];
+        Map<String, Integer> codes;
+        List<String> dictionary;
+        long stringBytes;
+
+        ColumnBuffer(Type type) {
+            this.type = type;
+            if (type == Type.LONG || type == Type.DOUBLE)
+                longs = new long[1024];
+            else
+                ints = new int[1024];
+            if (type == Type.STRING) {
+                codes = new HashMap<>();
+                dictionary = new ArrayList<>();
+            }
+        }
+
+        void set(int row, int value)
+        {
+            if (row >= ints.length)
+                ints = Arrays.copyOf(ints, Math.max(2 * ints.length, row + 1));
+            ints[row] = value;
+            mark(row);
+        }
+
+        void set(int row, long value)
+        {
+            if (row >= longs.length)
+                longs = Arrays.copyOf(longs, Math.max(2 * longs.length, row + 1));
+            longs[row] = value;
+            mark(row);
+        }
+
+        void setString(int row, String value)
+        {
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = dictionary.size();
+                codes.put(value, code);
+                dictionary.add(value);
+                stringBytes += 2L * value.length() + 48;
+            }
+            set(row, code);
+        }
+
+        private void mark(int row)
+        {
+            if (row >>> 6 >= present.length)
+                present = Arrays.copyOf(present, Math.max(2 * present.length, (row >>> 6) + 1));
+            present[row >>> 6] |= 1L << row;
+        }
+
+        boolean isPresent(int row)
+        {
+            return row >>> 6 < present.length && (present[row >>> 6] & 1L << row) != 0;
+        }
+
+        void write(DataOutputStream out, int rows) throws IOException
+        {
+            boolean hasNulls = false;
+            for (int i = 0; i < rows && !hasNulls; i++)
+                hasNulls = !isPresent(i);
+            out.writeByte(hasNulls ? 1 : 0);
+            if (hasNulls)
+                writeBitmap(out, rows, i -> !isPresent(i));
+
+            switch (type)
+            {
+                case INT:
+                    for (int i = 0; i < rows; i++)
+                        out.writeInt(isPresent(i) ? ints[i] : 0);
+                    break;
+                case LONG:
+                case DOUBLE:
+                    for (int i = 0; i < rows; i++)
+                        out.writeLong(isPresent(i) ? longs[i] : 0);
+                    break;
+                case BOOL:
+                    writeBitmap(out, rows, i -> isPresent(i) && ints[i] != 0);
+                    break;
+                case STRING:
+                    out.writeInt(dictionary.size());
+                    for (String s : dictionary)
+                    {
+                        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(utf8.length);
+                        out.write(utf8);
+                    }
+                    int width = codeWidth(dictionary.size());
+                    out.writeByte(width);
+                    for (int i = 0; i < rows; i++)
+                    {
+                        int code = isPresent(i) ? ints[i] : 0;
+                        if (width == 1)
+                            out.writeByte(code);
+                        else if (width == 2)
+                            out.writeShort(code);
+                        else
+                            out.writeInt(code);
+                    }
+                    break;
+            }
+        }
+
+        void clear()
+        {
+            Arrays.fill(present, 0);
+            if (codes != null) {
+                codes.clear();
+                dictionary.clear();
+                stringBytes = 0;
+            }
+        }
+    }
+
+    private interface RowPredicate
+    {
+        boolean test(int row);
+    }
+
+    private static void writeBitmap(DataOutputStream out, int rows, RowPredicate bit) throws IOException
+    {
+        for (int i = 0; i < rows; i += 8)
+        {
+            int b = 0;
+            for (int j = 0; j < 8 && i + j < rows; j++)
+                if (bit.test(i + j))
+                    b |= 1 << j;
+            out.writeByte(b);
+        }
+    }
+
+    private static int codeWidth(int entries)
+    {
+        return entries <= 256 ? 1 : entries <= 65536 ? 2 : 4;
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException
+        {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Reads a file written by {@link Writer}. Only the footer is read on open; {@link #read} maps and decodes
+     * the chunks of the requested columns. Safe to use from several threads.
+     */
+    public static final class Reader implements Closeable
+    {
+        private final FileChannel channel;
+        private final List<Column> columns;
+        private final Map<String, Integer> columnIndex = new HashMap<>();
+        private final int[] groupRows;
+        // [group][2 * column] offset, [group][2 * column + 1] length
+        private final long[][] chunks;
+        private final long rowCount;
+
+        private Reader(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < 12)
+                    throw new IllegalArgumentException("Not a columnar file: " + path);
+                ByteBuffer tail = read(size - 8, 8);
+                int footerLength = tail.getInt();
+                if (tail.getInt() != MAGIC || read(0, 4).getInt() != MAGIC || footerLength < 0 || footerLength > size - 12)
+                    throw new IllegalArgumentException("Not a columnar file: " + path);
+
+                ByteBuffer footer = read(size - 8 - footerLength, footerLength);
+                int columnCount = footer.getInt();
+                List<Column> columns = new ArrayList<>(columnCount);
+                for (int i = 0; i < columnCount; i++)
+                {
+                    int length = footer.getInt();
+                    if (length < 0 || length > footer.remaining())
+                        throw new IllegalArgumentException("Invalid column name length");
+                    byte[] name = new byte[length];
+                    footer.get(name);
+                    columns.add(new Column(new String(name, StandardCharsets.UTF_8), Type.values()[footer.get()]));
+                    columnIndex.put(columns.get(i).name, i);
+                }
+                this.columns = List.copyOf(columns);
+
+                int groups = footer.getInt();
+                groupRows = new int[groups];
+                chunks = new long[groups][2 * columnCount];
+                long rows = 0;
+                for (int g = 0; g < groups; g++)
+                {
+                    groupRows[g] = footer.getInt();
+                    rows += groupRows[g];
+                    for (int c = 0; c < columnCount; c++)
+                    {
+                        chunks[g][2 * c] = footer.getLong();
+                        chunks[g][2 * c + 1] = footer.getInt();
+                    }
+                }
+                rowCount = rows;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                channel.close();
+                throw new IllegalArgumentException("Corrupt columnar file: " + path, e);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        private ByteBuffer read(long offset, int length) throws IOException
+        {
+            ByteBuffer bb = ByteBuffer.allocate(length);
+            while (bb.hasRemaining())
+                if (channel.read(bb, offset + bb.position()) < 0)
+                    throw new IllegalArgumentException("Unexpected end of columnar file");
+            return bb.flip();
+        }
+
+        public List<Column> columns()
+        {
+            return columns;
+        }
+
+        public long rowCount()
+        {
+            return rowCount;
+        }
+
+        public int rowGroupCount()
+        {
+            return groupRows.length;
+        }
+
+        public int rowGroupSize(int group)
+        {
+            return groupRows[group];
+        }
+
+        /** Decodes the named columns of a row group, or all of them if no names are given. */
+        public RowGroup read(int group, String... columnNames) throws IOException
+        {
+            Objects.checkIndex(group, groupRows.length);
+            String[] names = columnNames.length > 0 ? columnNames : columns.stream().map(c -> c.name).toArray(String[]::new);
+            Map<String, ColumnData> data = new HashMap<>();
+            for (String name : names)
+            {
+                Integer c = columnIndex.get(name);
+                if (c == null)
+                    throw new IllegalArgumentException("No column " + name);
+                if (data.containsKey(name))
+                    continue;
+                ByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, chunks[group][2 * c], chunks[group][2 * c + 1]);
+                try {
+                    data.put(name, ColumnData.decode(columns.get(c).type, chunk, groupRows[group]));
+                } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("Corrupt chunk of column " + name + " in row group " + group, e);
+                }
+            }
+            return new RowGroup(groupRows[group], data);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            channel.close();
+        }
+    }
+
+    /** The decoded columns of one row group. Accessors throw IllegalArgumentException for columns not read. */
+    public static final class RowGroup
+    {
+        private final int rows;
+        private final Map<String, ColumnData> columns;
+
+        private RowGroup(int rows, Map<String, ColumnData> columns) {
+            this.rows = rows;
+            this.columns = columns;
+        }
+
+        public int size()
+        {
+            return rows;
+        }
+
+        public boolean isNull(String column, int row)
+        {
+            Objects.checkIndex(row, rows);
+            long[] nulls = column(column, null).nulls;
+            return nulls != null && (nulls[row >>> 6] & 1L << row) != 0;
+        }
+
+        /** Values of an INT column; 0 for nulls. */
+        public int[] ints(String column)
+        {
+            return column(column, Type.INT).ints;
+        }
+
+        /** Values of a LONG column; 0 for nulls. */
+        public long[] longs(String column)
+        {
+            return column(column, Type.LONG).longs;
+        }
+
+        /** Values of a DOUBLE column; 0 for nulls. */
+        public double[] doubles(String column)
+        {
+            return column(column, Type.DOUBLE).doubles;
+        }
+
+        /** Values of a BOOL column; false for nulls. */
+        public boolean[] bools(String column)
+        {
+            return column(column, Type.BOOL).bools;
+        }
+
+        public Strings strings(String column)
+        {
+            return column(column, Type.STRING).strings;
+        }
+
+        private ColumnData column(String name, Type type)
+        {
+            ColumnData c = columns.get(name);
+            if (c == null)
+                throw new IllegalArgumentException("Column " + name + " was not read");
+            if (type != null && c.type != type)
+                throw new IllegalArgumentException("Column " + name + " is " + c.type + ", not " + type);
+            return c;
+        }
+    }
+
+    /** A dictionary-encoded string column: a code per row into the row group's distinct values. */
+    public static final class Strings
+    {
+        private final String[] dictionary;
+        private final int[] codes;
+
+        private Strings(String[] dictionary, int[] codes) {
+            this.dictionary = dictionary;
+            this.codes = codes;
+        }
+
+        public int size()
+        {
+            return codes.length;
+        }
+
+        /** Index into {@link #dictionary()}, or -1 for null. */
+        public int code(int row)
+        {
+            return codes[row];
+        }
+
+        public String get(int row)
+        {
+            int code = codes[row];
+            return code == -1 ? null : dictionary[code];
+        }
+
+        /** Distinct values in order of first appearance in the row group. */
+        public List<String> dictionary()
+        {
+            return Arrays.asList(dictionary);
+        }
+    }
+
+    private static final class ColumnData
+    {
+        final Type type;
+        // null if the chunk has no nulls
+        long[] nulls;
+        int[] ints;
+        long[] longs;
+        double[] doubles;
+        boolean[] bools;
+        Strings strings;
+
+        private ColumnData(Type type) {
+            this.type = type;
+        }
+
+        static ColumnData decode(Type type, ByteBuffer chunk, int rows)
+        {
+            ColumnData d = new ColumnData(type);
+            if (chunk.get() != 0)
+                d.nulls = readBitmap(chunk, rows);
+
+            switch (type)
+            {
+                case INT:
+                    d.ints = new int[rows];
+                    chunk.asIntBuffer().get(d.ints);
+                    break;
+                case LONG:
+                    d.longs = new long[rows];
+                    chunk.asLongBuffer().get(d.longs);
+                    break;
+                case DOUBLE:
+                    d.doubles = new double[rows];
+                    chunk.asDoubleBuffer().get(d.doubles);
+                    break;
+                case BOOL:
+                    long[] bits = readBitmap(chunk, rows);
+                    d.bools = new boolean[rows];
+                    for (int i = 0; i < rows; i++)
+                        d.bools[i] = (bits[i >>> 6] & 1L << i) != 0;
+                    break;
+                case STRING:
+                    int entries = chunk.getInt();
+                    if (entries < 0)
+                        throw new IllegalArgumentException("Negative dictionary size");
+                    String[] dictionary = new String[entries];
+                    for (int i = 0; i < entries; i++)
+                    {
+                        byte[] utf8 = new byte[chunk.getInt()];
+                        chunk.get(utf8);
+                        dictionary[i] = new String(utf8, StandardCharsets.UTF_8);
+                    }
+                    int width = chunk.get();
+                    int[] codes = new int[rows];
+                    for (int i = 0; i < rows; i++)
+                    {
+                        int code = width == 1 ? chunk.get() & 0xFF : width == 2 ? chunk.getShort() & 0xFFFF : chunk.getInt();
+                        if (d.nulls != null && (d.nulls[i >>> 6] & 1L << i) != 0)
+                            code = -1;
+                        else
+                            Objects.checkIndex(code, entries);
+                        codes[i] = code;
+                    }
+                    d.strings = new Strings(dictionary, codes);
+                    break;
+            }
+            return d;
+        }
+
+        private static long[] readBitmap(ByteBuffer chunk, int rows)
+        {
+            long[] bits = new long[(rows + 63) >>> 6];
+            for (int i = 0; i < rows; i += 8)
+                bits[i >>> 6] |= (long) (chunk.get() & 0xFF) << (i & 63);
+            return bits;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.robojudo;
+
+import com.robojudo.ColumnarFile.Column;
+import com.robojudo.ColumnarFile.Type;
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.DescriptionSegment;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.Seg;
+import com.robojudo.SnapGene.SnapGeneDoc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Exports the metadata and features of a corpus to three {@link ColumnarFile} tables in a directory:
+ *
+ * <ul>
+ * <li>documents.sgcf: one row per document, with its path, the Description segment, the DNA segment flags
+ * and length, and the Notes fields;</li>
+ * <li>features.sgcf: one row per feature segment, the feature's columns repeated on each, or one row with
+ * null segment columns for a feature without segments;</li>
+ * <li>qualifiers.sgcf: one row per qualifier.</li>
+ * </ul>
+ *
+ * Rows of the other tables refer to documents by doc_id and to features by their index within the document.
+ * Documents are written as they are added, so lazily indexed documents never have their sequence decoded.
+ *
+ * <pre>
+ * CorpusTables.export(root, outDir);
+ * try (ColumnarFile.Reader r = CorpusTables.open(outDir, CorpusTables.FEATURES)) {
+ *     ColumnarFile.RowGroup g = r.read(0, "type", "start", "end");
+ * }
+ * </pre>
+ */
+public final class CorpusTables implements Closeable
+{
+    public static final String DOCUMENTS = "documents";
+    public static final String FEATURES = "features";
+    public static final String QUALIFIERS = "qualifiers";
+
+    public static final List<Column> DOCUMENT_COLUMNS = List.of(
+            new Column("doc_id", Type.INT),
+            new Column("path", Type.STRING),
+            new Column("file_type", Type.STRING),
+            new Column("export_version", Type.INT),
+            new Column("import_version", Type.INT),
+            new Column("length", Type.INT),
+            new Column("topology", Type.STRING),
+            new Column("strandedness", Type.STRING),
+            new Column("dam", Type.BOOL),
+            new Column("dcm", Type.BOOL),
+            new Column("ecoki", Type.BOOL),
+            new Column("uuid", Type.STRING),
+            new Column("notes_type", Type.STRING),
+            new Column("confirmed_experimentally", Type.BOOL),
+            new Column("description", Type.STRING),
+            new Column("created", Type.LONG),
+            new Column("modified", Type.LONG),
+            new Column("created_by", Type.STRING),
+            new Column("accession_number", Type.STRING),
+            new Column("code_number", Type.STRING),
+            new Column("organism", Type.STRING),
+            new Column("sequence_class", Type.STRING),
+            new Column("transformed_into", Type.STRING),
+            new Column("custom_map_label", Type.STRING),
+            new Column("reference_count", Type.INT),
+            new Column("feature_count", Type.INT));
+
+    public static final List<Column> FEATURE_COLUMNS = List.of(
+            new Column("doc_id", Type.INT),
+            new Column("feature", Type.INT),
+            new Column("type", Type.STRING),
+            new Column("name", Type.STRING),
+            new Column("directionality", Type.STRING),
+            new Column("genetic_code", Type.STRING),
+            new Column("reading_frame", Type.INT),
+            new Column("translation_mw", Type.DOUBLE),
+            new Column("segment", Type.INT),
+            new Column("segment_name", Type.STRING),
+            new Column("segment_type", Type.STRING),
+            new Column("start", Type.INT),
+            new Column("end", Type.INT),
+            new Column("color", Type.STRING),
+            new Column("translated", Type.BOOL));
+
+    public static final List<Column> QUALIFIER_COLUMNS = List.of(
+            new Column("doc_id", Type.INT),
+            new Column("feature", Type.INT),
+            new Column("key", Type.STRING),
+            new Column("kind", Type.STRING),
+            new Column("int_value", Type.INT),
+            new Column("text_value", Type.STRING));
+
+    // column positions, so that reordering a column list cannot shift values into the wrong column
+    private static final int DOC_ID = column(DOCUMENT_COLUMNS, "doc_id");
+    private static final int DOC_PATH = column(DOCUMENT_COLUMNS, "path");
+    private static final int DOC_FILE_TYPE = column(DOCUMENT_COLUMNS, "file_type");
+    private static final int DOC_EXPORT_VERSION = column(DOCUMENT_COLUMNS, "export_version");
+    private static final int DOC_IMPORT_VERSION = column(DOCUMENT_COLUMNS, "import_version");
+    private static final int DOC_LENGTH = column(DOCUMENT_COLUMNS, "length");
+    private static final int DOC_TOPOLOGY = column(DOCUMENT_COLUMNS, "topology");
+    private static final int DOC_STRANDEDNESS = column(DOCUMENT_COLUMNS, "strandedness");
+    private static final int DOC_DAM = column(DOCUMENT_COLUMNS, "dam");
+    private static final int DOC_DCM = column(DOCUMENT_COLUMNS, "dcm");
+    private static final int DOC_ECOKI = column(DOCUMENT_COLUMNS, "ecoki");
+    private static final int DOC_UUID = column(DOCUMENT_COLUMNS, "uuid");
+    private static final int DOC_NOTES_TYPE = column(DOCUMENT_COLUMNS, "notes_type");
+    private static final int DOC_CONFIRMED_EXPERIMENTALLY = column(DOCUMENT_COLUMNS, "confirmed_experimentally");
+    private static final int DOC_DESCRIPTION = column(DOCUMENT_COLUMNS, "description");
+    private static final int DOC_CREATED = column(DOCUMENT_COLUMNS, "created");
+    private static final int DOC_MODIFIED = column(DOCUMENT_COLUMNS, "modified");
+    private static final int DOC_CREATED_BY = column(DOCUMENT_COLUMNS, "created_by");
+    private static final int DOC_ACCESSION_NUMBER = column(DOCUMENT_COLUMNS, "accession_number");
+    private static final int DOC_CODE_NUMBER = column(DOCUMENT_COLUMNS, "code_number");
+    private static final int DOC_ORGANISM = column(DOCUMENT_COLUMNS, "organism");
+    private static final int DOC_SEQUENCE_CLASS = column(DOCUMENT_COLUMNS, "sequence_class");
+    private static final int DOC_TRANSFORMED_INTO = column(DOCUMENT_COLUMNS, "transformed_into");
+    private static final int DOC_CUSTOM_MAP_LABEL = column(DOCUMENT_COLUMNS, "custom_map_label");
+    private static final int DOC_REFERENCE_COUNT = column(DOCUMENT_COLUMNS, "reference_count");
+    private static final int DOC_FEATURE_COUNT = column(DOCUMENT_COLUMNS, "feature_count");
+
+    private static final int FEATURE_DOC_ID = column(FEATURE_COLUMNS, "doc_id");
+    private static final int FEATURE_INDEX = column(FEATURE_COLUMNS, "feature");
+    private static final int FEATURE_TYPE = column(FEATURE_COLUMNS, "type");
+    private static final int FEATURE_NAME = column(FEATURE_COLUMNS, "name");
+    private static final int FEATURE_DIRECTIONALITY = column(FEATURE_COLUMNS, "directionality");
+    private static final int FEATURE_GENETIC_CODE = column(FEATURE_COLUMNS, "genetic_code");
+    private static final int FEATURE_READING_FRAME = column(FEATURE_COLUMNS, "reading_frame");
+    private static final int FEATURE_TRANSLATION_MW = column(FEATURE_COLUMNS, "translation_mw");
+    private static final int FEATURE_SEGMENT = column(FEATURE_COLUMNS, "segment");
+    private static final int FEATURE_SEGMENT_NAME = column(FEATURE_COLUMNS, "segment_name");
+    private static final int FEATURE_SEGMENT_TYPE = column(FEATURE_COLUMNS, "segment_type");
+    private static final int FEATURE_START = column(FEATURE_COLUMNS, "start");
+    private static final int FEATURE_END = column(FEATURE_COLUMNS, "end");
+    private static final int FEATURE_COLOR = column(FEATURE_COLUMNS, "color");
+    private static final int FEATURE_TRANSLATED = column(FEATURE_COLUMNS, "translated");
+
+    private static final int QUALIFIER_DOC_ID = column(QUALIFIER_COLUMNS, "doc_id");
+    private static final int QUALIFIER_FEATURE_INDEX = column(QUALIFIER_COLUMNS, "feature");
+    private static final int QUALIFIER_KEY = column(QUALIFIER_COLUMNS, "key");
+    private static final int QUALIFIER_KIND = column(QUALIFIER_COLUMNS, "kind");
+    private static final int QUALIFIER_INT_VALUE = column(QUALIFIER_COLUMNS, "int_value");
+    private static final int QUALIFIER_TEXT_VALUE = column(QUALIFIER_COLUMNS, "text_value");
+
+    private final ColumnarFile.Writer documents;
+    private final ColumnarFile.Writer features;
+    private final ColumnarFile.Writer qualifiers;
+    private int nextId;
+
+    private CorpusTables(Path dir, int rowGroupSize) throws IOException {
+        Files.createDirectories(dir);
+        ColumnarFile.Writer d = null, f = null;
+        try {
+            d = ColumnarFile.writer(file(dir, DOCUMENTS), DOCUMENT_COLUMNS).rowGroupSize(rowGroupSize).build();
+            f = ColumnarFile.writer(file(dir, FEATURES), FEATURE_COLUMNS).rowGroupSize(rowGroupSize).build();
+            qualifiers = ColumnarFile.writer(file(dir, QUALIFIERS), QUALIFIER_COLUMNS).rowGroupSize(rowGroupSize).build();
+        } catch (IOException | RuntimeException e) {
+            if (d != null)
+                d.close();
+            if (f != null)
+                f.close();
+            throw e;
+        }
+        documents = d;
+        features = f;
+    }
+
+    /** Creates or replaces the three tables in dir, with row groups of 65536 rows. */
+    public static CorpusTables create(Path dir) throws IOException
+    {
+        return new CorpusTables(dir, 64 * 1024);
+    }
+
+    public static CorpusTables create(Path dir, int rowGroupSize) throws IOException
+    {
+        return new CorpusTables(dir, rowGroupSize);
+    }
+
+    /** Opens one of the tables written to dir: {@link #DOCUMENTS}, {@link #FEATURES} or {@link #QUALIFIERS}. */
+    public static ColumnarFile.Reader open(Path dir, String table) throws IOException
+    {
+        return ColumnarFile.open(file(dir, table));
+    }
+
+    private static Path file(Path dir, String table)
+    {
+        return dir.resolve(table + ".sgcf");
+    }
+
+    private static int column(List<Column> columns, String name)
+    {
+        for (int i = 0; i < columns.size(); i++)
+            if (columns.get(i).name.equals(name))
+                return i;
+        throw new IllegalArgumentException("No column " + name);
+    }
+
+    /**
+     * Indexes every .dna file under root with {@link SnapGeneBatch} and adds those that parse to new tables
+     * in dir. Files that fail to parse are left out; the summary counts them.
+     */
+    public static SnapGeneBatch.Summary export(Path root, Path dir) throws IOException
+    {
+        return export(SnapGeneBatch.builder().parser(SnapGene::index).build(), root, dir);
+    }
+
+    public static SnapGeneBatch.Summary export(SnapGeneBatch batch, Path root, Path dir) throws IOException
+    {
+        try (CorpusTables tables = create(dir)) {
+            try {
+                return batch.run(root, result -> {
+                    if (result.doc == null)
+                        return;
+                    try {
+                        tables.add(root.relativize(result.path).toString(), result.doc);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    /** Adds a document to the three tables and returns its doc_id. Thread-safe; ids follow the order of calls. */
+    public synchronized int add(String path, SnapGeneDoc doc) throws IOException
+    {
+        int id = nextId++;
+        FeaturesSegment fs = doc.features();
+        List<Feature> list = fs == null ? List.of() : fs.features;
+        addDocument(id, path, doc, list.size());
+        for (int i = 0; i < list.size(); i++)
+        {
+            Feature f = list.get(i);
+            addFeature(id, i, f);
+            addQualifiers(id, i, f.qualifiers);
+        }
+        return id;
+    }
+
+    private void addDocument(int id, String path, SnapGeneDoc doc, int featureCount) throws IOException
+    {
+        ColumnarFile.Writer w = documents;
+        w.setInt(DOC_ID, id);
+        w.setString(DOC_PATH, path);
+        DescriptionSegment desc = doc.desc();
+        if (desc != null) {
+            w.setString(DOC_FILE_TYPE, desc.type);
+            w.setInt(DOC_EXPORT_VERSION, desc.exportVersion);
+            w.setInt(DOC_IMPORT_VERSION, desc.importVersion);
+        }
+
+        // a lazy document's flags and length come from the payload, leaving the sequence undecoded
+        ByteBuffer raw = doc.rawDna();
+        if (raw != null) {
+            byte flags = raw.get(raw.position());
+            w.setInt(DOC_LENGTH, raw.remaining() - 1);
+            w.setString(DOC_TOPOLOGY, DNASegment.topology(flags));
+            w.setString(DOC_STRANDEDNESS, DNASegment.strandedness(flags));
+            w.setBool(DOC_DAM, DNASegment.dam(flags));
+            w.setBool(DOC_DCM, DNASegment.dcm(flags));
+            w.setBool(DOC_ECOKI, DNASegment.ecoKI(flags));
+        }
+        else if (doc.dna() != null) {
+            DNASegment dna = doc.dna();
+            w.setInt(DOC_LENGTH, dna.sequence.length());
+            w.setString(DOC_TOPOLOGY, dna.topology);
+            w.setString(DOC_STRANDEDNESS, dna.strandedness);
+            w.setBool(DOC_DAM, dna.Dam);
+            w.setBool(DOC_DCM, dna.Dcm);
+            w.setBool(DOC_ECOKI, dna.EcoKI);
+        }
+
+        NotesSegment notes = doc.notes();
+        if (notes != null) {
+            w.setString(DOC_UUID, notes.uuid);
+            w.setString(DOC_NOTES_TYPE, notes.type);
+            if (notes.confirmedExperimentally != null)
+                w.setBool(DOC_CONFIRMED_EXPERIMENTALLY, notes.confirmedExperimentally);
+            w.setString(DOC_DESCRIPTION, notes.description);
+            setDate(w, DOC_CREATED, notes.created);
+            setDate(w, DOC_MODIFIED, notes.modified);
+            w.setString(DOC_CREATED_BY, notes.createdBy);
+            w.setString(DOC_ACCESSION_NUMBER, notes.accessionNumber);
+            w.setString(DOC_CODE_NUMBER, notes.codeNumber);
+            w.setString(DOC_ORGANISM, notes.organism);
+            w.setString(DOC_SEQUENCE_CLASS, notes.sequenceClass);
+            w.setString(DOC_TRANSFORMED_INTO, notes.transformedInto);
+            w.setString(DOC_CUSTOM_MAP_LABEL, notes.customMapLabel);
+            w.setInt(DOC_REFERENCE_COUNT, notes.references == null ? 0 : notes.references.size());
+        }
+        w.setInt(DOC_FEATURE_COUNT, featureCount);
+        w.endRow();
+    }
+
+    private static void setDate(ColumnarFile.Writer w, int column, Date date)
+    {
+        if (date != null)
+            w.setLong(column, date.getTime());
+    }
+
+    private void addFeature(int id, int index, Feature f) throws IOException
+    {
+        ColumnarFile.Writer w = features;
+        int segments = Math.max(1, f.segments.size());
+        for (int s = 0; s < segments; s++)
+        {
+            w.setInt(FEATURE_DOC_ID, id);
+            w.setInt(FEATURE_INDEX, index);
+            w.setString(FEATURE_TYPE, f.type);
+            w.setString(FEATURE_NAME, f.name);
+            if (f.directionality != null)
+                w.setString(FEATURE_DIRECTIONALITY, f.directionality.name());
+            w.setString(FEATURE_GENETIC_CODE, f.geneticCode);
+            if (f.readingFrame() != null)
+                w.setInt(FEATURE_READING_FRAME, f.readingFrame());
+            if (f.translationMW() != null)
+                w.setDouble(FEATURE_TRANSLATION_MW, f.translationMW());
+            if (s < f.segments.size()) {
+                Seg seg = f.segments.get(s);
+                w.setInt(FEATURE_SEGMENT, s);
+                w.setString(FEATURE_SEGMENT_NAME, seg.name);
+                w.setString(FEATURE_SEGMENT_TYPE, seg.type);
+                if (seg.hasRange()) {
+                    w.setInt(FEATURE_START, seg.start);
+                    w.setInt(FEATURE_END, seg.end);
+                }
+                w.setString(FEATURE_COLOR, seg.color);
+                if (seg.translated() != null)
+                    w.setBool(FEATURE_TRANSLATED, seg.translated());
+            }
+            w.endRow();
+        }
+    }
+
+    private void addQualifiers(int id, int index, Qualifiers q) throws IOException
+    {
+        ColumnarFile.Writer w = qualifiers;
+        for (int i = 0; i < q.size(); i++)
+        {
+            w.setInt(QUALIFIER_DOC_ID, id);
+            w.setInt(QUALIFIER_FEATURE_INDEX, index);
+            w.setString(QUALIFIER_KEY, q.key(i));
+            w.setString(QUALIFIER_KIND, q.kind(i).name());
+            switch (q.kind(i))
+            {
+                case NONE:
+                    break;
+                case INT:
+                case BOOL:
+                    w.setInt(QUALIFIER_INT_VALUE, q.intValue(i));
+                    break;
+                default:
+                    w.setString(QUALIFIER_TEXT_VALUE, q.text(i));
+            }
+            w.endRow();
+        }
+    }
+
+    /** Number of documents added so far. */
+    public synchronized int documentCount()
+    {
+        return nextId;
+    }
+
+    /** Writes the remaining row groups and the footers of the three tables. */
+    @Override
+    public synchronized void close() throws IOException
+    {
+        try {
+            documents.close();
+        }
+        finally {
+            try {
+                features.close();
+            }
+            finally {
+                qualifiers.close();
+            }
+        }
+    }
+}
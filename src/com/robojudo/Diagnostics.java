@@ -0,0 +1,134 @@
+package com.robojudo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Problems found while parsing a document leniently: unknown attributes, unknown qualifier value
+ * types and duplicate segments. The parser records them here instead of throwing, keeps at most
+ * {@link #capacity} of them per document and only counts the rest.
+ *
+ * Thread-safe, as lazily parsed documents may decode segments on several threads.
+ */
+public final class Diagnostics
+{
+    /** Shared, always empty instance for strictly parsed documents, which throw rather than record. */
+    static final Diagnostics NONE = new Diagnostics(0);
+
+    public static final class Diagnostic
+    {
+        public final int segmentType;
+        // position of the segment payload in the file, or -1 if unknown
+        public final long offset;
+        // e.g. "Features/Feature[12]/Segment[1]"; null for problems with the segment itself
+        public final String path;
+        // attribute or value type name; null if the problem is not about one
+        public final String attribute;
+        public final String message;
+
+        Diagnostic(int segmentType, long offset, String path, String attribute, String message) {
+            this.segmentType = segmentType;
+            this.offset = offset;
+            this.path = path;
+            this.attribute = attribute;
+            this.message = message;
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder("segment ").append(segmentType);
+            if (offset >= 0)
+                sb.append(" at ").append(offset);
+            if (path != null)
+                sb.append(' ').append(path);
+            if (attribute != null)
+                sb.append(" '").append(attribute).append('\'');
+            return sb.append(": ").append(message).toString();
+        }
+    }
+
+    private final int capacity;
+    private final List<Diagnostic> list = new ArrayList<>(0);
+    private int dropped;
+
+    public Diagnostics(int capacity)
+    {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Capacity must not be negative");
+        this.capacity = capacity;
+    }
+
+    public int capacity()
+    {
+        return capacity;
+    }
+
+    synchronized void add(int segmentType, long offset, String path, String attribute, String message)
+    {
+        if (list.size() < capacity)
+            list.add(new Diagnostic(segmentType, offset, path, attribute, message));
+        else
+            dropped++;
+    }
+
+    /** The recorded diagnostics in the order found. */
+    public synchronized List<Diagnostic> list()
+    {
+        return Collections.unmodifiableList(new ArrayList<>(list));
+    }
+
+    /** Number of diagnostics not recorded because the capacity was reached. */
+    public synchronized int dropped()
+    {
+        return dropped;
+    }
+
+    /** True if nothing was found, recorded or not. */
+    public synchronized boolean isEmpty()
+    {
+        return list.isEmpty() && dropped == 0;
+    }
+
+    // restores a count read back from the parse cache
+    synchronized void addDropped(int count)
+    {
+        dropped += count;
+    }
+
+    /** Reports problems in one segment; the element path is only built when something is recorded. */
+    Reporter reporter(int segmentType, long offset)
+    {
+        return new Reporter(this, segmentType, offset);
+    }
+
+    static final class Reporter
+    {
+        private final Diagnostics diagnostics;
+        private final int segmentType;
+        private final long offset;
+
+        Reporter(Diagnostics diagnostics, int segmentType, long offset) {
+            this.diagnostics = diagnostics;
+            this.segmentType = segmentType;
+            this.offset = offset;
+        }
+
+        void report(String path, String attribute, String message)
+        {
+            diagnostics.add(segmentType, offset, path, attribute, message);
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Diagnostic d : list)
+            sb.append(d).append('\n');
+        if (dropped > 0)
+            sb.append(dropped).append(" more not recorded\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,647 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import com.robojudo.SnapGene.UnsupportedSegment;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded in-memory cache of parsed documents, keyed by path and checked against the file's size and
+ * modification time on every lookup.
+ *
+ * Entries are weighed by their retained size: packed sequence storage, a fixed cost per feature plus its
+ * qualifiers, and heap copies of raw segment payloads. Documents heavier than the per-entry limit are
+ * returned without being cached at all. A lazy document only weighs the segments it has decoded, so it
+ * grows after it is cached; it is re-weighed, and the cache trimmed, on the next lookup that finds it with
+ * more segments decoded and on every load. The budget is therefore approximate: between those the total
+ * may exceed it by what cached lazy documents have decoded since.
+ *
+ * Eviction follows W-TinyLFU: new entries enter a small LRU window, then compete for a place in the main
+ * space, a segmented LRU of probation and protected entries. An entry leaving the window is admitted
+ * only if it has been requested more often than the probation entry it would push out, as estimated by a
+ * count-min sketch of recent requests. One-off loads, such as a genome opened by accident, therefore pass
+ * through the window without displacing the working set.
+ *
+ * Concurrent requests for the same file version share a single parse. Lookups that find their entry
+ * update the eviction order only when the policy lock is free, so hits never wait on each other.
+ *
+ * <pre>
+ * DocCache cache = DocCache.builder().maximumWeight(512L << 20).build();
+ * SnapGeneDoc doc = cache.get(path);
+ * </pre>
+ */
+public final class DocCache
+{
+    // fixed cost of a document and of each feature, in bytes
+    static final long DOC_WEIGHT = 1024;
+    static final long FEATURE_WEIGHT = 160;
+
+    private final SnapGeneBatch.ParseFunction parser;
+    private final long maximumWeight;
+    private final long maximumEntryWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final ConcurrentHashMap<Path, Node> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Version, CompletableFuture<SnapGeneDoc>> loading = new ConcurrentHashMap<>();
+
+    // guards the queues, the sketch and the weights
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AccessQueue window = new AccessQueue();
+    private final AccessQueue probation = new AccessQueue();
+    private final AccessQueue protectedQueue = new AccessQueue();
+    private final FrequencySketch sketch;
+    private long weight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedWeight = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    private DocCache(Builder builder)
+    {
+        this.parser = builder.parser;
+        this.maximumWeight = builder.maximumWeight;
+        this.maximumEntryWeight = builder.maximumEntryWeight != -1 ? builder.maximumEntryWeight : Math.max(1, maximumWeight / 8);
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 4 / 5;
+        this.sketch = new FrequencySketch(builder.expectedEntries);
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private SnapGeneBatch.ParseFunction parser = SnapGeneParser.DEFAULT::parse;
+        private long maximumWeight = 256L << 20;
+        private long maximumEntryWeight = -1;
+        private int expectedEntries = 4096;
+
+        Builder()
+        {
+        }
+
+        /** How documents are loaded on a miss; the default parser by default. */
+        public Builder parser(SnapGeneBatch.ParseFunction parser)
+        {
+            this.parser = parser;
+            return this;
+        }
+
+        /** Budget for the total weight of cached documents, in bytes. */
+        public Builder maximumWeight(long bytes)
+        {
+            if (bytes <= 0)
+                throw new IllegalArgumentException("Maximum weight must be positive");
+            this.maximumWeight = bytes;
+            return this;
+        }
+
+        /** Heaviest document that is cached; an eighth of the budget by default. */
+        public Builder maximumEntryWeight(long bytes)
+        {
+            if (bytes <= 0)
+                throw new IllegalArgumentException("Maximum entry weight must be positive");
+            this.maximumEntryWeight = bytes;
+            return this;
+        }
+
+        /** Rough number of distinct files requested; sizes the frequency sketch. */
+        public Builder expectedEntries(int entries)
+        {
+            if (entries <= 0)
+                throw new IllegalArgumentException("Expected entries must be positive");
+            this.expectedEntries = entries;
+            return this;
+        }
+
+        public DocCache build()
+        {
+            if (maximumEntryWeight > maximumWeight)
+                maximumEntryWeight = maximumWeight;
+            return new DocCache(this);
+        }
+    }
+
+    /** A file at a given size and modification time. */
+    private static final class Version
+    {
+        final Path path;
+        final long size;
+        final long mtime;
+
+        Version(Path path, long size, long mtime)
+        {
+            this.path = path;
+            this.size = size;
+            this.mtime = mtime;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Version))
+                return false;
+            Version v = (Version) o;
+            return path.equals(v.path) && size == v.size && mtime == v.mtime;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return (path.hashCode() * 31 + Long.hashCode(size)) * 31 + Long.hashCode(mtime);
+        }
+    }
+
+    /**
+     * Returns the document for the file, parsing it if it is not cached or changed since it was cached.
+     * The document is returned even if it is too heavy to cache or is not admitted.
+     */
+    public SnapGeneDoc get(Path file) throws IOException
+    {
+        Path path = file.toAbsolutePath().normalize();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Version version = new Version(path, attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+
+        Node node = entries.get(path);
+        if (node != null && node.version.equals(version))
+        {
+            hits.increment();
+            if (lock.tryLock())
+            {
+                try {
+                    onAccess(node);
+                    if (node.doc.isLazy() && node.decoded != decoded(node.doc))
+                        reweigh(node);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return node.doc;
+        }
+
+        misses.increment();
+        CompletableFuture<SnapGeneDoc> load = new CompletableFuture<>();
+        CompletableFuture<SnapGeneDoc> running = loading.putIfAbsent(version, load);
+        if (running != null)
+            return join(running);
+
+        try {
+            loads.increment();
+            SnapGeneDoc doc = parser.parse(path);
+            insert(version, doc);
+            load.complete(doc);
+            return doc;
+        } catch (IOException | RuntimeException | Error e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(version, load);
+        }
+    }
+
+    private static SnapGeneDoc join(CompletableFuture<SnapGeneDoc> load) throws IOException
+    {
+        try {
+            return load.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw new IOException(cause.getMessage(), cause);
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /** Drops the cached document for the file, if any. */
+    public void invalidate(Path file)
+    {
+        Path path = file.toAbsolutePath().normalize();
+        lock.lock();
+        try {
+            Node node = entries.remove(path);
+            if (node != null)
+                unlink(node);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll()
+    {
+        lock.lock();
+        try {
+            for (Node node : entries.values())
+                unlink(node);
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Estimated retained size of a document in bytes. Only segments already decoded are counted, so the
+     * weight of a lazy document grows as it decodes.
+     */
+    public static long weigh(SnapGeneDoc doc)
+    {
+        long ret = DOC_WEIGHT;
+        DNASegment dna = doc.dna;
+        if (dna != null)
+            ret += dna.sequence.storageBytes();
+        FeaturesSegment features = doc.features;
+        if (features != null)
+        {
+            for (Feature feature : features.features)
+                ret += FEATURE_WEIGHT + 48L * feature.segments.size() + feature.qualifiers.storageBytes();
+        }
+        List<Segment> segments = doc.segments;
+        if (segments != null)
+        {
+            for (Segment seg : segments)
+            {
+                // mapped payloads live outside the heap
+                if (seg instanceof UnsupportedSegment && !((UnsupportedSegment) seg).data.isDirect())
+                    ret += ((UnsupportedSegment) seg).data.capacity();
+            }
+        }
+        return ret;
+    }
+
+    public long hits()
+    {
+        return hits.sum();
+    }
+
+    /** Lookups that found no current entry, including those that joined a load already running. */
+    public long misses()
+    {
+        return misses.sum();
+    }
+
+    /** Files actually parsed. */
+    public long loads()
+    {
+        return loads.sum();
+    }
+
+    public long evictions()
+    {
+        return evictions.sum();
+    }
+
+    public long evictedWeight()
+    {
+        return evictedWeight.sum();
+    }
+
+    /** Loaded documents that were not cached: heavier than the entry limit, or not admitted. */
+    public long rejections()
+    {
+        return rejections.sum();
+    }
+
+    public double hitRate()
+    {
+        long h = hits(), total = h + misses();
+        return total == 0 ? 1 : (double) h / total;
+    }
+
+    public long weight()
+    {
+        lock.lock();
+        try {
+            return weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public long maximumWeight()
+    {
+        return maximumWeight;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("DocCache[size=%d, weight=%d/%d, hits=%d, misses=%d, loads=%d, evictions=%d, rejections=%d]",
+                size(), weight(), maximumWeight, hits(), misses(), loads(), evictions(), rejections());
+    }
+
+    // which of the segments that weigh() counts a document has decoded
+    private static int decoded(SnapGeneDoc doc)
+    {
+        return (doc.dna != null ? 1 : 0) | (doc.features != null ? 2 : 0) | (doc.segments != null ? 4 : 0);
+    }
+
+    private void insert(Version version, SnapGeneDoc doc)
+    {
+        // read before weighing, so that segments decoded meanwhile are caught on the next lookup
+        int decoded = decoded(doc);
+        long w = weigh(doc);
+        lock.lock();
+        try {
+            sketch.increment(version.path);
+            Node old = entries.get(version.path);
+            if (old != null && old.version.mtime > version.mtime)
+                return;
+            if (old != null) {
+                entries.remove(version.path);
+                unlink(old);
+            }
+            if (w > maximumEntryWeight) {
+                rejections.increment();
+                return;
+            }
+
+            Node node = new Node(version, doc, w, decoded);
+            entries.put(version.path, node);
+            window.addLast(node);
+            weight += w;
+            reweighGrown();
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Catches up with lazy documents that have decoded segments since they were last looked up
+    private void reweighGrown()
+    {
+        for (Node node : entries.values())
+            if (node.doc.isLazy() && node.decoded != decoded(node.doc))
+                reweigh(node);
+    }
+
+    // A lazy document has decoded segments since it was weighed; it may now be too heavy to keep at all
+    private void reweigh(Node node)
+    {
+        int decoded = decoded(node.doc);
+        long w = weigh(node.doc);
+        if (node.queue == null)
+            return;
+        AccessQueue queue = node.queue;
+        queue.remove(node);
+        weight -= node.weight;
+        node.weight = w;
+        node.decoded = decoded;
+        if (w > maximumEntryWeight) {
+            entries.remove(node.version.path, node);
+            rejections.increment();
+            return;
+        }
+        queue.addLast(node);
+        weight += w;
+        evict();
+    }
+
+    private void onAccess(Node node)
+    {
+        sketch.increment(node.version.path);
+        if (node.queue == window)
+        {
+            window.moveToLast(node);
+        }
+        else if (node.queue == probation)
+        {
+            probation.remove(node);
+            protectedQueue.addLast(node);
+            // keep the protected segment within its share by demoting its least recent entries
+            while (protectedQueue.weight > protectedMaximum && protectedQueue.first() != node)
+            {
+                Node demoted = protectedQueue.first();
+                protectedQueue.remove(demoted);
+                probation.addLast(demoted);
+            }
+        }
+        else if (node.queue == protectedQueue)
+        {
+            protectedQueue.moveToLast(node);
+        }
+    }
+
+    private void evict()
+    {
+        // entries leaving the window become candidates at the end of probation
+        Node firstCandidate = null;
+        while (window.weight > windowMaximum && window.first() != null)
+        {
+            Node node = window.first();
+            window.remove(node);
+            probation.addLast(node);
+            if (firstCandidate == null)
+                firstCandidate = node;
+        }
+
+        while (weight > maximumWeight)
+        {
+            Node victim = probation.first();
+            Node candidate = firstCandidate;
+            if (victim == null) {
+                victim = protectedQueue.first() != null ? protectedQueue.first() : window.first();
+                candidate = null;
+            }
+            if (victim == null)
+                break;
+
+            if (candidate == null || candidate == victim) {
+                if (candidate == victim)
+                    firstCandidate = candidate.next;
+                remove(victim, candidate == victim);
+            }
+            else if (sketch.frequency(candidate.version.path) > sketch.frequency(victim.version.path)) {
+                remove(victim, false);
+            }
+            else {
+                firstCandidate = candidate.next;
+                remove(candidate, true);
+            }
+        }
+    }
+
+    // Removes an entry to make room; rejected candidates never made it into the main space
+    private void remove(Node node, boolean rejected)
+    {
+        entries.remove(node.version.path, node);
+        unlink(node);
+        if (rejected) {
+            rejections.increment();
+        }
+        else {
+            evictions.increment();
+            evictedWeight.add(node.weight);
+        }
+    }
+
+    private void unlink(Node node)
+    {
+        if (node.queue != null) {
+            node.queue.remove(node);
+            weight -= node.weight;
+        }
+    }
+
+    private static final class Node
+    {
+        final Version version;
+        final SnapGeneDoc doc;
+        // changed only by reweigh(), with the node out of its queue
+        long weight;
+        int decoded;
+        AccessQueue queue;
+        Node prev;
+        Node next;
+
+        Node(Version version, SnapGeneDoc doc, long weight, int decoded)
+        {
+            this.version = version;
+            this.doc = doc;
+            this.weight = weight;
+            this.decoded = decoded;
+        }
+    }
+
+    /** Intrusive doubly linked list in access order, least recent first. */
+    private static final class AccessQueue
+    {
+        Node head;
+        Node tail;
+        long weight;
+
+        Node first()
+        {
+            return head;
+        }
+
+        void addLast(Node node)
+        {
+            node.queue = this;
+            node.prev = tail;
+            node.next = null;
+            if (tail == null)
+                head = node;
+            else
+                tail.next = node;
+            tail = node;
+            weight += node.weight;
+        }
+
+        void remove(Node node)
+        {
+            if (node.prev == null)
+                head = node.next;
+            else
+                node.prev.next = node.next;
+            if (node.next == null)
+                tail = node.prev;
+            else
+                node.next.prev = node.prev;
+            node.prev = node.next = null;
+            node.queue = null;
+            weight -= node.weight;
+        }
+
+        void moveToLast(Node node)
+        {
+            if (node != tail) {
+                remove(node);
+                addLast(node);
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four per key, sixteen to a long. Once the number of increments
+     * reaches ten times the table size all counters are halved, so the estimate favours recent requests.
+     */
+    static final class FrequencySketch
+    {
+        private static final long[] SEEDS = { 0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries)
+        {
+            int size = Integer.highestOneBit(Math.max(16, Math.min(expectedEntries, 1 << 26)) - 1) << 1;
+            this.table = new long[size];
+            this.sampleSize = 10 * size;
+        }
+
+        int frequency(Object key)
+        {
+            int hash = spread(key.hashCode());
+            int ret = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++)
+            {
+                long h = (hash + SEEDS[i]) * SEEDS[i];
+                int index = (int) (h >>> 32) & (table.length - 1);
+                int shift = ((int) h & 15) << 2;
+                ret = Math.min(ret, (int) (table[index] >>> shift) & 15);
+            }
+            return ret;
+        }
+
+        void increment(Object key)
+        {
+            int hash = spread(key.hashCode());
+            boolean added = false;
+            for (int i = 0; i < 4; i++)
+            {
+                long h = (hash + SEEDS[i]) * SEEDS[i];
+                int index = (int) (h >>> 32) & (table.length - 1);
+                int shift = ((int) h & 15) << 2;
+                if (((table[index] >>> shift) & 15) != 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize)
+                reset();
+        }
+
+        private void reset()
+        {
+            for (int i = 0; i < table.length; i++)
+                table[i] = (table[i] >>> 1) & RESET_MASK;
+            additions >>>= 1;
+        }
+
+        private static int spread(int x)
+        {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.Seg;
+import com.robojudo.SnapGene.SnapGeneDoc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable interval index over the {@link Seg} ranges of a document's features.
+ *
+ * Intervals are kept in primitive arrays sorted by start, with the maximum end of each subtree stored
+ * in an implicit binary tree laid over the sorted array (as in cgranges). Overlap queries run in
+ * O(log n + k). On circular sequences, segments and queries whose start is after their end wrap
+ * around the origin and are split into two intervals.
+ *
+ * Positions are 1-based and inclusive, like {@link Seg#start} and {@link Seg#end}.
+ */
+public class FeatureIndex
+{
+    private final List<Feature> features;
+    private final int sequenceLength;
+    private final boolean circular;
+
+    // 0-based half-open intervals sorted by start
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] featureIds;
+    // max end within the implicit subtree rooted at each position
+    private final int[] maxEnds;
+    private final int maxLevel;
+
+    // interval ends in ascending order, for nearest-neighbor lookups to the left
+    private final int[] sortedEnds;
+    private final int[] sortedEndIds;
+
+    private FeatureIndex(List<Feature> features, int sequenceLength, boolean circular,
+                         int[] starts, int[] ends, int[] featureIds)
+    {
+        this.features = features;
+        this.sequenceLength = sequenceLength;
+        this.circular = circular;
+        this.starts = starts;
+        this.ends = ends;
+        this.featureIds = featureIds;
+        this.maxEnds = new int[starts.length];
+        this.maxLevel = buildMaxEnds();
+
+        int n = starts.length;
+        long[] byEnd = new long[n];
+        for (int i = 0; i < n; i++)
+            byEnd[i] = (long) ends[i] << 32 | i;
+        Arrays.sort(byEnd);
+        this.sortedEnds = new int[n];
+        this.sortedEndIds = new int[n];
+        for (int i = 0; i < n; i++) {
+            sortedEnds[i] = (int) (byEnd[i] >>> 32);
+            sortedEndIds[i] = featureIds[(int) byEnd[i]];
+        }
+    }
+
+    /** Indexes the document's features. A lazy document's sequence length is read without decoding the bases. */
+    public static FeatureIndex build(SnapGeneDoc doc)
+    {
+        FeaturesSegment fs = doc.features();
+        List<Feature> features = fs != null ? fs.features : Collections.emptyList();
+        ByteBuffer raw = doc.rawDna();
+        if (raw != null)
+            return build(features, raw.remaining() - 1, "circular".equals(DNASegment.topology(raw.get(raw.position()))));
+        DNASegment dna = doc.dna();
+        if (dna == null)
+            return build(features, Integer.MAX_VALUE, false);
+        return build(features, dna.sequence.length(), "circular".equals(dna.topology));
+    }
+
+    public static FeatureIndex build(List<Feature> features, int sequenceLength, boolean circular)
+    {
+        int n = 0;
+        int[] st = new int[Math.max(8, features.size())];
+        int[] en = new int[st.length];
+        int[] ids = new int[st.length];
+
+        for (int f = 0; f < features.size(); f++) {
+            for (Seg seg : features.get(f).segments) {
+                if (!seg.hasRange())
+                    continue;
+
+                int s = seg.start, e = seg.end;
+                if (n + 2 > st.length) {
+                    st = Arrays.copyOf(st, st.length * 2);
+                    en = Arrays.copyOf(en, st.length);
+                    ids = Arrays.copyOf(ids, st.length);
+                }
+                if (s <= e) {
+                    st[n] = s - 1; en[n] = e; ids[n++] = f;
+                }
+                else if (circular) {
+                    st[n] = s - 1; en[n] = sequenceLength; ids[n++] = f;
+                    st[n] = 0;     en[n] = e;              ids[n++] = f;
+                }
+                else {
+                    st[n] = e - 1; en[n] = s; ids[n++] = f;
+                }
+            }
+        }
+
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++)
+            order[i] = (long) st[i] << 32 | i;
+        Arrays.sort(order);
+
+        int[] starts = new int[n], ends = new int[n], featureIds = new int[n];
+        for (int i = 0; i < n; i++) {
+            int j = (int) order[i];
+            starts[i] = st[j];
+            ends[i] = en[j];
+            featureIds[i] = ids[j];
+        }
+
+        return new FeatureIndex(features, sequenceLength, circular, starts, ends, featureIds);
+    }
+
+    private int buildMaxEnds()
+    {
+        int n = starts.length;
+        if (n == 0)
+            return -1;
+
+        int lastI = 0, last = 0;
+        for (int i = 0; i < n; i += 2) {
+            lastI = i;
+            last = maxEnds[i] = ends[i];
+        }
+
+        int k;
+        for (k = 1; 1L << k <= n; k++) {
+            int x = 1 << (k - 1), i0 = (x << 1) - 1, step = x << 2;
+            for (int i = i0; i < n; i += step) {
+                int el = maxEnds[i - x];
+                int er = i + x < n ? maxEnds[i + x] : last;
+                maxEnds[i] = Math.max(ends[i], Math.max(el, er));
+            }
+            lastI = ((lastI >> k) & 1) != 0 ? lastI - x : lastI + x;
+            if (lastI < n && maxEnds[lastI] > last)
+                last = maxEnds[lastI];
+        }
+        return k - 1;
+    }
+
+    public List<Feature> features()
+    {
+        return features;
+    }
+
+    public int sequenceLength()
+    {
+        return sequenceLength;
+    }
+
+    public boolean isCircular()
+    {
+        return circular;
+    }
+
+    /** Returns the ids (positions in {@link #features()}) of features overlapping start..end, in ascending order. */
+    public int[] overlapIds(int start, int end)
+    {
+        IntList out = new IntList();
+        forEachQueryPart(start, end, (qs, qe) -> collectOverlaps(qs, qe, out));
+        return out.sortedUnique();
+    }
+
+    public List<Feature> overlapping(int start, int end)
+    {
+        return toFeatures(overlapIds(start, end));
+    }
+
+    /** Features lying entirely within start..end. */
+    public List<Feature> containedIn(int start, int end)
+    {
+        List<Feature> ret = new ArrayList<>();
+        for (int id : overlapIds(start, end)) {
+            boolean inside = true;
+            for (Seg seg : features.get(id).segments) {
+                if (!seg.hasRange())
+                    continue;
+                int[] segParts = queryParts(seg.start, seg.end);
+                for (int p = 0; p < segParts.length && inside; p += 2)
+                    inside = within(segParts[p], segParts[p + 1], start, end);
+            }
+            if (inside)
+                ret.add(features.get(id));
+        }
+        return ret;
+    }
+
+    /**
+     * Features with a segment covering all of start..end. A range across the origin of a circular sequence
+     * may instead be covered by one segment up to the origin and another from it, as a feature drawn across
+     * the origin often is.
+     */
+    public List<Feature> containing(int start, int end)
+    {
+        int[] parts = queryParts(start, end);
+        List<Feature> ret = new ArrayList<>();
+        for (int id : overlapIds(start, end)) {
+            boolean covered = true;
+            for (int p = 0; p < parts.length && covered; p += 2) {
+                boolean any = false;
+                for (Seg seg : features.get(id).segments) {
+                    if (seg.hasRange() && within(parts[p], parts[p + 1], seg.start, seg.end)) {
+                        any = true;
+                        break;
+                    }
+                }
+                covered = any;
+            }
+            if (covered)
+                ret.add(features.get(id));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns the feature closest to pos: one overlapping it if any, otherwise the one with the smallest gap.
+     * On circular sequences the gap may run across the origin. Returns null if the index is empty.
+     */
+    public Feature nearest(int pos)
+    {
+        int n = starts.length;
+        if (n == 0)
+            return null;
+
+        int[] hits = overlapIds(pos, pos);
+        if (hits.length > 0)
+            return features.get(hits[0]);
+
+        int p = pos - 1;
+        long bestDist = Long.MAX_VALUE;
+        int best = -1;
+
+        // first interval starting after pos
+        int r = lowerBound(starts, p + 1);
+        if (r < n) {
+            bestDist = starts[r] - p;
+            best = featureIds[r];
+        }
+        else if (circular) {
+            bestDist = (long) sequenceLength - p + starts[0];
+            best = featureIds[0];
+        }
+
+        // last interval ending at or before pos
+        int l = lowerBound(sortedEnds, p + 1) - 1;
+        long leftDist = -1;
+        int left = -1;
+        if (l >= 0) {
+            leftDist = p - sortedEnds[l] + 1;
+            left = sortedEndIds[l];
+        }
+        else if (circular) {
+            leftDist = p + (long) sequenceLength - sortedEnds[n - 1] + 1;
+            left = sortedEndIds[n - 1];
+        }
+        if (left != -1 && (leftDist < bestDist || (leftDist == bestDist && left < best))) {
+            best = left;
+        }
+
+        return best == -1 ? null : features.get(best);
+    }
+
+    private interface PartVisitor
+    {
+        void visit(int start, int end);
+    }
+
+    private void forEachQueryPart(int start, int end, PartVisitor visitor)
+    {
+        int[] parts = queryParts(start, end);
+        for (int p = 0; p < parts.length; p += 2)
+            visitor.visit(parts[p], parts[p + 1]);
+    }
+
+    // 1-based inclusive range to 0-based half-open parts, split at the origin when circular
+    private int[] queryParts(int start, int end)
+    {
+        if (start <= end)
+            return new int[] { start - 1, end };
+        if (circular)
+            return new int[] { start - 1, sequenceLength, 0, end };
+        return new int[] { end - 1, start };
+    }
+
+    // whether the 0-based half-open part s..e, which does not cross the origin, lies within the 1-based range start..end
+    private boolean within(int s, int e, int start, int end)
+    {
+        if (start <= end)
+            return start - 1 <= s && e <= end;
+        if (!circular)
+            return end - 1 <= s && e <= start;
+        // start..length then 1..end; once that reaches around the whole sequence it covers any part
+        int length = sequenceLength - (start - 1) + end;
+        return length >= sequenceLength || Math.floorMod(s - (start - 1), sequenceLength) + (e - s) <= length;
+    }
+
+    private void collectOverlaps(int qs, int qe, IntList out)
+    {
+        int n = starts.length;
+        if (n == 0)
+            return;
+
+        // explicit stack of (node, level, left-child-visited)
+        int[] sx = new int[64], sk = new int[64], sw = new int[64];
+        int t = 0;
+        sx[t] = (1 << maxLevel) - 1; sk[t] = maxLevel; sw[t] = 0; t++;
+        while (t > 0) {
+            t--;
+            int x = sx[t], k = sk[t], w = sw[t];
+            if (k <= 3) {
+                // small subtree: scan it linearly
+                int i0 = x >> k << k;
+                int i1 = Math.min(n, i0 + (1 << (k + 1)) - 1);
+                for (int i = i0; i < i1 && starts[i] < qe; i++)
+                    if (qs < ends[i])
+                        out.add(featureIds[i]);
+            }
+            else if (w == 0) {
+                int y = x - (1 << (k - 1));
+                sx[t] = x; sk[t] = k; sw[t] = 1; t++;
+                if (y >= n || maxEnds[y] > qs) {
+                    sx[t] = y; sk[t] = k - 1; sw[t] = 0; t++;
+                }
+            }
+            else if (x < n && starts[x] < qe) {
+                if (qs < ends[x])
+                    out.add(featureIds[x]);
+                sx[t] = x + (1 << (k - 1)); sk[t] = k - 1; sw[t] = 0; t++;
+            }
+        }
+    }
+
+    private List<Feature> toFeatures(int[] ids)
+    {
+        List<Feature> ret = new ArrayList<>(ids.length);
+        for (int id : ids)
+            ret.add(features.get(id));
+        return ret;
+    }
+
+    private static int lowerBound(int[] a, int key)
+    {
+        int lo = 0, hi = a.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (a[mid] < key)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static final class IntList
+    {
+        private int[] a = new int[16];
+        private int size;
+
+        void add(int v)
+        {
+            if (size == a.length)
+                a = Arrays.copyOf(a, size * 2);
+            a[size++] = v;
+        }
+
+        int[] sortedUnique()
+        {
+            Arrays.sort(a, 0, size);
+            int m = 0;
+            for (int i = 0; i < size; i++)
+                if (m == 0 || a[m - 1] != a[i])
+                    a[m++] = a[i];
+            return Arrays.copyOf(a, m);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.robojudo;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An NCBI genetic code, precomputed as a 64-entry codon table indexed by 2-bit base codes
+ * (A=0, C=1, G=2, T=3, as returned by {@link PackedSequence#code}).
+ */
+public final class GeneticCode
+{
+    private static final Map<Integer, GeneticCode> CODES = new TreeMap<>();
+
+    public static final GeneticCode STANDARD;
+
+    // Amino acids in NCBI order: first, second and third base each running T, C, A, G.
+    static {
+        STANDARD = add(1, "Standard", "FFLLSSSSYY**CC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(2, "Vertebrate Mitochondrial", "FFLLSSSSYY**CCWWLLLLPPPPHHQQRRRRIIMMTTTTNNKKSS**VVVVAAAADDEEGGGG");
+        add(3, "Yeast Mitochondrial", "FFLLSSSSYY**CCWWTTTTPPPPHHQQRRRRIIMMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(4, "Mold, Protozoan, and Coelenterate Mitochondrial and Mycoplasma/Spiroplasma", "FFLLSSSSYY**CCWWLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(5, "Invertebrate Mitochondrial", "FFLLSSSSYY**CCWWLLLLPPPPHHQQRRRRIIMMTTTTNNKKSSSSVVVVAAAADDEEGGGG");
+        add(6, "Ciliate, Dasycladacean and Hexamita Nuclear", "FFLLSSSSYYQQCC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(9, "Echinoderm and Flatworm Mitochondrial", "FFLLSSSSYY**CCWWLLLLPPPPHHQQRRRRIIIMTTTTNNNKSSSSVVVVAAAADDEEGGGG");
+        add(10, "Euplotid Nuclear", "FFLLSSSSYY**CCCWLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(11, "Bacterial, Archaeal and Plant Plastid", "FFLLSSSSYY**CC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(12, "Alternative Yeast Nuclear", "FFLLSSSSYY**CC*WLLLSPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(13, "Ascidian Mitochondrial", "FFLLSSSSYY**CCWWLLLLPPPPHHQQRRRRIIMMTTTTNNKKSSGGVVVVAAAADDEEGGGG");
+        add(14, "Alternative Flatworm Mitochondrial", "FFLLSSSSYYY*CCWWLLLLPPPPHHQQRRRRIIIMTTTTNNNKSSSSVVVVAAAADDEEGGGG");
+        add(15, "Blepharisma Nuclear", "FFLLSSSSYY*QCC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(16, "Chlorophycean Mitochondrial", "FFLLSSSSYY*LCC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(21, "Trematode Mitochondrial", "FFLLSSSSYY**CCWWLLLLPPPPHHQQRRRRIIMMTTTTNNNKSSSSVVVVAAAADDEEGGGG");
+        add(22, "Scenedesmus obliquus Mitochondrial", "FFLLSS*SYY*LCC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(23, "Thraustochytrium Mitochondrial", "FF*LSSSSYY**CC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(24, "Rhabdopleuridae Mitochondrial", "FFLLSSSSYY**CCWWLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSSKVVVVAAAADDEEGGGG");
+        add(25, "Candidate Division SR1 and Gracilibacteria", "FFLLSSSSYY**CCGWLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(26, "Pachysolen tannophilus Nuclear", "FFLLSSSSYY**CC*WLLLAPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(27, "Karyorelict Nuclear", "FFLLSSSSYYQQCCWWLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(28, "Condylostoma Nuclear", "FFLLSSSSYYQQCCWWLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(29, "Mesodinium Nuclear", "FFLLSSSSYYYYCC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(30, "Peritrich Nuclear", "FFLLSSSSYYEECC*WLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(31, "Blastocrithidia Nuclear", "FFLLSSSSYYEECCWWLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSRRVVVVAAAADDEEGGGG");
+        add(33, "Cephalodiscidae Mitochondrial", "FFLLSSSSYYY*CCWWLLLLPPPPHHQQRRRRIIIMTTTTNNKKSSSKVVVVAAAADDEEGGGG");
+    }
+
+    public final int id;
+    public final String name;
+    // indexed by codon(first, second, third)
+    private final char[] table;
+
+    private GeneticCode(int id, String name, String ncbiAminoAcids)
+    {
+        this.id = id;
+        this.name = name;
+        this.table = new char[64];
+        // NCBI orders bases T, C, A, G; our codes are A, C, G, T
+        int[] ncbiIndex = { 2, 1, 3, 0 };
+        for (int b1 = 0; b1 < 4; b1++)
+            for (int b2 = 0; b2 < 4; b2++)
+                for (int b3 = 0; b3 < 4; b3++)
+                    table[codon(b1, b2, b3)] = ncbiAminoAcids.charAt(16 * ncbiIndex[b1] + 4 * ncbiIndex[b2] + ncbiIndex[b3]);
+    }
+
+    private static GeneticCode add(int id, String name, String aminoAcids)
+    {
+        GeneticCode code = new GeneticCode(id, name, aminoAcids);
+        CODES.put(id, code);
+        return code;
+    }
+
+    /** Returns the code with the given NCBI table number. */
+    public static GeneticCode forId(int id)
+    {
+        GeneticCode code = CODES.get(id);
+        if (code == null)
+            throw new IllegalArgumentException("Unknown genetic code: " + id);
+        return code;
+    }
+
+    /** Parses a feature's geneticCode attribute; null means the standard code. */
+    public static GeneticCode forAttribute(String geneticCode)
+    {
+        if (geneticCode == null || geneticCode.isEmpty())
+            return STANDARD;
+        try {
+            return forId(Integer.parseInt(geneticCode.trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Unknown genetic code: " + geneticCode, e);
+        }
+    }
+
+    public static Collection<GeneticCode> all()
+    {
+        return Collections.unmodifiableCollection(CODES.values());
+    }
+
+    static int codon(int b1, int b2, int b3)
+    {
+        return b1 << 4 | b2 << 2 | b3;
+    }
+
+    /** Amino acid for a codon of 2-bit base codes, '*' for stop or 'X' if any base is not ACGT. */
+    public char translate(int b1, int b2, int b3)
+    {
+        if ((b1 | b2 | b3) < 0)
+            return 'X';
+        return table[codon(b1, b2, b3)];
+    }
+
+    @Override
+    public String toString()
+    {
+        return id + " " + name;
+    }
+}
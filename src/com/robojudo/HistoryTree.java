@@ -0,0 +1,337 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.ByteBufferInputStream;
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.HistoryNodeSegment;
+import org.tukaani.xz.XZInputStream;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The edit history of a construct, read from its History Tree segment (type 7).
+ *
+ * The root node is the current sequence and the children of a node are the inputs of the operation that
+ * made it, so walking down from a node follows its lineage back to the original sources. Sequences of earlier
+ * states live in History Node segments (type 11) and are decompressed only when {@link #sequence} is called,
+ * so a lineage walk holds no more than the sequence being looked at.
+ *
+ * The tree and Compressed DNA payloads may be XZ or zlib compressed; the decompressor reads straight from the
+ * segment bytes.
+ */
+public final class HistoryTree
+{
+    private static final byte[] XZ_MAGIC = { (byte) 0xFD, '7', 'z', 'X', 'Z', 0 };
+
+    static final int COMPRESSED_DNA = 1;
+
+    private final Node root;
+    private final Map<Integer, Node> nodes;
+    private final Map<Integer, HistoryNodeSegment> states;
+
+    private HistoryTree(Node root, Map<Integer, Node> nodes, Map<Integer, HistoryNodeSegment> states)
+    {
+        this.root = root;
+        this.nodes = nodes;
+        this.states = states;
+    }
+
+    public static final class Node
+    {
+        public final int id;
+        public final String name;
+        // "DNA" or "Protein"
+        public final String type;
+        // the operation that made this node from its children, e.g. "insertFragment" or "invalid" for a source
+        public final String operation;
+        // -1 if not recorded
+        public final int sequenceLength;
+        public final boolean circular;
+        public final String strandedness;
+        final String[] otherAttributes;
+        private final Node parent;
+        private final List<Node> children = new ArrayList<>(2);
+
+        Node(int id, String name, String type, String operation, int sequenceLength, boolean circular,
+             String strandedness, String[] otherAttributes, Node parent) {
+            this.id = id;
+            this.name = name;
+            this.type = type;
+            this.operation = operation;
+            this.sequenceLength = sequenceLength;
+            this.circular = circular;
+            this.strandedness = strandedness;
+            this.otherAttributes = otherAttributes;
+            this.parent = parent;
+        }
+
+        /** The node made from this one, or null for the root. */
+        public Node parent()
+        {
+            return parent;
+        }
+
+        /** The inputs of the operation that made this node. */
+        public List<Node> children()
+        {
+            return Collections.unmodifiableList(children);
+        }
+
+        /** Attributes of the Node element not mapped to a field, such as "upstreamModification". */
+        public Map<String, String> otherAttributes()
+        {
+            return SnapGene.attributeMap(otherAttributes);
+        }
+
+        @Override
+        public String toString()
+        {
+            return id + " " + name + " (" + operation + ")";
+        }
+    }
+
+    /** Parses a History Tree segment payload in one forward pass. */
+    public static HistoryTree parse(ByteBuffer data)
+    {
+        XMLStreamReader r = null;
+        try (InputStream in = decompress(data)) {
+            r = SnapGene.createStreamReader(in);
+            return read(r);
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Error parsing XML", e);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error decompressing history tree", e);
+        } finally {
+            if (r != null)
+                SnapGene.closeQuietly(r);
+        }
+    }
+
+    private static HistoryTree read(XMLStreamReader r) throws XMLStreamException
+    {
+        Node root = null, current = null;
+        Map<Integer, Node> nodes = new HashMap<>();
+        while (r.hasNext())
+        {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                String name = r.getLocalName();
+                if ("Node".equals(name))
+                {
+                    Node node = readNode(r, current);
+                    if (nodes.putIfAbsent(node.id, node) != null)
+                        throw new IllegalArgumentException("Duplicate history node ID " + node.id);
+                    if (current != null)
+                        current.children.add(node);
+                    else if (root == null)
+                        root = node;
+                    else
+                        throw new IllegalArgumentException("Expected a single root node in history tree");
+                    current = node;
+                }
+                else if (!"HistoryTree".equals(name))
+                {
+                    // oligos, parameters and input summaries of the enclosing node
+                    SnapGene.skipElement(r);
+                }
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && "Node".equals(r.getLocalName()))
+            {
+                current = current.parent;
+            }
+        }
+        if (root == null)
+            throw new IllegalArgumentException("Expected a node in history tree");
+        return new HistoryTree(root, nodes, Collections.emptyMap());
+    }
+
+    private static Node readNode(XMLStreamReader r, Node parent)
+    {
+        Integer id = null;
+        String name = null, type = null, operation = null, strandedness = null;
+        int sequenceLength = -1;
+        boolean circular = false;
+        List<String> other = null;
+        for (int i = 0; i < r.getAttributeCount(); i++)
+        {
+            String value = r.getAttributeValue(i);
+            switch (r.getAttributeLocalName(i))
+            {
+                case "ID":           id = parseInt("ID", value); break;
+                case "name":         name = value; break;
+                case "type":         type = Symbols.intern(value); break;
+                case "operation":    operation = Symbols.intern(value); break;
+                case "seqLen":       sequenceLength = parseInt("seqLen", value); break;
+                case "circular":     circular = "1".equals(value); break;
+                case "strandedness": strandedness = Symbols.intern(value); break;
+                default:
+                    if (other == null)
+                        other = new ArrayList<>();
+                    other.add(r.getAttributeLocalName(i));
+                    other.add(value);
+            }
+        }
+        if (id == null)
+            throw new IllegalArgumentException("Expected ID attribute on history node");
+        String[] otherAttributes = other == null ? null : other.toArray(new String[0]);
+        return new Node(id, name, type, operation, sequenceLength, circular, strandedness, otherAttributes, parent);
+    }
+
+    private static int parseInt(String attribute, String value)
+    {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + attribute + " on history node: " + value, e);
+        }
+    }
+
+    /** A tree sharing this one's nodes whose sequences come from the given History Node segments. */
+    HistoryTree withStates(Collection<HistoryNodeSegment> segments)
+    {
+        Map<Integer, HistoryNodeSegment> map = new HashMap<>();
+        for (HistoryNodeSegment seg : segments)
+            map.putIfAbsent(seg.nodeId, seg);
+        return new HistoryTree(root, nodes, map);
+    }
+
+    /** The current state of the construct. */
+    public Node root()
+    {
+        return root;
+    }
+
+    /** The node with the given ID, or null. */
+    public Node node(int id)
+    {
+        return nodes.get(id);
+    }
+
+    public int size()
+    {
+        return nodes.size();
+    }
+
+    /** True if the file stores a sequence for the node. */
+    public boolean hasSequence(Node node)
+    {
+        return states.containsKey(node.id);
+    }
+
+    /**
+     * Decodes the stored sequence of a node, or returns null if the file has none. Nothing is cached, so the
+     * sequence is only held for as long as the caller keeps it.
+     */
+    public PackedSequence sequence(Node node)
+    {
+        HistoryNodeSegment state = states.get(node.id);
+        return state == null ? null : state.sequence();
+    }
+
+    /** The node followed by everything it was made from, depth first, without decoding any sequence. */
+    public Iterable<Node> lineage(Node node)
+    {
+        return () -> new Iterator<>()
+        {
+            private final ArrayDeque<Node> pending = new ArrayDeque<>(List.of(node));
+
+            @Override
+            public boolean hasNext()
+            {
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public Node next()
+            {
+                Node next = pending.pollFirst();
+                if (next == null)
+                    throw new NoSuchElementException();
+                for (int i = next.children.size() - 1; i >= 0; i--)
+                    pending.addFirst(next.children.get(i));
+                return next;
+            }
+        };
+    }
+
+    /**
+     * Decodes the sequence of a History Node segment payload: the node ID, then segments framed like those of
+     * the file, one of which is either a DNA segment or a Compressed DNA segment (type 1). The latter holds the
+     * base count as a 32-bit integer followed by the bases, four to a byte in {@link PackedSequence#code} order.
+     */
+    static PackedSequence sequence(ByteBuffer data)
+    {
+        ByteBuffer bb = data.duplicate();
+        bb.position(bb.position() + 4);
+        while (bb.remaining() >= 5)
+        {
+            int type = bb.get();
+            int len = bb.getInt();
+            if (len < 0 || len > bb.remaining())
+                throw new IllegalArgumentException("Invalid segment length in history node");
+            ByteBuffer payload = bb.slice(bb.position(), len);
+            bb.position(bb.position() + len);
+
+            if (type == DNASegment.TYPE)
+                return DNASegment.parse(payload).sequence;
+            if (type == COMPRESSED_DNA)
+                return compressedSequence(payload);
+        }
+        return null;
+    }
+
+    private static PackedSequence compressedSequence(ByteBuffer data)
+    {
+        try (DataInputStream in = new DataInputStream(decompress(data))) {
+            return PackedSequence.unpack(in, in.readInt());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Error decompressing DNA", e);
+        }
+    }
+
+    /** Streams a segment payload through the decompressor its header calls for, if any. */
+    static InputStream decompress(ByteBuffer data) throws IOException
+    {
+        InputStream in = new ByteBufferInputStream(data);
+        if (startsWith(data, XZ_MAGIC))
+            return new XZInputStream(in);
+        if (isZlib(data))
+            return new InflaterInputStream(in);
+        return in;
+    }
+
+    private static boolean startsWith(ByteBuffer data, byte[] magic)
+    {
+        if (data.remaining() < magic.length)
+            return false;
+        for (int i = 0; i < magic.length; i++)
+            if (data.get(data.position() + i) != magic[i])
+                return false;
+        return true;
+    }
+
+    // RFC 1950 header: deflate method, and the two bytes a multiple of 31
+    private static boolean isZlib(ByteBuffer data)
+    {
+        if (data.remaining() < 2)
+            return false;
+        int cmf = data.get(data.position()) & 0xFF, flg = data.get(data.position() + 1) & 0xFF;
+        return (cmf & 0x0F) == 8 && (cmf >>> 4) <= 7 && (cmf << 8 | flg) % 31 == 0;
+    }
+}
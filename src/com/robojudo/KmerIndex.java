@@ -0,0 +1,679 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * On-disk inverted index from canonical k-mers to the files whose DNA contains them.
+ *
+ * A k-mer and its reverse complement share one canonical key (the smaller of the two 2-bit encodings),
+ * so a query matches either strand. On circular sequences k-mers spanning the origin are included.
+ * K-mers containing bases other than ACGT are not indexed; U counts as T.
+ *
+ * The index file holds the distinct keys in sorted order, an offset table and, per key, the ascending
+ * ids of the files containing it as delta-encoded varints. It is read through read-only mappings, so
+ * opening is cheap and queries only touch the pages they need. {@link #candidates} intersects the
+ * postings of a query's k-mers; {@link #search} then checks each candidate's actual sequence.
+ *
+ * <pre>
+ * KmerIndex.writer().k(16).write(corpusDir, indexFile);
+ * KmerIndex index = KmerIndex.open(indexFile);
+ * List&lt;Path&gt; hits = index.search("GGATCCATGGTGAGCAAGGGCGAG");
+ * </pre>
+ */
+public final class KmerIndex
+{
+    public static final int MAX_K = 16;
+
+    private static final int MAGIC = 0x53474b49; // "SGKI"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 8 * 4;
+    // most selective k-mers intersected per query; the rest are left to verification
+    private static final int MAX_QUERY_KMERS = 32;
+
+    private static final SnapGeneParser DNA_ONLY = SnapGeneParser.builder().decode(DNASegment.TYPE).build();
+
+    private final int k;
+    private final List<Path> files;
+    private final long kmerCount;
+    private final long kmersOffset;
+    private final long offsetsOffset;
+    private final long postingsOffset;
+    private final Mapped data;
+
+    private KmerIndex(int k, List<Path> files, long kmerCount, long kmersOffset, long offsetsOffset, long postingsOffset, Mapped data)
+    {
+        this.k = k;
+        this.files = files;
+        this.kmerCount = kmerCount;
+        this.kmersOffset = kmersOffset;
+        this.offsetsOffset = offsetsOffset;
+        this.postingsOffset = postingsOffset;
+        this.data = data;
+    }
+
+    public static KmerIndex open(Path indexFile) throws IOException
+    {
+        Mapped data;
+        try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            data = new Mapped(ch);
+        }
+        if (data.size < HEADER_LENGTH || data.getInt(0) != MAGIC)
+            throw new IllegalArgumentException("Not a k-mer index: " + indexFile);
+        if (data.getInt(4) != VERSION)
+            throw new IllegalArgumentException("Unsupported k-mer index version " + data.getInt(4));
+
+        int k = data.getInt(8);
+        int fileCount = data.getInt(12);
+        long kmerCount = data.getLong(16);
+        long kmersOffset = data.getLong(24);
+        long offsetsOffset = data.getLong(32);
+        long postingsOffset = data.getLong(40);
+        if (k < 1 || k > MAX_K || fileCount < 0 || kmerCount < 0 || kmersOffset + 4 * kmerCount != offsetsOffset
+                || offsetsOffset + 8 * (kmerCount + 1) != postingsOffset || postingsOffset > data.size)
+            throw new IllegalArgumentException("Corrupt k-mer index header: " + indexFile);
+
+        List<Path> files = new ArrayList<>(fileCount);
+        long pos = HEADER_LENGTH;
+        for (int i = 0; i < fileCount; i++)
+        {
+            int len = data.getInt(pos);
+            if (len < 0 || pos + 4 + len > kmersOffset)
+                throw new IllegalArgumentException("Corrupt k-mer index file table: " + indexFile);
+            byte[] utf8 = new byte[len];
+            for (int j = 0; j < len; j++)
+                utf8[j] = data.get(pos + 4 + j);
+            files.add(Paths.get(new String(utf8, StandardCharsets.UTF_8)));
+            pos += 4 + len;
+        }
+
+        return new KmerIndex(k, Collections.unmodifiableList(files), kmerCount, kmersOffset, offsetsOffset, postingsOffset, data);
+    }
+
+    public int k()
+    {
+        return k;
+    }
+
+    /** Indexed files; a file's position in this list is its id. */
+    public List<Path> files()
+    {
+        return files;
+    }
+
+    public long kmerCount()
+    {
+        return kmerCount;
+    }
+
+    /**
+     * Files that contain every indexed k-mer of the query, on either strand. This is a superset of the
+     * files containing the query itself. Query k-mers with bases other than ACGT are not looked up.
+     *
+     * @throws IllegalArgumentException if the query has no run of k ACGT bases
+     */
+    public List<Path> candidates(CharSequence query)
+    {
+        int[] ids = candidateIds(query);
+        List<Path> ret = new ArrayList<>(ids.length);
+        for (int id : ids)
+            ret.add(files.get(id));
+        return ret;
+    }
+
+    /** Candidates whose sequence contains the query, ignoring case, on either strand and across the origin if circular. */
+    public List<Path> search(CharSequence query) throws IOException
+    {
+        String q = query.toString().toUpperCase();
+        String rc = PackedSequence.pack(q).reverseComplement().toString();
+
+        List<Path> ret = new ArrayList<>();
+        for (int id : candidateIds(q))
+        {
+            Path file = files.get(id);
+            DNASegment dna = DNA_ONLY.parse(file).dna();
+            if (dna != null && contains(dna, q, rc))
+                ret.add(file);
+        }
+        return ret;
+    }
+
+    int[] candidateIds(CharSequence query)
+    {
+        long[] keys = queryKeys(query, k);
+        if (keys.length == 0)
+            throw new IllegalArgumentException("Query needs at least " + k + " consecutive ACGT bases");
+
+        // look up every k-mer, then intersect starting from the shortest postings
+        long[] ranked = new long[keys.length];
+        int n = 0;
+        for (long key : keys)
+        {
+            long i = find((int) key);
+            if (i < 0)
+                return new int[0];
+            long from = data.getLong(offsetsOffset + 8 * i);
+            long to = data.getLong(offsetsOffset + 8 * (i + 1));
+            ranked[n++] = (to - from) << 32 | (i & 0xFFFFFFFFL);
+        }
+        Arrays.sort(ranked, 0, n);
+
+        int[] result = null;
+        for (int r = 0; r < Math.min(n, MAX_QUERY_KMERS); r++)
+        {
+            int[] postings = postings(ranked[r] & 0xFFFFFFFFL);
+            result = result == null ? postings : intersect(result, postings);
+            if (result.length == 0)
+                break;
+        }
+        return result;
+    }
+
+    private static boolean contains(DNASegment dna, String q, String rc)
+    {
+        String seq = dna.sequence.toString().toUpperCase();
+        if ("circular".equals(dna.topology) && seq.length() > 1)
+            seq = seq + seq.substring(0, Math.min(seq.length() - 1, q.length() - 1));
+        return seq.contains(q) || seq.contains(rc);
+    }
+
+    // index of the key in the sorted key table, or -1
+    private long find(int key)
+    {
+        long lo = 0, hi = kmerCount - 1;
+        while (lo <= hi)
+        {
+            long mid = (lo + hi) >>> 1;
+            int v = data.getInt(kmersOffset + 4 * mid);
+            if (v < key)
+                lo = mid + 1;
+            else if (v > key)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private int[] postings(long i)
+    {
+        long pos = postingsOffset + data.getLong(offsetsOffset + 8 * i);
+        long end = postingsOffset + data.getLong(offsetsOffset + 8 * (i + 1));
+        int[] ret = new int[16];
+        int n = 0, id = 0;
+        while (pos < end)
+        {
+            int delta = 0;
+            for (int shift = 0; ; shift += 7)
+            {
+                byte b = data.get(pos++);
+                delta |= (b & 0x7F) << shift;
+                if (b >= 0)
+                    break;
+            }
+            id += delta;
+            if (n == ret.length)
+                ret = Arrays.copyOf(ret, n * 2);
+            ret[n++] = id;
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    private static int[] intersect(int[] a, int[] b)
+    {
+        int[] ret = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length)
+        {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                ret[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(ret, n);
+    }
+
+    // distinct keys of the query's k-mers; no wrap-around since the query is linear
+    private static long[] queryKeys(CharSequence query, int k)
+    {
+        PackedSequence seq = PackedSequence.pack(query.toString().toUpperCase());
+        long[] keys = new long[Math.max(0, seq.length() - k + 1)];
+        int n = new KmerScanner(k).scan(seq, false, keys);
+        return distinct(keys, n);
+    }
+
+    static long[] distinct(long[] keys, int n)
+    {
+        Arrays.sort(keys, 0, n);
+        int m = 0;
+        for (int i = 0; i < n; i++)
+            if (m == 0 || keys[m - 1] != keys[i])
+                keys[m++] = keys[i];
+        return Arrays.copyOf(keys, m);
+    }
+
+    /** Rolls canonical k-mer keys over a sequence. Keys have the sign bit flipped so they sort as signed ints. */
+    static final class KmerScanner
+    {
+        private final int k;
+        private final long mask;
+        private final int shift;
+
+        KmerScanner(int k)
+        {
+            if (k < 1 || k > MAX_K)
+                throw new IllegalArgumentException("k must be between 1 and " + MAX_K);
+            this.k = k;
+            this.mask = (1L << (2 * k)) - 1;
+            this.shift = 2 * (k - 1);
+        }
+
+        /** Writes the key of every k-mer free of ambiguous bases into out and returns the count. */
+        int scan(PackedSequence seq, boolean circular, long[] out)
+        {
+            int len = seq.length();
+            if (len < k)
+                return 0;
+
+            int end = circular ? len + k - 1 : len;
+            long fwd = 0, rev = 0;
+            int valid = 0, n = 0;
+            for (int i = 0; i < end; i++)
+            {
+                int code = seq.code(i < len ? i : i - len);
+                if (code < 0) {
+                    valid = 0;
+                    continue;
+                }
+                fwd = ((fwd << 2) | code) & mask;
+                rev = (rev >>> 2) | ((long) (3 - code) << shift);
+                if (++valid >= k)
+                    out[n++] = (int) Math.min(fwd, rev) ^ Integer.MIN_VALUE;
+            }
+            return n;
+        }
+    }
+
+    public static Writer writer()
+    {
+        return new Writer();
+    }
+
+    /** Builds an index over every .dna file under a directory tree. */
+    public static class Writer
+    {
+        private int k = MAX_K;
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private int memoryPairs = 1 << 24;
+
+        Writer()
+        {
+        }
+
+        /** K-mer length, at most 16; shorter k-mers give shorter minimum queries but more candidates. */
+        public Writer k(int k)
+        {
+            if (k < 1 || k > MAX_K)
+                throw new IllegalArgumentException("k must be between 1 and " + MAX_K);
+            this.k = k;
+            return this;
+        }
+
+        public Writer parallelism(int parallelism)
+        {
+            if (parallelism < 1)
+                throw new IllegalArgumentException("parallelism must be at least 1");
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /** Number of (k-mer, file) pairs sorted in memory before spilling a run to disk; 8 bytes each. */
+        public Writer memoryPairs(int memoryPairs)
+        {
+            if (memoryPairs < 1024)
+                throw new IllegalArgumentException("memoryPairs must be at least 1024");
+            this.memoryPairs = memoryPairs;
+            return this;
+        }
+
+        /**
+         * Indexes every .dna file under root and writes the index atomically to indexFile.
+         * Files that fail to parse or have no DNA segment are left out.
+         */
+        public SnapGeneBatch.Summary write(Path root, Path indexFile) throws IOException
+        {
+            Path dir = indexFile.toAbsolutePath().getParent();
+            Files.createDirectories(dir);
+            try (Runs runs = new Runs(dir, memoryPairs)) {
+                List<Path> files = new ArrayList<>();
+                ThreadLocal<KmerScanner> scanner = ThreadLocal.withInitial(() -> new KmerScanner(k));
+
+                SnapGeneBatch batch = SnapGeneBatch.builder()
+                        .parallelism(parallelism)
+                        .parser(DNA_ONLY::parse)
+                        .build();
+                SnapGeneBatch.Summary summary;
+                try {
+                    summary = batch.run(root, result -> {
+                        SnapGeneDoc doc = result.doc;
+                        DNASegment dna = doc != null ? doc.dna() : null;
+                        if (dna == null)
+                            return;
+
+                        PackedSequence seq = dna.sequence;
+                        boolean circular = "circular".equals(dna.topology);
+                        long[] keys = new long[seq.length() + k];
+                        long[] distinct = distinct(keys, scanner.get().scan(seq, circular, keys));
+                        try {
+                            synchronized (runs) {
+                                int id = files.size();
+                                files.add(result.path.toAbsolutePath().normalize());
+                                runs.add(distinct, id);
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+
+                writeIndex(files, runs, indexFile);
+                return summary;
+            }
+        }
+
+        private void writeIndex(List<Path> files, Runs runs, Path indexFile) throws IOException
+        {
+            Path dir = indexFile.toAbsolutePath().getParent();
+            Path kmers = Files.createTempFile(dir, "kmers", ".tmp");
+            Path offsets = Files.createTempFile(dir, "offsets", ".tmp");
+            Path postings = Files.createTempFile(dir, "postings", ".tmp");
+            Path tmp = Files.createTempFile(dir, indexFile.getFileName().toString(), ".tmp");
+            try {
+                long kmerCount = 0;
+                long postingsLength = 0;
+                try (DataOutputStream kOut = stream(kmers); DataOutputStream oOut = stream(offsets); DataOutputStream pOut = stream(postings)) {
+                    PairIterator it = runs.merge();
+                    boolean first = true;
+                    int key = 0, last = 0;
+                    while (it.next())
+                    {
+                        int kmer = (int) (it.pair >> 32), id = (int) it.pair;
+                        if (first || kmer != key) {
+                            kOut.writeInt(kmer);
+                            oOut.writeLong(postingsLength);
+                            kmerCount++;
+                            key = kmer;
+                            last = 0;
+                            first = false;
+                        }
+                        postingsLength += writeVarint(pOut, id - last);
+                        last = id;
+                    }
+                    oOut.writeLong(postingsLength);
+                }
+
+                byte[][] names = new byte[files.size()][];
+                long fileTable = 0;
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = files.get(i).toString().getBytes(StandardCharsets.UTF_8);
+                    fileTable += 4 + names[i].length;
+                }
+                long kmersOffset = HEADER_LENGTH + fileTable;
+                long offsetsOffset = kmersOffset + 4 * kmerCount;
+                long postingsOffset = offsetsOffset + 8 * (kmerCount + 1);
+
+                try (DataOutputStream out = stream(tmp)) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(k);
+                    out.writeInt(names.length);
+                    out.writeLong(kmerCount);
+                    out.writeLong(kmersOffset);
+                    out.writeLong(offsetsOffset);
+                    out.writeLong(postingsOffset);
+                    for (byte[] name : names) {
+                        out.writeInt(name.length);
+                        out.write(name);
+                    }
+                }
+                try (FileChannel dst = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    for (Path section : new Path[] { kmers, offsets, postings })
+                        try (FileChannel src = FileChannel.open(section, StandardOpenOption.READ)) {
+                            long size = src.size();
+                            for (long pos = 0; pos < size; )
+                                pos += src.transferTo(pos, size - pos, dst);
+                        }
+                }
+
+                try {
+                    Files.move(tmp, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            finally {
+                Files.deleteIfExists(kmers);
+                Files.deleteIfExists(offsets);
+                Files.deleteIfExists(postings);
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    private static DataOutputStream stream(Path file) throws IOException
+    {
+        return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+    }
+
+    private static int writeVarint(DataOutputStream out, int v) throws IOException
+    {
+        int n = 1;
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+            n++;
+        }
+        out.writeByte(v);
+        return n;
+    }
+
+    /**
+     * External sort of (key, file id) pairs packed into longs. Pairs are buffered in memory and
+     * spilled as sorted runs when the buffer fills; {@link #merge} streams them back in order.
+     */
+    private static final class Runs implements AutoCloseable
+    {
+        private final Path dir;
+        private final long[] buffer;
+        private int size;
+        private final List<Path> spilled = new ArrayList<>();
+
+        Runs(Path dir, int capacity)
+        {
+            this.dir = dir;
+            this.buffer = new long[capacity];
+        }
+
+        void add(long[] keys, int id) throws IOException
+        {
+            for (long key : keys) {
+                if (size == buffer.length)
+                    spill();
+                buffer[size++] = key << 32 | id;
+            }
+        }
+
+        private void spill() throws IOException
+        {
+            Arrays.parallelSort(buffer, 0, size);
+            Path run = Files.createTempFile(dir, "kmer-run", ".tmp");
+            spilled.add(run);
+            try (DataOutputStream out = stream(run)) {
+                for (int i = 0; i < size; i++)
+                    out.writeLong(buffer[i]);
+            }
+            size = 0;
+        }
+
+        PairIterator merge() throws IOException
+        {
+            Arrays.parallelSort(buffer, 0, size);
+            List<PairIterator> sources = new ArrayList<>(spilled.size() + 1);
+            for (Path run : spilled)
+                sources.add(new RunIterator(run));
+            sources.add(new ArrayIterator(buffer, size));
+            return sources.size() == 1 ? sources.get(0) : new MergeIterator(sources);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            for (Path run : spilled)
+                Files.deleteIfExists(run);
+        }
+    }
+
+    private abstract static class PairIterator
+    {
+        long pair;
+
+        abstract boolean next() throws IOException;
+    }
+
+    private static final class ArrayIterator extends PairIterator
+    {
+        private final long[] a;
+        private final int size;
+        private int i;
+
+        ArrayIterator(long[] a, int size)
+        {
+            this.a = a;
+            this.size = size;
+        }
+
+        @Override
+        boolean next()
+        {
+            if (i == size)
+                return false;
+            pair = a[i++];
+            return true;
+        }
+    }
+
+    private static final class RunIterator extends PairIterator
+    {
+        private final DataInputStream in;
+
+        RunIterator(Path run) throws IOException
+        {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run), 64 * 1024));
+        }
+
+        @Override
+        boolean next() throws IOException
+        {
+            try {
+                pair = in.readLong();
+                return true;
+            } catch (EOFException e) {
+                in.close();
+                return false;
+            }
+        }
+    }
+
+    private static final class MergeIterator extends PairIterator
+    {
+        private final PriorityQueue<PairIterator> heap = new PriorityQueue<>(
+                (a, b) -> Long.compare(a.pair, b.pair));
+
+        MergeIterator(List<PairIterator> sources) throws IOException
+        {
+            for (PairIterator s : sources)
+                if (s.next())
+                    heap.add(s);
+        }
+
+        @Override
+        boolean next() throws IOException
+        {
+            PairIterator s = heap.poll();
+            if (s == null)
+                return false;
+            pair = s.pair;
+            if (s.next())
+                heap.add(s);
+            return true;
+        }
+    }
+
+    /**
+     * Read-only mapping of a file of any size as overlapping chunks, so that any value of up to
+     * 8 bytes lies entirely within the chunk its first byte falls in.
+     */
+    private static final class Mapped
+    {
+        private static final int CHUNK_BITS = 30;
+        private static final long CHUNK = 1L << CHUNK_BITS;
+
+        final long size;
+        private final ByteBuffer[] chunks;
+
+        Mapped(FileChannel ch) throws IOException
+        {
+            this.size = ch.size();
+            this.chunks = new ByteBuffer[(int) ((size + CHUNK - 1) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                long pos = i * CHUNK;
+                chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(CHUNK + 8, size - pos)).order(ByteOrder.BIG_ENDIAN);
+            }
+        }
+
+        byte get(long pos)
+        {
+            return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & (CHUNK - 1)));
+        }
+
+        int getInt(long pos)
+        {
+            return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & (CHUNK - 1)));
+        }
+
+        long getLong(long pos)
+        {
+            return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & (CHUNK - 1)));
+        }
+    }
+}
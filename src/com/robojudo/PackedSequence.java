@@ -0,0 +1,468 @@
+package com.robojudo;
+
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Nucleotide sequence stored at 2 bits per base.
+ *
+ * ACGT are packed 32 bases to a long. Any other character (IUPAC ambiguity codes, gaps) is kept in a
+ * sparse table of runs, as are bases whose case differs from the dominant case of the sequence.
+ * A one-bit-per-64-bases block map tells charAt whether the side tables need to be consulted at all,
+ * so lookups in clean regions are O(1) and lookups in dirty blocks are O(log r) for r runs.
+ *
+ * Instances are immutable; subSequence and reverseComplement return views sharing the same storage.
+ */
+public final class PackedSequence implements CharSequence
+{
+    private static final byte[] BASES = { 'A', 'C', 'G', 'T' };
+    private static final byte[] COMPLEMENT = new byte[128];
+    static {
+        for (int i = 0; i < COMPLEMENT.length; i++)
+            COMPLEMENT[i] = (byte) i;
+        String from = "ACGTURYKMBVDHSWN";
+        String to   = "TGCAAYRMKVBHDSWN";
+        for (int i = 0; i < from.length(); i++) {
+            COMPLEMENT[from.charAt(i)] = (byte) to.charAt(i);
+            COMPLEMENT[Character.toLowerCase(from.charAt(i))] = (byte) Character.toLowerCase(to.charAt(i));
+        }
+    }
+
+    private final Store store;
+    private final int offset;
+    private final int length;
+    private final boolean reverseComplement;
+
+    private PackedSequence(Store store, int offset, int length, boolean reverseComplement)
+    {
+        this.store = store;
+        this.offset = offset;
+        this.length = length;
+        this.reverseComplement = reverseComplement;
+    }
+
+    /** Packs the remaining ASCII bytes of the buffer without decoding them to a String. */
+    public static PackedSequence pack(ByteBuffer data)
+    {
+        Store store = Store.pack(data);
+        return new PackedSequence(store, 0, store.length, false);
+    }
+
+    public static PackedSequence pack(CharSequence seq)
+    {
+        return pack(ByteBuffer.wrap(seq.toString().getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Reads length bases stored four to a byte, first base in the high bits, with the codes returned by
+     * {@link #code}. Words are filled straight from the stream, without an ASCII copy in between.
+     */
+    static PackedSequence unpack(InputStream in, int length) throws IOException
+    {
+        if (length < 0)
+            throw new IllegalArgumentException("Invalid sequence length: " + length);
+
+        long[] bits = new long[(length + 31) >>> 5];
+        byte[] chunk = new byte[Math.min(8192, (length + 3) >>> 2)];
+        int pos = 0;
+        while (pos < length)
+        {
+            int n = in.read(chunk, 0, Math.min(chunk.length, (length - pos + 3) >>> 2));
+            if (n == -1)
+                throw new EOFException("Expected " + length + " bases, got " + pos);
+            for (int i = 0; i < n && pos < length; i++)
+            {
+                int b = chunk[i];
+                for (int shift = 6; shift >= 0 && pos < length; shift -= 2, pos++)
+                    bits[pos >>> 5] |= (long) ((b >>> shift) & 3) << ((pos & 31) << 1);
+            }
+        }
+
+        long[] dirty = new long[(((length + 63) >>> 6) + 63) >>> 6];
+        int[] none = new int[0];
+        Store store = new Store(length, bits, false, dirty, none, none, new byte[0], none, none);
+        return new PackedSequence(store, 0, length, false);
+    }
+
+    @Override
+    public int length()
+    {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index)
+    {
+        checkIndex(index);
+        if (!reverseComplement)
+            return (char) store.byteAt(offset + index);
+        return (char) complement(store.byteAt(offset + length - 1 - index));
+    }
+
+    /**
+     * Returns the 2-bit code of the base at index (A=0, C=1, G=2, T or U=3), or -1 if it is not one of those.
+     * For a reverse-complement view the code is that of the complementary base, as {@link #charAt} reads it.
+     */
+    public int code(int index)
+    {
+        checkIndex(index);
+        int pos = reverseComplement ? offset + length - 1 - index : offset + index;
+        byte exc = store.isDirty(pos) ? store.exceptionAt(pos) : 0;
+        int code;
+        if (exc == 0)
+            code = store.code(pos);
+        else if (exc == 'U' || exc == 'u')
+            code = 3;
+        else
+            return -1;
+        return reverseComplement ? 3 - code : code;
+    }
+
+    @Override
+    public PackedSequence subSequence(int start, int end)
+    {
+        if (start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+        if (reverseComplement)
+            return new PackedSequence(store, offset + length - end, end - start, true);
+        return new PackedSequence(store, offset + start, end - start, false);
+    }
+
+    /** Returns a view of the reverse complement of this sequence. */
+    public PackedSequence reverseComplement()
+    {
+        return new PackedSequence(store, offset, length, !reverseComplement);
+    }
+
+    public boolean isReverseComplement()
+    {
+        return reverseComplement;
+    }
+
+    /** Copies bases [srcBegin, srcEnd) as ASCII into dst, decoding a word at a time where the storage allows. */
+    public void getBytes(int srcBegin, int srcEnd, byte[] dst, int dstBegin)
+    {
+        if (srcBegin < 0 || srcEnd > length || srcBegin > srcEnd)
+            throw new IndexOutOfBoundsException("begin " + srcBegin + ", end " + srcEnd + ", length " + length);
+
+        int n = srcEnd - srcBegin;
+        if (!reverseComplement) {
+            store.getBytes(offset + srcBegin, n, dst, dstBegin);
+        }
+        else {
+            int from = offset + length - srcEnd;
+            store.getBytes(from, n, dst, dstBegin);
+            for (int i = dstBegin, j = dstBegin + n - 1; i <= j; i++, j--) {
+                byte a = complement(dst[i]);
+                dst[i] = complement(dst[j]);
+                dst[j] = a;
+            }
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        byte[] bytes = new byte[length];
+        getBytes(0, length, bytes, 0);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    /** Approximate heap footprint of the shared storage, in bytes. */
+    public long storageBytes()
+    {
+        return store.storageBytes();
+    }
+
+    /** Writes the packed storage of this sequence; views are repacked first. */
+    void writeTo(DataOutput out) throws IOException
+    {
+        Store s = store;
+        if (offset != 0 || length != s.length || reverseComplement)
+            s = pack(this).store;
+        s.writeTo(out);
+    }
+
+    /** Reads a sequence written by {@link #writeTo}, advancing the buffer past it. */
+    static PackedSequence readFrom(ByteBuffer in)
+    {
+        Store store = Store.readFrom(in);
+        return new PackedSequence(store, 0, store.length, false);
+    }
+
+    private void checkIndex(int index)
+    {
+        if (index < 0 || index >= length)
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+    }
+
+    static byte complement(byte b)
+    {
+        return b >= 0 ? COMPLEMENT[b] : b;
+    }
+
+    private static final class Store
+    {
+        final int length;
+        // 32 bases per word, base i in bits (2 * (i % 32)) .. +1
+        final long[] bits;
+        final boolean lowerCase;
+        // one bit per 64-base block that overlaps an exception or case run
+        final long[] dirty;
+
+        // runs of a repeated non-ACGT character, sorted by start; end is exclusive
+        final int[] excStart;
+        final int[] excEnd;
+        final byte[] excChar;
+
+        // runs of ACGT bases whose case differs from lowerCase
+        final int[] caseStart;
+        final int[] caseEnd;
+
+        private Store(int length, long[] bits, boolean lowerCase, long[] dirty,
+                      int[] excStart, int[] excEnd, byte[] excChar, int[] caseStart, int[] caseEnd)
+        {
+            this.length = length;
+            this.bits = bits;
+            this.lowerCase = lowerCase;
+            this.dirty = dirty;
+            this.excStart = excStart;
+            this.excEnd = excEnd;
+            this.excChar = excChar;
+            this.caseStart = caseStart;
+            this.caseEnd = caseEnd;
+        }
+
+        static Store pack(ByteBuffer data)
+        {
+            int base = data.position();
+            int length = data.remaining();
+            long[] bits = new long[(length + 31) >>> 5];
+            long[] dirty = new long[(((length + 63) >>> 6) + 63) >>> 6];
+
+            boolean lowerCase = false;
+            for (int i = 0; i < length; i++) {
+                int code = codeOf(data.get(base + i));
+                if (code != -1) {
+                    lowerCase = data.get(base + i) >= 'a';
+                    break;
+                }
+            }
+
+            RunBuilder exc = new RunBuilder();
+            RunBuilder cas = new RunBuilder();
+            for (int i = 0; i < length; i++) {
+                byte b = data.get(base + i);
+                int code = codeOf(b);
+                if (code == -1) {
+                    exc.add(i, b);
+                    continue;
+                }
+                bits[i >>> 5] |= (long) code << ((i & 31) << 1);
+                if ((b >= 'a') != lowerCase)
+                    cas.add(i, (byte) 0);
+            }
+
+            exc.markDirty(dirty);
+            cas.markDirty(dirty);
+
+            return new Store(length, bits, lowerCase, dirty,
+                    exc.starts(), exc.ends(), exc.chars(), cas.starts(), cas.ends());
+        }
+
+        static int codeOf(byte b)
+        {
+            switch (b) {
+                case 'A': case 'a': return 0;
+                case 'C': case 'c': return 1;
+                case 'G': case 'g': return 2;
+                case 'T': case 't': return 3;
+                default: return -1;
+            }
+        }
+
+        int code(int pos)
+        {
+            return (int) (bits[pos >>> 5] >>> ((pos & 31) << 1)) & 3;
+        }
+
+        boolean isDirty(int pos)
+        {
+            int block = pos >>> 6;
+            return (dirty[block >>> 6] & (1L << block)) != 0;
+        }
+
+        /** Returns the exception character at pos, or 0 if the base is ACGT. */
+        byte exceptionAt(int pos)
+        {
+            int i = findRun(excStart, excEnd, pos);
+            return i == -1 ? 0 : excChar[i];
+        }
+
+        byte byteAt(int pos)
+        {
+            if (!isDirty(pos))
+                return letter(code(pos), lowerCase);
+
+            byte exc = exceptionAt(pos);
+            if (exc != 0)
+                return exc;
+            boolean lower = lowerCase != (findRun(caseStart, caseEnd, pos) != -1);
+            return letter(code(pos), lower);
+        }
+
+        void getBytes(int from, int n, byte[] dst, int dstBegin)
+        {
+            int i = 0;
+            while (i < n) {
+                int pos = from + i;
+                int block = pos >>> 6;
+                int blockEnd = Math.min(n, i + (64 - (pos & 63)));
+                if ((dirty[block >>> 6] & (1L << block)) == 0) {
+                    byte off = lowerCase ? (byte) 0x20 : 0;
+                    for (; i < blockEnd; i++, pos++)
+                        dst[dstBegin + i] = (byte) (BASES[code(pos)] | off);
+                }
+                else {
+                    for (; i < blockEnd; i++, pos++)
+                        dst[dstBegin + i] = byteAt(pos);
+                }
+            }
+        }
+
+        void writeTo(DataOutput out) throws IOException
+        {
+            out.writeInt(length);
+            out.writeBoolean(lowerCase);
+            writeLongs(out, bits);
+            writeLongs(out, dirty);
+            writeInts(out, excStart);
+            writeInts(out, excEnd);
+            out.write(excChar);
+            writeInts(out, caseStart);
+            writeInts(out, caseEnd);
+        }
+
+        static Store readFrom(ByteBuffer in)
+        {
+            int length = in.getInt();
+            if (length < 0)
+                throw new IllegalArgumentException("Negative sequence length");
+            boolean lowerCase = in.get() != 0;
+            long[] bits = readLongs(in);
+            long[] dirty = readLongs(in);
+            if (bits.length != (length + 31) >>> 5 || dirty.length != (((length + 63) >>> 6) + 63) >>> 6)
+                throw new IllegalArgumentException("Packed sequence does not match its length");
+
+            int[] excStart = readInts(in);
+            int[] excEnd = readInts(in);
+            byte[] excChar = new byte[excStart.length];
+            in.get(excChar);
+            int[] caseStart = readInts(in);
+            int[] caseEnd = readInts(in);
+            if (excEnd.length != excStart.length || caseEnd.length != caseStart.length)
+                throw new IllegalArgumentException("Packed sequence run tables do not match");
+
+            return new Store(length, bits, lowerCase, dirty, excStart, excEnd, excChar, caseStart, caseEnd);
+        }
+
+        private static void writeLongs(DataOutput out, long[] a) throws IOException
+        {
+            out.writeInt(a.length);
+            for (long v : a)
+                out.writeLong(v);
+        }
+
+        private static void writeInts(DataOutput out, int[] a) throws IOException
+        {
+            out.writeInt(a.length);
+            for (int v : a)
+                out.writeInt(v);
+        }
+
+        private static long[] readLongs(ByteBuffer in)
+        {
+            long[] a = new long[count(in, 8)];
+            in.asLongBuffer().get(a);
+            in.position(in.position() + 8 * a.length);
+            return a;
+        }
+
+        private static int[] readInts(ByteBuffer in)
+        {
+            int[] a = new int[count(in, 4)];
+            in.asIntBuffer().get(a);
+            in.position(in.position() + 4 * a.length);
+            return a;
+        }
+
+        private static int count(ByteBuffer in, int width)
+        {
+            int count = in.getInt();
+            if (count < 0 || (long) count * width > in.remaining())
+                throw new IllegalArgumentException("Invalid array length " + count);
+            return count;
+        }
+
+        long storageBytes()
+        {
+            return 8L * (bits.length + dirty.length) + 9L * excStart.length + 8L * caseStart.length;
+        }
+
+        private static byte letter(int code, boolean lower)
+        {
+            return lower ? (byte) (BASES[code] | 0x20) : BASES[code];
+        }
+
+        private static int findRun(int[] starts, int[] ends, int pos)
+        {
+            int i = Arrays.binarySearch(starts, pos);
+            if (i < 0)
+                i = -i - 2;
+            return i >= 0 && pos < ends[i] ? i : -1;
+        }
+    }
+
+    /** Accumulates contiguous runs of a repeated byte value. */
+    private static final class RunBuilder
+    {
+        private int[] starts = new int[0];
+        private int[] ends = new int[0];
+        private byte[] chars = new byte[0];
+        private int size;
+
+        void add(int pos, byte c)
+        {
+            if (size > 0 && ends[size - 1] == pos && chars[size - 1] == c) {
+                ends[size - 1] = pos + 1;
+                return;
+            }
+            if (size == starts.length) {
+                int cap = Math.max(8, size * 2);
+                starts = Arrays.copyOf(starts, cap);
+                ends = Arrays.copyOf(ends, cap);
+                chars = Arrays.copyOf(chars, cap);
+            }
+            starts[size] = pos;
+            ends[size] = pos + 1;
+            chars[size] = c;
+            size++;
+        }
+
+        void markDirty(long[] dirty)
+        {
+            for (int i = 0; i < size; i++)
+                for (int block = starts[i] >>> 6; block <= (ends[i] - 1) >>> 6; block++)
+                    dirty[block >>> 6] |= 1L << block;
+        }
+
+        int[] starts() { return Arrays.copyOf(starts, size); }
+        int[] ends() { return Arrays.copyOf(ends, size); }
+        byte[] chars() { return Arrays.copyOf(chars, size); }
+    }
+}
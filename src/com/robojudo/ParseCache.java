@@ -0,0 +1,757 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.DescriptionSegment;
+import com.robojudo.SnapGene.Directionality;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.Reference;
+import com.robojudo.SnapGene.Seg;
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import com.robojudo.SnapGene.UnsupportedSegment;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Persistent cache of parsed documents in a compact binary format.
+ *
+ * Each source file has one entry under the cache directory, named after a hash of its absolute path.
+ * The entry header records the format version, the parser configuration and the size, modification
+ * time and SHA-256 of the source. An entry is used as-is if size and modification time match; if only
+ * the modification time differs, the source is hashed and the entry is kept if the content is unchanged.
+ * Anything else is a miss: the file is parsed again and the entry rewritten.
+ *
+ * Entries are read through a read-only mapping. Strings and numbers are decoded from it directly,
+ * packed sequences are bulk-copied and unsupported segment payloads are slices of the mapping, so no
+ * XML is parsed on a hit. The exception are segments the parser decodes but that keep their payload,
+ * such as Primers: they are decoded again from the slice, so a hit returns the same classes as a parse.
+ * Entries are written to a temporary file and moved into place, so concurrent
+ * readers and writers, even in other processes, never see a partial entry.
+ *
+ * <pre>
+ * ParseCache cache = new ParseCache(Paths.get("/var/cache/snapgene"));
+ * SnapGeneBatch.builder().parser(cache::parse).build().run(root, sink);
+ * </pre>
+ */
+public class ParseCache
+{
+    /** Increase whenever the entry encoding or the document model changes; older entries are then ignored. */
+    public static final int FORMAT_VERSION = 4;
+
+    private static final int MAGIC = 0x53474343; // "SGCC"
+    private static final int HASH_LENGTH = 32;
+    private static final int MTIME_OFFSET = 4 + 4 + 8 + 8;
+    private static final int HEADER_LENGTH = MTIME_OFFSET + 8 + HASH_LENGTH;
+
+    // segment encodings
+    private static final byte RAW = 0;
+    private static final byte DESCRIPTION = 1;
+    private static final byte DNA = 2;
+    private static final byte NOTES = 3;
+    private static final byte FEATURES = 4;
+    // a payload the parser decodes into a subclass of UnsupportedSegment, decoded again on load
+    private static final byte PAYLOAD = 5;
+
+    // qualifier value tags
+    private static final byte NULL_VALUE = 0;
+    private static final byte INT_VALUE = 1;
+    private static final byte BOOL_VALUE = 2;
+    private static final byte TEXT_VALUE = 3;
+    private static final byte PREDEF_VALUE = 4;
+    private static final byte OTHER_VALUE = 5;
+
+    private final Path dir;
+    private final SnapGeneParser parser;
+    private final long parserFingerprint;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+
+    public ParseCache(Path dir) throws IOException {
+        this(dir, SnapGeneParser.DEFAULT);
+    }
+
+    public ParseCache(Path dir, SnapGeneParser parser) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.parser = parser;
+        this.parserFingerprint = fingerprint(parser);
+    }
+
+    /** Returns the cached document for file, or parses it and stores the result. Cached documents are never lazy. */
+    public SnapGeneDoc parse(Path file) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        long size = attrs.size();
+        long mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        Path entry = entryPath(file);
+        ByteBuffer cached = mapEntry(entry);
+        byte[] hash = null;
+        if (cached != null && cached.getLong(16) == size)
+        {
+            if (cached.getLong(MTIME_OFFSET) == mtime)
+            {
+                SnapGeneDoc doc = read(entry, cached);
+                if (doc != null) {
+                    hits.increment();
+                    return doc;
+                }
+            }
+            else
+            {
+                try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                    hash = sha256(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+                }
+                if (Arrays.equals(hash, bytes(cached, MTIME_OFFSET + 8, HASH_LENGTH)))
+                {
+                    SnapGeneDoc doc = read(entry, cached);
+                    if (doc != null) {
+                        touch(entry, mtime);
+                        revalidations.increment();
+                        return doc;
+                    }
+                }
+            }
+        }
+
+        misses.increment();
+        SnapGeneDoc doc;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer source = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (hash == null || source.remaining() != size)
+                hash = sha256(source);
+            size = source.remaining();
+            doc = parser.parse(source);
+        }
+
+        try {
+            write(entry, size, mtime, hash, doc);
+        } catch (IOException | RuntimeException e) {
+            // the document is still good; the next parse will try again
+            writeErrors.increment();
+        }
+        return doc;
+    }
+
+    /** Removes the entry for file, if any. */
+    public void invalidate(Path file) throws IOException
+    {
+        Files.deleteIfExists(entryPath(file));
+    }
+
+    public Path directory()
+    {
+        return dir;
+    }
+
+    /** Entries used because size and modification time matched. */
+    public long hits()
+    {
+        return hits.sum();
+    }
+
+    /** Entries used after the modification time changed but the content hash still matched. */
+    public long revalidations()
+    {
+        return revalidations.sum();
+    }
+
+    public long misses()
+    {
+        return misses.sum();
+    }
+
+    public long writeErrors()
+    {
+        return writeErrors.sum();
+    }
+
+    Path entryPath(Path file)
+    {
+        byte[] digest = digest("SHA-1").digest(file.toAbsolutePath().normalize().toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder(2 * digest.length);
+        for (byte b : digest)
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        // shard by the first byte so no single directory grows too large
+        return dir.resolve(sb.substring(0, 2)).resolve(sb.substring(2) + ".sgc");
+    }
+
+    // Maps an entry and checks its header; returns null if it is missing or was written by another format or parser.
+    private ByteBuffer mapEntry(Path entry) throws IOException
+    {
+        ByteBuffer bb;
+        try (FileChannel ch = FileChannel.open(entry, StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE)
+                return null;
+            bb = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+
+        bb.order(ByteOrder.BIG_ENDIAN);
+        if (bb.getInt(0) != MAGIC || bb.getInt(4) != FORMAT_VERSION || bb.getLong(8) != parserFingerprint)
+            return null;
+        return bb;
+    }
+
+    private SnapGeneDoc read(Path entry, ByteBuffer cached) throws IOException
+    {
+        try {
+            ByteBuffer in = cached.duplicate().order(ByteOrder.BIG_ENDIAN);
+            in.position(HEADER_LENGTH);
+            return new Reader(in, parser).readDoc();
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            // corrupt or truncated entry
+            Files.deleteIfExists(entry);
+            return null;
+        }
+    }
+
+    private static void touch(Path entry, long mtime) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(entry, StandardOpenOption.WRITE)) {
+            ByteBuffer bb = ByteBuffer.allocate(8).putLong(0, mtime);
+            while (bb.hasRemaining())
+                ch.write(bb, MTIME_OFFSET + bb.position());
+        }
+    }
+
+    private void write(Path entry, long size, long mtime, byte[] hash, SnapGeneDoc doc) throws IOException
+    {
+        Writer w = new Writer();
+        w.writeDoc(doc);
+
+        Files.createDirectories(entry.getParent());
+        Path tmp = Files.createTempFile(entry.getParent(), entry.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                DataOutputStream out = new DataOutputStream(os);
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(parserFingerprint);
+                out.writeLong(size);
+                out.writeLong(mtime);
+                out.write(hash);
+                w.writeStrings(out);
+                w.body.writeTo(out);
+                out.flush();
+            }
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Entries are only valid for parsers that decode the same segment types with the same strictness
+    // and, when lenient, keep as many diagnostics.
+    private static long fingerprint(SnapGeneParser parser)
+    {
+        long fp = parser.isStrict() ? 1 : 0;
+        for (int type = 0; type < 63; type++)
+            if (parser.decodes(type))
+                fp |= 1L << (type + 1);
+        if (!parser.isStrict())
+            fp = fp * 31 + parser.maxDiagnostics();
+        return fp;
+    }
+
+    private static byte[] sha256(ByteBuffer data)
+    {
+        MessageDigest md = digest("SHA-256");
+        md.update(data.duplicate());
+        return md.digest();
+    }
+
+    private static MessageDigest digest(String algorithm)
+    {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer bb, int offset, int len)
+    {
+        byte[] ret = new byte[len];
+        bb.get(offset, ret);
+        return ret;
+    }
+
+    /** Encodes a document; strings go to a table written ahead of the body and are referenced by index. */
+    private static final class Writer
+    {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+        final DataOutputStream out = new DataOutputStream(body);
+        final Map<String, Integer> stringIds = new HashMap<>();
+        final List<String> strings = new ArrayList<>();
+
+        void writeStrings(DataOutputStream dst) throws IOException
+        {
+            dst.writeInt(strings.size());
+            for (String s : strings)
+            {
+                byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+                dst.writeInt(utf8.length);
+                dst.write(utf8);
+            }
+        }
+
+        void writeDoc(SnapGeneDoc doc) throws IOException
+        {
+            List<Segment> segments = doc.segments();
+            out.writeInt(segments.size());
+            for (Segment seg : segments)
+            {
+                if (seg instanceof DescriptionSegment)
+                    writeDescription((DescriptionSegment) seg);
+                else if (seg instanceof DNASegment)
+                    writeDna((DNASegment) seg);
+                else if (seg instanceof NotesSegment)
+                    writeNotes((NotesSegment) seg);
+                else if (seg instanceof FeaturesSegment)
+                    writeFeatures((FeaturesSegment) seg);
+                else if (seg.getClass() != UnsupportedSegment.class)
+                    writeRaw(PAYLOAD, (UnsupportedSegment) seg);
+                else
+                    writeRaw(RAW, (UnsupportedSegment) seg);
+            }
+            writeDiagnostics(doc.diagnostics());
+        }
+
+        void writeDiagnostics(Diagnostics diagnostics) throws IOException
+        {
+            out.writeBoolean(diagnostics != Diagnostics.NONE);
+            if (diagnostics == Diagnostics.NONE)
+                return;
+            List<Diagnostics.Diagnostic> list = diagnostics.list();
+            out.writeInt(diagnostics.capacity());
+            out.writeInt(list.size());
+            for (Diagnostics.Diagnostic d : list)
+            {
+                out.writeByte(d.segmentType);
+                out.writeLong(d.offset);
+                writeString(d.path);
+                writeString(d.attribute);
+                writeString(d.message);
+            }
+            out.writeInt(diagnostics.dropped());
+        }
+
+        void writeAttributes(String[] pairs) throws IOException
+        {
+            out.writeInt(pairs == null ? -1 : pairs.length);
+            if (pairs != null)
+                for (String s : pairs)
+                    writeString(s);
+        }
+
+        void writeRaw(byte encoding, UnsupportedSegment seg) throws IOException
+        {
+            out.writeByte(encoding);
+            out.writeByte(seg.type);
+            ByteBuffer data = seg.data.duplicate();
+            out.writeInt(data.remaining());
+            byte[] chunk = new byte[Math.min(8192, data.remaining())];
+            while (data.hasRemaining())
+            {
+                int n = Math.min(chunk.length, data.remaining());
+                data.get(chunk, 0, n);
+                out.write(chunk, 0, n);
+            }
+        }
+
+        void writeDescription(DescriptionSegment seg) throws IOException
+        {
+            out.writeByte(DESCRIPTION);
+            writeString(seg.type);
+            out.writeShort(seg.exportVersion);
+            out.writeShort(seg.importVersion);
+        }
+
+        void writeDna(DNASegment seg) throws IOException
+        {
+            out.writeByte(DNA);
+            writeString(seg.topology);
+            writeString(seg.strandedness);
+            out.writeByte((seg.Dam ? 1 : 0) | (seg.Dcm ? 2 : 0) | (seg.EcoKI ? 4 : 0));
+            seg.sequence.writeTo(out);
+        }
+
+        void writeNotes(NotesSegment seg) throws IOException
+        {
+            out.writeByte(NOTES);
+            writeString(seg.uuid);
+            writeString(seg.type);
+            writeBool(seg.confirmedExperimentally);
+            writeString(seg.description);
+            writeDate(seg.created);
+            writeDate(seg.modified);
+            writeString(seg.createdBy);
+            writeString(seg.accessionNumber);
+            writeString(seg.codeNumber);
+            writeString(seg.organism);
+            writeString(seg.sequenceClass);
+            writeString(seg.transformedInto);
+            writeString(seg.customMapLabel);
+            writeBool(seg.useCustomMapLabel);
+            writeString(seg.comments);
+            out.writeInt(seg.references.size());
+            for (Reference ref : seg.references)
+            {
+                writeString(ref.title);
+                writeString(ref.pubMedID);
+                writeString(ref.journal);
+                writeString(ref.authors);
+            }
+        }
+
+        void writeFeatures(FeaturesSegment seg) throws IOException
+        {
+            out.writeByte(FEATURES);
+            out.writeInt(seg.features.size());
+            for (Feature f : seg.features)
+            {
+                writeString(f.name);
+                writeString(f.type);
+                out.writeByte(f.directionality == null ? -1 : f.directionality.ordinal());
+                writeString(f.geneticCode);
+                out.writeInt(f.flags);
+                out.writeDouble(f.translationMW);
+                out.writeInt(f.cleavageArrows.length);
+                for (int arrow : f.cleavageArrows)
+                    out.writeInt(arrow);
+                out.writeInt(f.readingFrame);
+                writeAttributes(f.otherAttributes);
+
+                out.writeInt(f.segments.size());
+                for (Seg s : f.segments)
+                {
+                    writeString(s.name);
+                    writeString(s.rawRange);
+                    out.writeInt(s.start);
+                    out.writeInt(s.end);
+                    writeString(s.color);
+                    writeString(s.type);
+                    out.writeByte(s.translated);
+                    out.writeInt(s.translationNumberingStartsFrom);
+                    writeAttributes(s.otherAttributes);
+                }
+
+                Qualifiers qualifiers = f.qualifiers;
+                out.writeInt(qualifiers.size());
+                for (int q = 0; q < qualifiers.size(); q++)
+                {
+                    writeString(qualifiers.key(q));
+                    switch (qualifiers.kind(q))
+                    {
+                        case NONE:
+                            out.writeByte(NULL_VALUE);
+                            break;
+                        case INT:
+                            out.writeByte(INT_VALUE);
+                            out.writeInt(qualifiers.intValue(q));
+                            break;
+                        case BOOL:
+                            out.writeByte(BOOL_VALUE);
+                            out.writeBoolean(qualifiers.intValue(q) != 0);
+                            break;
+                        case TEXT:
+                            out.writeByte(TEXT_VALUE);
+                            writeString(qualifiers.text(q));
+                            break;
+                        case PREDEF:
+                            out.writeByte(PREDEF_VALUE);
+                            writeString(qualifiers.text(q));
+                            break;
+                        case OTHER:
+                            out.writeByte(OTHER_VALUE);
+                            writeString(qualifiers.valueType(q));
+                            writeString(qualifiers.text(q));
+                            break;
+                    }
+                }
+            }
+        }
+
+        void writeString(String s) throws IOException
+        {
+            if (s == null) {
+                out.writeInt(-1);
+                return;
+            }
+            Integer id = stringIds.get(s);
+            if (id == null) {
+                id = strings.size();
+                stringIds.put(s, id);
+                strings.add(s);
+            }
+            out.writeInt(id);
+        }
+
+        void writeBool(Boolean b) throws IOException
+        {
+            out.writeByte(b == null ? -1 : b ? 1 : 0);
+        }
+
+        void writeDate(Date d) throws IOException
+        {
+            out.writeBoolean(d != null);
+            if (d != null)
+                out.writeLong(d.getTime());
+        }
+    }
+
+    /** Decodes an entry body from the mapped file. */
+    private static final class Reader
+    {
+        final ByteBuffer in;
+        final SnapGeneParser parser;
+        final String[] strings;
+
+        Reader(ByteBuffer in, SnapGeneParser parser)
+        {
+            this.in = in;
+            this.parser = parser;
+            int count = in.getInt();
+            if (count < 0)
+                throw new IllegalArgumentException("Negative string count");
+            this.strings = new String[count];
+            for (int i = 0; i < count; i++)
+            {
+                int len = in.getInt();
+                if (len < 0 || len > in.remaining())
+                    throw new IllegalArgumentException("Invalid string length");
+                strings[i] = new String(bytes(in, in.position(), len), StandardCharsets.UTF_8);
+                in.position(in.position() + len);
+            }
+        }
+
+        SnapGeneDoc readDoc()
+        {
+            SnapGeneDoc doc = new SnapGeneDoc();
+            int count = in.getInt();
+            for (int i = 0; i < count; i++)
+            {
+                Segment seg;
+                switch (in.get())
+                {
+                    case RAW:         seg = readRaw(); break;
+                    case PAYLOAD:     seg = readPayload(); break;
+                    case DESCRIPTION: seg = doc.desc = readDescription(); break;
+                    case DNA:         seg = doc.dna = readDna(); break;
+                    case NOTES:       seg = doc.notes = readNotes(); break;
+                    case FEATURES:    seg = doc.features = readFeatures(); break;
+                    default:
+                        throw new IllegalArgumentException("Unknown segment encoding");
+                }
+                doc.segments.add(seg);
+            }
+            if (in.get() != 0)
+                doc.diagnostics = readDiagnostics();
+            if (doc.desc == null)
+                throw new IllegalArgumentException("SnapGene description segment not found");
+            return doc;
+        }
+
+        Diagnostics readDiagnostics()
+        {
+            Diagnostics ret = new Diagnostics(in.getInt());
+            int count = readCount();
+            for (int i = 0; i < count; i++)
+                ret.add(in.get(), in.getLong(), readString(), readString(), readString());
+            ret.addDropped(in.getInt());
+            return ret;
+        }
+
+        String[] readAttributes()
+        {
+            int count = in.getInt();
+            if (count == -1)
+                return null;
+            if (count < 0 || count > in.remaining())
+                throw new IllegalArgumentException("Invalid count");
+            String[] ret = new String[count];
+            for (int i = 0; i < count; i++)
+                ret[i] = readString();
+            return ret;
+        }
+
+        UnsupportedSegment readRaw()
+        {
+            int type = in.get();
+            return UnsupportedSegment.parse(type, readData());
+        }
+
+        // the entry was written with the same parser configuration, so the parser still decodes the type
+        Segment readPayload()
+        {
+            int type = in.get();
+            return parser.decode(type, readData());
+        }
+
+        ByteBuffer readData()
+        {
+            int len = in.getInt();
+            if (len < 0 || len > in.remaining())
+                throw new IllegalArgumentException("Invalid segment length");
+            ByteBuffer data = in.slice(in.position(), len);
+            in.position(in.position() + len);
+            return data;
+        }
+
+        DescriptionSegment readDescription()
+        {
+            return new DescriptionSegment(readString(), in.getShort(), in.getShort());
+        }
+
+        DNASegment readDna()
+        {
+            String topology = readString();
+            String strandedness = readString();
+            byte flags = in.get();
+            PackedSequence sequence = PackedSequence.readFrom(in);
+            return new DNASegment(topology, strandedness, (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0, sequence);
+        }
+
+        NotesSegment readNotes()
+        {
+            String uuid = readString();
+            String type = readString();
+            Boolean confirmedExperimentally = readBool();
+            String description = readString();
+            Date created = readDate();
+            Date modified = readDate();
+            String createdBy = readString();
+            String accessionNumber = readString();
+            String codeNumber = readString();
+            String organism = readString();
+            String sequenceClass = readString();
+            String transformedInto = readString();
+            String customMapLabel = readString();
+            Boolean useCustomMapLabel = readBool();
+            String comments = readString();
+
+            int count = readCount();
+            List<Reference> references = new ArrayList<>(Math.max(4, count));
+            for (int i = 0; i < count; i++)
+                references.add(new Reference(readString(), readString(), readString(), readString()));
+
+            return new NotesSegment(uuid, type, confirmedExperimentally, description, created, modified, createdBy,
+                    accessionNumber, codeNumber, organism, sequenceClass, transformedInto, customMapLabel,
+                    useCustomMapLabel, comments, references);
+        }
+
+        FeaturesSegment readFeatures()
+        {
+            int count = readCount();
+            List<Feature> features = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                String name = readString();
+                String type = readString();
+                byte dir = in.get();
+                Directionality directionality = dir < 0 ? null : Directionality.fromInt((int) dir);
+                String geneticCode = readString();
+                int flags = in.getInt();
+                double translationMW = in.getDouble();
+
+                int arrowCount = readCount();
+                int[] cleavageArrows = new int[arrowCount];
+                for (int a = 0; a < arrowCount; a++)
+                    cleavageArrows[a] = in.getInt();
+                int readingFrame = in.getInt();
+                String[] otherAttributes = readAttributes();
+
+                int segCount = readCount();
+                List<Seg> segments = new ArrayList<>(segCount);
+                for (int s = 0; s < segCount; s++)
+                    segments.add(new Seg(readString(), readString(), in.getInt(), in.getInt(), readString(), readString(), in.get(), in.getInt(),
+                            readAttributes()));
+
+                int qualifierCount = readCount();
+                Qualifiers.Builder qualifiers = Qualifiers.builder();
+                for (int q = 0; q < qualifierCount; q++)
+                {
+                    String key = readString();
+                    switch (in.get())
+                    {
+                        case NULL_VALUE:   qualifiers.add(key, Qualifiers.Kind.NONE, 0, null); break;
+                        case INT_VALUE:    qualifiers.add(key, Qualifiers.Kind.INT, in.getInt(), null); break;
+                        case BOOL_VALUE:   qualifiers.add(key, Qualifiers.Kind.BOOL, in.get() != 0 ? 1 : 0, null); break;
+                        case TEXT_VALUE:   qualifiers.add(key, Qualifiers.Kind.TEXT, 0, readString()); break;
+                        case PREDEF_VALUE: qualifiers.add(key, Qualifiers.Kind.PREDEF, 0, readString()); break;
+                        case OTHER_VALUE:  qualifiers.addOther(key, readString(), readString()); break;
+                        default:
+                            throw new IllegalArgumentException("Unknown qualifier value tag");
+                    }
+                }
+
+                features.add(new Feature(name, directionality, geneticCode, flags, translationMW, type,
+                        cleavageArrows, readingFrame, segments, qualifiers.build(), otherAttributes));
+            }
+            return new FeaturesSegment(features);
+        }
+
+        String readString()
+        {
+            int id = in.getInt();
+            return id == -1 ? null : strings[id];
+        }
+
+        Boolean readBool()
+        {
+            byte b = in.get();
+            return b < 0 ? null : b != 0;
+        }
+
+        Date readDate()
+        {
+            return in.get() != 0 ? new Date(in.getLong()) : null;
+        }
+
+        int readCount()
+        {
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining())
+                throw new IllegalArgumentException("Invalid count");
+            return count;
+        }
+    }
+}
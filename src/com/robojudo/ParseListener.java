@@ -0,0 +1,22 @@
+package com.robojudo;
+
+/**
+ * Receives timings for each segment a {@link SnapGeneParser} decodes; see
+ * {@link SnapGeneParser.Builder#listener}. Called on the decoding thread, so implementations shared
+ * by several threads must be thread-safe. {@link ParseStats} aggregates the calls per segment type.
+ *
+ * Without a listener the parser measures nothing.
+ */
+@FunctionalInterface
+public interface ParseListener
+{
+    /**
+     * Called after a segment has been decoded, including segments kept as {@link SnapGene.UnsupportedSegment}.
+     * Lazily parsed documents report each segment when it is first accessed.
+     *
+     * @param length payload bytes, not counting the 5-byte header
+     * @param nanos wall-clock decode time
+     * @param allocatedBytes bytes allocated by the thread while decoding, or -1 if the JVM cannot tell
+     */
+    void segmentDecoded(int type, int length, long nanos, long allocatedBytes);
+}
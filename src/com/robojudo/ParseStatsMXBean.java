@@ -0,0 +1,18 @@
+package com.robojudo;
+
+import java.util.List;
+
+/** Management interface of {@link ParseStats}. */
+public interface ParseStatsMXBean
+{
+    long getSegmentCount();
+
+    long getBytes();
+
+    long getDecodeNanos();
+
+    /** One entry per segment type seen, in type order. */
+    List<ParseStats.SegmentStats> getSegmentTypes();
+
+    void reset();
+}
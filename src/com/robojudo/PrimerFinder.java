@@ -0,0 +1,478 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.PrimersSegment.Primer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds where primers bind a template, on either strand, allowing up to k mismatches or k edits.
+ *
+ * Each primer is compiled once into match masks, one bit per primer base, and a template is scanned one
+ * base at a time with bit-parallel updates: Wu-Manber's shift-and with a bit vector per mismatch count,
+ * or Myers' edit distance vectors (in Hyyro's formulation, 64 primer bases per word) when insertions and
+ * deletions are allowed. A primer matches on the bottom strand where its reverse complement matches the
+ * top strand. Primer bases may be IUPAC codes and match any template base they stand for; ambiguous
+ * template bases only match primer codes that cover them.
+ *
+ * On circular templates the scan starts before the origin, so sites across it are found once. Scan state
+ * is kept per thread and hits go to a {@link Sink}, so searching a library against many templates
+ * allocates nothing per base or per hit.
+ */
+public final class PrimerFinder
+{
+    // IUPAC code to a bit set of A, C, G, T
+    private static final byte[] BASES = new byte[128];
+    static {
+        String codes = "ACGTURYSWKMBDHVN";
+        int[] sets = { 1, 2, 4, 8, 8, 5, 10, 6, 9, 12, 3, 14, 13, 11, 7, 15 };
+        for (int i = 0; i < codes.length(); i++) {
+            BASES[codes.charAt(i)] = (byte) sets[i];
+            BASES[Character.toLowerCase(codes.charAt(i))] = (byte) sets[i];
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final int maxDifferences;
+    private final boolean edits;
+
+    private PrimerFinder(Builder builder) {
+        this.maxDifferences = builder.maxDifferences;
+        this.edits = builder.edits;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private int maxDifferences;
+        private boolean edits;
+
+        Builder()
+        {
+        }
+
+        /** Allows up to k substituted bases; the site is as long as the primer. This is the default, with k = 0. */
+        public Builder mismatches(int k)
+        {
+            if (k < 0)
+                throw new IllegalArgumentException("Mismatches must not be negative");
+            this.maxDifferences = k;
+            this.edits = false;
+            return this;
+        }
+
+        /** Allows up to k substituted, inserted or deleted bases. */
+        public Builder edits(int k)
+        {
+            if (k < 0)
+                throw new IllegalArgumentException("Edits must not be negative");
+            this.maxDifferences = k;
+            this.edits = true;
+            return this;
+        }
+
+        public PrimerFinder build()
+        {
+            return new PrimerFinder(this);
+        }
+    }
+
+    /** Receives binding sites as they are found. */
+    @FunctionalInterface
+    public interface Sink
+    {
+        /**
+         * A site of the primer with the given index. start is 0-based and the site may run past the origin of a
+         * circular template; reverse is true for sites on the bottom strand.
+         */
+        void hit(int primer, int start, int length, boolean reverse, int differences);
+    }
+
+    public static final class Hit
+    {
+        public final int primer;
+        public final int start;
+        public final int length;
+        public final boolean reverse;
+        public final int differences;
+
+        Hit(int primer, int start, int length, boolean reverse, int differences) {
+            this.primer = primer;
+            this.start = start;
+            this.length = length;
+            this.reverse = reverse;
+            this.differences = differences;
+        }
+
+        /** 1-based range as SnapGene writes it; the end is below the start for sites across the origin. */
+        public String location(int templateLength)
+        {
+            return (start + 1) + ".." + ((start + length - 1) % templateLength + 1);
+        }
+
+        @Override
+        public String toString()
+        {
+            return "primer " + primer + " at " + start + "+" + length + (reverse ? " reverse" : " forward") + " (" + differences + ")";
+        }
+    }
+
+    /** A primer compiled for searching. Immutable, so one library can be shared by all threads. */
+    public static final class Pattern
+    {
+        final int length;
+        final int words;
+        // [template base set * words + word]: bit i is set where primer base i matches
+        final long[] forward;
+        final long[] reverse;
+        // the same for the primer read backwards, to find where an edit-distance site starts
+        final long[] forwardBackwards;
+        final long[] reverseBackwards;
+
+        Pattern(CharSequence primer)
+        {
+            length = primer.length();
+            if (length == 0)
+                throw new IllegalArgumentException("Empty primer");
+            words = (length + 63) >>> 6;
+            byte[] bases = new byte[length];
+            byte[] complement = new byte[length];
+            for (int i = 0; i < length; i++)
+            {
+                char c = primer.charAt(i);
+                if (c >= 128 || BASES[c] == 0)
+                    throw new IllegalArgumentException("Invalid base '" + c + "' in primer " + primer);
+                bases[i] = BASES[c];
+                complement[length - 1 - i] = BASES[PackedSequence.complement((byte) c)];
+            }
+            forward = masks(bases, false);
+            reverse = masks(complement, false);
+            forwardBackwards = masks(bases, true);
+            reverseBackwards = masks(complement, true);
+        }
+
+        private long[] masks(byte[] bases, boolean backwards)
+        {
+            long[] peq = new long[16 * words];
+            for (int t = 1; t < 16; t++)
+            {
+                for (int i = 0; i < length; i++)
+                {
+                    int b = bases[backwards ? length - 1 - i : i];
+                    // the template base set must lie within the primer's
+                    if ((t & b) == t)
+                        peq[t * words + (i >>> 6)] |= 1L << i;
+                }
+            }
+            return peq;
+        }
+
+        public int length()
+        {
+            return length;
+        }
+    }
+
+    public static Pattern compile(CharSequence primer)
+    {
+        return new Pattern(primer);
+    }
+
+    /**
+     * Compiles the primers of a library, in order, so hit indexes refer to the list.
+     *
+     * @throws IllegalArgumentException if a primer has no sequence
+     */
+    public static List<Pattern> compile(List<Primer> primers)
+    {
+        List<Pattern> ret = new ArrayList<>(primers.size());
+        for (int i = 0; i < primers.size(); i++)
+        {
+            Primer primer = primers.get(i);
+            if (primer.sequence == null)
+                throw new IllegalArgumentException("Primer " + i + " (" + primer.name + ") has no sequence");
+            ret.add(compile(primer.sequence));
+        }
+        return ret;
+    }
+
+    public int maxDifferences()
+    {
+        return maxDifferences;
+    }
+
+    public boolean allowsEdits()
+    {
+        return edits;
+    }
+
+    /** All sites of one primer, in the order they were found. */
+    public List<Hit> find(CharSequence primer, DNASegment template)
+    {
+        List<Hit> hits = new ArrayList<>();
+        search(List.of(compile(primer)), template,
+                (p, start, length, reverse, differences) -> hits.add(new Hit(p, start, length, reverse, differences)));
+        return hits;
+    }
+
+    /** Searches a template for every primer of the library. The bases are decoded into a per-thread buffer. */
+    public void search(List<Pattern> library, DNASegment template, Sink sink)
+    {
+        PackedSequence seq = template.sequence;
+        Scratch s = scratch.get();
+        byte[] bases = s.template(seq.length());
+        seq.getBytes(0, seq.length(), bases, 0);
+        for (int i = 0; i < library.size(); i++)
+            search(library.get(i), i, bases, 0, seq.length(), "circular".equals(template.topology), sink);
+    }
+
+    /** Searches ASCII bases t[from, to) for both strands of one primer, reporting hits under the given index. */
+    public void search(Pattern p, int index, byte[] t, int from, int to, boolean circular, Sink sink)
+    {
+        if (to - from <= 0)
+            return;
+        Scratch s = scratch.get();
+        if (edits) {
+            scanEdits(s, p, p.forward, p.forwardBackwards, index, false, t, from, to, circular, sink);
+            scanEdits(s, p, p.reverse, p.reverseBackwards, index, true, t, from, to, circular, sink);
+        }
+        else {
+            scanMismatches(s, p, p.forward, index, false, t, from, to, circular, sink);
+            scanMismatches(s, p, p.reverse, index, true, t, from, to, circular, sink);
+        }
+    }
+
+    // base of the template at offset i from its start, where i may be negative or past the end on circular ones
+    private static int set(byte[] t, int from, int n, int i)
+    {
+        if (i < 0)
+            i += n;
+        else if (i >= n)
+            i -= n;
+        byte b = t[from + i];
+        return b >= 0 ? BASES[b] : 0;
+    }
+
+    private void scanMismatches(Scratch s, Pattern p, long[] peq, int index, boolean reverse,
+                                byte[] t, int from, int to, boolean circular, Sink sink)
+    {
+        int n = to - from, m = p.length, w = p.words, k = maxDifferences;
+        if (m > n)
+            return;
+        // r[d * w + word], bit i: primer bases 0..i match the bases ending here with at most d mismatches
+        long[] r = s.vectors((k + 1) * w);
+        long high = 1L << ((m - 1) & 63);
+        int last = w - 1;
+
+        // on circular templates the first m - 1 bases come from before the origin, so sites across it end at 0..m-2
+        int firstEnd = circular ? 0 : m - 1;
+        for (int j = firstEnd - (m - 1); j < n; j++)
+        {
+            int eq = set(t, from, n, j) * w;
+            if (w == 1) {
+                long e = peq[eq];
+                for (int d = k; d > 0; d--)
+                    r[d] = (r[d] << 1 | 1) & e | (r[d - 1] << 1 | 1);
+                r[0] = (r[0] << 1 | 1) & e;
+            }
+            else {
+                for (int d = k; d >= 0; d--)
+                {
+                    int o = d * w;
+                    for (int b = last; b >= 0; b--)
+                    {
+                        long shifted = r[o + b] << 1 | (b == 0 ? 1 : r[o + b - 1] >>> 63);
+                        long v = shifted & peq[eq + b];
+                        if (d > 0)
+                            v |= r[o - w + b] << 1 | (b == 0 ? 1 : r[o - w + b - 1] >>> 63);
+                        r[o + b] = v;
+                    }
+                }
+            }
+            // the vector for k mismatches holds all the others
+            if (j < firstEnd || (r[k * w + last] & high) == 0)
+                continue;
+            for (int d = 0; d <= k; d++)
+            {
+                if ((r[d * w + last] & high) != 0) {
+                    int start = j - m + 1;
+                    sink.hit(index, start < 0 ? start + n : start, m, reverse, d);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void scanEdits(Scratch s, Pattern p, long[] peq, long[] backwards, int index, boolean reverse,
+                           byte[] t, int from, int to, boolean circular, Sink sink)
+    {
+        int n = to - from, m = p.length, w = p.words, k = maxDifferences;
+        if (k >= m)
+            throw new IllegalArgumentException("Edits must be fewer than the " + m + " bases of the primer");
+        // a site with at most k edits spans at most m + k bases, which is as much context as a score needs
+        // before the origin; past the end the scan goes on for as long as the run at the origin does
+        int context = circular ? Math.min(n, m + k) : 0;
+        long[] pv = s.vectors(2 * w);
+        for (int b = 0; b < w; b++) {
+            pv[b] = -1L;
+            pv[w + b] = 0;
+        }
+        // bit of the last primer base in the last word
+        int top = (m - 1) & 63;
+
+        // sites are runs of ends within k edits; each is reported at its lowest score. On circular templates a
+        // run under way at the origin is left to the end of the scan, which follows it past the origin.
+        int score = m, best = -1, bestEnd = 0, runStart = 0;
+        long pv1 = -1L, mv1 = 0;
+        int end = circular ? 2 * n : n;
+        for (int j = -context; j < end; j++)
+        {
+            int eq = set(t, from, n, j) * w;
+            if (w == 1) {
+                // advance() with the vectors in registers, for primers of up to 64 bases
+                long e = peq[eq];
+                long xv = e | mv1;
+                long xh = (((e & pv1) + pv1) ^ pv1) | e;
+                long ph = mv1 | ~(xh | pv1);
+                long mh = pv1 & xh;
+                score += (int) (ph >>> top & 1) - (int) (mh >>> top & 1);
+                ph <<= 1;
+                mh <<= 1;
+                pv1 = mh | ~(xv | ph);
+                mv1 = ph & xv;
+            }
+            else {
+                int h = 0;
+                for (int b = 0; b < w; b++)
+                    h = advance(pv, w, b, peq[eq + b], h, b == w - 1 ? top : 63);
+                score += h;
+            }
+
+            if (score <= k) {
+                if (best < 0)
+                    runStart = j;
+                if (best < 0 || score < best) {
+                    best = score;
+                    bestEnd = j;
+                }
+            }
+            else if (best >= 0) {
+                if (runStart >= 0)
+                    site(s, p, backwards, index, reverse, t, from, n, circular, bestEnd, sink);
+                best = -1;
+                if (j >= n)
+                    return;
+            }
+            else if (j >= n) {
+                return;
+            }
+        }
+        // still under way at the end, possibly all around a circular template
+        if (best >= 0)
+            site(s, p, backwards, index, reverse, t, from, n, circular, bestEnd, sink);
+    }
+
+    /**
+     * One column of Myers' algorithm for one word of the primer: updates the vertical deltas of rows
+     * 64b..64b+63 and returns the horizontal delta at the bottom row (bit top), given the one at the top (hin).
+     */
+    private static int advance(long[] pvmv, int w, int b, long eq, int hin, int top)
+    {
+        long pv = pvmv[b], mv = pvmv[w + b];
+        long xv = eq | mv;
+        if (hin < 0)
+            eq |= 1;
+        long xh = (((eq & pv) + pv) ^ pv) | eq;
+        long ph = mv | ~(xh | pv);
+        long mh = pv & xh;
+        // at most one of the two is set; taking the difference avoids a hard to predict branch
+        int hout = (int) (ph >>> top & 1) - (int) (mh >>> top & 1);
+        ph <<= 1;
+        mh <<= 1;
+        if (hin < 0)
+            mh |= 1;
+        else if (hin > 0)
+            ph |= 1;
+        pvmv[b] = mh | ~(xv | ph);
+        pvmv[w + b] = ph & xv;
+        return hout;
+    }
+
+    /**
+     * Reports a site ending at end (inclusive) after finding where it starts: the primer read backwards is
+     * aligned to the template read backwards from the end, and the site is the length with the lowest
+     * distance, the one nearest the primer's length among equals.
+     */
+    private void site(Scratch s, Pattern p, long[] backwards, int index, boolean reverse,
+                      byte[] t, int from, int n, boolean circular, int end, Sink sink)
+    {
+        int m = p.length, w = p.words;
+        if (end < 0)
+            end += n;
+        else if (end >= n)
+            end -= n;
+        long[] pv = s.backwardVectors(2 * w);
+        for (int b = 0; b < w; b++) {
+            pv[b] = -1L;
+            pv[w + b] = 0;
+        }
+        int top = (m - 1) & 63;
+        int maxLength = Math.min(m + maxDifferences, circular ? n : end + 1);
+        int d = m, bestLength = 0, bestScore = Integer.MAX_VALUE;
+        for (int l = 1; l <= maxLength; l++)
+        {
+            int eq = set(t, from, n, end - l + 1) * w;
+            // anchored at the end: the top row grows by one with every template base
+            int h = 1;
+            for (int b = 0; b < w; b++)
+                h = advance(pv, w, b, backwards[eq + b], h, b == w - 1 ? top : 63);
+            d += h;
+            if (d < bestScore || d == bestScore && Math.abs(l - m) < Math.abs(bestLength - m)) {
+                bestScore = d;
+                bestLength = l;
+            }
+        }
+        // on a circular template shorter than the site the best alignment may need to go around it more than once
+        if (bestScore > maxDifferences)
+            return;
+        int start = end - bestLength + 1;
+        sink.hit(index, start < 0 ? start + n : start, bestLength, reverse, bestScore);
+    }
+
+    /** Per-thread scan state, grown as needed. */
+    private static final class Scratch
+    {
+        long[] vectors = new long[16];
+        long[] backwardVectors = new long[16];
+        byte[] template = new byte[0];
+
+        long[] vectors(int size)
+        {
+            if (vectors.length < size)
+                vectors = new long[Math.max(size, 2 * vectors.length)];
+            Arrays.fill(vectors, 0, size, 0);
+            return vectors;
+        }
+
+        long[] backwardVectors(int size)
+        {
+            if (backwardVectors.length < size)
+                backwardVectors = new long[Math.max(size, 2 * backwardVectors.length)];
+            return backwardVectors;
+        }
+
+        byte[] template(int size)
+        {
+            if (template.length < size)
+                template = new byte[Math.max(size, 2 * template.length)];
+            return template;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.robojudo;
+
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * The qualifiers of a feature, held in parallel arrays: interned keys, a value kind per entry,
+ * int and boolean values unboxed, and text values. Immutable.
+ *
+ * As a list it reads like the former {@code List<Map.Entry<String, ?>>}, with entries created on
+ * access; the typed accessors read the arrays directly.
+ */
+public final class Qualifiers extends AbstractList<Map.Entry<String, ?>> implements RandomAccess
+{
+    public enum Kind
+    {
+        /** A 'V' element without a value */
+        NONE,
+        INT,
+        BOOL,
+        TEXT,
+        /** One of SnapGene's predefined values; interned like the keys */
+        PREDEF,
+        /** A value type this parser does not know, kept as text by lenient parsing; see {@link #valueType} */
+        OTHER
+    }
+
+    private static final Kind[] KINDS = Kind.values();
+
+    static final Qualifiers EMPTY = new Qualifiers(new String[0], new byte[0], new int[0], new String[0], null);
+
+    private final String[] keys;
+    private final byte[] kinds;
+    // INT values, and 0 or 1 for BOOL
+    private final int[] ints;
+    // TEXT, PREDEF and OTHER values
+    private final String[] texts;
+    // value type names of OTHER entries; null if there are none
+    private final String[] otherTypes;
+
+    private Qualifiers(String[] keys, byte[] kinds, int[] ints, String[] texts, String[] otherTypes)
+    {
+        this.keys = keys;
+        this.kinds = kinds;
+        this.ints = ints;
+        this.texts = texts;
+        this.otherTypes = otherTypes;
+    }
+
+    /** Converts entries with Integer, Boolean, String or null values. */
+    public static Qualifiers of(List<? extends Map.Entry<String, ?>> entries)
+    {
+        if (entries instanceof Qualifiers)
+            return (Qualifiers) entries;
+
+        Builder b = builder();
+        for (Map.Entry<String, ?> e : entries)
+        {
+            Object v = e.getValue();
+            if (v == null)
+                b.add(e.getKey(), Kind.NONE, 0, null);
+            else if (v instanceof Integer)
+                b.add(e.getKey(), Kind.INT, (Integer) v, null);
+            else if (v instanceof Boolean)
+                b.add(e.getKey(), Kind.BOOL, (Boolean) v ? 1 : 0, null);
+            else
+                b.add(e.getKey(), Kind.TEXT, 0, v.toString());
+        }
+        return b.build();
+    }
+
+    @Override
+    public int size()
+    {
+        return keys.length;
+    }
+
+    @Override
+    public Map.Entry<String, ?> get(int i)
+    {
+        return new AbstractMap.SimpleImmutableEntry<>(keys[i], value(i));
+    }
+
+    public String key(int i)
+    {
+        return keys[i];
+    }
+
+    public Kind kind(int i)
+    {
+        return KINDS[kinds[i]];
+    }
+
+    /** The value of an INT entry, or 1/0 for a BOOL entry. */
+    public int intValue(int i)
+    {
+        return ints[i];
+    }
+
+    /** The value of a TEXT, PREDEF or OTHER entry, else null. */
+    public String text(int i)
+    {
+        return texts[i];
+    }
+
+    /** The value as Integer, Boolean, String or null. */
+    public Object value(int i)
+    {
+        switch (KINDS[kinds[i]])
+        {
+            case INT:  return ints[i];
+            case BOOL: return ints[i] != 0;
+            case TEXT:
+            case PREDEF:
+            case OTHER: return texts[i];
+            default:   return null;
+        }
+    }
+
+    /** Name of the 'V' attribute the value was read from: "int", "bool", "text", "predef" or an unknown one; null for NONE. */
+    public String valueType(int i)
+    {
+        switch (KINDS[kinds[i]])
+        {
+            case INT:    return "int";
+            case BOOL:   return "bool";
+            case TEXT:   return "text";
+            case PREDEF: return "predef";
+            case OTHER:  return otherTypes != null ? otherTypes[i] : null;
+            default:     return null;
+        }
+    }
+
+    /** Position of the first entry with this key, or -1. */
+    public int find(String key)
+    {
+        for (int i = 0; i < keys.length; i++)
+            if (keys[i].equals(key))
+                return i;
+        return -1;
+    }
+
+    /** Value of the first entry with this key; null if there is none or it has no value. */
+    public Object value(String key)
+    {
+        int i = find(key);
+        return i == -1 ? null : value(i);
+    }
+
+    /** Approximate heap footprint of the arrays, not counting shared interned strings. */
+    long storageBytes()
+    {
+        long ret = 16L * 4 + 4L * keys.length + kinds.length + 4L * ints.length + 4L * texts.length;
+        for (int i = 0; i < texts.length; i++)
+            if (kinds[i] == Kind.TEXT.ordinal() && texts[i] != null)
+                ret += 40 + texts[i].length();
+        return ret;
+    }
+
+    private static final ThreadLocal<Builder> builders = ThreadLocal.withInitial(Builder::new);
+
+    /** The calling thread's builder, emptied. Only one Qualifiers can be built at a time per thread. */
+    static Builder builder()
+    {
+        Builder b = builders.get();
+        b.size = 0;
+        b.otherTypes = null;
+        return b;
+    }
+
+    /** Growable arrays reused across features; {@link #build} copies them to exact size. */
+    static final class Builder
+    {
+        private String[] keys = new String[16];
+        private byte[] kinds = new byte[16];
+        private int[] ints = new int[16];
+        private String[] texts = new String[16];
+        // allocated on the first OTHER entry
+        private String[] otherTypes;
+        private int size;
+
+        void add(String key, Kind kind, int intValue, String text)
+        {
+            if (key == null)
+                throw new IllegalArgumentException("Qualifier without a name");
+            if (size == keys.length)
+            {
+                keys = Arrays.copyOf(keys, 2 * size);
+                kinds = Arrays.copyOf(kinds, 2 * size);
+                ints = Arrays.copyOf(ints, 2 * size);
+                texts = Arrays.copyOf(texts, 2 * size);
+                if (otherTypes != null)
+                    otherTypes = Arrays.copyOf(otherTypes, 2 * size);
+            }
+            keys[size] = Symbols.intern(key);
+            kinds[size] = (byte) kind.ordinal();
+            ints[size] = intValue;
+            texts[size] = kind == Kind.PREDEF ? Symbols.intern(text) : text;
+            if (otherTypes != null)
+                otherTypes[size] = null;
+            size++;
+        }
+
+        /** Adds a value of an unknown type, keeping the attribute name and its text. */
+        void addOther(String key, String valueType, String text)
+        {
+            add(key, Kind.OTHER, 0, text);
+            if (otherTypes == null)
+                otherTypes = new String[keys.length];
+            otherTypes[size - 1] = Symbols.intern(valueType);
+        }
+
+        Qualifiers build()
+        {
+            if (size == 0)
+                return EMPTY;
+            Qualifiers ret = new Qualifiers(Arrays.copyOf(keys, size), Arrays.copyOf(kinds, size),
+                    Arrays.copyOf(ints, size), Arrays.copyOf(texts, size), otherTypes != null ? Arrays.copyOf(otherTypes, size) : null);
+            Arrays.fill(keys, 0, size, null);
+            Arrays.fill(texts, 0, size, null);
+            otherTypes = null;
+            size = 0;
+            return ret;
+        }
+    }
+}
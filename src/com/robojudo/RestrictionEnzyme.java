@@ -0,0 +1,197 @@
+package com.robojudo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * A restriction enzyme: an IUPAC recognition site, where it cuts, and which host methylation blocks it.
+ *
+ * Cut positions count bases from the 5' end of the site on the top strand: {@link #cut} is where the
+ * top strand is cut and {@link #complementCut} where the bottom strand is cut. Both may lie outside
+ * the site for enzymes that cut at a distance.
+ */
+public final class RestrictionEnzyme
+{
+    // IUPAC code to a bit mask of the bases it matches (A=1, C=2, G=4, T=8)
+    private static final byte[] MASKS = new byte[128];
+    static {
+        String codes = "ACGTRYSWKMBDHVN";
+        int[] masks = { 1, 2, 4, 8, 1 | 4, 2 | 8, 2 | 4, 1 | 8, 4 | 8, 1 | 2, 2 | 4 | 8, 1 | 4 | 8, 1 | 2 | 8, 1 | 2 | 4, 15 };
+        for (int i = 0; i < codes.length(); i++)
+            MASKS[codes.charAt(i)] = (byte) masks[i];
+        MASKS['U'] = 8;
+    }
+
+    public final String name;
+    // upper-case IUPAC
+    public final String site;
+    public final int cut;
+    public final int complementCut;
+    public final boolean damSensitive;
+    public final boolean dcmSensitive;
+    public final boolean ecoKISensitive;
+
+    public RestrictionEnzyme(String name, String site, int cut, int complementCut,
+                             boolean damSensitive, boolean dcmSensitive, boolean ecoKISensitive) {
+        this.name = Objects.requireNonNull(name, "name");
+        this.site = site.toUpperCase(Locale.ROOT);
+        if (this.site.isEmpty())
+            throw new IllegalArgumentException("Empty recognition site for " + name);
+        for (int i = 0; i < this.site.length(); i++)
+            if (mask(this.site.charAt(i)) == 0)
+                throw new IllegalArgumentException("Invalid base '" + this.site.charAt(i) + "' in recognition site of " + name);
+        this.cut = cut;
+        this.complementCut = complementCut;
+        this.damSensitive = damSensitive;
+        this.dcmSensitive = dcmSensitive;
+        this.ecoKISensitive = ecoKISensitive;
+    }
+
+    /**
+     * Parses one enzyme in REBASE-style notation: a name, a site with either a caret marking the cut
+     * ("G^AATTC") or cut offsets past its 3' end ("GGTCTC(1/5)"), and any of "dam", "dcm" or "ecoki"
+     * for the methylation types that block it. For example "XbaI T^CTAGA dam".
+     */
+    public static RestrictionEnzyme parse(String line)
+    {
+        String[] parts = line.trim().split("\\s+");
+        if (parts.length < 2)
+            throw new IllegalArgumentException("Expected enzyme name and site: " + line);
+
+        String notation = parts[1];
+        String site;
+        int cut, complementCut;
+        int paren = notation.indexOf('(');
+        if (paren != -1)
+        {
+            if (!notation.endsWith(")"))
+                throw new IllegalArgumentException("Expected cut offsets in parentheses: " + line);
+            site = notation.substring(0, paren);
+            String[] offsets = notation.substring(paren + 1, notation.length() - 1).split("/");
+            if (offsets.length != 2)
+                throw new IllegalArgumentException("Expected two cut offsets: " + line);
+            try {
+                cut = site.length() + Integer.parseInt(offsets[0]);
+                complementCut = site.length() + Integer.parseInt(offsets[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cut offsets: " + line, e);
+            }
+        }
+        else
+        {
+            int caret = notation.indexOf('^');
+            if (caret == -1)
+                throw new IllegalArgumentException("Expected '^' or cut offsets in site: " + line);
+            site = notation.substring(0, caret) + notation.substring(caret + 1);
+            cut = caret;
+            complementCut = site.length() - caret;
+        }
+
+        boolean dam = false, dcm = false, ecoKI = false;
+        for (int i = 2; i < parts.length; i++)
+        {
+            switch (parts[i].toLowerCase(Locale.ROOT))
+            {
+                case "dam":   dam = true; break;
+                case "dcm":   dcm = true; break;
+                case "ecoki": ecoKI = true; break;
+                default:
+                    throw new IllegalArgumentException("Unknown methylation type '" + parts[i] + "': " + line);
+            }
+        }
+
+        return new RestrictionEnzyme(parts[0], site, cut, complementCut, dam, dcm, ecoKI);
+    }
+
+    /** Reads one enzyme per line in the {@link #parse} notation, skipping blank lines and '#' comments. */
+    public static List<RestrictionEnzyme> read(Path file) throws IOException
+    {
+        List<RestrictionEnzyme> ret = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    ret.add(parse(line));
+            }
+        }
+        return ret;
+    }
+
+    /** A small set of commonly used enzymes. */
+    public static List<RestrictionEnzyme> common()
+    {
+        return COMMON;
+    }
+
+    private static final List<RestrictionEnzyme> COMMON = Collections.unmodifiableList(Arrays.asList(
+            parse("AccI GT^MKAC"),
+            parse("ApaI GGGCC^C dcm"),
+            parse("AvaII G^GWCC dcm"),
+            parse("BamHI G^GATCC"),
+            parse("BclI T^GATCA dam"),
+            parse("BglI GCCNNNN^NGGC"),
+            parse("BglII A^GATCT"),
+            parse("BsaI GGTCTC(1/5)"),
+            parse("ClaI AT^CGAT dam"),
+            parse("EcoRI G^AATTC"),
+            parse("EcoRV GAT^ATC"),
+            parse("HincII GTY^RAC"),
+            parse("HindIII A^AGCTT"),
+            parse("KpnI GGTAC^C"),
+            parse("MboI ^GATC dam"),
+            parse("NcoI C^CATGG"),
+            parse("NdeI CA^TATG"),
+            parse("NotI GC^GGCCGC"),
+            parse("NruI TCG^CGA dam"),
+            parse("PstI CTGCA^G"),
+            parse("SacI GAGCT^C"),
+            parse("SalI G^TCGAC"),
+            parse("SmaI CCC^GGG"),
+            parse("StuI AGG^CCT dcm"),
+            parse("XbaI T^CTAGA dam"),
+            parse("XhoI C^TCGAG"),
+            parse("XmnI GAANN^NNTTC")
+    ));
+
+    public int length()
+    {
+        return site.length();
+    }
+
+    /** True if the site reads the same on both strands, so it only needs to be searched for once. */
+    public boolean isPalindromic()
+    {
+        return site.equals(reverseComplement(site));
+    }
+
+    static String reverseComplement(String site)
+    {
+        byte[] b = new byte[site.length()];
+        for (int i = 0; i < b.length; i++)
+            b[i] = PackedSequence.complement((byte) site.charAt(b.length - 1 - i));
+        return new String(b, StandardCharsets.US_ASCII);
+    }
+
+    // bit mask of the bases matched by an IUPAC code, or 0 if it is not one
+    static int mask(char c)
+    {
+        return c < 128 ? MASKS[c] : 0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + " " + site;
+    }
+}
@@ -0,0 +1,440 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the recognition sites of a whole enzyme library in one pass over a sequence.
+ *
+ * All sites and, for non-palindromic sites, their reverse complements are compiled into a single
+ * Aho-Corasick automaton over ACGT, so the top strand is read once no matter how many enzymes
+ * there are, and hits on both strands come out of the same pass. A degenerate site is expanded into
+ * its concrete sequences when there are at most {@link #MAX_EXPANSIONS} of them. Otherwise only its
+ * most specific stretch that expands within that limit goes into the automaton and each hit is
+ * checked against the full site. Bases other than ACGT in the sequence never match; U reads as T.
+ *
+ * On circular sequences, sites spanning the origin are found as well. When the DNA segment says the
+ * host methylates (Dam, Dcm or EcoKI), sites of enzymes sensitive to that methylation are reported as
+ * blocked if a methylated base of either strand falls within the recognition site.
+ *
+ * Instances are immutable and can be shared across threads.
+ */
+public class RestrictionScanner
+{
+    public static final int MAX_EXPANSIONS = 256;
+
+    public static class Site
+    {
+        public final RestrictionEnzyme enzyme;
+        // 1-based first base of the recognition site on the top strand
+        public final int start;
+        // 1-based last base; less than start if the site spans the origin
+        public final int end;
+        // 1 if the site reads 5'-3' on the top strand, -1 if on the bottom strand
+        public final int strand;
+        // the top and bottom strands are cut after these 1-based top-strand positions; on circular
+        // sequences they run from 1 to the length, which is a cut at the origin
+        public final int cut;
+        public final int complementCut;
+        // "Dam", "Dcm" or "EcoKI" if the site is blocked by methylation, else null
+        public final String blockedBy;
+        // position of the enzyme in the scanner's library
+        final int enzymeIndex;
+
+        Site(RestrictionEnzyme enzyme, int enzymeIndex, int start, int end, int strand, int cut, int complementCut, String blockedBy) {
+            this.enzyme = enzyme;
+            this.enzymeIndex = enzymeIndex;
+            this.start = start;
+            this.end = end;
+            this.strand = strand;
+            this.cut = cut;
+            this.complementCut = complementCut;
+            this.blockedBy = blockedBy;
+        }
+
+        public boolean isBlocked()
+        {
+            return blockedBy != null;
+        }
+
+        @Override
+        public String toString()
+        {
+            return enzyme.name + " " + start + ".." + end + (strand < 0 ? " (-)" : "") + (blockedBy != null ? " blocked by " + blockedBy : "");
+        }
+    }
+
+    private final List<RestrictionEnzyme> enzymes;
+    private final int maxLength;
+    private final boolean anyDam;
+    private final boolean anyDcm;
+    private final boolean anyEcoKI;
+
+    // automaton: full DFA transitions over the 2-bit base codes
+    private final int[] next;
+    // per state, the first entry of its own pattern list, and the nearest suffix state that has patterns
+    private final int[] outHead;
+    private final int[] outLink;
+    private final int[] outPattern;
+    private final int[] outNext;
+
+    // per pattern: enzyme, strand, anchor position within the oriented site, and whether the site must be verified
+    private final int[] patEnzyme;
+    private final int[] patStrand;
+    private final int[] patAnchorOffset;
+    private final int[] patAnchorLength;
+    private final boolean[] patVerify;
+    // per enzyme and strand (index 2 * enzyme + (strand < 0 ? 1 : 0)), the site as base masks
+    private final byte[][] siteMasks;
+
+    public RestrictionScanner(List<RestrictionEnzyme> enzymes)
+    {
+        this.enzymes = Collections.unmodifiableList(new ArrayList<>(enzymes));
+
+        Builder b = new Builder();
+        int max = 0;
+        boolean dam = false, dcm = false, ecoKI = false;
+        siteMasks = new byte[2 * this.enzymes.size()][];
+        for (int e = 0; e < this.enzymes.size(); e++)
+        {
+            RestrictionEnzyme enzyme = this.enzymes.get(e);
+            max = Math.max(max, enzyme.length());
+            dam |= enzyme.damSensitive;
+            dcm |= enzyme.dcmSensitive;
+            ecoKI |= enzyme.ecoKISensitive;
+
+            siteMasks[2 * e] = masks(enzyme.site);
+            b.addSite(e, 1, siteMasks[2 * e]);
+            if (!enzyme.isPalindromic())
+            {
+                siteMasks[2 * e + 1] = masks(RestrictionEnzyme.reverseComplement(enzyme.site));
+                b.addSite(e, -1, siteMasks[2 * e + 1]);
+            }
+        }
+        this.maxLength = max;
+        this.anyDam = dam;
+        this.anyDcm = dcm;
+        this.anyEcoKI = ecoKI;
+
+        b.link();
+        this.next = Arrays.copyOf(b.next, 4 * b.states);
+        this.outHead = Arrays.copyOf(b.outHead, b.states);
+        this.outLink = Arrays.copyOf(b.outLink, b.states);
+        this.outPattern = Arrays.copyOf(b.outPattern, b.outs);
+        this.outNext = Arrays.copyOf(b.outNext, b.outs);
+        this.patEnzyme = Arrays.copyOf(b.patEnzyme, b.patterns);
+        this.patStrand = Arrays.copyOf(b.patStrand, b.patterns);
+        this.patAnchorOffset = Arrays.copyOf(b.patAnchorOffset, b.patterns);
+        this.patAnchorLength = Arrays.copyOf(b.patAnchorLength, b.patterns);
+        this.patVerify = Arrays.copyOf(b.patVerify, b.patterns);
+    }
+
+    public List<RestrictionEnzyme> enzymes()
+    {
+        return enzymes;
+    }
+
+    /** Scans the DNA segment using its topology and methylation flags. */
+    public List<Site> scan(DNASegment dna)
+    {
+        return scan(dna.sequence, "circular".equals(dna.topology), dna.Dam, dna.Dcm, dna.EcoKI);
+    }
+
+    /** Returns all sites ordered by start position, then by enzyme in library order. */
+    public List<Site> scan(PackedSequence seq, boolean circular, boolean dam, boolean dcm, boolean ecoKI)
+    {
+        int len = seq.length();
+        byte[] codes = new byte[len];
+        for (int i = 0; i < len; i++)
+            codes[i] = (byte) seq.code(i);
+
+        BitSet damSites = dam && anyDam ? methylated(codes, circular, DAM, DAM_METHYLATED) : null;
+        BitSet dcmSites = dcm && anyDcm ? methylated(codes, circular, DCM, DCM_METHYLATED) : null;
+        BitSet ecoKISites = null;
+        if (ecoKI && anyEcoKI) {
+            ecoKISites = methylated(codes, circular, ECOKI, ECOKI_METHYLATED);
+            ecoKISites.or(methylated(codes, circular, ECOKI_REVERSE, ECOKI_REVERSE_METHYLATED));
+        }
+
+        List<Site> sites = new ArrayList<>();
+        // on circular sequences read on past the origin far enough to finish any site starting before it
+        int end = circular ? len + Math.min(len, maxLength) - 1 : len;
+        int state = 0;
+        for (int i = 0; i < end; i++)
+        {
+            int code = codes[i < len ? i : i - len];
+            if (code < 0) {
+                state = 0;
+                continue;
+            }
+            state = next[4 * state + code];
+
+            for (int s = outHead[state] != -1 ? state : outLink[state]; s > 0; s = outLink[s])
+            {
+                for (int o = outHead[s]; o != -1; o = outNext[o])
+                {
+                    int p = outPattern[o];
+                    int e = patEnzyme[p];
+                    int siteLen = enzymes.get(e).length();
+                    int start = i - patAnchorLength[p] + 1 - patAnchorOffset[p];
+                    // sites starting past the origin were already found on the first lap
+                    if (start < 0 || start >= len || (!circular && start + siteLen > len) || siteLen > len)
+                        continue;
+                    byte[] masks = siteMasks[2 * e + (patStrand[p] < 0 ? 1 : 0)];
+                    if (patVerify[p] && !matches(codes, start, masks))
+                        continue;
+                    // an instance of a non-palindromic site that reads the same on both strands is reported once
+                    if (patStrand[p] < 0 && matches(codes, start, siteMasks[2 * e]))
+                        continue;
+                    sites.add(site(e, patStrand[p], start, len, circular, damSites, dcmSites, ecoKISites));
+                }
+            }
+        }
+
+        sites.sort((a, b) -> a.start != b.start ? Integer.compare(a.start, b.start)
+                : a.enzymeIndex != b.enzymeIndex ? Integer.compare(a.enzymeIndex, b.enzymeIndex)
+                : Integer.compare(b.strand, a.strand));
+        return sites;
+    }
+
+    private Site site(int e, int strand, int start, int len, boolean circular, BitSet dam, BitSet dcm, BitSet ecoKI)
+    {
+        RestrictionEnzyme enzyme = enzymes.get(e);
+        int siteLen = enzyme.length();
+        int cut, complementCut;
+        if (strand > 0) {
+            cut = start + enzyme.cut;
+            complementCut = start + enzyme.complementCut;
+        }
+        else {
+            cut = start + siteLen - enzyme.complementCut;
+            complementCut = start + siteLen - enzyme.cut;
+        }
+        if (circular) {
+            // 1 to len; a cut at the origin is after the last base, not after base 0
+            cut = Math.floorMod(cut - 1, len) + 1;
+            complementCut = Math.floorMod(complementCut - 1, len) + 1;
+        }
+
+        String blockedBy = null;
+        if (enzyme.damSensitive && overlaps(dam, start, siteLen, len))
+            blockedBy = "Dam";
+        else if (enzyme.dcmSensitive && overlaps(dcm, start, siteLen, len))
+            blockedBy = "Dcm";
+        else if (enzyme.ecoKISensitive && overlaps(ecoKI, start, siteLen, len))
+            blockedBy = "EcoKI";
+
+        int last = start + siteLen - 1;
+        return new Site(enzyme, e, start + 1, (last < len ? last : last - len) + 1, strand, cut, complementCut, blockedBy);
+    }
+
+    private static boolean matches(byte[] codes, int start, byte[] masks)
+    {
+        int len = codes.length;
+        for (int j = 0; j < masks.length; j++)
+        {
+            int pos = start + j;
+            int code = codes[pos < len ? pos : pos - len];
+            if (code < 0 || (masks[j] & (1 << code)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean overlaps(BitSet methylated, int start, int siteLen, int len)
+    {
+        if (methylated == null)
+            return false;
+        int end = start + siteLen;
+        if (end <= len)
+            return methylated.nextSetBit(start) != -1 && methylated.nextSetBit(start) < end;
+        int first = methylated.nextSetBit(start);
+        return first != -1 || (methylated.nextSetBit(0) != -1 && methylated.nextSetBit(0) < end - len);
+    }
+
+    // Methylation motifs, and the top-strand offsets of the bases methylated on either strand
+    private static final byte[] DAM = masks("GATC");
+    private static final int[] DAM_METHYLATED = { 1, 2 };
+    private static final byte[] DCM = masks("CCWGG");
+    private static final int[] DCM_METHYLATED = { 1, 3 };
+    private static final byte[] ECOKI = masks("AACNNNNNNGTGC");
+    private static final int[] ECOKI_METHYLATED = { 1, 10 };
+    private static final byte[] ECOKI_REVERSE = masks("GCACNNNNNNGTT");
+    private static final int[] ECOKI_REVERSE_METHYLATED = { 2, 11 };
+
+    private static BitSet methylated(byte[] codes, boolean circular, byte[] motif, int[] methylated)
+    {
+        int len = codes.length;
+        BitSet ret = new BitSet(len);
+        if (motif.length > len)
+            return ret;
+        int last = circular ? len : len - motif.length + 1;
+        for (int i = 0; i < last; i++)
+        {
+            if (matches(codes, i, motif))
+                for (int m : methylated)
+                    ret.set((i + m) % len);
+        }
+        return ret;
+    }
+
+    private static byte[] masks(String site)
+    {
+        byte[] ret = new byte[site.length()];
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = (byte) RestrictionEnzyme.mask(site.charAt(i));
+        return ret;
+    }
+
+    /** Accumulates the trie and pattern table, then adds failure transitions. */
+    private static final class Builder
+    {
+        int[] next = new int[4 * 256];
+        int[] outHead = new int[256];
+        int[] outLink = new int[256];
+        int states = 1;
+
+        int[] outPattern = new int[256];
+        int[] outNext = new int[256];
+        int outs;
+
+        int[] patEnzyme = new int[64];
+        int[] patStrand = new int[64];
+        int[] patAnchorOffset = new int[64];
+        int[] patAnchorLength = new int[64];
+        boolean[] patVerify = new boolean[64];
+        int patterns;
+
+        Builder()
+        {
+            Arrays.fill(next, 0, 4, -1);
+            outHead[0] = -1;
+        }
+
+        void addSite(int enzyme, int strand, byte[] masks)
+        {
+            // the longest stretch of the site whose expansions fit; ties go to the fewest expansions
+            int bestOffset = 0, bestLength = 0;
+            long bestCount = Long.MAX_VALUE;
+            for (int from = 0; from < masks.length; from++)
+            {
+                long count = 1;
+                for (int to = from; to < masks.length; to++)
+                {
+                    count *= Integer.bitCount(masks[to]);
+                    if (count > MAX_EXPANSIONS)
+                        break;
+                    int length = to - from + 1;
+                    if (length > bestLength || (length == bestLength && count < bestCount)) {
+                        bestOffset = from;
+                        bestLength = length;
+                        bestCount = count;
+                    }
+                }
+            }
+
+            int p = patterns++;
+            if (p == patEnzyme.length) {
+                patEnzyme = Arrays.copyOf(patEnzyme, 2 * p);
+                patStrand = Arrays.copyOf(patStrand, 2 * p);
+                patAnchorOffset = Arrays.copyOf(patAnchorOffset, 2 * p);
+                patAnchorLength = Arrays.copyOf(patAnchorLength, 2 * p);
+                patVerify = Arrays.copyOf(patVerify, 2 * p);
+            }
+            patEnzyme[p] = enzyme;
+            patStrand[p] = strand;
+            patAnchorOffset[p] = bestOffset;
+            patAnchorLength[p] = bestLength;
+            // an anchor covering the whole site matches it exactly
+            patVerify[p] = bestLength != masks.length;
+
+            insert(p, Arrays.copyOfRange(masks, bestOffset, bestOffset + bestLength), 0, 0);
+        }
+
+        // adds every concrete expansion of masks[i..] below state
+        private void insert(int pattern, byte[] masks, int i, int state)
+        {
+            if (i == masks.length) {
+                addOutput(state, pattern);
+                return;
+            }
+            for (int code = 0; code < 4; code++)
+            {
+                if ((masks[i] & (1 << code)) == 0)
+                    continue;
+                int child = next[4 * state + code];
+                if (child == -1) {
+                    child = newState();
+                    next[4 * state + code] = child;
+                }
+                insert(pattern, masks, i + 1, child);
+            }
+        }
+
+        private int newState()
+        {
+            if (states == outHead.length) {
+                next = Arrays.copyOf(next, 8 * states);
+                outHead = Arrays.copyOf(outHead, 2 * states);
+                outLink = Arrays.copyOf(outLink, 2 * states);
+            }
+            Arrays.fill(next, 4 * states, 4 * states + 4, -1);
+            outHead[states] = -1;
+            return states++;
+        }
+
+        private void addOutput(int state, int pattern)
+        {
+            // the same expansion can come from two patterns, never twice from one
+            if (outs == outPattern.length) {
+                outPattern = Arrays.copyOf(outPattern, 2 * outs);
+                outNext = Arrays.copyOf(outNext, 2 * outs);
+            }
+            outPattern[outs] = pattern;
+            outNext[outs] = outHead[state];
+            outHead[state] = outs++;
+        }
+
+        // Breadth-first: failure links become direct transitions, output links skip states without patterns.
+        void link()
+        {
+            int[] fail = new int[states];
+            int[] queue = new int[states];
+            int head = 0, tail = 0;
+            outLink[0] = -1;
+            for (int c = 0; c < 4; c++)
+            {
+                int child = next[c];
+                if (child == -1) {
+                    next[c] = 0;
+                }
+                else {
+                    fail[child] = 0;
+                    outLink[child] = -1;
+                    queue[tail++] = child;
+                }
+            }
+            while (head < tail)
+            {
+                int s = queue[head++];
+                for (int c = 0; c < 4; c++)
+                {
+                    int child = next[4 * s + c];
+                    int f = next[4 * fail[s] + c];
+                    if (child == -1) {
+                        next[4 * s + c] = f;
+                        continue;
+                    }
+                    fail[child] = f;
+                    outLink[child] = outHead[f] != -1 ? f : outLink[f];
+                    queue[tail++] = child;
+                }
+            }
+        }
+    }
+}
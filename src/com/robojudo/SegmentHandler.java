@@ -0,0 +1,56 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.Segment;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Callback for push-style parsing with {@link SnapGeneParser#parse(java.io.InputStream, SegmentHandler)}.
+ *
+ * The parser reports each segment header and the handler chooses what happens to the payload.
+ * Skipped payloads are never read into memory, so a handler that skips large segments such as the
+ * History Tree (7) or Sequence Trace (18) processes a file in constant memory.
+ */
+public interface SegmentHandler
+{
+    enum Action
+    {
+        /** Decode the payload and pass the result to {@link #onSegment}. */
+        DECODE,
+        /** Pass the undecoded payload to {@link #onRaw}. */
+        RAW,
+        /** Move past the payload without reading it. */
+        SKIP,
+        /** Stop parsing; no further segments are reported. */
+        STOP
+    }
+
+    /**
+     * Called for each segment header. Returning null is an error; parsing ends with an IllegalStateException.
+     *
+     * @param offset position of the payload in the input, just past the 5-byte header
+     */
+    Action onHeader(int type, long offset, int length);
+
+    default void onSegment(int type, Segment segment)
+    {
+    }
+
+    /** The buffer may be reused once this returns; copy it to keep the bytes. */
+    default void onRaw(int type, ByteBuffer data)
+    {
+    }
+
+    /**
+     * Called when a lenient parser found problems in the decoded segments, once after the last segment
+     * or when the handler stops parsing; not called if there were none.
+     */
+    default void onDiagnostics(Diagnostics diagnostics)
+    {
+    }
+
+    /** Called once after the last segment, unless the handler stopped parsing. */
+    default void onEnd()
+    {
+    }
+}
@@ -0,0 +1,308 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * GC content, base composition, homopolymer runs and reverse complements over the ASCII bases of a sequence.
+ *
+ * The work is done on a byte array: the DNA segment payload itself where it is array-backed, otherwise a
+ * copy. Case is ignored and bases other than A, C, G and T count as neither. On circular sequences,
+ * sliding windows and homopolymer runs continue across the origin.
+ *
+ * The loops use the Vector API when the JVM runs with --add-modules jdk.incubator.vector, and plain
+ * loops with the same results otherwise; {@link #kernel()} tells which.
+ */
+public final class SequenceAnalytics
+{
+    private final byte[] bases;
+    private final int from;
+    private final int length;
+    private final boolean circular;
+    private final SequenceKernels kernels;
+
+    private SequenceAnalytics(byte[] bases, int from, int to, boolean circular, SequenceKernels kernels) {
+        this.bases = bases;
+        this.from = from;
+        this.length = to - from;
+        this.circular = circular;
+        this.kernels = kernels;
+    }
+
+    public static SequenceAnalytics of(DNASegment dna)
+    {
+        return of(dna.sequence, "circular".equals(dna.topology));
+    }
+
+    public static SequenceAnalytics of(PackedSequence seq, boolean circular)
+    {
+        byte[] bytes = new byte[seq.length()];
+        seq.getBytes(0, bytes.length, bytes, 0);
+        return of(bytes, 0, bytes.length, circular);
+    }
+
+    /** Reads the raw payload of a DNA segment: the flags byte followed by the bases. */
+    public static SequenceAnalytics ofSegment(ByteBuffer payload)
+    {
+        if (!payload.hasRemaining())
+            throw new IllegalArgumentException("Expected DNA segment flags");
+        int pos = payload.position();
+        boolean circular = "circular".equals(DNASegment.topology(payload.get(pos)));
+        return of(payload.slice(pos + 1, payload.remaining() - 1), circular);
+    }
+
+    /** Bases are the remaining bytes of the buffer, used in place if it has an accessible array. */
+    public static SequenceAnalytics of(ByteBuffer bases, boolean circular)
+    {
+        if (bases.hasArray()) {
+            int start = bases.arrayOffset() + bases.position();
+            return of(bases.array(), start, start + bases.remaining(), circular);
+        }
+        byte[] bytes = new byte[bases.remaining()];
+        bases.duplicate().get(bytes);
+        return of(bytes, 0, bytes.length, circular);
+    }
+
+    public static SequenceAnalytics of(byte[] bases, int from, int to, boolean circular)
+    {
+        return new SequenceAnalytics(bases, from, to, circular, SequenceKernels.DEFAULT);
+    }
+
+    /** The same sequence analysed with other kernels; used by the benchmarks to compare them. */
+    SequenceAnalytics using(SequenceKernels kernels)
+    {
+        return new SequenceAnalytics(bases, from, from + length, circular, kernels);
+    }
+
+    /** "scalar", or "vector" and the vector size in bits. */
+    public String kernel()
+    {
+        return kernels.name();
+    }
+
+    public int length()
+    {
+        return length;
+    }
+
+    public boolean isCircular()
+    {
+        return circular;
+    }
+
+    public static final class Composition
+    {
+        public final long a;
+        public final long c;
+        public final long g;
+        public final long t;
+        // anything else, including ambiguity codes and gaps
+        public final long other;
+
+        Composition(long a, long c, long g, long t, long other) {
+            this.a = a;
+            this.c = c;
+            this.g = g;
+            this.t = t;
+            this.other = other;
+        }
+
+        /** Fraction of C and G among all bases, or NaN for an empty sequence. */
+        public double gcContent()
+        {
+            long total = a + c + g + t + other;
+            return total == 0 ? Double.NaN : (double) (c + g) / total;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "A=" + a + " C=" + c + " G=" + g + " T=" + t + " other=" + other;
+        }
+    }
+
+    /** Homopolymer runs in order of their start; a run across the origin of a circular sequence comes last. */
+    public static final class Runs
+    {
+        private int count;
+        private int[] starts = new int[16];
+        private int[] lengths = new int[16];
+        private byte[] bases = new byte[16];
+
+        void add(int start, int length, byte base)
+        {
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, 2 * count);
+                lengths = Arrays.copyOf(lengths, 2 * count);
+                bases = Arrays.copyOf(bases, 2 * count);
+            }
+            starts[count] = start;
+            lengths[count] = length;
+            bases[count] = base;
+            count++;
+        }
+
+        private void shift(int offset)
+        {
+            for (int i = 0; i < count; i++)
+                starts[i] -= offset;
+        }
+
+        public int count()
+        {
+            return count;
+        }
+
+        /** 0-based position of the first base of a run. */
+        public int start(int i)
+        {
+            Objects.checkIndex(i, count);
+            return starts[i];
+        }
+
+        public int length(int i)
+        {
+            Objects.checkIndex(i, count);
+            return lengths[i];
+        }
+
+        /** The repeated base, upper case. */
+        public char base(int i)
+        {
+            Objects.checkIndex(i, count);
+            return (char) bases[i];
+        }
+
+        /** Index of the longest run, the first of equal ones, or -1 if there are none. */
+        public int longest()
+        {
+            int best = -1;
+            for (int i = 0; i < count; i++)
+                if (best < 0 || lengths[i] > lengths[best])
+                    best = i;
+            return best;
+        }
+    }
+
+    public long gcCount()
+    {
+        return kernels.gcCount(bases, from, from + length);
+    }
+
+    /** Fraction of C and G among all bases, or NaN for an empty sequence. */
+    public double gcContent()
+    {
+        return length == 0 ? Double.NaN : (double) gcCount() / length;
+    }
+
+    public Composition composition()
+    {
+        long[] counts = new long[4];
+        kernels.composition(bases, from, from + length, counts);
+        return new Composition(counts[0], counts[1], counts[2], counts[3],
+                length - counts[0] - counts[1] - counts[2] - counts[3]);
+    }
+
+    /**
+     * GC content of windows of the given size starting every step bases from the first. On a linear
+     * sequence windows end at the last base; on a circular one there is a window at each step before the
+     * end, and those near the end continue from the origin.
+     */
+    public double[] slidingGc(int window, int step)
+    {
+        if (window <= 0 || step <= 0)
+            throw new IllegalArgumentException("Window and step must be positive: " + window + ", " + step);
+        if (circular && window > length)
+            throw new IllegalArgumentException("Window " + window + " longer than circular sequence of length " + length);
+
+        int windows = circular ? (length + step - 1) / step
+                : length < window ? 0 : (length - window) / step + 1;
+        if (windows == 0)
+            return new double[0];
+
+        // window k covers [k * step, k * step + window) and its count is the difference of two running
+        // counts, taken in one forward pass over the bases (twice around the origin at most)
+        long[] atStart = new long[windows];
+        long[] atEnd = new long[windows];
+        long count = 0, at = 0;
+        int i = 0, j = 0;
+        while (j < windows)
+        {
+            long s = i < windows ? (long) i * step : Long.MAX_VALUE;
+            long e = (long) j * step + window;
+            long next = Math.min(s, e);
+            count += gcCount(at, next);
+            at = next;
+            if (s == next)
+                atStart[i++] = count;
+            if (e == next)
+                atEnd[j++] = count;
+        }
+
+        double[] gc = new double[windows];
+        for (int k = 0; k < windows; k++)
+            gc[k] = (double) (atEnd[k] - atStart[k]) / window;
+        return gc;
+    }
+
+    // GC bases in [start, end) of the sequence repeated past its end
+    private long gcCount(long start, long end)
+    {
+        long n = 0;
+        while (start < end)
+        {
+            int offset = (int) (start % length);
+            int to = (int) Math.min(length, offset + end - start);
+            n += kernels.gcCount(bases, from + offset, from + to);
+            start += to - offset;
+        }
+        return n;
+    }
+
+    /** Runs of at least minLength of the same base. Runs of other characters are not reported. */
+    public Runs homopolymers(int minLength)
+    {
+        if (minLength <= 0)
+            throw new IllegalArgumentException("Minimum length must be positive: " + minLength);
+        Runs runs = new Runs();
+        int to = from + length;
+        if (!circular || length == 0 || SequenceKernels.fold(bases[from]) != SequenceKernels.fold(bases[to - 1])) {
+            kernels.runs(bases, from, to, minLength, runs);
+            runs.shift(from);
+            return runs;
+        }
+
+        int b = SequenceKernels.fold(bases[from]);
+        int head = 1;
+        while (head < length && SequenceKernels.fold(bases[from + head]) == b)
+            head++;
+        if (head == length) {
+            SequenceKernels.run(bases, from, to, minLength, runs);
+            runs.shift(from);
+            return runs;
+        }
+        int tail = 1;
+        while (SequenceKernels.fold(bases[to - 1 - tail]) == b)
+            tail++;
+
+        kernels.runs(bases, from + head, to - tail, minLength, runs);
+        // the run that ends at the origin continues into the head
+        int merged = runs.count();
+        SequenceKernels.run(bases, to - tail, to, Math.max(1, minLength - head), runs);
+        if (runs.count() > merged)
+            runs.lengths[merged] += head;
+        runs.shift(from);
+        return runs;
+    }
+
+    /** Reverse complement as ASCII; ambiguity codes are complemented and case is kept. */
+    public byte[] reverseComplement()
+    {
+        byte[] out = new byte[length];
+        kernels.reverseComplement(bases, from, from + length, out, 0);
+        return out;
+    }
+}
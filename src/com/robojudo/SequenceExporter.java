@@ -0,0 +1,631 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.Directionality;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.Reference;
+import com.robojudo.SnapGene.Seg;
+import com.robojudo.SnapGene.SnapGeneDoc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes documents as FASTA or GenBank flat files to a channel or stream.
+ *
+ * Output goes through a per-thread buffer that is written out whenever it fills up. Bases are copied into
+ * it a block at a time, from the DNA segment payload when a lazy document has not decoded it and from the
+ * packed sequence otherwise, so memory use does not grow with the length of the sequence.
+ *
+ * GenBank records take their header from the Notes segment: description, accession, organism, references
+ * and comments, with HTML markup removed. Features become GenBank locations, joined when they have several
+ * segments and complemented when reverse, with their qualifiers and name as /label.
+ */
+public final class SequenceExporter
+{
+    private static final int FASTA_LINE = 60;
+    private static final int GENBANK_LINE = 60;
+    private static final int WIDTH = 79;
+    private static final int HEADER_INDENT = 12;
+    private static final int FEATURE_INDENT = 21;
+
+    private static final DateTimeFormatter genBankDate = DateTimeFormatter.ofPattern("dd-MMM-uuuu", Locale.ROOT);
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private SequenceExporter()
+    {
+    }
+
+    public static long writeFasta(SnapGeneDoc doc, String name, OutputStream out) throws IOException
+    {
+        return writeFasta(doc, name, FASTA_LINE, Channels.newChannel(out));
+    }
+
+    public static long writeFasta(SnapGeneDoc doc, String name, WritableByteChannel out) throws IOException
+    {
+        return writeFasta(doc, name, FASTA_LINE, out);
+    }
+
+    /**
+     * Writes one FASTA record: the name and the Notes description on the header line, then the bases as
+     * stored, lineWidth to a line. Returns the number of bytes written.
+     */
+    public static long writeFasta(SnapGeneDoc doc, String name, int lineWidth, WritableByteChannel out) throws IOException
+    {
+        if (lineWidth <= 0)
+            throw new IllegalArgumentException("Line width must be positive: " + lineWidth);
+        Bases bases = Bases.of(doc);
+        NotesSegment notes = doc.notes();
+
+        Output o = scratch.get().output(out);
+        o.put('>');
+        o.text(name);
+        String description = notes == null ? null : plainText(notes.description);
+        if (description != null && !description.isEmpty()) {
+            o.put(' ');
+            o.text(description);
+        }
+        o.put('\n');
+
+        byte[] block = o.scratch.block;
+        int perBlock = block.length / lineWidth * lineWidth;
+        for (int from = 0; from < bases.length; from += perBlock)
+        {
+            int n = Math.min(perBlock, bases.length - from);
+            bases.copy(from, n, block);
+            for (int i = 0; i < n; i += lineWidth)
+            {
+                int len = Math.min(lineWidth, n - i);
+                o.ensure(len + 1);
+                o.buf.put(block, i, len);
+                o.buf.put((byte) '\n');
+            }
+        }
+        return o.finish();
+    }
+
+    public static long writeGenBank(SnapGeneDoc doc, String name, OutputStream out) throws IOException
+    {
+        return writeGenBank(doc, name, Channels.newChannel(out));
+    }
+
+    /** Writes one GenBank record ending in "//". Returns the number of bytes written. */
+    public static long writeGenBank(SnapGeneDoc doc, String name, WritableByteChannel out) throws IOException
+    {
+        Bases bases = Bases.of(doc);
+        NotesSegment notes = doc.notes();
+        FeaturesSegment features = doc.features();
+
+        Output o = scratch.get().output(out);
+        writeLocus(o, name, bases, notes);
+        header(o, "DEFINITION", notes == null ? null : plainText(notes.description));
+        header(o, "ACCESSION", notes == null ? null : notes.accessionNumber);
+        header(o, "VERSION", notes == null ? null : notes.accessionNumber);
+        header(o, "KEYWORDS", null);
+        String organism = notes == null ? null : notes.organism;
+        header(o, "SOURCE", organism);
+        header(o, "  ORGANISM", organism);
+        if (notes != null && notes.references != null)
+        {
+            int i = 0;
+            for (Reference ref : notes.references)
+            {
+                header(o, "REFERENCE", ++i + "  (bases 1 to " + bases.length + ")");
+                optionalHeader(o, "  AUTHORS", plainText(ref.authors));
+                optionalHeader(o, "  TITLE", plainText(ref.title));
+                header(o, "  JOURNAL", plainText(ref.journal));
+                optionalHeader(o, "   PUBMED", ref.pubMedID);
+            }
+        }
+        if (notes != null)
+        {
+            optionalHeader(o, "COMMENT", plainText(notes.comments));
+            optionalHeader(o, "COMMENT", notes.createdBy == null ? null : "Sequence author: " + notes.createdBy);
+            optionalHeader(o, "COMMENT", notes.codeNumber == null ? null : "Code number: " + notes.codeNumber);
+            optionalHeader(o, "COMMENT", notes.transformedInto == null ? null : "Transformed into: " + notes.transformedInto);
+        }
+
+        o.ascii("FEATURES             Location/Qualifiers\n");
+        if (features == null || !hasSource(features))
+        {
+            o.ascii("     source          1..");
+            o.number(bases.length, 0);
+            o.put('\n');
+            qualifier(o, "organism", organism == null ? "unspecified" : organism, true);
+            qualifier(o, "mol_type", "other DNA", true);
+        }
+        if (features != null)
+            for (Feature f : features.features)
+                writeFeature(o, f, bases.length);
+
+        writeOrigin(o, bases);
+        o.ascii("//\n");
+        return o.finish();
+    }
+
+    private static void writeLocus(Output o, String name, Bases bases, NotesSegment notes) throws IOException
+    {
+        String division = notes != null && notes.sequenceClass != null && notes.sequenceClass.length() == 3
+                ? notes.sequenceClass
+                : notes != null && "Natural".equals(notes.type) ? "UNA" : "SYN";
+        Date date = notes == null ? null : notes.modified != null ? notes.modified : notes.created;
+        LocalDate day = date == null ? LocalDate.now() : LocalDate.ofInstant(date.toInstant(), ZoneId.systemDefault());
+
+        o.ascii("LOCUS       ");
+        String locus = name.replace(' ', '_');
+        o.text(locus);
+        for (int i = locus.length(); i < 16; i++)
+            o.put(' ');
+        o.put(' ');
+        o.number(bases.length, 11);
+        o.ascii(bases.doubleStranded ? " bp    DNA     " : " bp ss-DNA     ");
+        o.ascii(bases.circular ? "circular " : "linear   ");
+        o.ascii(division);
+        o.put(' ');
+        o.ascii(day.format(genBankDate).toUpperCase(Locale.ROOT));
+        o.put('\n');
+    }
+
+    private static void optionalHeader(Output o, String key, String text) throws IOException
+    {
+        if (text != null && !text.isEmpty())
+            header(o, key, text);
+    }
+
+    // a header field, "." if empty, wrapped at column 79 under the value
+    private static void header(Output o, String key, String text) throws IOException
+    {
+        StringBuilder sb = o.scratch.line();
+        sb.append(key);
+        while (sb.length() < HEADER_INDENT)
+            sb.append(' ');
+        sb.append(text == null || text.isEmpty() ? "." : text);
+        wrap(o, sb, HEADER_INDENT, ' ');
+    }
+
+    private static boolean hasSource(FeaturesSegment features)
+    {
+        for (Feature f : features.features)
+            if ("source".equals(f.type))
+                return true;
+        return false;
+    }
+
+    private static void writeFeature(Output o, Feature f, int length) throws IOException
+    {
+        StringBuilder sb = o.scratch.line();
+        sb.append("     ").append(f.type == null ? "misc_feature" : f.type);
+        while (sb.length() < FEATURE_INDENT)
+            sb.append(' ');
+        if (!location(sb, f, length))
+            return;
+        wrap(o, sb, FEATURE_INDENT, ',');
+
+        Qualifiers q = f.qualifiers;
+        if (f.name != null && q.find("label") == -1)
+            qualifier(o, "label", f.name, true);
+        if (f.readingFrame() != null && q.find("codon_start") == -1)
+            qualifier(o, "codon_start", String.valueOf(Math.abs(f.readingFrame())), false);
+        if (f.geneticCode != null && q.find("transl_table") == -1)
+            qualifier(o, "transl_table", String.valueOf(GeneticCode.forAttribute(f.geneticCode).id), false);
+        for (int i = 0; i < q.size(); i++)
+        {
+            switch (q.kind(i))
+            {
+                case NONE:
+                    qualifier(o, q.key(i), null, false);
+                    break;
+                case INT:
+                    qualifier(o, q.key(i), String.valueOf(q.intValue(i)), false);
+                    break;
+                case BOOL:
+                    // GenBank flags such as /pseudo are written when set
+                    if (q.intValue(i) != 0)
+                        qualifier(o, q.key(i), null, false);
+                    break;
+                default:
+                    qualifier(o, q.key(i), plainText(q.text(i)), true);
+            }
+        }
+    }
+
+    /**
+     * Appends the GenBank location of a feature: its ranged segments other than gaps, as join() if there is
+     * more than one, inside complement() for reverse features. A segment across the origin is split in two.
+     * Returns false if the feature has no ranged segment.
+     */
+    static boolean location(StringBuilder sb, Feature f, int length)
+    {
+        int parts = 0;
+        for (Seg seg : f.segments)
+            if (seg.hasRange() && !"gap".equals(seg.type))
+                parts += seg.start > seg.end ? 2 : 1;
+        if (parts == 0)
+            return false;
+
+        boolean reverse = f.directionality == Directionality.ReverseDirectional;
+        if (reverse)
+            sb.append("complement(");
+        if (parts > 1)
+            sb.append("join(");
+        boolean first = true;
+        for (Seg seg : f.segments)
+        {
+            if (!seg.hasRange() || "gap".equals(seg.type))
+                continue;
+            if (!first)
+                sb.append(',');
+            first = false;
+            if (seg.start > seg.end) {
+                range(sb, seg.start, length);
+                sb.append(',');
+                range(sb, 1, seg.end);
+            }
+            else {
+                range(sb, seg.start, seg.end);
+            }
+        }
+        if (parts > 1)
+            sb.append(')');
+        if (reverse)
+            sb.append(')');
+        return true;
+    }
+
+    private static void range(StringBuilder sb, int start, int end)
+    {
+        sb.append(start);
+        if (end != start)
+            sb.append("..").append(end);
+    }
+
+    private static void qualifier(Output o, String key, String value, boolean quoted) throws IOException
+    {
+        StringBuilder sb = o.scratch.line();
+        for (int i = 0; i < FEATURE_INDENT; i++)
+            sb.append(' ');
+        sb.append('/').append(key);
+        if (value != null)
+        {
+            sb.append('=');
+            if (quoted) {
+                sb.append('"');
+                for (int i = 0; i < value.length(); i++)
+                {
+                    char c = value.charAt(i);
+                    if (c == '"')
+                        sb.append('"');
+                    sb.append(c == '\n' || c == '\r' || c == '\t' ? ' ' : c);
+                }
+                sb.append('"');
+            }
+            else {
+                sb.append(value);
+            }
+        }
+        wrap(o, sb, FEATURE_INDENT, ' ');
+    }
+
+    /**
+     * Writes a line that starts with its own indentation, continued on lines indented by indent spaces. Lines
+     * break after the last space (dropped) or the given separator (kept) that fits, or at column 79 if none.
+     */
+    private static void wrap(Output o, CharSequence line, int indent, char separator) throws IOException
+    {
+        int pos = 0, len = line.length();
+        boolean first = true;
+        while (true)
+        {
+            int room = first ? WIDTH : WIDTH - indent;
+            if (len - pos <= room) {
+                if (!first)
+                    o.spaces(indent);
+                o.text(line, pos, len);
+                o.put('\n');
+                return;
+            }
+            int limit = pos + room;
+            int cut = -1, next = -1;
+            for (int i = limit; i > pos + (first ? indent : 0); i--)
+            {
+                char c = line.charAt(i);
+                if (c == ' ') {
+                    cut = i;
+                    next = i + 1;
+                    break;
+                }
+                if (c == separator && i < limit) {
+                    cut = i + 1;
+                    next = i + 1;
+                    break;
+                }
+            }
+            if (cut == -1)
+                cut = next = limit;
+            if (!first)
+                o.spaces(indent);
+            o.text(line, pos, cut);
+            o.put('\n');
+            pos = next;
+            first = false;
+        }
+    }
+
+    private static void writeOrigin(Output o, Bases bases) throws IOException
+    {
+        o.ascii("ORIGIN\n");
+        byte[] block = o.scratch.block;
+        int perBlock = block.length / GENBANK_LINE * GENBANK_LINE;
+        for (int from = 0; from < bases.length; from += perBlock)
+        {
+            int n = Math.min(perBlock, bases.length - from);
+            bases.copy(from, n, block);
+            for (int i = 0; i < n; i += GENBANK_LINE)
+            {
+                // 9-digit position, then up to six groups of ten lower-case bases
+                o.ensure(9 + GENBANK_LINE + GENBANK_LINE / 10 + 1);
+                o.number(from + i + 1, 9);
+                ByteBuffer buf = o.buf;
+                int end = Math.min(i + GENBANK_LINE, n);
+                for (int j = i; j < end; j++)
+                {
+                    if ((j - i) % 10 == 0)
+                        buf.put((byte) ' ');
+                    byte b = block[j];
+                    buf.put(b >= 'A' && b <= 'Z' ? (byte) (b | 0x20) : b);
+                }
+                buf.put((byte) '\n');
+            }
+        }
+    }
+
+    /**
+     * Text of a Notes or qualifier value without its HTML markup: tags are dropped, breaks become spaces,
+     * common entities are decoded and runs of white space collapse. Null stays null.
+     */
+    static String plainText(String html)
+    {
+        if (html == null)
+            return null;
+        if (html.indexOf('<') == -1 && html.indexOf('&') == -1 && html.indexOf('\n') == -1)
+            return html.trim();
+
+        StringBuilder sb = new StringBuilder(html.length());
+        for (int i = 0; i < html.length(); i++)
+        {
+            char c = html.charAt(i);
+            if (c == '<') {
+                int close = html.indexOf('>', i);
+                if (close == -1)
+                    break;
+                i = close;
+                space(sb);
+            }
+            else if (c == '&') {
+                int semi = html.indexOf(';', i);
+                String entity = semi == -1 || semi - i > 8 ? null : html.substring(i + 1, semi);
+                String decoded = entity == null ? null : entity(entity);
+                if (decoded == null) {
+                    sb.append(c);
+                }
+                else {
+                    sb.append(decoded);
+                    i = semi;
+                }
+            }
+            else if (Character.isWhitespace(c)) {
+                space(sb);
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.toString().trim();
+    }
+
+    private static void space(StringBuilder sb)
+    {
+        if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ')
+            sb.append(' ');
+    }
+
+    private static String entity(String name)
+    {
+        switch (name)
+        {
+            case "amp":  return "&";
+            case "lt":   return "<";
+            case "gt":   return ">";
+            case "quot": return "\"";
+            case "apos":
+            case "#39":  return "'";
+            case "nbsp": return " ";
+            default:
+                if (name.startsWith("#")) {
+                    try {
+                        int cp = name.startsWith("#x") ? Integer.parseInt(name.substring(2), 16) : Integer.parseInt(name.substring(1));
+                        return new String(Character.toChars(cp));
+                    } catch (IllegalArgumentException e) {
+                        return null;
+                    }
+                }
+                return null;
+        }
+    }
+
+    /** The bases of a document, read from the raw DNA payload if it is still undecoded. */
+    private static final class Bases
+    {
+        final int length;
+        final boolean circular;
+        final boolean doubleStranded;
+        // ASCII bases, or null to read from sequence
+        private final ByteBuffer raw;
+        private final PackedSequence sequence;
+
+        private Bases(int length, boolean circular, boolean doubleStranded, ByteBuffer raw, PackedSequence sequence) {
+            this.length = length;
+            this.circular = circular;
+            this.doubleStranded = doubleStranded;
+            this.raw = raw;
+            this.sequence = sequence;
+        }
+
+        static Bases of(SnapGeneDoc doc)
+        {
+            ByteBuffer raw = doc.rawDna();
+            if (raw != null) {
+                byte flags = raw.get(raw.position());
+                ByteBuffer bases = raw.slice(raw.position() + 1, raw.remaining() - 1);
+                return new Bases(bases.remaining(), "circular".equals(DNASegment.topology(flags)),
+                        "double-stranded".equals(DNASegment.strandedness(flags)), bases, null);
+            }
+            DNASegment dna = doc.dna();
+            if (dna == null)
+                throw new IllegalArgumentException("Document has no DNA segment");
+            return new Bases(dna.sequence.length(), "circular".equals(dna.topology),
+                    "double-stranded".equals(dna.strandedness), null, dna.sequence);
+        }
+
+        void copy(int from, int n, byte[] dst)
+        {
+            if (raw != null)
+                raw.get(from, dst, 0, n);
+            else
+                sequence.getBytes(from, from + n, dst, 0);
+        }
+    }
+
+    /** Per-thread buffers: the output buffer, a block of bases and a line being built. */
+    private static final class Scratch
+    {
+        final ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        // a multiple of both line lengths
+        final byte[] block = new byte[60 * 1024];
+        private final StringBuilder line = new StringBuilder(256);
+        private final Output output = new Output(this);
+
+        Output output(WritableByteChannel channel)
+        {
+            buf.clear();
+            output.channel = channel;
+            output.written = 0;
+            return output;
+        }
+
+        StringBuilder line()
+        {
+            line.setLength(0);
+            // a long note can grow the builder; do not keep it that large
+            if (line.capacity() > 64 * 1024)
+                line.trimToSize();
+            return line;
+        }
+    }
+
+    /** Writes through the per-thread buffer, flushing it to the channel when full. */
+    private static final class Output
+    {
+        final Scratch scratch;
+        final ByteBuffer buf;
+        WritableByteChannel channel;
+        long written;
+
+        Output(Scratch scratch) {
+            this.scratch = scratch;
+            this.buf = scratch.buf;
+        }
+
+        void ensure(int n) throws IOException
+        {
+            if (buf.remaining() < n)
+                flush();
+        }
+
+        void put(char c) throws IOException
+        {
+            ensure(1);
+            buf.put((byte) c);
+        }
+
+        void spaces(int n) throws IOException
+        {
+            ensure(n);
+            for (int i = 0; i < n; i++)
+                buf.put((byte) ' ');
+        }
+
+        void ascii(String s) throws IOException
+        {
+            ensure(s.length());
+            for (int i = 0; i < s.length(); i++)
+                buf.put((byte) s.charAt(i));
+        }
+
+        void text(CharSequence s) throws IOException
+        {
+            text(s, 0, s.length());
+        }
+
+        /** Writes chars [from, to) as UTF-8. */
+        void text(CharSequence s, int from, int to) throws IOException
+        {
+            for (int i = from; i < to; i++)
+            {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    ensure(1);
+                    buf.put((byte) c);
+                    continue;
+                }
+                int end = Character.isHighSurrogate(c) && i + 1 < to ? i + 2 : i + 1;
+                byte[] utf8 = s.subSequence(i, end).toString().getBytes(StandardCharsets.UTF_8);
+                ensure(utf8.length);
+                buf.put(utf8);
+                i = end - 1;
+            }
+        }
+
+        /** Writes a non-negative number right-aligned in width columns. */
+        void number(int v, int width) throws IOException
+        {
+            int digits = 1;
+            for (int x = v; x >= 10; x /= 10)
+                digits++;
+            ensure(Math.max(width, digits));
+            for (int i = digits; i < width; i++)
+                buf.put((byte) ' ');
+            int end = buf.position() + digits;
+            for (int p = end - 1; p >= end - digits; p--, v /= 10)
+                buf.put(p, (byte) ('0' + v % 10));
+            buf.position(end);
+        }
+
+        void flush() throws IOException
+        {
+            buf.flip();
+            while (buf.hasRemaining())
+                written += channel.write(buf);
+            buf.clear();
+        }
+
+        long finish() throws IOException
+        {
+            flush();
+            channel = null;
+            return written;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.robojudo;
+
+/**
+ * The loops behind {@link SequenceAnalytics}, over ASCII bases in a byte array. Case is ignored throughout.
+ *
+ * {@link #SCALAR} runs everywhere; the Vector API implementation is only used when the jdk.incubator.vector
+ * module is resolved (java --add-modules jdk.incubator.vector) and not disabled with -Dsnapgene.vector=false.
+ * Both give identical results.
+ */
+abstract class SequenceKernels
+{
+    static final SequenceKernels SCALAR = new Scalar();
+    // null when the Vector API is not available
+    static final SequenceKernels VECTOR = loadVector();
+    static final SequenceKernels DEFAULT = VECTOR != null && Boolean.parseBoolean(System.getProperty("snapgene.vector", "true"))
+            ? VECTOR : SCALAR;
+
+    abstract String name();
+
+    /** Number of C and G bases in a[from, to). */
+    abstract int gcCount(byte[] a, int from, int to);
+
+    /** Adds the number of A, C, G and T bases in a[from, to) to counts[0..3]. */
+    abstract void composition(byte[] a, int from, int to, long[] counts);
+
+    /** Reports each run of one repeated base in a[from, to) to {@link #run}. */
+    abstract void runs(byte[] a, int from, int to, int minLength, SequenceAnalytics.Runs out);
+
+    /** Writes the reverse complement of src[from, to) to dst starting at dstBegin. */
+    abstract void reverseComplement(byte[] src, int from, int to, byte[] dst, int dstBegin);
+
+    static int fold(byte b)
+    {
+        return b & 0xDF;
+    }
+
+    /** Keeps the run a[start, end) if it is long enough and of a single A, C, G or T. */
+    static void run(byte[] a, int start, int end, int minLength, SequenceAnalytics.Runs out)
+    {
+        if (end - start < minLength)
+            return;
+        int base = fold(a[start]);
+        if (base == 'A' || base == 'C' || base == 'G' || base == 'T')
+            out.add(start, end - start, (byte) base);
+    }
+
+    private static SequenceKernels loadVector()
+    {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return null;
+        try {
+            return (SequenceKernels) Class.forName("com.robojudo.VectorKernels").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    static final class Scalar extends SequenceKernels
+    {
+        @Override
+        String name()
+        {
+            return "scalar";
+        }
+
+        @Override
+        int gcCount(byte[] a, int from, int to)
+        {
+            int n = 0;
+            for (int i = from; i < to; i++)
+            {
+                int b = fold(a[i]);
+                if (b == 'C' || b == 'G')
+                    n++;
+            }
+            return n;
+        }
+
+        @Override
+        void composition(byte[] a, int from, int to, long[] counts)
+        {
+            long na = 0, nc = 0, ng = 0, nt = 0;
+            for (int i = from; i < to; i++)
+            {
+                switch (fold(a[i]))
+                {
+                    case 'A': na++; break;
+                    case 'C': nc++; break;
+                    case 'G': ng++; break;
+                    case 'T': nt++; break;
+                    default:
+                }
+            }
+            counts[0] += na;
+            counts[1] += nc;
+            counts[2] += ng;
+            counts[3] += nt;
+        }
+
+        @Override
+        void runs(byte[] a, int from, int to, int minLength, SequenceAnalytics.Runs out)
+        {
+            if (from >= to)
+                return;
+            int start = from;
+            for (int i = from + 1; i < to; i++)
+            {
+                if (fold(a[i]) != fold(a[i - 1])) {
+                    run(a, start, i, minLength, out);
+                    start = i;
+                }
+            }
+            run(a, start, to, minLength, out);
+        }
+
+        @Override
+        void reverseComplement(byte[] src, int from, int to, byte[] dst, int dstBegin)
+        {
+            for (int i = to - 1, j = dstBegin; i >= from; i--, j++)
+                dst[j] = PackedSequence.complement(src[i]);
+        }
+    }
+}
@@ -8,139 +8,123 @@ import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.charset.Charset;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.*;
 import java.util.stream.Collectors;
 
 public class SnapGene
 {
     public static void main(String[] args) throws IOException {
-        FileVisitor<Path> visitor = new SimpleFileVisitor<Path>() {
-            @Override
-            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                if (file.getFileName().toString().endsWith(".dna"))
-                {
-                    System.out.println("parsing: " + file.toString());
-                    FileInputStream fis = new FileInputStream(file.toFile());
-                    boolean negativeTest = file.getFileName().toString().startsWith("bad_");
-                    if (negativeTest) {
-                        try {
-                            SnapGeneDoc doc = parse(fis);
-                        }
-                        catch (Exception e) {
-                            System.out.println("Caught expected exception parsing negative test case: " + e.toString());
-                            e.printStackTrace();
-                        }
-                    }
-                    else {
-                        SnapGeneDoc doc = parse(fis);
-                    }
+        // -Dsnapgene.stats=true prints per-segment-type timings and publishes them over JMX while running
+        ParseStats stats = Boolean.getBoolean("snapgene.stats") ? new ParseStats() : null;
+        SnapGeneBatch.Builder builder = SnapGeneBatch.builder();
+        if (stats != null) {
+            stats.register("main");
+            builder.parser(SnapGeneParser.builder().listener(stats).build()::parse);
+        }
+        SnapGeneBatch batch = builder.build();
+        SnapGeneBatch.Summary summary = batch.run(Paths.get(args[0]), result -> {
+            synchronized (System.out) {
+                System.out.println("parsed: " + result.path);
+                if (result.error == null) {
+                    if (result.negativeTest)
+                        System.out.println("Expected exception parsing negative test case " + result.path + ", but it parsed");
+                }
+                else if (result.negativeTest) {
+                    System.out.println("Caught expected exception parsing negative test case " + result.path + ": " + result.error);
+                }
+                else {
+                    System.out.println("Error parsing " + result.path + ": " + result.error);
+                    result.error.printStackTrace(System.out);
                 }
-                return FileVisitResult.CONTINUE;
             }
-        };
-
-        Path p = Paths.get(args[0]);
-        Files.walkFileTree(p, visitor);
+        });
+        System.out.println(summary);
+        if (stats != null)
+            System.out.print(stats);
+        if (summary.failures > 0)
+            System.exit(1);
     }
 
 
     public static SnapGeneDoc parse(InputStream is) throws IOException {
+        return SnapGeneParser.DEFAULT.parse(is);
+    }
 
-        SnapGeneDoc doc = new SnapGeneDoc();
-
-        byte[] bs = new byte[5];
-        while (true)
-        {
-            int count = is.read(bs);
-            if (count != 5)
-                break;
+    /** Maps the file and parses it; see {@link SnapGeneParser#parse(FileChannel)}. */
+    public static SnapGeneDoc parse(Path path) throws IOException {
+        return SnapGeneParser.DEFAULT.parse(path);
+    }
 
-            int type = bs[0];
-            int len = ByteBuffer.wrap(bs, 1, 4).getInt();
+    public static SnapGeneDoc parse(FileChannel ch) throws IOException {
+        return SnapGeneParser.DEFAULT.parse(ch);
+    }
 
-            byte[] data = new byte[len];
-            if (len != is.read(data))
-                throw new IllegalArgumentException("Expected " + len + " bytes");
+    public static SnapGeneDoc parse(ByteBuffer buf) {
+        return SnapGeneParser.DEFAULT.parse(buf);
+    }
 
-            Segment seg;
-            switch (type)
-            {
-                case 0: {
-                    if (doc.dna != null)
-                        throw new IllegalArgumentException("Duplicate DNA segment");
-                    seg = doc.dna = DNASegment.parse(data);
-                    break;
-                }
+    public static SnapGeneDoc index(Path path) throws IOException {
+        return SnapGeneParser.DEFAULT.index(path);
+    }
 
-                // TODO
-//                case 5:  seg = PrimersSegment.parse(data);           break;
+    public static SnapGeneDoc index(FileChannel ch) throws IOException {
+        return SnapGeneParser.DEFAULT.index(ch);
+    }
 
-                case 6: {
-                    if (doc.notes != null)
-                        throw new IllegalArgumentException("Duplicate notes segment");
-                    seg = doc.notes = NotesSegment.parse(data);
-                    break;
-                }
+    /** Indexes segments for on-demand decoding; see {@link SnapGeneParser#index(ByteBuffer)}. */
+    public static SnapGeneDoc index(ByteBuffer buf) {
+        return SnapGeneParser.DEFAULT.index(buf);
+    }
 
-                // TODO
-//                case 8:  seg = PropertiesSegment.parse(data);        break;
+    static Document createDocument(String xml)
+    {
+        return createDocument(new InputSource(new StringReader(xml)));
+    }
 
-                case 9: {
-                    if (doc.desc != null)
-                        throw new IllegalArgumentException("Duplicate description segment");
-                    seg = doc.desc = DescriptionSegment.parse(data);
-                    break;
-                }
+    /** Parses UTF-8 XML straight from the segment bytes without decoding to a String first. */
+    static Document createDocument(ByteBuffer data)
+    {
+        InputSource source = new InputSource(new ByteBufferInputStream(data));
+        source.setEncoding("UTF-8");
+        return createDocument(source);
+    }
 
-                case 10: {
-                    if (doc.features != null)
-                        throw new IllegalArgumentException("Duplicate features segment");
-                    seg = doc.features = FeaturesSegment.parse(data);
-                    break;
-                }
+    private static final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
 
-                // Unsupported segments
-                case 1: // Compressed DNA (internal to History Tree segment)
-                case 7: // History Tree
-                case 11: // History Node (internal to History Tree segment)
-                case 16: // Alignable Sequence (contains internal segments)
-                case 17: // Alignable Sequences Summary
-                case 18: // Sequence Trace (internal to Alignable Sequence segment (type=16))
-                case 19: // Uracil Positions
-                case 20: // Custom DNA Colors
-                default: {
-                    seg = UnsupportedSegment.parse(type, data);
-                    break;
-                }
+    // DocumentBuilder is not thread-safe, so each thread keeps its own and resets it between documents
+    private static final ThreadLocal<DocumentBuilder> documentBuilder = ThreadLocal.withInitial(() -> {
+        try {
+            synchronized (documentBuilderFactory) {
+                return documentBuilderFactory.newDocumentBuilder();
             }
-
-            // collect all segments in order
-            doc.segments.add(seg);
+        } catch (ParserConfigurationException e) {
+            throw new IllegalStateException(e);
         }
+    });
 
-        if (doc.desc == null)
-            throw new IllegalArgumentException("SnapGene description segment not found");
-
-        return doc;
-    }
-
-    static Document createDocument(String xml)
+    private static Document createDocument(InputSource source)
     {
+        DocumentBuilder db = documentBuilder.get();
         try {
-            DocumentBuilder db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-            return db.parse(new InputSource(new StringReader(xml)));
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            return db.parse(source);
+        } catch (SAXException | IOException e) {
             throw new IllegalArgumentException("Error parsing XML", e);
+        } finally {
+            db.reset();
         }
     }
 
@@ -237,9 +221,10 @@ public class SnapGene
         return null;
     }
 
+    // usually there are none, so no set is allocated unless one is found
     static Set<String> getOtherAttributeNames(Element el, Set<String> except)
     {
-        Set<String> attrs = new HashSet<>();
+        Set<String> attrs = null;
         NamedNodeMap nnm = el.getAttributes();
         int len = nnm.getLength();
         for (int i = 0; i < len; i++)
@@ -250,44 +235,167 @@ public class SnapGene
                 String name = ((Attr)node).getName();
                 if (except.contains(name))
                     continue;
+                if (attrs == null)
+                    attrs = new HashSet<>();
                 attrs.add(name);
             }
         }
-        return attrs;
+        return attrs == null ? Collections.emptySet() : attrs;
     }
 
+    /** Renders the element's start tag and its attributes, for error messages. */
     static String toXMLString(Element el)
     {
-        Transformer transformer;
+        StringBuilder sb = new StringBuilder("<").append(el.getTagName());
+        NamedNodeMap attrs = el.getAttributes();
+        for (int i = 0, len = attrs.getLength(); i < len; i++)
+        {
+            sb.append(' ').append(attrs.item(i).getNodeName()).append("=\"");
+            escape(sb, attrs.item(i).getNodeValue()).append('"');
+        }
+        return sb.append(">").toString();
+    }
+
+    /** Renders the current start element and its attributes, for error messages. */
+    static String toXMLString(XMLStreamReader r)
+    {
+        StringBuilder sb = new StringBuilder("<").append(r.getLocalName());
+        for (int i = 0, len = r.getAttributeCount(); i < len; i++)
+        {
+            sb.append(' ').append(r.getAttributeLocalName(i)).append("=\"");
+            escape(sb, r.getAttributeValue(i)).append('"');
+        }
+        return sb.append(">").toString();
+    }
+
+    /** Appends an attribute value with the characters that are special in XML replaced by entities. */
+    static StringBuilder escape(StringBuilder sb, String value)
+    {
+        for (int i = 0, len = value.length(); i < len; i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '&': sb.append("&amp;"); break;
+                case '<': sb.append("&lt;"); break;
+                case '>': sb.append("&gt;"); break;
+                case '"': sb.append("&quot;"); break;
+                case '\'': sb.append("&apos;"); break;
+                case '\n': sb.append("&#10;"); break;
+                case '\r': sb.append("&#13;"); break;
+                case '\t': sb.append("&#9;"); break;
+                default: sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    /**
+     * Deals with the unknown attributes of the current element, collected as name/value pairs. Strict
+     * parsing rejects them; lenient parsing reports each one and returns them to be kept in the model.
+     */
+    static String[] keepOtherAttributes(XMLStreamReader r, List<String> pairs, boolean strict, Diagnostics.Reporter reporter, String path)
+    {
+        if (strict)
+        {
+            StringJoiner names = new StringJoiner(", ");
+            for (int i = 0; i < pairs.size(); i += 2)
+                names.add(pairs.get(i));
+            throw new IllegalArgumentException("Unsupported attributes: " + names + "\n" + toXMLString(r));
+        }
+
+        String[] ret = pairs.toArray(new String[0]);
+        for (int i = 0; i < ret.length; i += 2)
+        {
+            ret[i] = Symbols.intern(ret[i]);
+            if (reporter != null)
+                reporter.report(path, ret[i], "Unknown attribute kept");
+        }
+        return ret;
+    }
+
+    static Map<String, String> attributeMap(String[] pairs)
+    {
+        if (pairs == null)
+            return Collections.emptyMap();
+        if (pairs.length == 2)
+            return Collections.singletonMap(pairs[0], pairs[1]);
+
+        Map<String, String> ret = new LinkedHashMap<>();
+        for (int i = 0; i < pairs.length; i += 2)
+            ret.put(pairs[i], pairs[i + 1]);
+        return Collections.unmodifiableMap(ret);
+    }
+
+    private static final XMLInputFactory xmlInputFactory = createXMLInputFactory();
+
+    private static XMLInputFactory createXMLInputFactory()
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
+
+    /** Creates a pull parser reading UTF-8 XML straight from the segment bytes. */
+    static XMLStreamReader createStreamReader(ByteBuffer data)
+    {
+        return createStreamReader(new ByteBufferInputStream(data));
+    }
+
+    static XMLStreamReader createStreamReader(InputStream in)
+    {
         try {
-            transformer = TransformerFactory.newInstance().newTransformer();
-        } catch (TransformerConfigurationException e) {
-            throw new RuntimeException(e);
+            return xmlInputFactory.createXMLStreamReader(in, "UTF-8");
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Error parsing XML", e);
         }
-        transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    }
 
-        StreamResult result = new StreamResult(new StringWriter());
-        DOMSource source = new DOMSource(el);
+    static void closeQuietly(XMLStreamReader r)
+    {
         try {
-            transformer.transform(source, result);
-        } catch (TransformerException e) {
-            throw new RuntimeException(e);
+            r.close();
+        } catch (XMLStreamException e) {
+            // ignore
         }
+    }
 
-        return result.getWriter().toString();
+    /** Skips the rest of the current element, leaving the reader on its end element. */
+    static void skipElement(XMLStreamReader r) throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0)
+        {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
     }
 
+    /** Reads the current element's text, keeping the previous value if the element was already seen. */
+    static String firstText(XMLStreamReader r, String current) throws XMLStreamException
+    {
+        String text = r.getElementText();
+        return current != null ? current : text;
+    }
+
+
+    // accepts both "2019.3.4" and "2019.03.04"
+    private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("uuuu.M.d", Locale.ROOT);
 
     private static Date parseDate(String dateStr)
     {
         if (dateStr == null)
             return null;
 
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy.MM.dd");
         try {
-            return sdf.parse(dateStr);
-        } catch (ParseException e) {
+            LocalDate date = LocalDate.parse(dateStr.trim(), dateFormat);
+            return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+        } catch (DateTimeParseException e) {
             throw new IllegalArgumentException(e);
         }
     }
@@ -301,6 +409,34 @@ public class SnapGene
         return "1".equals(boolStr);
     }
 
+    // Stands in for an absent optional int attribute in the compact model classes
+    static final int NO_VALUE = Integer.MIN_VALUE;
+
+    // Optional booleans are packed in two bits: 0 if absent, 1 if false, 2 if true
+    private static int packBool(String boolStr)
+    {
+        if (boolStr == null)
+            return 0;
+
+        return "1".equals(boolStr) ? 2 : 1;
+    }
+
+    private static int packBool(Boolean b)
+    {
+        if (b == null)
+            return 0;
+
+        return b ? 2 : 1;
+    }
+
+    private static Boolean unpackBool(int bits)
+    {
+        if (bits == 0)
+            return null;
+
+        return bits == 2;
+    }
+
     private static Integer parseInt(String intStr)
     {
         if (intStr == null)
@@ -325,33 +461,797 @@ public class SnapGene
         catch (NumberFormatException e) {
             throw new IllegalArgumentException(e);
         }
-    }
+    }
+
+    static class SnapGeneDoc
+    {
+        DescriptionSegment desc;
+        volatile DNASegment dna;
+        volatile NotesSegment notes;
+        volatile FeaturesSegment features;
+        volatile List<Segment> segments;
+        private volatile HistoryTree history;
+        // replaced by a collector of its own when parsed leniently
+        Diagnostics diagnostics = Diagnostics.NONE;
+
+        // Only set for indexed documents; segments are then decoded on first access.
+        private final SnapGeneParser parser;
+        private final ByteBuffer source;
+        private final SegmentIndex index;
+
+        SnapGeneDoc()
+        {
+            this.parser = null;
+            this.source = null;
+            this.index = null;
+            this.segments = new ArrayList<>(10);
+        }
+
+        SnapGeneDoc(SnapGeneParser parser, ByteBuffer source, SegmentIndex index)
+        {
+            this.parser = parser;
+            this.source = source;
+            this.index = index;
+            if (!parser.isStrict())
+                this.diagnostics = new Diagnostics(parser.maxDiagnostics());
+
+            int i = index.find(DescriptionSegment.TYPE);
+            if (i != -1)
+                this.desc = (DescriptionSegment) parser.decode(DescriptionSegment.TYPE, index.slice(source, i));
+        }
+
+        public boolean isLazy()
+        {
+            return index != null;
+        }
+
+        // true if an eagerly parsed document already holds a decoded segment of this type
+        boolean has(int type)
+        {
+            switch (type)
+            {
+                case DNASegment.TYPE:         return dna != null;
+                case NotesSegment.TYPE:       return notes != null;
+                case DescriptionSegment.TYPE: return desc != null;
+                case FeaturesSegment.TYPE:    return features != null;
+                default:                      return false;
+            }
+        }
+
+        /**
+         * Problems recorded by lenient parsing. Empty for strictly parsed documents, which fail instead.
+         * For a lazy document this grows as segments are decoded.
+         */
+        public Diagnostics diagnostics()
+        {
+            return diagnostics;
+        }
+
+        /** Segment index of a lazy document, or null if the document was parsed eagerly. */
+        public SegmentIndex index()
+        {
+            return index;
+        }
+
+        public DescriptionSegment desc()
+        {
+            return desc;
+        }
+
+        public DNASegment dna()
+        {
+            DNASegment seg = dna;
+            if (seg == null && index != null)
+            {
+                synchronized (this)
+                {
+                    if ((seg = dna) == null)
+                        dna = seg = (DNASegment) decode(DNASegment.TYPE);
+                }
+            }
+            return seg;
+        }
+
+        public NotesSegment notes()
+        {
+            NotesSegment seg = notes;
+            if (seg == null && index != null)
+            {
+                synchronized (this)
+                {
+                    if ((seg = notes) == null)
+                        notes = seg = (NotesSegment) decode(NotesSegment.TYPE);
+                }
+            }
+            return seg;
+        }
+
+        public FeaturesSegment features()
+        {
+            FeaturesSegment seg = features;
+            if (seg == null && index != null)
+            {
+                synchronized (this)
+                {
+                    if ((seg = features) == null)
+                        features = seg = (FeaturesSegment) decode(FeaturesSegment.TYPE);
+                }
+            }
+            return seg;
+        }
+
+        /**
+         * The edit history of the construct, or null if the file has none. The tree is read on first access;
+         * sequences of earlier states are only decoded when asked for.
+         */
+        public HistoryTree history()
+        {
+            HistoryTree tree = history;
+            if (tree == null)
+            {
+                synchronized (this)
+                {
+                    if ((tree = history) == null)
+                        history = tree = readHistory();
+                }
+            }
+            return tree;
+        }
+
+        private HistoryTree readHistory()
+        {
+            List<UnsupportedSegment> trees = rawSegments(HistoryTreeSegment.TYPE);
+            if (trees.isEmpty())
+                return null;
+
+            UnsupportedSegment first = trees.get(0);
+            HistoryTree tree = first instanceof HistoryTreeSegment ? ((HistoryTreeSegment) first).tree : HistoryTree.parse(first.data);
+            List<HistoryNodeSegment> states = new ArrayList<>();
+            for (UnsupportedSegment seg : rawSegments(HistoryNodeSegment.TYPE))
+                states.add(seg instanceof HistoryNodeSegment ? (HistoryNodeSegment) seg : HistoryNodeSegment.parse(seg.data));
+            return tree.withStates(states);
+        }
+
+        /** The reads aligned to the construct, without their traces, or null if the file lists none. */
+        public AlignableSequencesSegment alignableSequences()
+        {
+            List<UnsupportedSegment> list = rawSegments(AlignableSequencesSegment.TYPE);
+            if (list.isEmpty())
+                return null;
+            UnsupportedSegment seg = list.get(0);
+            return seg instanceof AlignableSequencesSegment ? (AlignableSequencesSegment) seg : AlignableSequencesSegment.parse(seg.data);
+        }
+
+        /** The primers saved with the construct, or null if the file has none. */
+        public PrimersSegment primers()
+        {
+            List<UnsupportedSegment> list = rawSegments(PrimersSegment.TYPE);
+            if (list.isEmpty())
+                return null;
+            UnsupportedSegment seg = list.get(0);
+            return seg instanceof PrimersSegment ? (PrimersSegment) seg : PrimersSegment.parse(seg.data);
+        }
+
+        /** The aligned reads in file order. Only their payloads are referenced; call trace() to decode one. */
+        public List<AlignableSequenceSegment> traces()
+        {
+            List<AlignableSequenceSegment> ret = new ArrayList<>();
+            for (UnsupportedSegment seg : rawSegments(AlignableSequenceSegment.TYPE))
+                ret.add(seg instanceof AlignableSequenceSegment ? (AlignableSequenceSegment) seg : AlignableSequenceSegment.parse(seg.data));
+            return ret;
+        }
+
+        // Segments of a type the parser does not decode by default, whether it was asked to or not.
+        // A lazy document slices them from the index rather than decoding every segment.
+        private List<UnsupportedSegment> rawSegments(int type)
+        {
+            List<UnsupportedSegment> ret = new ArrayList<>();
+            if (segments == null)
+            {
+                for (int i = 0; i < index.size(); i++)
+                    if (index.type(i) == type)
+                        ret.add(UnsupportedSegment.parse(type, index.slice(source, i)));
+            }
+            else
+            {
+                for (Segment seg : segments)
+                    if (seg instanceof UnsupportedSegment && ((UnsupportedSegment) seg).type == type)
+                        ret.add((UnsupportedSegment) seg);
+            }
+            return ret;
+        }
+
+        /** Either "circular" or "linear", read from the DNA segment flags without decoding the sequence. */
+        public String topology()
+        {
+            DNASegment seg = dna;
+            if (seg != null)
+                return seg.topology;
+            if (index == null)
+                return null;
+
+            int i = index.find(DNASegment.TYPE);
+            if (i == -1 || index.length(i) == 0)
+                return null;
+            return DNASegment.topology(source.get(index.offset(i)));
+        }
+
+        /**
+         * The payload of a lazy document's DNA segment, flags byte first, while the segment is not decoded;
+         * otherwise null. Lets exporters read the ASCII bases without packing them.
+         */
+        ByteBuffer rawDna()
+        {
+            if (dna != null || index == null)
+                return null;
+            int i = index.find(DNASegment.TYPE);
+            return i == -1 || index.length(i) == 0 ? null : index.slice(source, i);
+        }
+
+        /** All segments in file order. For a lazy document this decodes every segment. */
+        public List<Segment> segments()
+        {
+            List<Segment> ret = segments;
+            if (ret == null)
+            {
+                synchronized (this)
+                {
+                    if ((ret = segments) == null)
+                    {
+                        List<Segment> list = new ArrayList<>(index.size());
+                        for (int i = 0; i < index.size(); i++)
+                        {
+                            int type = index.type(i);
+                            boolean first = index.find(type) == i;
+                            if (!SnapGeneParser.isSingleton(type) || !parser.decodes(type))
+                                list.add(parser.decode(type, index.slice(source, i), reporter(i)));
+                            else if (!first)
+                                list.add(parser.raw(type, index.slice(source, i)));
+                            else switch (type)
+                            {
+                                case DNASegment.TYPE:         list.add(dna());      break;
+                                case NotesSegment.TYPE:       list.add(notes());    break;
+                                case DescriptionSegment.TYPE: list.add(desc);       break;
+                                case FeaturesSegment.TYPE:    list.add(features()); break;
+                            }
+                        }
+                        segments = ret = Collections.unmodifiableList(list);
+                    }
+                }
+            }
+            return ret;
+        }
+
+        private Segment decode(int type)
+        {
+            int i = index.find(type);
+            if (i == -1 || !parser.decodes(type))
+                return null;
+
+            return parser.decode(type, index.slice(source, i), reporter(i));
+        }
+
+        private Diagnostics.Reporter reporter(int i)
+        {
+            return parser.isStrict() ? null : diagnostics.reporter(index.type(i), index.offset(i));
+        }
+    }
+
+    /** Compact table of (type, offset, length) for each segment, in file order. */
+    static class SegmentIndex
+    {
+        private byte[] types = new byte[8];
+        private int[] offsets = new int[8];
+        private int[] lengths = new int[8];
+        private int size;
+
+        void add(int type, int offset, int length)
+        {
+            if (size == types.length)
+            {
+                types = Arrays.copyOf(types, size * 2);
+                offsets = Arrays.copyOf(offsets, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            types[size] = (byte) type;
+            offsets[size] = offset;
+            lengths[size] = length;
+            size++;
+        }
+
+        public int size()
+        {
+            return size;
+        }
+
+        public int type(int i)
+        {
+            return types[i];
+        }
+
+        // offset of the segment payload, just past its 5-byte header
+        public int offset(int i)
+        {
+            return offsets[i];
+        }
+
+        public int length(int i)
+        {
+            return lengths[i];
+        }
+
+        /** Returns the position of the first segment of the given type, or -1. */
+        public int find(int type)
+        {
+            for (int i = 0; i < size; i++)
+                if (types[i] == type)
+                    return i;
+            return -1;
+        }
+
+        ByteBuffer slice(ByteBuffer source, int i)
+        {
+            return source.slice(offsets[i], lengths[i]);
+        }
+    }
+
+    abstract static class Segment
+    {
+    }
+
+    /** Reads the remaining bytes of a buffer without copying them out first. */
+    static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer bb;
+
+        public ByteBufferInputStream(ByteBuffer bb) {
+            this.bb = bb.duplicate();
+        }
+
+        @Override
+        public int read()
+        {
+            return bb.hasRemaining() ? bb.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+                return 0;
+            if (!bb.hasRemaining())
+                return -1;
+            int n = Math.min(len, bb.remaining());
+            bb.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n)
+        {
+            int k = (int) Math.max(0, Math.min(n, bb.remaining()));
+            bb.position(bb.position() + k);
+            return k;
+        }
+
+        @Override
+        public int available()
+        {
+            return bb.remaining();
+        }
+    }
+
+    static class UnsupportedSegment extends Segment
+    {
+        public int type;
+        // read-only view of the segment payload; a slice of the source when mapped
+        public ByteBuffer data;
+
+        public static UnsupportedSegment parse(int type, byte[] data)
+        {
+            return parse(type, ByteBuffer.wrap(data));
+        }
+
+        public static UnsupportedSegment parse(int type, ByteBuffer data)
+        {
+            UnsupportedSegment seg = new UnsupportedSegment();
+            seg.type = type;
+            seg.data = data.asReadOnlyBuffer();
+            return seg;
+        }
+    }
+
+    /**
+     * History Tree segment: the edit history of the construct. The payload is kept, so the segment is cached
+     * and rewritten byte for byte.
+     */
+    static class HistoryTreeSegment extends UnsupportedSegment
+    {
+        public static final int TYPE = 7;
+
+        public HistoryTree tree;
+
+        public static HistoryTreeSegment parse(ByteBuffer data)
+        {
+            HistoryTreeSegment seg = new HistoryTreeSegment();
+            seg.type = TYPE;
+            seg.data = data.asReadOnlyBuffer();
+            seg.tree = HistoryTree.parse(data);
+            return seg;
+        }
+    }
+
+    /**
+     * History Node segment: a stored state of one node of the history tree. Only the node ID is read up front;
+     * the sequence is decoded from the payload each time {@link #sequence()} is called.
+     */
+    static class HistoryNodeSegment extends UnsupportedSegment
+    {
+        public static final int TYPE = 11;
+
+        public int nodeId;
+
+        public static HistoryNodeSegment parse(ByteBuffer data)
+        {
+            if (data.remaining() < 4)
+                throw new IllegalArgumentException("Expected history node ID");
+
+            HistoryNodeSegment seg = new HistoryNodeSegment();
+            seg.type = TYPE;
+            seg.data = data.asReadOnlyBuffer();
+            seg.nodeId = data.getInt(data.position());
+            return seg;
+        }
+
+        /** The sequence of this state, or null if it stores none. */
+        public PackedSequence sequence()
+        {
+            return HistoryTree.sequence(data);
+        }
+    }
+
+    /**
+     * Alignable Sequence segment: one read aligned to the construct. Its Sequence Trace (type 18) is found
+     * in the payload after a 4-byte header, framed like the segments of the file, unless the payload is
+     * itself a ZTR trace. Nothing is decoded until {@link #trace()} is called, so opening a file with many
+     * reads stays cheap.
+     */
+    static class AlignableSequenceSegment extends UnsupportedSegment
+    {
+        public static final int TYPE = 16;
+        static final int SEQUENCE_TRACE = 18;
+
+        public static AlignableSequenceSegment parse(ByteBuffer data)
+        {
+            AlignableSequenceSegment seg = new AlignableSequenceSegment();
+            seg.type = TYPE;
+            seg.data = data.asReadOnlyBuffer();
+            return seg;
+        }
+
+        /** Decodes the chromatogram of this read onto the heap, or returns null if it has none. */
+        public Chromatogram trace()
+        {
+            return trace(false);
+        }
+
+        public Chromatogram trace(boolean offHeap)
+        {
+            ByteBuffer ztr = traceData();
+            return ztr == null ? null : Chromatogram.decode(ztr, offHeap);
+        }
+
+        /** The ZTR bytes of the read's trace, or null. */
+        ByteBuffer traceData()
+        {
+            if (Chromatogram.isZtr(data))
+                return data.duplicate();
+
+            ByteBuffer bb = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+            if (bb.remaining() < 4)
+                return null;
+            bb.position(bb.position() + 4);
+            while (bb.remaining() >= 5)
+            {
+                int type = bb.get();
+                int len = bb.getInt();
+                if (len < 0 || len > bb.remaining())
+                    throw new IllegalArgumentException("Invalid segment length in alignable sequence");
+                if (type == SEQUENCE_TRACE)
+                    return bb.slice(bb.position(), len);
+                bb.position(bb.position() + len);
+            }
+            return null;
+        }
+    }
+
+    /** Alignable Sequences Summary segment: the aligned reads listed by name, readable without their traces. */
+    static class AlignableSequencesSegment extends UnsupportedSegment
+    {
+        public static final int TYPE = 17;
+
+        public String trimStringency;
+        public List<Entry> sequences;
+
+        static class Entry
+        {
+            public final int id;
+            public final String name;
+            // false for reads without a chromatogram
+            public final boolean trace;
+            // false for reads excluded from the alignment
+            public final boolean used;
+            // e.g. "30..912"; null if not trimmed
+            public final String trimmedRange;
+            final String[] otherAttributes;
+
+            Entry(int id, String name, boolean trace, boolean used, String trimmedRange, String[] otherAttributes) {
+                this.id = id;
+                this.name = name;
+                this.trace = trace;
+                this.used = used;
+                this.trimmedRange = trimmedRange;
+                this.otherAttributes = otherAttributes;
+            }
+
+            public Map<String, String> otherAttributes()
+            {
+                return attributeMap(otherAttributes);
+            }
+
+            @Override
+            public String toString()
+            {
+                return id + " " + name;
+            }
+        }
+
+        /** Parses the segment in one forward pass with a StAX reader. */
+        public static AlignableSequencesSegment parse(ByteBuffer data)
+        {
+            AlignableSequencesSegment seg = new AlignableSequencesSegment();
+            seg.type = TYPE;
+            seg.data = data.asReadOnlyBuffer();
+            List<Entry> sequences = new ArrayList<>();
+            XMLStreamReader r = createStreamReader(data);
+            try {
+                while (r.hasNext())
+                {
+                    if (r.next() != XMLStreamConstants.START_ELEMENT)
+                        continue;
+                    if ("AlignableSequences".equals(r.getLocalName()))
+                        seg.trimStringency = r.getAttributeValue(null, "trimStringency");
+                    else if ("Sequence".equals(r.getLocalName()))
+                        sequences.add(parseEntry(r));
+                }
+            } catch (XMLStreamException e) {
+                throw new IllegalArgumentException("Error parsing XML", e);
+            } finally {
+                closeQuietly(r);
+            }
+            seg.sequences = Collections.unmodifiableList(sequences);
+            return seg;
+        }
+
+        private static Entry parseEntry(XMLStreamReader r)
+        {
+            int id = -1;
+            String name = null, trimmedRange = null;
+            boolean trace = false, used = true;
+            List<String> other = null;
+            for (int i = 0; i < r.getAttributeCount(); i++)
+            {
+                String value = r.getAttributeValue(i);
+                switch (r.getAttributeLocalName(i))
+                {
+                    case "ID":
+                        try {
+                            id = Integer.parseInt(value.trim());
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Invalid ID on alignable sequence: " + value, e);
+                        }
+                        break;
+                    case "name":         name = value; break;
+                    case "isTrace":      trace = "1".equals(value); break;
+                    case "use":          used = !"0".equals(value); break;
+                    case "trimmedRange": trimmedRange = value; break;
+                    default:
+                        if (other == null)
+                            other = new ArrayList<>();
+                        other.add(r.getAttributeLocalName(i));
+                        other.add(value);
+                }
+            }
+            return new Entry(id, name, trace, used, trimmedRange, other == null ? null : other.toArray(new String[0]));
+        }
+    }
+
+    /**
+     * Primers segment: the primers saved with the construct and the binding sites SnapGene found for them.
+     * {@link PrimerFinder} searches templates for binding sites of its own.
+     */
+    static class PrimersSegment extends UnsupportedSegment
+    {
+        public static final int TYPE = 5;
+
+        public final List<Primer> primers;
+        final String[] hybridizationParams;
+
+        PrimersSegment(List<Primer> primers, String[] hybridizationParams) {
+            this.primers = List.copyOf(primers);
+            this.hybridizationParams = hybridizationParams;
+        }
+
+        static class Primer
+        {
+            public final String name;
+            // 5' to 3'; may hold IUPAC ambiguity codes
+            public final String sequence;
+            public final String description;
+            public final List<BindingSite> bindingSites;
+            final String[] otherAttributes;
+
+            Primer(String name, String sequence, String description, List<BindingSite> bindingSites, String[] otherAttributes) {
+                this.name = name;
+                this.sequence = sequence;
+                this.description = description;
+                this.bindingSites = bindingSites;
+                this.otherAttributes = otherAttributes;
+            }
+
+            public Map<String, String> otherAttributes()
+            {
+                return attributeMap(otherAttributes);
+            }
+
+            @Override
+            public String toString()
+            {
+                return name + " " + sequence;
+            }
+        }
+
+        static class BindingSite
+        {
+            // 1-based and inclusive, parsed from the location; NO_VALUE if there is none
+            public final int start;
+            public final int end;
+            public final String location;
+            // 0 if the primer binds the top strand, 1 for the bottom strand
+            public final int boundStrand;
+            public final String annealedBases;
+            public final Double meltingTemperature;
+            final String[] otherAttributes;
+
+            BindingSite(String location, int boundStrand, String annealedBases, Double meltingTemperature, String[] otherAttributes) {
+                this.location = location;
+                this.boundStrand = boundStrand;
+                this.annealedBases = annealedBases;
+                this.meltingTemperature = meltingTemperature;
+                this.otherAttributes = otherAttributes;
+                int start = NO_VALUE, end = NO_VALUE;
+                if (location != null) {
+                    int sep = location.indexOf("..");
+                    int len = 2;
+                    if (sep == -1) {
+                        sep = location.indexOf('-');
+                        len = 1;
+                    }
+                    if (sep != -1) {
+                        try {
+                            start = Integer.parseInt(location, 0, sep, 10);
+                            end = Integer.parseInt(location, sep + len, location.length(), 10);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Invalid binding site location: " + location, e);
+                        }
+                    }
+                }
+                this.start = start;
+                this.end = end;
+            }
+
+            public Map<String, String> otherAttributes()
+            {
+                return attributeMap(otherAttributes);
+            }
+
+            @Override
+            public String toString()
+            {
+                return location + (boundStrand == 0 ? " top" : " bottom");
+            }
+        }
 
-    static class SnapGeneDoc
-    {
-        public DescriptionSegment desc;
-        public DNASegment dna;
-        public NotesSegment notes;
-        public FeaturesSegment features;
+        /** Parameters SnapGene used to find the binding sites, such as "minContinuousMatchLen". */
+        public Map<String, String> hybridizationParams()
+        {
+            return attributeMap(hybridizationParams);
+        }
 
-        public List<Segment> segments = new ArrayList<>(10);
-    }
+        private static final Set<String> PRIMER_ATTRIBUTES = Set.of("name", "sequence", "description");
+        private static final Set<String> BINDING_SITE_ATTRIBUTES = Set.of("location", "boundStrand", "annealedBases", "meltingTemperature");
 
-    abstract static class Segment
-    {
-    }
+        /** Parses the segment in one forward pass with a StAX reader. */
+        public static PrimersSegment parse(ByteBuffer data)
+        {
+            List<Primer> primers = new ArrayList<>();
+            String[] hybridizationParams = null;
+            XMLStreamReader r = createStreamReader(data);
+            try {
+                while (r.hasNext())
+                {
+                    if (r.next() != XMLStreamConstants.START_ELEMENT)
+                        continue;
+                    if ("Primer".equals(r.getLocalName()))
+                        primers.add(parsePrimer(r));
+                    else if ("HybridizationParams".equals(r.getLocalName()))
+                        hybridizationParams = attributes(r, null);
+                }
+            } catch (XMLStreamException e) {
+                throw new IllegalArgumentException("Error parsing XML", e);
+            } finally {
+                closeQuietly(r);
+            }
+            PrimersSegment seg = new PrimersSegment(primers, hybridizationParams);
+            seg.type = TYPE;
+            seg.data = data.asReadOnlyBuffer();
+            return seg;
+        }
 
-    static class UnsupportedSegment extends Segment
-    {
-        public int type;
-        public byte[] data;
+        private static Primer parsePrimer(XMLStreamReader r) throws XMLStreamException
+        {
+            String name = r.getAttributeValue(null, "name");
+            String sequence = r.getAttributeValue(null, "sequence");
+            String description = r.getAttributeValue(null, "description");
+            String[] other = attributes(r, PRIMER_ATTRIBUTES);
+
+            List<BindingSite> sites = new ArrayList<>(2);
+            int depth = 1;
+            while (depth > 0)
+            {
+                int event = r.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    if ("BindingSite".equals(r.getLocalName()))
+                        sites.add(parseBindingSite(r));
+                    else
+                        depth++;
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    depth--;
+                }
+            }
+            return new Primer(name, sequence, description, List.copyOf(sites), other);
+        }
 
-        public static UnsupportedSegment parse(int type, byte[] data)
+        // leaves the reader on the end of the BindingSite element; its Components are skipped
+        private static BindingSite parseBindingSite(XMLStreamReader r) throws XMLStreamException
         {
-            UnsupportedSegment seg = new UnsupportedSegment();
-            seg.type = type;
-            seg.data = data;
-            return seg;
+            String location = r.getAttributeValue(null, "location");
+            String boundStrand = r.getAttributeValue(null, "boundStrand");
+            String annealedBases = r.getAttributeValue(null, "annealedBases");
+            String meltingTemperature = r.getAttributeValue(null, "meltingTemperature");
+            String[] other = attributes(r, BINDING_SITE_ATTRIBUTES);
+            skipElement(r);
+            return new BindingSite(location, "1".equals(boundStrand) ? 1 : 0, annealedBases, parseDouble(meltingTemperature), other);
+        }
+
+        // name/value pairs of the current element's attributes, leaving out the known ones
+        private static String[] attributes(XMLStreamReader r, Set<String> known)
+        {
+            List<String> pairs = null;
+            for (int i = 0; i < r.getAttributeCount(); i++)
+            {
+                String name = r.getAttributeLocalName(i);
+                if (known != null && known.contains(name))
+                    continue;
+                if (pairs == null)
+                    pairs = new ArrayList<>();
+                pairs.add(name);
+                pairs.add(r.getAttributeValue(i));
+            }
+            return pairs == null ? null : pairs.toArray(new String[0]);
         }
     }
 
@@ -370,16 +1270,23 @@ public class SnapGene
             this.importVersion = importVersion;
         }
 
+        private static final byte[] MAGIC = "SnapGene".getBytes(StandardCharsets.US_ASCII);
+
         public static DescriptionSegment parse(byte[] data)
         {
-            if (data.length != 14)
+            return parse(ByteBuffer.wrap(data));
+        }
+
+        public static DescriptionSegment parse(ByteBuffer data)
+        {
+            if (data.remaining() != 14)
                 throw new IllegalArgumentException("Expected segment length of 14");
 
-            String name = new String(data, 0, 8, Charset.forName("US-ASCII"));
-            if (!name.equals("SnapGene"))
-                throw new IllegalArgumentException("Expected 'SnapGene' in description segment");
+            ByteBuffer bb = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+            for (byte b : MAGIC)
+                if (bb.get() != b)
+                    throw new IllegalArgumentException("Expected 'SnapGene' in description segment");
 
-            ByteBuffer bb = ByteBuffer.wrap(data, 8, 6);
             String type = bb.getShort() == 0 ? "unknown" : "DNA";
             short exportVersion = bb.getShort();
             short importVersion = bb.getShort();
@@ -399,9 +1306,10 @@ public class SnapGene
         public final boolean Dam;
         public final boolean Dcm;
         public final boolean EcoKI;
-        public final String sequence;
+        // 2 bits per base; use toString() for a String copy
+        public final PackedSequence sequence;
 
-        public DNASegment(String topology, String strandedness, boolean Dam, boolean Dcm, boolean EcoKI, String sequence) {
+        public DNASegment(String topology, String strandedness, boolean Dam, boolean Dcm, boolean EcoKI, PackedSequence sequence) {
             this.topology = topology;
             this.strandedness = strandedness;
             this.Dam = Dam;
@@ -412,17 +1320,46 @@ public class SnapGene
 
         public static DNASegment parse(byte[] data)
         {
-            byte flags = data[0];
-            String sequence = new String(data, 1, data.length-1, Charset.forName("US-ASCII"));
+            return parse(ByteBuffer.wrap(data));
+        }
+
+        public static DNASegment parse(ByteBuffer data)
+        {
+            if (!data.hasRemaining())
+                throw new IllegalArgumentException("Expected DNA segment flags");
+
+            int pos = data.position();
+            byte flags = data.get(pos);
+            PackedSequence sequence = PackedSequence.pack(data.slice(pos + 1, data.remaining() - 1));
+
+            return new DNASegment(topology(flags), strandedness(flags), dam(flags), dcm(flags), ecoKI(flags), sequence);
+        }
+
+        // Bits of the flags byte that starts the payload: 0 circular, 1 double-stranded, then methylation by
+        // Dam, Dcm and EcoKI. Exporters read them from a lazy document's payload without decoding the bases.
+        static String topology(byte flags)
+        {
+            return (flags & 1) != 0 ? "circular" : "linear";
+        }
+
+        static String strandedness(byte flags)
+        {
+            return (flags & 2) != 0 ? "double-stranded" : "single-stranded";
+        }
 
-            BitSet bs = BitSet.valueOf(new byte[] { flags });
-            String topology = bs.get(0) ? "circular" : "linear";
-            String strandedness = bs.get(1) ? "double-stranded" : "single-stranded";
-            boolean Dam = bs.get(2);
-            boolean Dcm = bs.get(3);
-            boolean EcoKI = bs.get(4);
+        static boolean dam(byte flags)
+        {
+            return (flags & 4) != 0;
+        }
+
+        static boolean dcm(byte flags)
+        {
+            return (flags & 8) != 0;
+        }
 
-            return new DNASegment(topology, strandedness, Dam, Dcm, EcoKI, sequence);
+        static boolean ecoKI(byte flags)
+        {
+            return (flags & 16) != 0;
         }
     }
 
@@ -439,6 +1376,26 @@ public class SnapGene
             this.journal = journal;
             this.authors = authors;
         }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Reference))
+                return false;
+            Reference that = (Reference) o;
+            return Objects.equals(title, that.title) &&
+                    Objects.equals(pubMedID, that.pubMedID) &&
+                    Objects.equals(journal, that.journal) &&
+                    Objects.equals(authors, that.authors);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(title, pubMedID, journal, authors);
+        }
     }
 
     static class NotesSegment extends Segment
@@ -498,11 +1455,23 @@ public class SnapGene
 
         public static NotesSegment parse(byte[] data)
         {
-            String s = new String(data, Charset.forName("UTF-8"));
-            return parse(createDocument(s));
+            return parse(ByteBuffer.wrap(data));
         }
 
-        private static NotesSegment parse(Document doc)
+        /** Parses the segment in one forward pass with a StAX reader. */
+        public static NotesSegment parse(ByteBuffer data)
+        {
+            XMLStreamReader r = createStreamReader(data);
+            try {
+                return parse(r);
+            } catch (XMLStreamException e) {
+                throw new IllegalArgumentException("Error parsing XML", e);
+            } finally {
+                closeQuietly(r);
+            }
+        }
+
+        public static NotesSegment parse(Document doc)
         {
             Element docEl = doc.getDocumentElement();
             if (!"Notes".equals(docEl.getTagName()))
@@ -521,7 +1490,7 @@ public class SnapGene
             String sequenceClass = getElementInnerText(docEl, "SequenceClass");
             String transformedInto = getElementInnerText(docEl, "TransformedInto");
             String customMapLabel = getElementInnerText(docEl, "CustomMapLabel");
-            Boolean useCustomMapLabel = parseBool(getElementInnerText(docEl, "CustomMapLabel"));
+            Boolean useCustomMapLabel = parseBool(getElementInnerText(docEl, "UseCustomMapLabel"));
             String comments = getElementInnerText(docEl, "Comments");
 
             List<Reference> references = new ArrayList<>(4);
@@ -539,6 +1508,105 @@ public class SnapGene
             return new NotesSegment(uuid, type, confirmedExperimentally, description, created, modified, createdBy, accessionNumber, codeNumber, organism, sequenceClass, transformedInto, customMapLabel, useCustomMapLabel, comments, references);
         }
 
+        // Like the DOM path, the first occurrence of each element wins.
+        static NotesSegment parse(XMLStreamReader r) throws XMLStreamException
+        {
+            r.nextTag();
+            if (!"Notes".equals(r.getLocalName()))
+                throw new IllegalArgumentException("Expected 'Notes' element");
+
+            String uuid = null, type = null, confirmedExperimentally = null, description = null;
+            String created = null, modified = null, createdBy = null, accessionNumber = null, codeNumber = null;
+            String organism = null, sequenceClass = null, transformedInto = null;
+            String customMapLabel = null, useCustomMapLabel = null, comments = null;
+            List<Reference> references = null;
+
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT)
+            {
+                switch (r.getLocalName())
+                {
+                    case "UUID":                    uuid = firstText(r, uuid); break;
+                    case "Type":                    type = firstText(r, type); break;
+                    case "ConfirmedExperimentally": confirmedExperimentally = firstText(r, confirmedExperimentally); break;
+                    case "Description":             description = firstText(r, description); break;
+                    case "Created":                 created = firstText(r, created); break;
+                    case "LastModified":            modified = firstText(r, modified); break;
+                    case "CreatedBy":               createdBy = firstText(r, createdBy); break;
+                    case "AccessionNumber":         accessionNumber = firstText(r, accessionNumber); break;
+                    case "CodeNumber":              codeNumber = firstText(r, codeNumber); break;
+                    case "Organism":                organism = firstText(r, organism); break;
+                    case "SequenceClass":           sequenceClass = firstText(r, sequenceClass); break;
+                    case "TransformedInto":         transformedInto = firstText(r, transformedInto); break;
+                    case "CustomMapLabel":          customMapLabel = firstText(r, customMapLabel); break;
+                    case "UseCustomMapLabel":       useCustomMapLabel = firstText(r, useCustomMapLabel); break;
+                    case "Comments":                comments = firstText(r, comments); break;
+
+                    case "References": {
+                        if (references != null) {
+                            skipElement(r);
+                            break;
+                        }
+                        references = new ArrayList<>(4);
+                        while (r.nextTag() == XMLStreamConstants.START_ELEMENT)
+                        {
+                            if ("Reference".equals(r.getLocalName()))
+                            {
+                                String title = r.getAttributeValue(null, "title");
+                                String pubMedID = r.getAttributeValue(null, "pubMedID");
+                                String journal = r.getAttributeValue(null, "journal");
+                                String authors = r.getAttributeValue(null, "authors");
+                                references.add(new Reference(title, pubMedID, journal, authors));
+                            }
+                            skipElement(r);
+                        }
+                        break;
+                    }
+
+                    default:
+                        skipElement(r);
+                }
+            }
+
+            if (references == null)
+                references = new ArrayList<>(4);
+
+            return new NotesSegment(uuid, type, parseBool(confirmedExperimentally), description,
+                    parseDate(created), parseDate(modified), createdBy, accessionNumber, codeNumber,
+                    organism, sequenceClass, transformedInto, customMapLabel, parseBool(useCustomMapLabel),
+                    comments, references);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof NotesSegment))
+                return false;
+            NotesSegment that = (NotesSegment) o;
+            return Objects.equals(uuid, that.uuid) &&
+                    Objects.equals(type, that.type) &&
+                    Objects.equals(confirmedExperimentally, that.confirmedExperimentally) &&
+                    Objects.equals(description, that.description) &&
+                    Objects.equals(created, that.created) &&
+                    Objects.equals(modified, that.modified) &&
+                    Objects.equals(createdBy, that.createdBy) &&
+                    Objects.equals(accessionNumber, that.accessionNumber) &&
+                    Objects.equals(codeNumber, that.codeNumber) &&
+                    Objects.equals(organism, that.organism) &&
+                    Objects.equals(sequenceClass, that.sequenceClass) &&
+                    Objects.equals(transformedInto, that.transformedInto) &&
+                    Objects.equals(customMapLabel, that.customMapLabel) &&
+                    Objects.equals(useCustomMapLabel, that.useCustomMapLabel) &&
+                    Objects.equals(comments, that.comments) &&
+                    Objects.equals(references, that.references);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(uuid, type, created, modified, createdBy, organism);
+        }
     }
 
     enum Directionality
@@ -568,24 +1636,67 @@ public class SnapGene
     static class Seg
     {
         public final String name; // not used often, it seems
-        public final String range; // unparsed range
-        public final Integer start;
-        public final Integer end;
+        // Parsed from the range; NO_VALUE if there is no range
+        public final int start;
+        public final int end;
         public final String color; // hex
         // One of "standard", "gap"
         public final String type;
-        public final Boolean translated;
-        public final Integer translationNumberingStartsFrom;
+        // The range as written, only kept if it is not "start-end"; read it through range()
+        final String rawRange;
+        // packed optional boolean, see packBool
+        final byte translated;
+        final int translationNumberingStartsFrom;
+        // unknown attributes kept by lenient parsing, as name/value pairs; null if none
+        final String[] otherAttributes;
 
         public Seg(String name, String range, Integer start, Integer end, String color, String type, Boolean translated, Integer translationNumberingStartsFrom) {
+            this(name,
+                    start != null && end != null && range != null && range.equals(start + "-" + end) ? null : range,
+                    start != null ? start : NO_VALUE, end != null ? end : NO_VALUE, color, type, (byte) packBool(translated),
+                    translationNumberingStartsFrom != null ? translationNumberingStartsFrom : NO_VALUE, null);
+        }
+
+        Seg(String name, String range, int start, int end, String color, String type, byte translated, int translationNumberingStartsFrom,
+            String[] otherAttributes) {
             this.name = name;
-            this.range = range;
+            this.rawRange = range;
             this.start = start;
             this.end = end;
-            this.color = color;
-            this.type = type;
+            this.color = Symbols.intern(color);
+            this.type = Symbols.intern(type);
             this.translated = translated;
             this.translationNumberingStartsFrom = translationNumberingStartsFrom;
+            this.otherAttributes = otherAttributes;
+        }
+
+        public boolean hasRange()
+        {
+            return start != NO_VALUE && end != NO_VALUE;
+        }
+
+        /** The unparsed range; null only if the segment has none. */
+        public String range()
+        {
+            if (rawRange != null || !hasRange())
+                return rawRange;
+            return start + "-" + end;
+        }
+
+        public Boolean translated()
+        {
+            return unpackBool(translated);
+        }
+
+        public Integer translationNumberingStartsFrom()
+        {
+            return translationNumberingStartsFrom == NO_VALUE ? null : translationNumberingStartsFrom;
+        }
+
+        /** Attributes unknown to this parser, kept by lenient parsing. */
+        public Map<String, String> otherAttributes()
+        {
+            return attributeMap(otherAttributes);
         }
 
         private static Set<String> knownAttrs = new HashSet<>(Arrays.asList(
@@ -599,71 +1710,249 @@ public class SnapGene
 
         public static Seg parse(Element segmentEl)
         {
-            String name = getAttribute(segmentEl, "name");
-            Integer start = null;
-            Integer end = null;
-            String range = getAttribute(segmentEl, "range");
-            if (range != null) {
-                String[] parts = range.split("-", 2);
-                if (parts.length == 2) {
-                    start = parseInt(parts[0]);
-                    end = parseInt(parts[1]);
+            Set<String> unsupportedAttribute = getOtherAttributeNames(segmentEl, knownAttrs);
+            if (!unsupportedAttribute.isEmpty())
+                throw new IllegalArgumentException("Unsupported attributes: " + unsupportedAttribute.stream().collect(Collectors.joining(", ")) + "\n" + toXMLString(segmentEl));
+
+            return create(
+                    getAttribute(segmentEl, "name"),
+                    getAttribute(segmentEl, "range"),
+                    getAttribute(segmentEl, "color"),
+                    getAttribute(segmentEl, "type"),
+                    getAttribute(segmentEl, "translated"),
+                    getAttribute(segmentEl, "translationNumberingStartsFrom"),
+                    null);
+        }
+
+        /**
+         * Parses the current 'Segment' start element and leaves the reader on its end element.
+         * Unless strict, unknown attributes are kept and reported to the reporter, if any.
+         */
+        static Seg parse(XMLStreamReader r, boolean strict, Diagnostics.Reporter reporter, int featureIndex, int segmentIndex) throws XMLStreamException
+        {
+            String name = null, range = null, color = null, type = null, translated = null, translationNumberingStartsFrom = null;
+            List<String> other = null;
+            for (int i = 0, len = r.getAttributeCount(); i < len; i++)
+            {
+                String value = r.getAttributeValue(i);
+                switch (r.getAttributeLocalName(i))
+                {
+                    case "name":                           name = value; break;
+                    case "range":                          range = value; break;
+                    case "color":                          color = value; break;
+                    case "type":                           type = value; break;
+                    case "translated":                     translated = value; break;
+                    case "translationNumberingStartsFrom": translationNumberingStartsFrom = value; break;
+                    default:
+                        if (other == null)
+                            other = new ArrayList<>(2);
+                        other.add(r.getAttributeLocalName(i));
+                        other.add(value);
                 }
             }
 
-            String color = getAttribute(segmentEl, "color");
-            String type = getAttribute(segmentEl, "type");
-            Boolean translated = parseBool(getAttribute(segmentEl, "translated"));
-            Integer translationNumberingStartsFrom = parseInt(getAttribute(segmentEl, "translationNumberingStartsFrom"));
+            String[] otherAttributes = other == null ? null : keepOtherAttributes(r, other, strict, reporter,
+                    "Features/Feature[" + featureIndex + "]/Segment[" + segmentIndex + "]");
 
-            Set<String> unsupportedAttribute = getOtherAttributeNames(segmentEl, knownAttrs);
-            if (!unsupportedAttribute.isEmpty())
-                throw new IllegalArgumentException("Unsupported attributes: " + unsupportedAttribute.stream().collect(Collectors.joining(", ")) + "\n" + toXMLString(segmentEl));
+            skipElement(r);
+            return create(name, range, color, type, translated, translationNumberingStartsFrom, otherAttributes);
+        }
+
+        private static Seg create(String name, String range, String color, String type, String translated, String translationNumberingStartsFrom,
+                                  String[] otherAttributes)
+        {
+            int start = NO_VALUE;
+            int end = NO_VALUE;
+            int dash = range != null ? range.indexOf('-') : -1;
+            if (dash != -1) {
+                try {
+                    start = Integer.parseInt(range, 0, dash, 10);
+                    end = Integer.parseInt(range, dash + 1, range.length(), 10);
+                }
+                catch (NumberFormatException e) {
+                    throw new IllegalArgumentException(e);
+                }
+                // the shortest spelling of two ints is the canonical one, which range() rebuilds
+                if (range.length() == digits(start) + 1 + digits(end))
+                    range = null;
+            }
+
+            Integer numberingStart = parseInt(translationNumberingStartsFrom);
+            return new Seg(name, range, start, end, color, type, (byte) packBool(translated),
+                    numberingStart != null ? numberingStart : NO_VALUE, otherAttributes);
+        }
+
+        private static int digits(int v)
+        {
+            int n = v < 0 ? 2 : 1;
+            for (long x = Math.abs((long) v); x >= 10; x /= 10)
+                n++;
+            return n;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Seg))
+                return false;
+            Seg that = (Seg) o;
+            return Objects.equals(name, that.name) &&
+                    Objects.equals(rawRange, that.rawRange) &&
+                    start == that.start &&
+                    end == that.end &&
+                    Objects.equals(color, that.color) &&
+                    Objects.equals(type, that.type) &&
+                    translated == that.translated &&
+                    translationNumberingStartsFrom == that.translationNumberingStartsFrom &&
+                    Arrays.equals(otherAttributes, that.otherAttributes);
+        }
 
-            return new Seg(name, range, start, end, color, type, translated, translationNumberingStartsFrom);
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(name, start, end, color, type, translated, translationNumberingStartsFrom);
         }
     }
 
+    /**
+     * A feature. Strings that repeat across features (type, genetic code, segment colors and types,
+     * qualifier keys and predefined values) are interned, the optional boolean attributes are packed
+     * into one int, and the qualifiers are held in arrays; see {@link Qualifiers}.
+     */
     static class Feature
     {
+        // bit offsets in flags
+        static final int TRANSLATE_FIRST_CODON_AS_MET = 0;
+        static final int ALLOW_SEGMENT_OVERLAPS = 2;
+        static final int CONSECUTIVE_TRANSLATION_NUMBERING = 4;
+        static final int SWAPPED_SEGMENT_NUMBERING = 6;
+        static final int HITS_STOP_CODON = 8;
+        static final int VISIBLE = 10;
+
+        private static final int[] NO_ARROWS = new int[0];
+
         public final String name;
         public final String type; // genbank type
         public final Directionality directionality;
         public final String geneticCode;
-        public final Boolean translateFirstCodonAsMet;
-        public final Boolean allowSegmentOverlaps;
-        public final Boolean consecutiveTranslationNumbering;
-        public final Boolean swappedSegmentNumbering;
-        public final Boolean hitsStopCodon;
-        public final Double translationMW;
-        public final List<Integer> cleavageArrows;
-        public final Integer readingFrame;
-        public final Boolean visible;
 
         public final List<Seg> segments;
-        public final List<Map.Entry<String, ?>> qualifiers;
+        public final Qualifiers qualifiers;
+
+        // optional booleans, two bits each at the offsets above; see packBool
+        final int flags;
+        // NaN if absent
+        final double translationMW;
+        final int[] cleavageArrows;
+        // NO_VALUE if absent
+        final int readingFrame;
+        // unknown attributes kept by lenient parsing, as name/value pairs; null if none
+        final String[] otherAttributes;
 
         public Feature(String name, Directionality directionality, String geneticCode,
                        Boolean translateFirstCodonAsMet, Boolean allowSegmentOverlaps, Boolean consecutiveTranslationNumbering, Boolean swappedSegmentNumbering, Boolean hitsStopCodon,
                        Double translationMW, String type, List<Integer> cleavageArrows,
                        Integer readingFrame, Boolean visible,
-                       List<Seg> segments, List<Map.Entry<String, ?>> qualifiers)
+                       List<Seg> segments, List<? extends Map.Entry<String, ?>> qualifiers)
         {
+            this(name, directionality, geneticCode,
+                    packBool(translateFirstCodonAsMet) << TRANSLATE_FIRST_CODON_AS_MET |
+                            packBool(allowSegmentOverlaps) << ALLOW_SEGMENT_OVERLAPS |
+                            packBool(consecutiveTranslationNumbering) << CONSECUTIVE_TRANSLATION_NUMBERING |
+                            packBool(swappedSegmentNumbering) << SWAPPED_SEGMENT_NUMBERING |
+                            packBool(hitsStopCodon) << HITS_STOP_CODON |
+                            packBool(visible) << VISIBLE,
+                    translationMW != null ? translationMW : Double.NaN, type,
+                    cleavageArrows != null ? cleavageArrows.stream().mapToInt(Integer::intValue).toArray() : NO_ARROWS,
+                    readingFrame != null ? readingFrame : NO_VALUE,
+                    segments, Qualifiers.of(qualifiers), null);
+        }
+
+        Feature(String name, Directionality directionality, String geneticCode, int flags, double translationMW, String type,
+                int[] cleavageArrows, int readingFrame, List<Seg> segments, Qualifiers qualifiers, String[] otherAttributes) {
             this.name = name;
             this.directionality = directionality;
-            this.geneticCode = geneticCode;
-            this.translateFirstCodonAsMet = translateFirstCodonAsMet;
-            this.allowSegmentOverlaps = allowSegmentOverlaps;
-            this.consecutiveTranslationNumbering = consecutiveTranslationNumbering;
-            this.swappedSegmentNumbering = swappedSegmentNumbering;
-            this.hitsStopCodon = hitsStopCodon;
+            this.geneticCode = Symbols.intern(geneticCode);
+            this.flags = flags;
             this.translationMW = translationMW;
-            this.type = type;
-            this.cleavageArrows = cleavageArrows;
+            this.type = Symbols.intern(type);
+            this.cleavageArrows = cleavageArrows.length == 0 ? NO_ARROWS : cleavageArrows;
             this.readingFrame = readingFrame;
-            this.visible = visible;
-            this.segments = segments;
+            this.segments = List.copyOf(segments);
             this.qualifiers = qualifiers;
+            this.otherAttributes = otherAttributes;
+        }
+
+        public Boolean translateFirstCodonAsMet()
+        {
+            return flag(TRANSLATE_FIRST_CODON_AS_MET);
+        }
+
+        public Boolean allowSegmentOverlaps()
+        {
+            return flag(ALLOW_SEGMENT_OVERLAPS);
+        }
+
+        public Boolean consecutiveTranslationNumbering()
+        {
+            return flag(CONSECUTIVE_TRANSLATION_NUMBERING);
+        }
+
+        public Boolean swappedSegmentNumbering()
+        {
+            return flag(SWAPPED_SEGMENT_NUMBERING);
+        }
+
+        public Boolean hitsStopCodon()
+        {
+            return flag(HITS_STOP_CODON);
+        }
+
+        public Boolean visible()
+        {
+            return flag(VISIBLE);
+        }
+
+        private Boolean flag(int offset)
+        {
+            return unpackBool(flags >>> offset & 3);
+        }
+
+        public Double translationMW()
+        {
+            return Double.isNaN(translationMW) ? null : translationMW;
+        }
+
+        public Integer readingFrame()
+        {
+            return readingFrame == NO_VALUE ? null : readingFrame;
+        }
+
+        public List<Integer> cleavageArrows()
+        {
+            int[] arrows = cleavageArrows;
+            return new AbstractList<Integer>()
+            {
+                @Override
+                public Integer get(int index)
+                {
+                    return arrows[index];
+                }
+
+                @Override
+                public int size()
+                {
+                    return arrows.length;
+                }
+            };
+        }
+
+        /** Attributes unknown to this parser, kept by lenient parsing. */
+        public Map<String, String> otherAttributes()
+        {
+            return attributeMap(otherAttributes);
         }
 
         private static final Set<String> parsedAttrs = new HashSet<>(Arrays.asList(
@@ -700,27 +1989,6 @@ public class SnapGene
 
         public static Feature parse(Element featureEl)
         {
-            String name = getAttribute(featureEl, "name");
-            String type = getAttribute(featureEl, "type");
-            Directionality directionality = Directionality.fromInt(parseInt(getAttribute(featureEl, "directionality")));
-            String geneticCode = getAttribute(featureEl, "geneticCode");
-            Boolean translateFirstCodonAsMet = parseBool(getAttribute(featureEl, "translateFirstCodonAsMet"));
-            Boolean allowSegmentOverlaps = parseBool(getAttribute(featureEl, "allowSegmentOverlaps"));
-            Boolean consecutiveTranslationNumbering = parseBool(getAttribute(featureEl, "consecutiveTranslationNumbering"));
-            Boolean swappedSegmentNumbering = parseBool(getAttribute(featureEl, "swappedSegmentNumbering"));
-            Boolean hitsStopCodon = parseBool(getAttribute(featureEl, "hitsStopCodon"));
-            Double translationMW = parseDouble(getAttribute(featureEl, "translationMW"));
-
-            String cleavageArrowsStr = getAttribute(featureEl, "cleavageArrows");
-            List<Integer> cleavageArrows = Collections.emptyList();
-            if (cleavageArrowsStr != null)
-            {
-                cleavageArrows = Arrays.stream(cleavageArrowsStr.split(",")).map(SnapGene::parseInt).collect(Collectors.toList());
-            }
-
-            Integer readingFrame = parseInt(getAttribute(featureEl, "readingFrame"));
-            Boolean visible = parseBool(getAttribute(featureEl, "visible"));
-
             Set<String> unsupportedAttribute = getOtherAttributeNames(featureEl, knownAttrs);
             if (!unsupportedAttribute.isEmpty())
                 throw new IllegalArgumentException("Unsupported attributes: " + unsupportedAttribute.stream().collect(Collectors.joining(", ")) + "\n" + toXMLString(featureEl));
@@ -731,7 +1999,7 @@ public class SnapGene
                 segments.add(Seg.parse(segmentEl));
             }
 
-            List<Map.Entry<String, ?>> qualifiers = new ArrayList<>(10);
+            Qualifiers.Builder qualifiers = Qualifiers.builder();
             for (Element qualifierEl : getElementsByTagName(featureEl, "Q"))
             {
                 String key = getAttribute(qualifierEl, "name");
@@ -739,30 +2007,219 @@ public class SnapGene
                 if (vEl == null)
                     throw new IllegalArgumentException("Expected value element");
 
-                Object value;
                 if (!vEl.hasAttributes())
-                    value = null;
+                    qualifiers.add(key, Qualifiers.Kind.NONE, 0, null);
                 else if (vEl.hasAttribute("int"))
-                    value = parseInt(getAttribute(vEl, "int"));
+                    qualifiers.add(key, Qualifiers.Kind.INT, parseInt(getAttribute(vEl, "int")), null);
                 else if (vEl.hasAttribute("bool"))
-                    value = parseBool(getAttribute(vEl, "bool"));
+                    qualifiers.add(key, Qualifiers.Kind.BOOL, parseBool(getAttribute(vEl, "bool")) ? 1 : 0, null);
                 else if (vEl.hasAttribute("text"))
-                    value = getAttribute(vEl, "text");
+                    qualifiers.add(key, Qualifiers.Kind.TEXT, 0, getAttribute(vEl, "text"));
                 else if (vEl.hasAttribute("predef"))
-                    value = getAttribute(vEl, "predef");
+                    qualifiers.add(key, Qualifiers.Kind.PREDEF, 0, getAttribute(vEl, "predef"));
                 else
                     throw new IllegalArgumentException("Unsupported value type for '" + key + "':" + toXMLString(vEl));
+            }
+
+            return create(
+                    getAttribute(featureEl, "name"),
+                    getAttribute(featureEl, "type"),
+                    getAttribute(featureEl, "directionality"),
+                    getAttribute(featureEl, "geneticCode"),
+                    getAttribute(featureEl, "translateFirstCodonAsMet"),
+                    getAttribute(featureEl, "allowSegmentOverlaps"),
+                    getAttribute(featureEl, "consecutiveTranslationNumbering"),
+                    getAttribute(featureEl, "swappedSegmentNumbering"),
+                    getAttribute(featureEl, "hitsStopCodon"),
+                    getAttribute(featureEl, "translationMW"),
+                    getAttribute(featureEl, "cleavageArrows"),
+                    getAttribute(featureEl, "readingFrame"),
+                    getAttribute(featureEl, "visible"),
+                    segments, qualifiers.build(), null);
+        }
+
+        /**
+         * Parses the current 'Feature' start element and leaves the reader on its end element.
+         * Unless strict, unknown attributes and qualifier value types are kept and reported to the reporter, if any.
+         */
+        static Feature parse(XMLStreamReader r, boolean strict, Diagnostics.Reporter reporter, int index) throws XMLStreamException
+        {
+            String name = null, type = null, directionality = null, geneticCode = null;
+            String translateFirstCodonAsMet = null, allowSegmentOverlaps = null, consecutiveTranslationNumbering = null;
+            String swappedSegmentNumbering = null, hitsStopCodon = null, translationMW = null;
+            String cleavageArrows = null, readingFrame = null, visible = null;
+            List<String> other = null;
+            for (int i = 0, len = r.getAttributeCount(); i < len; i++)
+            {
+                String attrName = r.getAttributeLocalName(i);
+                String value = r.getAttributeValue(i);
+                switch (attrName)
+                {
+                    case "name":                            name = value; break;
+                    case "type":                            type = value; break;
+                    case "directionality":                  directionality = value; break;
+                    case "geneticCode":                     geneticCode = value; break;
+                    case "translateFirstCodonAsMet":        translateFirstCodonAsMet = value; break;
+                    case "allowSegmentOverlaps":            allowSegmentOverlaps = value; break;
+                    case "consecutiveTranslationNumbering": consecutiveTranslationNumbering = value; break;
+                    case "swappedSegmentNumbering":         swappedSegmentNumbering = value; break;
+                    case "hitsStopCodon":                   hitsStopCodon = value; break;
+                    case "translationMW":                   translationMW = value; break;
+                    case "cleavageArrows":                  cleavageArrows = value; break;
+                    case "readingFrame":                    readingFrame = value; break;
+                    case "visible":                         visible = value; break;
+                    default:
+                        if (ignoredAttrs.contains(attrName))
+                            break;
+                        if (other == null)
+                            other = new ArrayList<>(2);
+                        other.add(attrName);
+                        other.add(value);
+                }
+            }
 
-                qualifiers.add(new AbstractMap.SimpleEntry<>(key, value));
+            String[] otherAttributes = other == null ? null : keepOtherAttributes(r, other, strict, reporter, "Features/Feature[" + index + "]");
+
+            List<Seg> segments = new ArrayList<>(4);
+            Qualifiers.Builder qualifiers = Qualifiers.builder();
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT)
+            {
+                switch (r.getLocalName())
+                {
+                    case "Segment":
+                        segments.add(Seg.parse(r, strict, reporter, index, segments.size()));
+                        break;
+
+                    case "Q":
+                        parseQualifier(r, strict, reporter, index, qualifiers);
+                        break;
+
+                    default:
+                        skipElement(r);
+                }
+            }
+
+            return create(name, type, directionality, geneticCode,
+                    translateFirstCodonAsMet, allowSegmentOverlaps, consecutiveTranslationNumbering,
+                    swappedSegmentNumbering, hitsStopCodon, translationMW, cleavageArrows, readingFrame, visible,
+                    segments, qualifiers.build(), otherAttributes);
+        }
+
+        // Only the first 'V' element of a qualifier is used, as in the DOM path.
+        private static void parseQualifier(XMLStreamReader r, boolean strict, Diagnostics.Reporter reporter, int featureIndex,
+                                           Qualifiers.Builder qualifiers) throws XMLStreamException
+        {
+            String key = r.getAttributeValue(null, "name");
+            Qualifiers.Kind kind = Qualifiers.Kind.NONE;
+            int intValue = 0;
+            String text = null, otherType = null;
+            boolean found = false;
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT)
+            {
+                if (!found && "V".equals(r.getLocalName()))
+                {
+                    found = true;
+                    String s;
+                    if (r.getAttributeCount() == 0)
+                        kind = Qualifiers.Kind.NONE;
+                    else if ((s = r.getAttributeValue(null, "int")) != null) {
+                        kind = Qualifiers.Kind.INT;
+                        intValue = parseInt(s);
+                    }
+                    else if ((s = r.getAttributeValue(null, "bool")) != null) {
+                        kind = Qualifiers.Kind.BOOL;
+                        intValue = parseBool(s) ? 1 : 0;
+                    }
+                    else if ((s = r.getAttributeValue(null, "text")) != null) {
+                        kind = Qualifiers.Kind.TEXT;
+                        text = s;
+                    }
+                    else if ((s = r.getAttributeValue(null, "predef")) != null) {
+                        kind = Qualifiers.Kind.PREDEF;
+                        text = s;
+                    }
+                    else if (strict)
+                        throw new IllegalArgumentException("Unsupported value type for '" + key + "':" + toXMLString(r));
+                    else {
+                        kind = Qualifiers.Kind.OTHER;
+                        otherType = r.getAttributeLocalName(0);
+                        text = r.getAttributeValue(0);
+                        if (reporter != null)
+                            reporter.report("Features/Feature[" + featureIndex + "]/Q[@name='" + key + "']", otherType, "Unknown value type kept as text");
+                    }
+                }
+                skipElement(r);
+            }
+
+            if (!found)
+                throw new IllegalArgumentException("Expected value element");
+
+            if (kind == Qualifiers.Kind.OTHER)
+                qualifiers.addOther(key, otherType, text);
+            else
+                qualifiers.add(key, kind, intValue, text);
+        }
+
+        private static Feature create(String name, String type, String directionality, String geneticCode,
+                                      String translateFirstCodonAsMet, String allowSegmentOverlaps, String consecutiveTranslationNumbering,
+                                      String swappedSegmentNumbering, String hitsStopCodon, String translationMW,
+                                      String cleavageArrowsStr, String readingFrame, String visible,
+                                      List<Seg> segments, Qualifiers qualifiers, String[] otherAttributes)
+        {
+            int[] cleavageArrows = NO_ARROWS;
+            if (cleavageArrowsStr != null)
+            {
+                String[] parts = cleavageArrowsStr.split(",");
+                cleavageArrows = new int[parts.length];
+                for (int i = 0; i < parts.length; i++)
+                    cleavageArrows[i] = parseInt(parts[i]);
             }
 
-            return new Feature(name, directionality, geneticCode, translateFirstCodonAsMet, allowSegmentOverlaps, consecutiveTranslationNumbering, swappedSegmentNumbering, hitsStopCodon, translationMW, type, cleavageArrows, readingFrame, visible, segments, qualifiers);
+            int flags = packBool(translateFirstCodonAsMet) << TRANSLATE_FIRST_CODON_AS_MET |
+                    packBool(allowSegmentOverlaps) << ALLOW_SEGMENT_OVERLAPS |
+                    packBool(consecutiveTranslationNumbering) << CONSECUTIVE_TRANSLATION_NUMBERING |
+                    packBool(swappedSegmentNumbering) << SWAPPED_SEGMENT_NUMBERING |
+                    packBool(hitsStopCodon) << HITS_STOP_CODON |
+                    packBool(visible) << VISIBLE;
+            Double mw = parseDouble(translationMW);
+            Integer frame = parseInt(readingFrame);
+
+            return new Feature(name, Directionality.fromInt(parseInt(directionality)), geneticCode, flags,
+                    mw != null ? mw : Double.NaN, type, cleavageArrows, frame != null ? frame : NO_VALUE, segments, qualifiers, otherAttributes);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof Feature))
+                return false;
+            Feature that = (Feature) o;
+            return Objects.equals(name, that.name) &&
+                    Objects.equals(type, that.type) &&
+                    directionality == that.directionality &&
+                    Objects.equals(geneticCode, that.geneticCode) &&
+                    flags == that.flags &&
+                    Double.compare(translationMW, that.translationMW) == 0 &&
+                    Arrays.equals(cleavageArrows, that.cleavageArrows) &&
+                    readingFrame == that.readingFrame &&
+                    segments.equals(that.segments) &&
+                    qualifiers.equals(that.qualifiers) &&
+                    Arrays.equals(otherAttributes, that.otherAttributes);
         }
 
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(name, type, directionality, segments);
+        }
     }
 
     static class FeaturesSegment extends Segment
     {
+        public static final int TYPE = 10;
+
         public final List<Feature> features;
 
         public FeaturesSegment(List<Feature> features) {
@@ -771,8 +2228,31 @@ public class SnapGene
 
         public static FeaturesSegment parse(byte[] data)
         {
-            String s = new String(data, Charset.forName("UTF-8"));
-            return parse(createDocument(s));
+            return parse(ByteBuffer.wrap(data));
+        }
+
+        public static FeaturesSegment parse(ByteBuffer data)
+        {
+            return parse(data, true);
+        }
+
+        /** Parses the segment in one forward pass with a StAX reader; no DOM or intermediate String is built. */
+        public static FeaturesSegment parse(ByteBuffer data, boolean strict)
+        {
+            return parse(data, strict, null);
+        }
+
+        /** Unless strict, problems are reported to the reporter, if any, rather than thrown. */
+        static FeaturesSegment parse(ByteBuffer data, boolean strict, Diagnostics.Reporter reporter)
+        {
+            XMLStreamReader r = createStreamReader(data);
+            try {
+                return parse(r, strict, reporter);
+            } catch (XMLStreamException e) {
+                throw new IllegalArgumentException("Error parsing XML", e);
+            } finally {
+                closeQuietly(r);
+            }
         }
 
         public static FeaturesSegment parse(Document doc)
@@ -789,7 +2269,39 @@ public class SnapGene
 
             return new FeaturesSegment(features);
         }
-    }
-}
 
+        static FeaturesSegment parse(XMLStreamReader r, boolean strict, Diagnostics.Reporter reporter) throws XMLStreamException
+        {
+            r.nextTag();
+            if (!"Features".equals(r.getLocalName()))
+                throw new IllegalArgumentException("Expected 'Features' element");
+
+            List<Feature> features = new ArrayList<>(100);
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT)
+            {
+                if ("Feature".equals(r.getLocalName()))
+                    features.add(Feature.parse(r, strict, reporter, features.size()));
+                else
+                    skipElement(r);
+            }
+
+            return new FeaturesSegment(features);
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (this == o)
+                return true;
+            if (!(o instanceof FeaturesSegment))
+                return false;
+            return features.equals(((FeaturesSegment) o).features);
+        }
 
+        @Override
+        public int hashCode()
+        {
+            return features.hashCode();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.SnapGeneDoc;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Discovers .dna files under a directory tree and parses them on a work-stealing pool.
+ *
+ * Discovery runs on the calling thread and blocks once parallelism + queueCapacity files are in flight,
+ * so walking a large share cannot outrun parsing. Results and errors are handed to a {@link Sink} from the
+ * worker threads as each file completes. Files whose name starts with "bad_" are negative test cases:
+ * they are expected to fail, and count as failures only if they parse.
+ */
+public class SnapGeneBatch
+{
+    /** Receives each result on a worker thread; implementations must be thread-safe. */
+    @FunctionalInterface
+    public interface Sink
+    {
+        void accept(Result result);
+    }
+
+    @FunctionalInterface
+    public interface ParseFunction
+    {
+        SnapGeneDoc parse(Path path) throws IOException;
+    }
+
+    public static class Result
+    {
+        public final Path path;
+        public final long bytes;
+        // null if parsing failed
+        public final SnapGeneDoc doc;
+        public final Throwable error;
+        public final boolean negativeTest;
+
+        Result(Path path, long bytes, SnapGeneDoc doc, Throwable error, boolean negativeTest) {
+            this.path = path;
+            this.bytes = bytes;
+            this.doc = doc;
+            this.error = error;
+            this.negativeTest = negativeTest;
+        }
+
+        /** True if the outcome was not the expected one: an error, or a negative test case that parsed. */
+        public boolean isFailure()
+        {
+            return negativeTest ? error == null : error != null;
+        }
+    }
+
+    public static class Summary
+    {
+        public final long files;
+        public final long bytes;
+        public final long failures;
+        // negative test cases that failed as expected
+        public final long expectedFailures;
+        public final long elapsedNanos;
+
+        Summary(long files, long bytes, long failures, long expectedFailures, long elapsedNanos) {
+            this.files = files;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.expectedFailures = expectedFailures;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public double filesPerSecond()
+        {
+            return elapsedNanos == 0 ? 0 : files * 1e9 / elapsedNanos;
+        }
+
+        public double megabytesPerSecond()
+        {
+            return elapsedNanos == 0 ? 0 : bytes / (1024.0 * 1024.0) * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d files, %.1f MB in %.2f s (%.1f files/s, %.1f MB/s), %d failures, %d expected failures",
+                    files, bytes / (1024.0 * 1024.0), elapsedNanos / 1e9,
+                    filesPerSecond(), megabytesPerSecond(), failures, expectedFailures);
+        }
+    }
+
+    private final int parallelism;
+    private final int queueCapacity;
+    private final ParseFunction parser;
+
+    private SnapGeneBatch(Builder builder) {
+        this.parallelism = builder.parallelism;
+        this.queueCapacity = builder.queueCapacity;
+        this.parser = builder.parser;
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private int queueCapacity = -1;
+        private ParseFunction parser = SnapGene::parse;
+
+        public Builder parallelism(int parallelism)
+        {
+            if (parallelism < 1)
+                throw new IllegalArgumentException("parallelism must be at least 1");
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /** Maximum number of discovered files waiting for a worker; defaults to 4 per worker. */
+        public Builder queueCapacity(int queueCapacity)
+        {
+            if (queueCapacity < 0)
+                throw new IllegalArgumentException("queueCapacity must not be negative");
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /** Defaults to {@link SnapGene#parse(Path)}; use SnapGene::index for lazily decoded documents. */
+        public Builder parser(ParseFunction parser)
+        {
+            this.parser = parser;
+            return this;
+        }
+
+        public SnapGeneBatch build()
+        {
+            if (queueCapacity == -1)
+                queueCapacity = 4 * parallelism;
+            return new SnapGeneBatch(this);
+        }
+    }
+
+    /**
+     * Parses every .dna file under root and returns once all of them have been handed to the sink.
+     * An exception thrown by the sink, or an Error other than a StackOverflowError while parsing,
+     * stops the walk and is rethrown once the files in flight are done.
+     */
+    public Summary run(Path root, Sink sink) throws IOException
+    {
+        LongAdder files = new LongAdder();
+        LongAdder bytes = new LongAdder();
+        LongAdder failures = new LongAdder();
+        LongAdder expectedFailures = new LongAdder();
+        AtomicReference<RuntimeException> sinkError = new AtomicReference<>();
+        AtomicReference<Error> fatalError = new AtomicReference<>();
+
+        Semaphore inFlight = new Semaphore(parallelism + queueCapacity);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        long start = System.nanoTime();
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (!isSnapGeneFile(file))
+                        return FileVisitResult.CONTINUE;
+                    if (sinkError.get() != null || fatalError.get() != null)
+                        return FileVisitResult.TERMINATE;
+
+                    try {
+                        inFlight.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return FileVisitResult.TERMINATE;
+                    }
+
+                    long size = attrs.size();
+                    pool.execute(() -> {
+                        try {
+                            deliver(parse(file, size));
+                        } catch (Error e) {
+                            // the JVM may be unusable, so the batch ends rather than go on to the next file
+                            fatalError.compareAndSet(null, e);
+                        } finally {
+                            inFlight.release();
+                        }
+                    });
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    if (isSnapGeneFile(file))
+                        deliver(new Result(file, 0, null, exc, isNegativeTest(file)));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                private void deliver(Result result) {
+                    files.increment();
+                    bytes.add(result.bytes);
+                    if (result.isFailure())
+                        failures.increment();
+                    else if (result.error != null)
+                        expectedFailures.increment();
+
+                    try {
+                        sink.accept(result);
+                    } catch (RuntimeException e) {
+                        sinkError.compareAndSet(null, e);
+                    }
+                }
+            });
+        }
+        finally {
+            pool.shutdown();
+            try {
+                while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // keep waiting for in-flight files
+                }
+            } catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (fatalError.get() != null)
+            throw fatalError.get();
+        if (sinkError.get() != null)
+            throw sinkError.get();
+
+        return new Summary(files.sum(), bytes.sum(), failures.sum(), expectedFailures.sum(), System.nanoTime() - start);
+    }
+
+    private Result parse(Path file, long size)
+    {
+        boolean negativeTest = isNegativeTest(file);
+        try {
+            return new Result(file, size, parser.parse(file), null, negativeTest);
+        }
+        // a StackOverflowError on deeply nested XML fails this file, not the batch; other errors end the batch
+        catch (Exception | StackOverflowError e) {
+            return new Result(file, size, null, e, negativeTest);
+        }
+    }
+
+    static boolean isSnapGeneFile(Path file)
+    {
+        return file.getFileName().toString().endsWith(".dna");
+    }
+
+    static boolean isNegativeTest(Path file)
+    {
+        return file.getFileName().toString().startsWith("bad_");
+    }
+}
@@ -0,0 +1,891 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.AlignableSequenceSegment;
+import com.robojudo.SnapGene.AlignableSequencesSegment;
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.DescriptionSegment;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.HistoryNodeSegment;
+import com.robojudo.SnapGene.HistoryTreeSegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.PrimersSegment;
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.SegmentIndex;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import com.robojudo.SnapGene.UnsupportedSegment;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Configurable SnapGene parser. Instances are immutable and safe to share across threads; each thread
+ * reuses its own header and payload scratch buffers.
+ *
+ * <pre>
+ * SnapGeneParser parser = SnapGeneParser.builder().decode(DescriptionSegment.TYPE, NotesSegment.TYPE).build();
+ * SnapGeneDoc doc = parser.parse(path);
+ * </pre>
+ */
+public final class SnapGeneParser
+{
+    public static final SnapGeneParser DEFAULT = builder().build();
+
+    // bytes read per asynchronous file read
+    private static final int ASYNC_READ_SIZE = 64 * 1024;
+
+    private final BitSet decodeTypes;
+    private final boolean strict;
+    private final boolean lazy;
+    private final int initialBufferSize;
+    private final int maxBufferSize;
+    private final int maxDiagnostics;
+    // null unless instrumented
+    private final ParseListener listener;
+
+    private final ThreadLocal<Scratch> scratch;
+
+    private SnapGeneParser(Builder builder)
+    {
+        this.decodeTypes = (BitSet) builder.decodeTypes.clone();
+        this.strict = builder.strict;
+        this.lazy = builder.lazy;
+        this.initialBufferSize = builder.initialBufferSize;
+        this.maxBufferSize = builder.maxBufferSize;
+        this.maxDiagnostics = builder.maxDiagnostics;
+        this.listener = builder.listener;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(initialBufferSize));
+    }
+
+    public static Builder builder()
+    {
+        return new Builder();
+    }
+
+    public static class Builder
+    {
+        private final BitSet decodeTypes = new BitSet();
+        private boolean strict = true;
+        private boolean lazy = false;
+        private int initialBufferSize = 8 * 1024;
+        private int maxBufferSize = 4 * 1024 * 1024;
+        private int maxDiagnostics = 100;
+        private ParseListener listener;
+
+        Builder()
+        {
+            decodeTypes.set(DNASegment.TYPE);
+            decodeTypes.set(NotesSegment.TYPE);
+            decodeTypes.set(DescriptionSegment.TYPE);
+            decodeTypes.set(FeaturesSegment.TYPE);
+        }
+
+        /**
+         * Segment types to decode; all others are kept as raw {@link UnsupportedSegment}s.
+         * The description segment is always decoded.
+         */
+        public Builder decode(int... types)
+        {
+            for (int type : types)
+                if (type < 0 || type > Byte.MAX_VALUE)
+                    throw new IllegalArgumentException("Invalid segment type: " + type);
+            decodeTypes.clear();
+            decodeTypes.set(DescriptionSegment.TYPE);
+            for (int type : types)
+                decodeTypes.set(type);
+            return this;
+        }
+
+        /**
+         * Strict parsing (the default) rejects duplicate segments, unknown feature attributes and unknown
+         * qualifier value types. Otherwise the first segment of each type wins, unknown attributes and values
+         * are kept in the model, and each problem is recorded in {@link SnapGeneDoc#diagnostics()}, or passed
+         * to {@link SegmentHandler#onDiagnostics} when parsing with a handler.
+         */
+        public Builder strict(boolean strict)
+        {
+            this.strict = strict;
+            return this;
+        }
+
+        /** Index segments and decode them on first access; see {@link SnapGene#index(ByteBuffer)}. */
+        public Builder lazy(boolean lazy)
+        {
+            this.lazy = lazy;
+            return this;
+        }
+
+        /** Most diagnostics recorded per leniently parsed document; further ones are only counted. */
+        public Builder maxDiagnostics(int max)
+        {
+            if (max < 0)
+                throw new IllegalArgumentException("Diagnostics limit must not be negative");
+            this.maxDiagnostics = max;
+            return this;
+        }
+
+        /** Initial size of the per-thread payload buffer used when parsing from an InputStream. */
+        public Builder initialBufferSize(int size)
+        {
+            if (size < 0)
+                throw new IllegalArgumentException("Buffer size must not be negative");
+            this.initialBufferSize = size;
+            return this;
+        }
+
+        /** Largest payload buffer kept per thread; larger segments get a temporary buffer. */
+        public Builder maxBufferSize(int size)
+        {
+            if (size < 0)
+                throw new IllegalArgumentException("Buffer size must not be negative");
+            this.maxBufferSize = size;
+            return this;
+        }
+
+        /**
+         * Reports the time and allocation of every decoded segment; null (the default) turns
+         * instrumentation off, leaving decoding untouched.
+         */
+        public Builder listener(ParseListener listener)
+        {
+            this.listener = listener;
+            return this;
+        }
+
+        public SnapGeneParser build()
+        {
+            if (initialBufferSize > maxBufferSize)
+                initialBufferSize = maxBufferSize;
+            return new SnapGeneParser(this);
+        }
+    }
+
+    public boolean isStrict()
+    {
+        return strict;
+    }
+
+    public boolean isLazy()
+    {
+        return lazy;
+    }
+
+    public int maxDiagnostics()
+    {
+        return maxDiagnostics;
+    }
+
+    public boolean decodes(int type)
+    {
+        return type >= 0 && decodeTypes.get(type);
+    }
+
+    public SnapGeneDoc parse(InputStream is) throws IOException
+    {
+        if (lazy)
+            return index(ByteBuffer.wrap(is.readAllBytes()));
+
+        SnapGeneDoc doc = newDoc();
+        Scratch s = scratch.get();
+        long offset = 0;
+        while (true)
+        {
+            int count = is.readNBytes(s.header, 0, 5);
+            if (count != 5)
+                break;
+
+            int type = s.header[0];
+            int len = (s.header[1] & 0xFF) << 24 | (s.header[2] & 0xFF) << 16 | (s.header[3] & 0xFF) << 8 | (s.header[4] & 0xFF);
+            if (len < 0)
+                throw new IllegalArgumentException("Expected " + len + " bytes");
+            offset += 5;
+
+            // payloads of decoded segments are not retained, so they can share the thread's buffer
+            byte[] data = retainsPayload(type) ? new byte[len] : s.buffer(len, maxBufferSize);
+            if (len != is.readNBytes(data, 0, len))
+                throw new IllegalArgumentException("Expected " + len + " bytes");
+
+            add(doc, type, ByteBuffer.wrap(data, 0, len).slice(), offset);
+            offset += len;
+        }
+
+        return checkDoc(doc);
+    }
+
+    public SnapGeneDoc parse(Path path) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return parse(ch);
+        }
+    }
+
+    /**
+     * Maps the file read-only and parses each segment from a slice of the mapping.
+     * The mapping stays valid after the channel is closed.
+     */
+    public SnapGeneDoc parse(FileChannel ch) throws IOException
+    {
+        return parse(map(ch));
+    }
+
+    /** Parses segments in place; segment data are slices of the given buffer, not copies. */
+    public SnapGeneDoc parse(ByteBuffer buf)
+    {
+        if (lazy)
+            return index(buf);
+
+        SnapGeneDoc doc = newDoc();
+
+        ByteBuffer bb = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int start = bb.position();
+        while (bb.remaining() >= 5)
+        {
+            int type = bb.get();
+            int len = bb.getInt();
+            if (len < 0 || len > bb.remaining())
+                throw new IllegalArgumentException("Expected " + len + " bytes");
+
+            ByteBuffer data = bb.slice(bb.position(), len);
+            long offset = bb.position() - start;
+            bb.position(bb.position() + len);
+
+            add(doc, type, data, offset);
+        }
+
+        return checkDoc(doc);
+    }
+
+    /**
+     * Reads the file without blocking the calling thread. Segments are decoded on the channel's I/O
+     * threads as reads complete, and the future completes there too. Cancelling the future stops the
+     * reads and closes the file.
+     */
+    public CompletableFuture<SnapGeneDoc> parseAsync(Path path)
+    {
+        AsynchronousFileChannel ch;
+        try {
+            ch = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<SnapGeneDoc> read = parseAsync(ch);
+        CompletableFuture<SnapGeneDoc> ret = read.whenComplete((doc, e) -> {
+            try {
+                ch.close();
+            } catch (IOException ignored) {
+                // the document no longer needs the channel
+            }
+        });
+        // the reads only check the inner future, so a cancellation has to be passed on to it
+        ret.whenComplete((doc, e) -> {
+            if (ret.isCancelled())
+                read.cancel(false);
+        });
+        return ret;
+    }
+
+    /**
+     * Reads the channel from position 0 to its end; the caller closes it once the future completes.
+     * Cancelling the future stops the reads after the one in progress.
+     */
+    public CompletableFuture<SnapGeneDoc> parseAsync(AsynchronousFileChannel ch)
+    {
+        CompletableFuture<SnapGeneDoc> ret = new CompletableFuture<>();
+        Assembler assembler = new Assembler();
+        ByteBuffer buf = ByteBuffer.allocate(ASYNC_READ_SIZE);
+        CompletionHandler<Integer, Long> handler = new CompletionHandler<>()
+        {
+            @Override
+            public void completed(Integer n, Long pos)
+            {
+                try {
+                    if (n == -1) {
+                        ret.complete(assembler.finish());
+                        return;
+                    }
+                    buf.flip();
+                    assembler.feed(buf);
+                    buf.clear();
+                    if (!ret.isDone())
+                        ch.read(buf, pos + n, pos + n, this);
+                } catch (Throwable t) {
+                    ret.completeExceptionally(t);
+                }
+            }
+
+            @Override
+            public void failed(Throwable t, Long pos)
+            {
+                ret.completeExceptionally(t);
+            }
+        };
+        try {
+            ch.read(buf, 0, 0L, handler);
+        } catch (RuntimeException e) {
+            ret.completeExceptionally(e);
+        }
+        return ret;
+    }
+
+    /**
+     * Parses the bytes of a file as the publisher delivers them, one buffer requested at a time. Segment
+     * headers and payloads may be split across buffers at any point. Each buffer is consumed before the
+     * next is requested, on the publisher's thread, so the publisher may reuse it afterwards. Cancelling
+     * the future cancels the subscription.
+     */
+    public CompletableFuture<SnapGeneDoc> parseAsync(Flow.Publisher<ByteBuffer> publisher)
+    {
+        DocSubscriber subscriber = new DocSubscriber();
+        publisher.subscribe(subscriber);
+        return subscriber.future;
+    }
+
+    private final class DocSubscriber implements Flow.Subscriber<ByteBuffer>
+    {
+        final CompletableFuture<SnapGeneDoc> future = new CompletableFuture<>();
+        final Assembler assembler = new Assembler();
+        Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription)
+        {
+            this.subscription = subscription;
+            future.whenComplete((doc, e) -> {
+                if (future.isCancelled())
+                    subscription.cancel();
+            });
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(ByteBuffer buf)
+        {
+            if (future.isDone())
+                return;
+            try {
+                assembler.feed(buf);
+            } catch (Throwable t) {
+                subscription.cancel();
+                future.completeExceptionally(t);
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable t)
+        {
+            future.completeExceptionally(t);
+        }
+
+        @Override
+        public void onComplete()
+        {
+            if (future.isDone())
+                return;
+            try {
+                future.complete(assembler.finish());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+    }
+
+    /**
+     * Assembles segments from buffers of any size and decodes each one as soon as its last byte arrives.
+     * Not thread-safe; callers feed it one buffer at a time.
+     */
+    private final class Assembler
+    {
+        private final SnapGeneDoc doc = lazy ? null : newDoc();
+        private final byte[] header = new byte[5];
+        private int headerFill;
+        private int type;
+        private int len;
+        // null while the payload is read straight from the buffer being fed
+        private byte[] payload;
+        private int payloadFill;
+        // payloads that are decoded and dropped share this buffer
+        private byte[] buffer = new byte[initialBufferSize];
+        // offset of the next byte in the file
+        private long offset;
+
+        // lazy documents index the whole file once it has arrived
+        private byte[] file = lazy ? new byte[ASYNC_READ_SIZE] : null;
+        private int fileSize;
+
+        void feed(ByteBuffer buf)
+        {
+            if (lazy)
+            {
+                if (fileSize + buf.remaining() > file.length)
+                    file = Arrays.copyOf(file, Math.max(fileSize + buf.remaining(), 2 * file.length));
+                int n = buf.remaining();
+                buf.get(file, fileSize, n);
+                fileSize += n;
+                return;
+            }
+
+            while (buf.hasRemaining())
+            {
+                if (headerFill < 5)
+                {
+                    int n = Math.min(5 - headerFill, buf.remaining());
+                    buf.get(header, headerFill, n);
+                    headerFill += n;
+                    offset += n;
+                    if (headerFill < 5)
+                        return;
+
+                    type = header[0];
+                    len = (header[1] & 0xFF) << 24 | (header[2] & 0xFF) << 16 | (header[3] & 0xFF) << 8 | (header[4] & 0xFF);
+                    if (len < 0)
+                        throw new IllegalArgumentException("Expected " + len + " bytes");
+
+                    if (!retainsPayload(type) && buf.remaining() >= len)
+                    {
+                        // decoded before feed returns, so the caller's buffer can be read in place
+                        ByteBuffer data = buf.slice(buf.position(), len);
+                        buf.position(buf.position() + len);
+                        segment(data);
+                        continue;
+                    }
+                    payload = retainsPayload(type) ? new byte[len] : buffer(len);
+                    payloadFill = 0;
+                }
+
+                int n = Math.min(len - payloadFill, buf.remaining());
+                buf.get(payload, payloadFill, n);
+                payloadFill += n;
+                if (payloadFill == len)
+                    segment(ByteBuffer.wrap(payload, 0, len).slice());
+            }
+        }
+
+        private void segment(ByteBuffer data)
+        {
+            add(doc, type, data, offset);
+            offset += len;
+            headerFill = 0;
+            payload = null;
+        }
+
+        private byte[] buffer(int len)
+        {
+            if (len <= buffer.length)
+                return buffer;
+            if (len > maxBufferSize)
+                return new byte[len];
+            buffer = new byte[Math.min(maxBufferSize, Math.max(len, buffer.length * 2))];
+            return buffer;
+        }
+
+        SnapGeneDoc finish()
+        {
+            if (lazy)
+                return index(ByteBuffer.wrap(file, 0, fileSize).slice());
+            // like parse(InputStream), a trailing partial header ends the file
+            if (payload != null)
+                throw new IllegalArgumentException("Expected " + len + " bytes");
+            return checkDoc(doc);
+        }
+    }
+
+    /**
+     * Reports each segment to the handler, which decides whether to decode, pass on raw or skip it.
+     * Skipped payloads are passed over with {@link InputStream#skipNBytes} and never buffered.
+     */
+    public void parse(InputStream is, SegmentHandler handler) throws IOException
+    {
+        Scratch s = scratch.get();
+        Diagnostics diagnostics = strict ? null : new Diagnostics(maxDiagnostics);
+        long offset = 0;
+        while (true)
+        {
+            int count = is.readNBytes(s.header, 0, 5);
+            if (count != 5)
+                break;
+
+            int type = s.header[0];
+            int len = (s.header[1] & 0xFF) << 24 | (s.header[2] & 0xFF) << 16 | (s.header[3] & 0xFF) << 8 | (s.header[4] & 0xFF);
+            if (len < 0)
+                throw new IllegalArgumentException("Expected " + len + " bytes");
+            offset += 5;
+
+            SegmentHandler.Action action = action(handler, type, offset, len);
+            if (action == SegmentHandler.Action.STOP) {
+                report(handler, diagnostics);
+                return;
+            }
+
+            if (action == SegmentHandler.Action.SKIP) {
+                is.skipNBytes(len);
+            }
+            else {
+                boolean retained = action == SegmentHandler.Action.DECODE && retainsPayload(type);
+                byte[] data = retained ? new byte[len] : s.buffer(len, maxBufferSize);
+                if (len != is.readNBytes(data, 0, len))
+                    throw new IllegalArgumentException("Expected " + len + " bytes");
+                deliver(handler, action, type, ByteBuffer.wrap(data, 0, len).slice(), diagnostics, offset);
+            }
+            offset += len;
+        }
+        report(handler, diagnostics);
+        handler.onEnd();
+    }
+
+    public void parse(Path path, SegmentHandler handler) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            parse(ch, handler);
+        }
+    }
+
+    /**
+     * Reports each segment to the handler. Headers are read with positional reads, skipped payloads
+     * only move the position, and other payloads are mapped rather than copied.
+     */
+    public void parse(FileChannel ch, SegmentHandler handler) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(5);
+        Diagnostics diagnostics = strict ? null : new Diagnostics(maxDiagnostics);
+        long size = ch.size();
+        long pos = 0;
+        while (size - pos >= 5)
+        {
+            header.clear();
+            while (header.hasRemaining())
+                if (ch.read(header, pos + header.position()) < 0)
+                    throw new IllegalArgumentException("Expected 5 bytes");
+
+            int type = header.get(0);
+            int len = header.getInt(1);
+            pos += 5;
+            if (len < 0 || len > size - pos)
+                throw new IllegalArgumentException("Expected " + len + " bytes");
+
+            SegmentHandler.Action action = action(handler, type, pos, len);
+            if (action == SegmentHandler.Action.STOP) {
+                report(handler, diagnostics);
+                return;
+            }
+            if (action != SegmentHandler.Action.SKIP)
+                deliver(handler, action, type, ch.map(FileChannel.MapMode.READ_ONLY, pos, len), diagnostics, pos);
+            pos += len;
+        }
+        report(handler, diagnostics);
+        handler.onEnd();
+    }
+
+    public void parse(ByteBuffer buf, SegmentHandler handler)
+    {
+        Diagnostics diagnostics = strict ? null : new Diagnostics(maxDiagnostics);
+        ByteBuffer bb = buf.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int start = bb.position();
+        while (bb.remaining() >= 5)
+        {
+            int type = bb.get();
+            int len = bb.getInt();
+            if (len < 0 || len > bb.remaining())
+                throw new IllegalArgumentException("Expected " + len + " bytes");
+
+            long offset = bb.position() - start;
+            SegmentHandler.Action action = action(handler, type, offset, len);
+            if (action == SegmentHandler.Action.STOP) {
+                report(handler, diagnostics);
+                return;
+            }
+            if (action != SegmentHandler.Action.SKIP)
+                deliver(handler, action, type, bb.slice(bb.position(), len), diagnostics, offset);
+            bb.position(bb.position() + len);
+        }
+        report(handler, diagnostics);
+        handler.onEnd();
+    }
+
+    // diagnostics is null when strict
+    private void deliver(SegmentHandler handler, SegmentHandler.Action action, int type, ByteBuffer data,
+                         Diagnostics diagnostics, long offset)
+    {
+        if (action == SegmentHandler.Action.DECODE)
+            handler.onSegment(type, decode(type, data, diagnostics == null ? null : diagnostics.reporter(type, offset)));
+        else
+            handler.onRaw(type, data.asReadOnlyBuffer());
+    }
+
+    private static SegmentHandler.Action action(SegmentHandler handler, int type, long offset, int length)
+    {
+        SegmentHandler.Action action = handler.onHeader(type, offset, length);
+        if (action == null)
+            throw new IllegalStateException("SegmentHandler returned no action for segment type " + type + " at " + offset);
+        return action;
+    }
+
+    private static void report(SegmentHandler handler, Diagnostics diagnostics)
+    {
+        if (diagnostics != null && !diagnostics.isEmpty())
+            handler.onDiagnostics(diagnostics);
+    }
+
+    public SnapGeneDoc index(Path path) throws IOException
+    {
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ)) {
+            return index(ch);
+        }
+    }
+
+    public SnapGeneDoc index(FileChannel ch) throws IOException
+    {
+        return index(map(ch));
+    }
+
+    /**
+     * Records only the (type, offset, length) of each segment and decodes the description segment.
+     * The remaining segments are decoded on first access through the returned document.
+     */
+    public SnapGeneDoc index(ByteBuffer buf)
+    {
+        ByteBuffer source = buf.slice().order(ByteOrder.BIG_ENDIAN);
+        SegmentIndex index = new SegmentIndex();
+
+        ByteBuffer bb = source.duplicate();
+        while (bb.remaining() >= 5)
+        {
+            int type = bb.get();
+            int len = bb.getInt();
+            if (len < 0 || len > bb.remaining())
+                throw new IllegalArgumentException("Expected " + len + " bytes");
+
+            if (strict && isSingleton(type) && index.find(type) != -1)
+                throw duplicateSegment(type);
+
+            index.add(type, bb.position(), len);
+            bb.position(bb.position() + len);
+        }
+
+        SnapGeneDoc doc = new SnapGeneDoc(this, source, index);
+        if (!strict)
+        {
+            for (int i = 0; i < index.size(); i++)
+            {
+                int type = index.type(i);
+                if (isSingleton(type) && decodes(type) && index.find(type) != i)
+                    doc.diagnostics.add(type, index.offset(i), null, null, duplicateMessage(type));
+            }
+        }
+        return checkDoc(doc);
+    }
+
+    /** Decodes one segment payload according to this parser's configuration. */
+    public Segment decode(int type, ByteBuffer data)
+    {
+        return decode(type, data, null);
+    }
+
+    /** Unless strict, problems in the payload go to the reporter, if any. */
+    Segment decode(int type, ByteBuffer data, Diagnostics.Reporter reporter)
+    {
+        return decode(type, data, reporter, decodes(type));
+    }
+
+    /** Keeps the payload of a segment the parser would decode raw, as for a duplicate; the listener still sees it. */
+    UnsupportedSegment raw(int type, ByteBuffer data)
+    {
+        return (UnsupportedSegment) decode(type, data, null, false);
+    }
+
+    private Segment decode(int type, ByteBuffer data, Diagnostics.Reporter reporter, boolean decode)
+    {
+        if (listener == null)
+            return decodeSegment(type, data, reporter, decode);
+
+        int length = data.remaining();
+        long allocated = AllocationCounter.current();
+        long start = System.nanoTime();
+        Segment seg = decodeSegment(type, data, reporter, decode);
+        long nanos = System.nanoTime() - start;
+        if (allocated != -1)
+            allocated = AllocationCounter.current() - allocated;
+        listener.segmentDecoded(type, length, nanos, allocated);
+        return seg;
+    }
+
+    private Segment decodeSegment(int type, ByteBuffer data, Diagnostics.Reporter reporter, boolean decode)
+    {
+        if (!decode)
+            return UnsupportedSegment.parse(type, data);
+
+        switch (type)
+        {
+            case DNASegment.TYPE:                return DNASegment.parse(data);
+            case NotesSegment.TYPE:              return NotesSegment.parse(data);
+            case DescriptionSegment.TYPE:        return DescriptionSegment.parse(data);
+            case FeaturesSegment.TYPE:           return FeaturesSegment.parse(data, strict, reporter);
+            case HistoryTreeSegment.TYPE:        return HistoryTreeSegment.parse(data);
+            case HistoryNodeSegment.TYPE:        return HistoryNodeSegment.parse(data);
+            case AlignableSequenceSegment.TYPE:  return AlignableSequenceSegment.parse(data);
+            case AlignableSequencesSegment.TYPE: return AlignableSequencesSegment.parse(data);
+            case PrimersSegment.TYPE:            return PrimersSegment.parse(data);
+
+            // Unsupported segments
+            case 1: // Compressed DNA (internal to History Node segment)
+            case 8: // Additional Sequence Properties
+            case 18: // Sequence Trace (internal to Alignable Sequence segment (type=16))
+            case 19: // Uracil Positions
+            case 20: // Custom DNA Colors
+            default:
+                return UnsupportedSegment.parse(type, data);
+        }
+    }
+
+    /** True if the decoded segment keeps a reference to its payload bytes. */
+    boolean retainsPayload(int type)
+    {
+        return !decodes(type) || !isSingleton(type);
+    }
+
+    private SnapGeneDoc newDoc()
+    {
+        SnapGeneDoc doc = new SnapGeneDoc();
+        if (!strict)
+            doc.diagnostics = new Diagnostics(maxDiagnostics);
+        return doc;
+    }
+
+    private void add(SnapGeneDoc doc, int type, ByteBuffer data, long offset)
+    {
+        if (isSingleton(type) && decodes(type) && doc.has(type))
+        {
+            if (strict)
+                throw duplicateSegment(type);
+
+            // lenient: keep the first segment of each type
+            doc.diagnostics.add(type, offset, null, null, duplicateMessage(type));
+            doc.segments.add(raw(type, copy(data)));
+            return;
+        }
+
+        Segment seg = decode(type, data, strict ? null : doc.diagnostics.reporter(type, offset));
+        if (seg instanceof DNASegment)
+            doc.dna = (DNASegment) seg;
+        else if (seg instanceof NotesSegment)
+            doc.notes = (NotesSegment) seg;
+        else if (seg instanceof DescriptionSegment)
+            doc.desc = (DescriptionSegment) seg;
+        else if (seg instanceof FeaturesSegment)
+            doc.features = (FeaturesSegment) seg;
+
+        // collect all segments in order
+        doc.segments.add(seg);
+    }
+
+    // Segment types of which a document holds at most one
+    static boolean isSingleton(int type)
+    {
+        switch (type)
+        {
+            case DNASegment.TYPE:
+            case NotesSegment.TYPE:
+            case DescriptionSegment.TYPE:
+            case FeaturesSegment.TYPE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static IllegalArgumentException duplicateSegment(int type)
+    {
+        return new IllegalArgumentException(duplicateMessage(type));
+    }
+
+    private static String duplicateMessage(int type)
+    {
+        String name;
+        switch (type)
+        {
+            case DNASegment.TYPE:         name = "DNA";         break;
+            case NotesSegment.TYPE:       name = "notes";       break;
+            case DescriptionSegment.TYPE: name = "description"; break;
+            case FeaturesSegment.TYPE:    name = "features";    break;
+            default:                      name = "type " + type;
+        }
+        return "Duplicate " + name + " segment";
+    }
+
+    private static SnapGeneDoc checkDoc(SnapGeneDoc doc)
+    {
+        if (doc.desc() == null)
+            throw new IllegalArgumentException("SnapGene description segment not found");
+
+        return doc;
+    }
+
+    private static ByteBuffer map(FileChannel ch) throws IOException
+    {
+        long size = ch.size();
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("File too large to map: " + size + " bytes");
+
+        return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+    }
+
+    private static ByteBuffer copy(ByteBuffer data)
+    {
+        ByteBuffer ret = ByteBuffer.allocate(data.remaining());
+        ret.put(data.duplicate()).flip();
+        return ret;
+    }
+
+    // Bytes allocated by the current thread, where the JVM supports measuring it
+    private static final class AllocationCounter
+    {
+        static final com.sun.management.ThreadMXBean BEAN = find();
+
+        static com.sun.management.ThreadMXBean find()
+        {
+            if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean))
+                return null;
+            com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ? bean : null;
+        }
+
+        // -1 if unsupported
+        static long current()
+        {
+            return BEAN != null ? BEAN.getCurrentThreadAllocatedBytes() : -1;
+        }
+    }
+
+    private static final class Scratch
+    {
+        final byte[] header = new byte[5];
+        byte[] buffer;
+
+        Scratch(int size)
+        {
+            this.buffer = new byte[size];
+        }
+
+        byte[] buffer(int len, int maxSize)
+        {
+            if (len <= buffer.length)
+                return buffer;
+            if (len > maxSize)
+                return new byte[len];
+            buffer = new byte[Math.min(maxSize, Math.max(len, buffer.length * 2))];
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.Reference;
+import com.robojudo.SnapGene.Seg;
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.UnsupportedSegment;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Encodes segments back to their payload bytes and rewrites .dna files segment by segment.
+ *
+ * A patch replaces whole segments. Every other segment is copied verbatim with
+ * {@link FileChannel#transferTo}, so untouched payloads, including those of unsupported segments,
+ * stay byte-identical and never pass through the heap. The result goes to a temporary file that is
+ * then moved over the target, so readers see either the old or the new file.
+ *
+ * <pre>
+ * NotesSegment notes = SnapGeneParser.builder().decode(NotesSegment.TYPE).build().parse(path).notes();
+ * SnapGeneWriter.patch(path).replace(withOrganism(notes, "E. coli")).write(path);
+ * </pre>
+ *
+ * A patch encodes Notes over the Notes segment they replace: notes that read the same as the file's are
+ * written through byte for byte, and otherwise only the changed elements are rewritten, keeping what the
+ * model does not hold. Features, and Notes encoded on their own, hold only what the model holds: Feature
+ * attributes the parser skips (such as recentID) are not written.
+ */
+public final class SnapGeneWriter
+{
+    private static final XMLOutputFactory xmlOutputFactory = XMLOutputFactory.newInstance();
+    private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+
+    // as read by SnapGene.parseDate
+    private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("uuuu.M.d", Locale.ROOT);
+
+    private SnapGeneWriter()
+    {
+    }
+
+    /** Starts a patch of the given file. Nothing is read until {@link Patch#write}. */
+    public static Patch patch(Path source)
+    {
+        return new Patch(source);
+    }
+
+    public static final class Patch
+    {
+        private final Path source;
+        // segment type to new payload
+        private final Map<Integer, ByteBuffer> replacements = new TreeMap<>();
+        // encoded against the file's Notes when the patch is written
+        private NotesSegment notes;
+
+        Patch(Path source) {
+            this.source = source;
+        }
+
+        /**
+         * Replaces the first segment of the segment's type, or appends the segment if the file has none.
+         * Notes are encoded over the file's Notes with {@link #encode(NotesSegment, ByteBuffer)}, Features
+         * to XML; unsupported segments are written as they are.
+         */
+        public Patch replace(Segment seg)
+        {
+            if (seg instanceof NotesSegment) {
+                replacements.remove(NotesSegment.TYPE);
+                notes = (NotesSegment) seg;
+                return this;
+            }
+            return replace(typeOf(seg), encode(seg));
+        }
+
+        /** Replaces the first segment of this type with the given payload, or appends it. */
+        public Patch replace(int type, ByteBuffer payload)
+        {
+            if (type < 0 || type > 255)
+                throw new IllegalArgumentException("Segment type out of range: " + type);
+            replacements.put(type, payload.duplicate());
+            if (type == NotesSegment.TYPE)
+                notes = null;
+            return this;
+        }
+
+        /**
+         * Writes the patched file to target, which may be the source. Returns the number of bytes written.
+         *
+         * @throws IllegalArgumentException if the source is not a well-formed sequence of segments
+         */
+        public long write(Path target) throws IOException
+        {
+            Path dir = target.toAbsolutePath().getParent();
+            Path tmp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+            try {
+                keepPermissions(target, tmp);
+                long written;
+                try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    written = copy(in, out);
+                    out.force(false);
+                }
+                try {
+                    Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+                return written;
+            }
+            finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+
+        // Reads only the segment headers; runs of untouched segments are copied with one transferTo each.
+        private long copy(FileChannel in, FileChannel out) throws IOException
+        {
+            boolean[] done = new boolean[256];
+            ByteBuffer header = ByteBuffer.allocate(5);
+            long size = in.size();
+            long pos = 0, run = 0, written = 0;
+            while (size - pos >= 5)
+            {
+                header.clear();
+                while (header.hasRemaining())
+                    if (in.read(header, pos + header.position()) < 0)
+                        throw new IllegalArgumentException("Expected 5 bytes");
+
+                int type = header.get(0) & 0xFF;
+                int len = header.getInt(1);
+                if (len < 0 || len > size - pos - 5)
+                    throw new IllegalArgumentException("Expected " + len + " bytes");
+
+                ByteBuffer payload = replacements.get(type);
+                if (type == NotesSegment.TYPE && notes != null && !done[type])
+                    payload = encode(notes, read(in, pos + 5, len));
+                if (payload != null && !done[type])
+                {
+                    done[type] = true;
+                    written += transfer(in, run, pos - run, out);
+                    written += writeSegment(out, type, payload);
+                    run = pos + 5 + len;
+                }
+                pos += 5 + len;
+            }
+            // also keeps any trailing bytes too short for a header
+            written += transfer(in, run, size - run, out);
+
+            Map<Integer, ByteBuffer> appended = new TreeMap<>(replacements);
+            if (notes != null)
+                appended.put(NotesSegment.TYPE, ByteBuffer.wrap(encode(notes)));
+            for (Map.Entry<Integer, ByteBuffer> e : appended.entrySet())
+                if (!done[e.getKey()])
+                    written += writeSegment(out, e.getKey(), e.getValue());
+            return written;
+        }
+    }
+
+    // temporary files are created owner-only; a replaced file keeps the permissions it had
+    private static void keepPermissions(Path target, Path tmp) throws IOException
+    {
+        try {
+            Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+        } catch (NoSuchFileException | UnsupportedOperationException e) {
+            // new file, or not a POSIX file system
+        }
+    }
+
+    private static ByteBuffer read(FileChannel in, long pos, int len) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.allocate(len);
+        while (bb.hasRemaining())
+            if (in.read(bb, pos + bb.position()) < 0)
+                throw new IOException("Source ended early");
+        return bb.flip();
+    }
+
+    private static long transfer(FileChannel in, long pos, long count, FileChannel out) throws IOException
+    {
+        long remaining = count;
+        while (remaining > 0)
+        {
+            long n = in.transferTo(pos, remaining, out);
+            if (n <= 0)
+                throw new IOException("Source ended early");
+            pos += n;
+            remaining -= n;
+        }
+        return count;
+    }
+
+    private static long writeSegment(FileChannel out, int type, ByteBuffer payload) throws IOException
+    {
+        ByteBuffer data = payload.duplicate();
+        ByteBuffer header = ByteBuffer.allocate(5);
+        header.put((byte) type).putInt(data.remaining()).flip();
+        long ret = 5 + data.remaining();
+        while (header.hasRemaining())
+            out.write(header);
+        while (data.hasRemaining())
+            out.write(data);
+        return ret;
+    }
+
+    static int typeOf(Segment seg)
+    {
+        if (seg instanceof NotesSegment)
+            return NotesSegment.TYPE;
+        if (seg instanceof FeaturesSegment)
+            return FeaturesSegment.TYPE;
+        if (seg instanceof UnsupportedSegment)
+            return ((UnsupportedSegment) seg).type;
+        throw new IllegalArgumentException("Cannot encode " + seg.getClass().getSimpleName());
+    }
+
+    /** Payload bytes of a Notes, Features or unsupported segment. */
+    public static ByteBuffer encode(Segment seg)
+    {
+        if (seg instanceof NotesSegment)
+            return ByteBuffer.wrap(encode((NotesSegment) seg));
+        if (seg instanceof FeaturesSegment)
+            return ByteBuffer.wrap(encode((FeaturesSegment) seg));
+        if (seg instanceof UnsupportedSegment)
+            return ((UnsupportedSegment) seg).data.duplicate();
+        throw new IllegalArgumentException("Cannot encode " + seg.getClass().getSimpleName());
+    }
+
+    public static byte[] encode(NotesSegment notes)
+    {
+        return xml(w -> {
+            w.writeStartElement("Notes");
+            element(w, "UUID", notes.uuid);
+            element(w, "Type", notes.type);
+            element(w, "ConfirmedExperimentally", bool(notes.confirmedExperimentally));
+            element(w, "Description", notes.description);
+            element(w, "Created", date(notes.created));
+            element(w, "LastModified", date(notes.modified));
+            element(w, "CreatedBy", notes.createdBy);
+            element(w, "AccessionNumber", notes.accessionNumber);
+            element(w, "CodeNumber", notes.codeNumber);
+            element(w, "Organism", notes.organism);
+            element(w, "SequenceClass", notes.sequenceClass);
+            element(w, "TransformedInto", notes.transformedInto);
+            element(w, "CustomMapLabel", notes.customMapLabel);
+            element(w, "UseCustomMapLabel", bool(notes.useCustomMapLabel));
+            element(w, "Comments", notes.comments);
+            if (!notes.references.isEmpty())
+            {
+                w.writeStartElement("References");
+                for (Reference ref : notes.references)
+                {
+                    w.writeEmptyElement("Reference");
+                    attribute(w, "title", ref.title);
+                    attribute(w, "pubMedID", ref.pubMedID);
+                    attribute(w, "journal", ref.journal);
+                    attribute(w, "authors", ref.authors);
+                }
+                w.writeEndElement();
+            }
+            w.writeEndElement();
+        });
+    }
+
+    /**
+     * Encodes notes over the Notes payload they replace. If the notes read the same as the original, the
+     * original bytes are returned as they are. Otherwise only the elements and Reference attributes whose
+     * values changed are rewritten; unknown elements, the UTC attributes of unchanged dates and other
+     * Reference attributes are kept.
+     */
+    public static ByteBuffer encode(NotesSegment notes, ByteBuffer original)
+    {
+        Document doc = SnapGene.createDocument(original.duplicate());
+        NotesSegment old = NotesSegment.parse(doc);
+        if (old.equals(notes))
+            return original.duplicate();
+
+        Element root = doc.getDocumentElement();
+        patch(root, "UUID", old.uuid, notes.uuid, notes.uuid);
+        patch(root, "Type", old.type, notes.type, notes.type);
+        patch(root, "ConfirmedExperimentally", old.confirmedExperimentally, notes.confirmedExperimentally, bool(notes.confirmedExperimentally));
+        patch(root, "Description", old.description, notes.description, notes.description);
+        patch(root, "Created", old.created, notes.created, date(notes.created));
+        patch(root, "LastModified", old.modified, notes.modified, date(notes.modified));
+        patch(root, "CreatedBy", old.createdBy, notes.createdBy, notes.createdBy);
+        patch(root, "AccessionNumber", old.accessionNumber, notes.accessionNumber, notes.accessionNumber);
+        patch(root, "CodeNumber", old.codeNumber, notes.codeNumber, notes.codeNumber);
+        patch(root, "Organism", old.organism, notes.organism, notes.organism);
+        patch(root, "SequenceClass", old.sequenceClass, notes.sequenceClass, notes.sequenceClass);
+        patch(root, "TransformedInto", old.transformedInto, notes.transformedInto, notes.transformedInto);
+        patch(root, "CustomMapLabel", old.customMapLabel, notes.customMapLabel, notes.customMapLabel);
+        patch(root, "UseCustomMapLabel", old.useCustomMapLabel, notes.useCustomMapLabel, bool(notes.useCustomMapLabel));
+        patch(root, "Comments", old.comments, notes.comments, notes.comments);
+        patchReferences(root, old.references, notes.references == null ? List.of() : notes.references);
+        return ByteBuffer.wrap(serialize(doc, startsWith(original, "<?xml")));
+    }
+
+    // The first element of the tag, which the parser reads, takes the new text. Its attributes describe
+    // the old value (UTC on Created and LastModified), so they go too.
+    private static void patch(Element parent, String tag, Object oldValue, Object newValue, String text)
+    {
+        if (Objects.equals(oldValue, newValue))
+            return;
+        if (text == null) {
+            for (Element el : SnapGene.getElementsByTagName(parent, tag))
+                parent.removeChild(el);
+            return;
+        }
+        Element el = SnapGene.getElementByTagName(parent, tag);
+        if (el == null)
+            el = (Element) parent.appendChild(parent.getOwnerDocument().createElement(tag));
+        NamedNodeMap attrs = el.getAttributes();
+        while (attrs.getLength() > 0)
+            el.removeAttributeNode((Attr) attrs.item(0));
+        el.setTextContent(text);
+    }
+
+    // References are matched by position; only those that changed have their four attributes rewritten
+    private static void patchReferences(Element notes, List<Reference> oldRefs, List<Reference> newRefs)
+    {
+        if (oldRefs.equals(newRefs))
+            return;
+        Document doc = notes.getOwnerDocument();
+        Element refs = SnapGene.getElementByTagName(notes, "References");
+        if (refs == null)
+            refs = (Element) notes.appendChild(doc.createElement("References"));
+        List<Element> els = SnapGene.getElementsByTagName(refs, "Reference");
+        for (int i = 0; i < newRefs.size(); i++)
+        {
+            Reference ref = newRefs.get(i);
+            if (i < els.size() && ref.equals(oldRefs.get(i)))
+                continue;
+            Element el = i < els.size() ? els.get(i) : (Element) refs.appendChild(doc.createElement("Reference"));
+            attribute(el, "title", ref.title);
+            attribute(el, "pubMedID", ref.pubMedID);
+            attribute(el, "journal", ref.journal);
+            attribute(el, "authors", ref.authors);
+        }
+        for (int i = newRefs.size(); i < els.size(); i++)
+            refs.removeChild(els.get(i));
+    }
+
+    private static void attribute(Element el, String name, String value)
+    {
+        if (value != null)
+            el.setAttribute(name, value);
+        else
+            el.removeAttribute(name);
+    }
+
+    private static boolean startsWith(ByteBuffer data, String prefix)
+    {
+        if (data.remaining() < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (data.get(data.position() + i) != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    private static byte[] serialize(Document doc, boolean declaration)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        try {
+            Transformer t;
+            synchronized (transformerFactory) {
+                t = transformerFactory.newTransformer();
+            }
+            t.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            t.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, declaration ? "no" : "yes");
+            doc.setXmlStandalone(true);
+            t.transform(new DOMSource(doc), new StreamResult(out));
+        } catch (TransformerException e) {
+            throw new IllegalArgumentException("Error writing XML", e);
+        }
+        return out.toByteArray();
+    }
+
+    public static byte[] encode(FeaturesSegment features)
+    {
+        return xml(w -> {
+            w.writeStartElement("Features");
+            for (Feature f : features.features)
+                writeFeature(w, f);
+            w.writeEndElement();
+        });
+    }
+
+    private static void writeFeature(XMLStreamWriter w, Feature f) throws XMLStreamException
+    {
+        w.writeStartElement("Feature");
+        attribute(w, "name", f.name);
+        attribute(w, "type", f.type);
+        if (f.directionality != null)
+            w.writeAttribute("directionality", String.valueOf(f.directionality.ordinal()));
+        attribute(w, "geneticCode", f.geneticCode);
+        attribute(w, "translateFirstCodonAsMet", bool(f.translateFirstCodonAsMet()));
+        attribute(w, "allowSegmentOverlaps", bool(f.allowSegmentOverlaps()));
+        attribute(w, "consecutiveTranslationNumbering", bool(f.consecutiveTranslationNumbering()));
+        attribute(w, "swappedSegmentNumbering", bool(f.swappedSegmentNumbering()));
+        attribute(w, "hitsStopCodon", bool(f.hitsStopCodon()));
+        if (f.translationMW() != null)
+            w.writeAttribute("translationMW", BigDecimal.valueOf(f.translationMW()).toPlainString());
+        if (f.cleavageArrows.length > 0)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int arrow : f.cleavageArrows)
+                sb.append(sb.length() == 0 ? "" : ",").append(arrow);
+            w.writeAttribute("cleavageArrows", sb.toString());
+        }
+        if (f.readingFrame() != null)
+            w.writeAttribute("readingFrame", String.valueOf(f.readingFrame()));
+        attribute(w, "visible", bool(f.visible()));
+        otherAttributes(w, f.otherAttributes);
+
+        for (Seg s : f.segments)
+        {
+            w.writeEmptyElement("Segment");
+            attribute(w, "name", s.name);
+            attribute(w, "range", s.range());
+            attribute(w, "color", s.color);
+            attribute(w, "type", s.type);
+            attribute(w, "translated", bool(s.translated()));
+            if (s.translationNumberingStartsFrom() != null)
+                w.writeAttribute("translationNumberingStartsFrom", String.valueOf(s.translationNumberingStartsFrom()));
+            otherAttributes(w, s.otherAttributes);
+        }
+
+        Qualifiers q = f.qualifiers;
+        for (int i = 0; i < q.size(); i++)
+        {
+            w.writeStartElement("Q");
+            w.writeAttribute("name", q.key(i));
+            w.writeEmptyElement("V");
+            switch (q.kind(i))
+            {
+                case NONE:
+                    break;
+                case INT:
+                    w.writeAttribute("int", String.valueOf(q.intValue(i)));
+                    break;
+                case BOOL:
+                    w.writeAttribute("bool", q.intValue(i) != 0 ? "1" : "0");
+                    break;
+                default:
+                    w.writeAttribute(q.valueType(i), q.text(i));
+            }
+            w.writeEndElement();
+        }
+        w.writeEndElement();
+    }
+
+    private interface XmlBody
+    {
+        void write(XMLStreamWriter w) throws XMLStreamException;
+    }
+
+    private static byte[] xml(XmlBody body)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+        try {
+            XMLStreamWriter w = xmlOutputFactory.createXMLStreamWriter(out, "UTF-8");
+            w.writeStartDocument("UTF-8", "1.0");
+            body.write(w);
+            w.writeEndDocument();
+            w.close();
+        } catch (XMLStreamException e) {
+            throw new IllegalArgumentException("Error writing XML", e);
+        }
+        return out.toByteArray();
+    }
+
+    // absent values are left out, as the parser reads a missing element as null
+    private static void element(XMLStreamWriter w, String name, String text) throws XMLStreamException
+    {
+        if (text == null)
+            return;
+        w.writeStartElement(name);
+        w.writeCharacters(text);
+        w.writeEndElement();
+    }
+
+    private static void attribute(XMLStreamWriter w, String name, String value) throws XMLStreamException
+    {
+        if (value != null)
+            w.writeAttribute(name, value);
+    }
+
+    private static void otherAttributes(XMLStreamWriter w, String[] pairs) throws XMLStreamException
+    {
+        if (pairs == null)
+            return;
+        for (int i = 0; i < pairs.length; i += 2)
+            w.writeAttribute(pairs[i], pairs[i + 1]);
+    }
+
+    private static String bool(Boolean b)
+    {
+        return b == null ? null : b ? "1" : "0";
+    }
+
+    private static String date(Date d)
+    {
+        return d == null ? null : LocalDate.ofInstant(d.toInstant(), ZoneId.systemDefault()).format(dateFormat);
+    }
+}
@@ -0,0 +1,39 @@
+package com.robojudo;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Process-wide table of strings that repeat across features and documents: feature and segment
+ * types, colors, genetic codes, qualifier keys and predefined qualifier values. Interning them means
+ * each distinct value is held once however many features refer to it.
+ *
+ * The table stops growing at {@link #MAX_SIZE} entries; further strings are returned as they are.
+ */
+final class Symbols
+{
+    static final int MAX_SIZE = 1 << 16;
+
+    private static final ConcurrentHashMap<String, String> table = new ConcurrentHashMap<>(1024);
+
+    private Symbols()
+    {
+    }
+
+    static String intern(String s)
+    {
+        if (s == null)
+            return null;
+        String ret = table.get(s);
+        if (ret != null)
+            return ret;
+        if (table.size() >= MAX_SIZE)
+            return s;
+        ret = table.putIfAbsent(s, s);
+        return ret != null ? ret : s;
+    }
+
+    static int size()
+    {
+        return table.size();
+    }
+}
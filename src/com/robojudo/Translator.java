@@ -0,0 +1,210 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.Directionality;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.Seg;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Translates coding features to protein.
+ *
+ * The coding sequence of a feature is the concatenation of its segments, leaving out gap segments and
+ * segments marked as not translated. Unless the feature allows segment overlaps, bases shared by
+ * consecutive segments are only read once. Reverse features are read on the bottom strand from their
+ * last segment to their first. Translation starts at the feature's reading frame (1 to 3, default 1),
+ * uses its genetic code (default standard) and continues through stop codons, which appear as '*'.
+ *
+ * Work buffers are kept per thread, so translating a feature allocates little beyond the result.
+ */
+public final class Translator
+{
+    private static final double WATER = 18.01528;
+    private static final double[] RESIDUE_MASS = new double[128];
+    static {
+        String residues = "ARNDCEQGHILKMFPSTWYVUO";
+        double[] masses = {
+                71.0788, 156.1875, 114.1038, 115.0886, 103.1388, 129.1155, 128.1307, 57.0519, 137.1411, 113.1594, 113.1594,
+                128.1741, 131.1926, 147.1766, 97.1167, 87.0782, 101.1051, 186.2132, 163.1760, 99.1326, 150.0388, 237.3018
+        };
+        for (int i = 0; i < residues.length(); i++)
+            RESIDUE_MASS[residues.charAt(i)] = masses[i];
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private Translator()
+    {
+    }
+
+    public static class Translation
+    {
+        // one letter per codon; '*' for stop codons, 'X' for codons with ambiguous bases
+        public final String protein;
+        public final GeneticCode geneticCode;
+        public final int stopCodons;
+        public final boolean endsWithStop;
+        // average mass in daltons of the residues before the first stop codon, or NaN if one of them is 'X'
+        public final double molecularWeight;
+
+        Translation(String protein, GeneticCode geneticCode, int stopCodons, boolean endsWithStop, double molecularWeight) {
+            this.protein = protein;
+            this.geneticCode = geneticCode;
+            this.stopCodons = stopCodons;
+            this.endsWithStop = endsWithStop;
+            this.molecularWeight = molecularWeight;
+        }
+
+        /** True if the feature has no stored translationMW or it is within tolerance daltons of the computed weight. */
+        public boolean matchesStoredWeight(Feature feature, double tolerance)
+        {
+            return feature.translationMW() == null || Math.abs(feature.translationMW() - molecularWeight) <= tolerance;
+        }
+
+        @Override
+        public String toString()
+        {
+            return protein;
+        }
+    }
+
+    public static Translation translate(Feature feature, DNASegment dna)
+    {
+        return translate(feature, dna.sequence, "circular".equals(dna.topology));
+    }
+
+    public static Translation translate(Feature feature, PackedSequence seq, boolean circular)
+    {
+        int len = seq.length();
+        Scratch s = scratch.get();
+        int n = s.collect(feature.segments, len, circular, !Boolean.TRUE.equals(feature.allowSegmentOverlaps()));
+        boolean reverse = feature.directionality == Directionality.ReverseDirectional;
+
+        int total = 0;
+        for (int i = 0; i < n; i++)
+            total += s.ends[i] - s.starts[i];
+        Integer readingFrame = feature.readingFrame();
+        int frame = readingFrame == null ? 0 : (Math.abs(readingFrame) + 2) % 3;
+        int codons = Math.max(0, (total - frame) / 3);
+
+        GeneticCode code = GeneticCode.forAttribute(feature.geneticCode);
+        char[] protein = s.protein(codons);
+        int[] codon = s.codon;
+        int filled = 0, skip = frame, aa = 0;
+        for (int k = 0; k < n && aa < codons; k++)
+        {
+            int i = reverse ? n - 1 - k : k;
+            int from = s.starts[i], to = s.ends[i];
+            for (int j = 0; j < to - from && aa < codons; j++)
+            {
+                int pos = reverse ? to - 1 - j : from + j;
+                if (pos >= len)
+                    pos %= len;
+                int c = seq.code(pos);
+                if (reverse && c >= 0)
+                    c = 3 - c;
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                codon[filled++] = c;
+                if (filled == 3) {
+                    protein[aa++] = code.translate(codon[0], codon[1], codon[2]);
+                    filled = 0;
+                }
+            }
+        }
+
+        if (aa > 0 && Boolean.TRUE.equals(feature.translateFirstCodonAsMet()))
+            protein[0] = 'M';
+
+        int stops = 0;
+        for (int i = 0; i < aa; i++)
+            if (protein[i] == '*')
+                stops++;
+        boolean endsWithStop = aa > 0 && protein[aa - 1] == '*';
+
+        return new Translation(new String(protein, 0, aa), code, stops, endsWithStop, molecularWeight(protein, aa));
+    }
+
+    /** Average molecular weight of a protein up to its first stop; NaN if it contains a residue of unknown mass. */
+    public static double molecularWeight(CharSequence protein)
+    {
+        char[] chars = new char[protein.length()];
+        for (int i = 0; i < chars.length; i++)
+            chars[i] = protein.charAt(i);
+        return molecularWeight(chars, chars.length);
+    }
+
+    private static double molecularWeight(char[] protein, int n)
+    {
+        double mass = 0;
+        int residues = 0;
+        for (int i = 0; i < n && protein[i] != '*'; i++)
+        {
+            char c = protein[i];
+            double m = c < 128 ? RESIDUE_MASS[c] : 0;
+            if (m == 0)
+                return Double.NaN;
+            mass += m;
+            residues++;
+        }
+        return residues == 0 ? 0 : mass + WATER;
+    }
+
+    /** Per-thread buffers for segment spans and the protein being built. */
+    private static final class Scratch
+    {
+        // 0-based half-open spans in translation order; ends may run past the sequence length on circular sequences
+        int[] starts = new int[8];
+        int[] ends = new int[8];
+        final int[] codon = new int[3];
+        char[] protein = new char[1024];
+
+        char[] protein(int length)
+        {
+            if (protein.length < length)
+                protein = new char[Math.max(length, 2 * protein.length)];
+            return protein;
+        }
+
+        int collect(List<Seg> segments, int len, boolean circular, boolean clipOverlaps)
+        {
+            int n = 0;
+            for (Seg seg : segments)
+            {
+                if (!seg.hasRange() || "gap".equals(seg.type) || Boolean.FALSE.equals(seg.translated()))
+                    continue;
+
+                int from = seg.start - 1, to = seg.end;
+                if (from < 0 || to > len)
+                    throw new IllegalArgumentException("Segment " + seg.range() + " outside sequence of length " + len);
+                if (to <= from) {
+                    if (!circular)
+                        throw new IllegalArgumentException("Segment " + seg.range() + " wraps around the origin of a linear sequence");
+                    to += len;
+                }
+                // keep the spans of a feature that continues past the origin in ascending order
+                if (circular && n > 0 && from < starts[n - 1]) {
+                    from += len;
+                    to += len;
+                }
+                if (clipOverlaps && n > 0 && from >= starts[n - 1] && from < ends[n - 1])
+                    from = ends[n - 1];
+                if (from >= to)
+                    continue;
+
+                if (n == starts.length) {
+                    starts = Arrays.copyOf(starts, 2 * n);
+                    ends = Arrays.copyOf(ends, 2 * n);
+                }
+                starts[n] = from;
+                ends[n] = to;
+                n++;
+            }
+            return n;
+        }
+    }
+}
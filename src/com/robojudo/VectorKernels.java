@@ -0,0 +1,124 @@
+package com.robojudo;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link SequenceKernels} on the Vector API. Bases are compared a vector at a time after clearing the
+ * lower-case bit; what is left of a range after the last full vector goes through the scalar loops, or a
+ * masked load for GC counts, which sliding windows call on short ranges. Only loaded by
+ * {@link SequenceKernels} once the incubator module is known to be present.
+ */
+final class VectorKernels extends SequenceKernels
+{
+    // at most 64 lanes so that masks fit in a long
+    private static final VectorSpecies<Byte> S = ByteVector.SPECIES_PREFERRED.length() <= 64
+            ? ByteVector.SPECIES_PREFERRED : ByteVector.SPECIES_512;
+    private static final int L = S.length();
+    private static final VectorShuffle<Byte> REVERSE = VectorShuffle.fromOp(S, i -> L - 1 - i);
+    private static final byte FOLD = (byte) 0xDF;
+
+    @Override
+    String name()
+    {
+        return "vector" + S.vectorBitSize();
+    }
+
+    @Override
+    int gcCount(byte[] a, int from, int to)
+    {
+        int n = 0, i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += L)
+        {
+            ByteVector v = ByteVector.fromArray(S, a, i).and(FOLD);
+            n += v.eq((byte) 'C').or(v.eq((byte) 'G')).trueCount();
+        }
+        if (i < to) {
+            // short ranges, as in sliding windows, are a single masked load
+            VectorMask<Byte> tail = S.indexInRange(i, to);
+            ByteVector v = ByteVector.fromArray(S, a, i, tail).and(FOLD);
+            n += v.eq((byte) 'C').or(v.eq((byte) 'G')).and(tail).trueCount();
+        }
+        return n;
+    }
+
+    @Override
+    void composition(byte[] a, int from, int to, long[] counts)
+    {
+        long na = 0, nc = 0, ng = 0, nt = 0;
+        int i = from;
+        for (int bound = from + S.loopBound(to - from); i < bound; i += L)
+        {
+            ByteVector v = ByteVector.fromArray(S, a, i).and(FOLD);
+            na += v.eq((byte) 'A').trueCount();
+            nc += v.eq((byte) 'C').trueCount();
+            ng += v.eq((byte) 'G').trueCount();
+            nt += v.eq((byte) 'T').trueCount();
+        }
+        counts[0] += na;
+        counts[1] += nc;
+        counts[2] += ng;
+        counts[3] += nt;
+        SCALAR.composition(a, i, to, counts);
+    }
+
+    @Override
+    void runs(byte[] a, int from, int to, int minLength, SequenceAnalytics.Runs out)
+    {
+        if (from >= to)
+            return;
+        // lane k compares a[i + k] with a[i + k + 1]; a set bit ends a run before i + k + 1
+        int start = from, i = from;
+        for (; i + L < to; i += L)
+        {
+            ByteVector x = ByteVector.fromArray(S, a, i).and(FOLD);
+            ByteVector y = ByteVector.fromArray(S, a, i + 1).and(FOLD);
+            long m = x.compare(VectorOperators.NE, y).toLong();
+            while (m != 0)
+            {
+                int end = i + 1 + Long.numberOfTrailingZeros(m);
+                run(a, start, end, minLength, out);
+                start = end;
+                m &= m - 1;
+            }
+        }
+        for (int j = i + 1; j < to; j++)
+        {
+            if (fold(a[j]) != fold(a[j - 1])) {
+                run(a, start, j, minLength, out);
+                start = j;
+            }
+        }
+        run(a, start, to, minLength, out);
+    }
+
+    @Override
+    void reverseComplement(byte[] src, int from, int to, byte[] dst, int dstBegin)
+    {
+        int i = to, j = dstBegin;
+        for (; i - L >= from; i -= L, j += L)
+        {
+            ByteVector v = ByteVector.fromArray(S, src, i - L);
+            ByteVector f = v.and(FOLD);
+            VectorMask<Byte> at = f.eq((byte) 'A').or(f.eq((byte) 'T'));
+            VectorMask<Byte> cg = f.eq((byte) 'C').or(f.eq((byte) 'G'));
+            // A <-> T and C <-> G differ in the same bits in either case
+            v.lanewise(VectorOperators.XOR, (byte) 0x15, at)
+                    .lanewise(VectorOperators.XOR, (byte) 0x04, cg)
+                    .rearrange(REVERSE)
+                    .intoArray(dst, j);
+            // ambiguity codes and anything else go through the lookup table
+            long other = at.or(cg).not().toLong();
+            while (other != 0)
+            {
+                int k = Long.numberOfTrailingZeros(other);
+                dst[j + L - 1 - k] = PackedSequence.complement(src[i - L + k]);
+                other &= other - 1;
+            }
+        }
+        SCALAR.reverseComplement(src, from, i, dst, j);
+    }
+}
@@ -0,0 +1,417 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.AlignableSequenceSegment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.zip.Deflater;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChromatogramTest
+{
+    private static final int SAMPLES = 40;
+    private static final String BASES = "ACGTNACGTA";
+
+    // unsigned 16-bit samples, some above Short.MAX_VALUE and some that fit in a byte
+    private static short sample(int channel, int i)
+    {
+        return (short) (i % 5 == 0 ? 40_000 + i * 600 + channel : (i * 13 + channel * 31) % 120);
+    }
+
+    private static int peak(int i)
+    {
+        return i == BASES.length() - 1 ? 70_000 : i * 4 + 2;
+    }
+
+    private static byte quality(int i)
+    {
+        return (byte) (i * 6);
+    }
+
+    // raw chunk payloads: the format byte, padding for alignment, then the values
+
+    private static byte[] smp4()
+    {
+        ByteBuffer bb = ByteBuffer.allocate(2 + 4 * 2 * SAMPLES);
+        bb.put((byte) 0).put((byte) 0);
+        for (int c = 0; c < 4; c++)
+            for (int i = 0; i < SAMPLES; i++)
+                bb.putShort(sample(c, i));
+        return bb.array();
+    }
+
+    private static byte[] smp0(int channel)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(2 + 2 * SAMPLES);
+        bb.put((byte) 0).put((byte) 0);
+        for (int i = 0; i < SAMPLES; i++)
+            bb.putShort(sample(channel, i));
+        return bb.array();
+    }
+
+    private static byte[] bpos()
+    {
+        ByteBuffer bb = ByteBuffer.allocate(4 + 4 * BASES.length());
+        bb.putInt(0);
+        for (int i = 0; i < BASES.length(); i++)
+            bb.putInt(peak(i));
+        return bb.array();
+    }
+
+    private static byte[] base()
+    {
+        ByteBuffer bb = ByteBuffer.allocate(1 + BASES.length());
+        return bb.put((byte) 0).put(BASES.getBytes(StandardCharsets.US_ASCII)).array();
+    }
+
+    private static byte[] cnf1()
+    {
+        ByteBuffer bb = ByteBuffer.allocate(1 + BASES.length());
+        bb.put((byte) 0);
+        for (int i = 0; i < BASES.length(); i++)
+            bb.put(quality(i));
+        return bb.array();
+    }
+
+    // the confidence of each called base, then those of the three other bases at each position
+    private static byte[] cnf4()
+    {
+        ByteBuffer bb = ByteBuffer.allocate(1 + 4 * BASES.length());
+        bb.put((byte) 0);
+        for (int i = 0; i < BASES.length(); i++)
+            bb.put(quality(i));
+        for (int i = 0; i < 3 * BASES.length(); i++)
+            bb.put((byte) 1);
+        return bb.array();
+    }
+
+    // encoders for each ZTR format, written from the format description
+
+    private static void putIntLE(ByteArrayOutputStream out, int v)
+    {
+        out.write(v);
+        out.write(v >>> 8);
+        out.write(v >>> 16);
+        out.write(v >>> 24);
+    }
+
+    private static byte[] rle(byte[] data)
+    {
+        byte guard = (byte) 150;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(1);
+        putIntLE(out, data.length);
+        out.write(guard);
+        for (int i = 0; i < data.length; )
+        {
+            int run = 1;
+            while (i + run < data.length && data[i + run] == data[i] && run < 255)
+                run++;
+            if (run >= 4) {
+                out.write(guard);
+                out.write(run);
+                out.write(data[i]);
+                i += run;
+            }
+            else {
+                out.write(data[i]);
+                if (data[i] == guard)
+                    out.write(0);
+                i++;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] zlib(byte[] data)
+    {
+        Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        byte[] buf = new byte[data.length + 64];
+        int n = deflater.deflate(buf);
+        deflater.end();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(2);
+        putIntLE(out, data.length);
+        out.write(buf, 0, n);
+        return out.toByteArray();
+    }
+
+    private static UnaryOperator<byte[]> delta(int width, int level)
+    {
+        return data -> {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            ByteBuffer out = ByteBuffer.allocate((width == 4 ? 4 : 2) + data.length);
+            out.put((byte) (width == 1 ? 64 : width == 2 ? 65 : 66)).put((byte) level);
+            if (width == 4)
+                out.putShort((short) 0);
+            int u1 = 0, u2 = 0, u3 = 0;
+            while (in.hasRemaining())
+            {
+                int v = width == 1 ? in.get() : width == 2 ? in.getShort() : in.getInt();
+                int z = level == 1 ? u1 : level == 2 ? 2 * u1 - u2 : 3 * u1 - 3 * u2 + u3;
+                if (width == 1)
+                    out.put((byte) (v - z));
+                else if (width == 2)
+                    out.putShort((short) (v - z));
+                else
+                    out.putInt(v - z);
+                u3 = u2;
+                u2 = u1;
+                u1 = v;
+            }
+            return out.array();
+        };
+    }
+
+    private static UnaryOperator<byte[]> shrink(int width)
+    {
+        return data -> {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(width == 2 ? 67 : 69);
+            while (in.hasRemaining())
+            {
+                int v = width == 2 ? in.getShort() : in.getInt();
+                if (v >= -127 && v <= 127) {
+                    out.write(v);
+                }
+                else {
+                    out.write(-128);
+                    byte[] b = width == 2 ? ByteBuffer.allocate(2).putShort((short) v).array() : ByteBuffer.allocate(4).putInt(v).array();
+                    out.write(b, 0, b.length);
+                }
+            }
+            return out.toByteArray();
+        };
+    }
+
+    private static byte[] follow(byte[] data)
+    {
+        byte[] next = new byte[256];
+        for (int i = 0; i < 256; i++)
+            next[i] = (byte) (i * 7 + 3);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(70);
+        out.write(next, 0, next.length);
+        out.write(data[0]);
+        for (int i = 1; i < data.length; i++)
+            out.write(next[data[i - 1] & 0xFF] - data[i]);
+        return out.toByteArray();
+    }
+
+    @SafeVarargs
+    private static UnaryOperator<byte[]> chain(UnaryOperator<byte[]>... formats)
+    {
+        return data -> {
+            for (UnaryOperator<byte[]> format : formats)
+                data = format.apply(data);
+            return data;
+        };
+    }
+
+    /** A ZTR 1.2 trace of the given chunks: the type, metadata and data of each. */
+    private static byte[] ztr(Object... chunks)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[] {(byte) 0xAE, 'Z', 'T', 'R', '\r', '\n', 0x1A, '\n', 1, 2}, 0, 10);
+        for (int i = 0; i < chunks.length; i += 3)
+        {
+            byte[] meta = ((String) chunks[i + 1]).getBytes(StandardCharsets.US_ASCII), data = (byte[]) chunks[i + 2];
+            ByteBuffer bb = ByteBuffer.allocate(12 + meta.length + data.length);
+            bb.put(((String) chunks[i]).getBytes(StandardCharsets.US_ASCII)).putInt(meta.length).put(meta).putInt(data.length).put(data);
+            out.write(bb.array(), 0, bb.capacity());
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] trace(UnaryOperator<byte[]> samples, UnaryOperator<byte[]> positions, UnaryOperator<byte[]> bytes)
+    {
+        return ztr("SMP4", "", samples.apply(smp4()), "BPOS", "", positions.apply(bpos()),
+                "BASE", "", bytes.apply(base()), "CNF1", "", bytes.apply(cnf1()));
+    }
+
+    private static void assertExpected(Chromatogram c)
+    {
+        assertEquals(SAMPLES, c.sampleCount());
+        for (int ch = 0; ch < 4; ch++)
+        {
+            short[] expected = new short[SAMPLES];
+            for (int i = 0; i < SAMPLES; i++)
+                expected[i] = sample(ch, i);
+            assertArrayEquals(expected, c.samplesArray(ch), "channel " + ch);
+            assertEquals(Short.toUnsignedInt(sample(ch, 5)), c.sample(ch, 5));
+        }
+        assertTrue(c.sample(0, 5) > Short.MAX_VALUE);
+
+        int[] peaks = new int[BASES.length()];
+        byte[] qualities = new byte[BASES.length()];
+        for (int i = 0; i < BASES.length(); i++)
+        {
+            peaks[i] = peak(i);
+            qualities[i] = quality(i);
+        }
+        assertArrayEquals(peaks, c.peaksArray());
+        assertEquals(BASES.length(), c.baseCount());
+        assertEquals(BASES, c.baseCalls());
+        assertArrayEquals(qualities, c.qualitiesArray());
+    }
+
+    @Test
+    void rawChunks()
+    {
+        byte[] ztr = trace(UnaryOperator.identity(), UnaryOperator.identity(), UnaryOperator.identity());
+        assertExpected(Chromatogram.decode(ByteBuffer.wrap(ztr)));
+
+        Chromatogram offHeap = Chromatogram.decode(ByteBuffer.wrap(ztr), true);
+        assertExpected(offHeap);
+        assertTrue(offHeap.samples(2).isDirect());
+        assertTrue(offHeap.peaks().isDirect());
+        assertTrue(offHeap.bases().isDirect());
+        assertTrue(offHeap.samples(2).isReadOnly());
+    }
+
+    @Test
+    void everyFormatDecodesToTheRawValues()
+    {
+        List<UnaryOperator<byte[]>> any = List.of(ChromatogramTest::rle, ChromatogramTest::zlib, ChromatogramTest::follow,
+                delta(1, 1), delta(1, 2), delta(1, 3), chain(ChromatogramTest::follow, ChromatogramTest::rle, ChromatogramTest::zlib));
+        for (int i = 0; i < any.size(); i++)
+        {
+            UnaryOperator<byte[]> format = any.get(i);
+            assertExpected(Chromatogram.decode(ByteBuffer.wrap(trace(format, format, format))));
+        }
+
+        List<UnaryOperator<byte[]>> shorts = List.of(delta(2, 1), delta(2, 2), delta(2, 3), shrink(2),
+                chain(delta(2, 3), shrink(2), ChromatogramTest::zlib));
+        List<UnaryOperator<byte[]>> ints = List.of(delta(4, 1), delta(4, 2), delta(4, 3), shrink(4),
+                chain(delta(4, 1), shrink(4), ChromatogramTest::rle));
+        for (int i = 0; i < shorts.size(); i++)
+            assertExpected(Chromatogram.decode(ByteBuffer.wrap(trace(shorts.get(i), ints.get(i), delta(1, 2)))));
+
+        // the escapes of the shrink formats are used
+        assertTrue(shrink(2).apply(smp4()).length < smp4().length);
+        assertTrue(contains(shrink(2).apply(smp4()), (byte) -128));
+        assertTrue(contains(shrink(4).apply(bpos()), (byte) -128));
+    }
+
+    private static boolean contains(byte[] data, byte b)
+    {
+        for (byte d : data)
+            if (d == b)
+                return true;
+        return false;
+    }
+
+    @Test
+    void separateChannelsAndFourConfidences()
+    {
+        byte[] ztr = ztr("SMP0", "TYPE\0A\0", smp0(0), "SMP0", "TYPE\0C\0", zlib(smp0(1)), "TEXT", "", new byte[] {0, 'x', 0},
+                "SMP0", "TYPE\0T\0", rle(smp0(3)), "SMP0", "TYPE\0PYRW\0", smp0(2), "SMP0", "", smp0(2),
+                "BASE", "", base(), "CNF4", "", cnf4());
+        Chromatogram c = Chromatogram.decode(ByteBuffer.wrap(ztr));
+        assertEquals(SAMPLES, c.sampleCount());
+        assertEquals(sample(1, 7), c.samples(1).get(7));
+        assertEquals(sample(3, SAMPLES - 1), c.samples(3).get(SAMPLES - 1));
+        // no SMP0 chunk for G
+        assertEquals(0, c.samples(2).capacity());
+        assertEquals(0, c.peaksArray().length);
+
+        byte[] qualities = new byte[BASES.length()];
+        for (int i = 0; i < qualities.length; i++)
+            qualities[i] = quality(i);
+        assertArrayEquals(qualities, c.qualitiesArray());
+
+        // a trace without confidences
+        assertEquals(0, Chromatogram.decode(ByteBuffer.wrap(ztr("BASE", "", base()))).qualitiesArray().length);
+    }
+
+    @Test
+    void alignedReadsDecodeTheirTracesOnDemand() throws Exception
+    {
+        byte[] ztr = trace(ChromatogramTest::zlib, delta(4, 2), ChromatogramTest::rle);
+        // a 4-byte header, then a segment before the trace
+        ByteBuffer framed = ByteBuffer.allocate(4 + 5 + 3 + 5 + ztr.length);
+        framed.putInt(1).put((byte) 30).putInt(3).put(new byte[3]).put((byte) AlignableSequenceSegment.SEQUENCE_TRACE).putInt(ztr.length).put(ztr);
+        byte[] broken = Arrays.copyOf(ztr, 40);
+        ByteBuffer none = ByteBuffer.allocate(4 + 5 + 3).putInt(1).put((byte) 30).putInt(3);
+
+        byte[] file = Samples.dnaFile("ACGT", false);
+        for (byte[] payload : new byte[][] {framed.array(), ztr, none.array(), broken})
+            file = Samples.withSegment(file, AlignableSequenceSegment.TYPE, payload);
+
+        for (SnapGeneDoc doc : new SnapGeneDoc[] {SnapGene.parse(ByteBuffer.wrap(file)), SnapGene.index(ByteBuffer.wrap(file))})
+        {
+            List<AlignableSequenceSegment> reads = doc.traces();
+            assertEquals(4, reads.size());
+            assertExpected(reads.get(0).trace());
+            assertExpected(reads.get(1).trace());
+            assertExpected(reads.get(1).trace(true));
+            assertNull(reads.get(2).trace());
+            // a broken trace only fails when it is decoded
+            assertNotNull(reads.get(3));
+            assertThrows(IllegalArgumentException.class, () -> reads.get(3).trace());
+        }
+    }
+
+    @Test
+    void malformedTracesAreRejected()
+    {
+        byte[] ztr = ztr("SMP0", "TYPE\0A\0", smp0(0), "BPOS", "", zlib(bpos()), "BASE", "", rle(base()));
+        // every truncation either decodes the chunks before it or fails cleanly
+        int decoded = 0;
+        for (int n = 0; n < ztr.length; n++)
+        {
+            try {
+                Chromatogram.decode(ByteBuffer.wrap(ztr, 0, n));
+                decoded++;
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        assertTrue(decoded > 0 && decoded < ztr.length);
+
+        // a chunk longer than the trace
+        byte[] truncated = Arrays.copyOf(ztr, ztr.length - 1);
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> Chromatogram.decode(ByteBuffer.wrap(truncated)));
+        assertTrue(e.getMessage().contains("chunk"), e.getMessage());
+
+        byte[] shortZlib = zlib(bpos());
+        assertThrows(IllegalArgumentException.class, () -> decodeBpos(Arrays.copyOf(shortZlib, shortZlib.length / 2)));
+        byte[] shortRle = rle(bpos());
+        assertThrows(IllegalArgumentException.class, () -> decodeBpos(Arrays.copyOf(shortRle, shortRle.length - 2)));
+        byte[] badLevel = delta(4, 1).apply(bpos());
+        badLevel[1] = 4;
+        assertThrows(IllegalArgumentException.class, () -> decodeBpos(badLevel));
+        byte[] shortShrink = shrink(4).apply(bpos());
+        assertThrows(IllegalArgumentException.class, () -> decodeBpos(Arrays.copyOf(shortShrink, shortShrink.length - 2)));
+        assertThrows(IllegalArgumentException.class, () -> decodeBpos(Arrays.copyOf(follow(bpos()), 200)));
+        assertThrows(IllegalArgumentException.class, () -> decodeBpos(new byte[] {99, 0, 0, 0}));
+        assertThrows(IllegalArgumentException.class, () -> decodeBpos(new byte[] {0, 0}));
+
+        byte[] version2 = ztr();
+        version2[8] = 2;
+        assertThrows(IllegalArgumentException.class, () -> Chromatogram.decode(ByteBuffer.wrap(version2)));
+        assertThrows(IllegalArgumentException.class, () -> Chromatogram.decode(ByteBuffer.wrap(base())));
+        assertFalse(Chromatogram.isZtr(ByteBuffer.wrap(base())));
+    }
+
+    private static Chromatogram decodeBpos(byte[] data)
+    {
+        return Chromatogram.decode(ByteBuffer.wrap(ztr("BPOS", "", data)));
+    }
+}
@@ -0,0 +1,215 @@
+package com.robojudo;
+
+import com.robojudo.ColumnarFile.Column;
+import com.robojudo.ColumnarFile.Type;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ColumnarFileTest
+{
+    // names with a NUL, a supplementary character and nothing at all, which modified UTF-8 would mangle
+    private static final List<Column> COLUMNS = List.of(
+            new Column("i", Type.INT),
+            new Column("l\0ong", Type.LONG),
+            new Column("d", Type.DOUBLE),
+            new Column("b", Type.BOOL),
+            new Column("s 🧬", Type.STRING),
+            new Column("", Type.STRING));
+
+    @TempDir
+    Path dir;
+
+    /** Row r of the test table; null for cells left null. */
+    private static Object value(int column, int row)
+    {
+        if ((row + column) % 7 == 0)
+            return null;
+        switch (column)
+        {
+            case 0: return row * 31 - 1000;
+            case 1: return (long) row << 33 | row;
+            case 2: return row % 11 == 0 ? Double.NaN : row / 3.0;
+            case 3: return row % 3 == 0;
+            // few distinct values, then more than 256 and 65536 for wider codes
+            case 4: return row % 5 == 0 ? "" : "v" + (row % (row < 1000 ? 300 : 70000));
+            default: return row % 2 == 0 ? "" : "café " + row % 3;
+        }
+    }
+
+    private static void write(ColumnarFile.Writer w, int rows) throws Exception
+    {
+        for (int r = 0; r < rows; r++)
+        {
+            for (int c = 0; c < COLUMNS.size(); c++)
+            {
+                Object v = value(c, r);
+                if (v == null)
+                    continue;
+                switch (COLUMNS.get(c).type)
+                {
+                    case INT:    w.setInt(c, (Integer) v); break;
+                    case LONG:   w.setLong(c, (Long) v); break;
+                    case DOUBLE: w.setDouble(c, (Double) v); break;
+                    case BOOL:   w.setBool(c, (Boolean) v); break;
+                    case STRING: w.setString(c, (String) v); break;
+                }
+            }
+            w.endRow();
+        }
+    }
+
+    @Test
+    void rowsReadBackAsWritten() throws Exception
+    {
+        Path file = dir.resolve("t.sgcf");
+        int rows = 150_000;
+        try (ColumnarFile.Writer w = ColumnarFile.writer(file, COLUMNS).rowGroupSize(40_000).build()) {
+            write(w, rows);
+            assertEquals(rows, w.rowCount());
+        }
+
+        try (ColumnarFile.Reader r = ColumnarFile.open(file)) {
+            assertEquals(rows, r.rowCount());
+            assertEquals(4, r.rowGroupCount());
+            assertEquals(COLUMNS.size(), r.columns().size());
+            for (int c = 0; c < COLUMNS.size(); c++)
+            {
+                assertEquals(COLUMNS.get(c).name, r.columns().get(c).name);
+                assertEquals(COLUMNS.get(c).type, r.columns().get(c).type);
+            }
+
+            int row = 0;
+            for (int g = 0; g < r.rowGroupCount(); g++)
+            {
+                ColumnarFile.RowGroup group = r.read(g);
+                assertEquals(r.rowGroupSize(g), group.size());
+                for (int i = 0; i < group.size(); i++, row++)
+                    for (int c = 0; c < COLUMNS.size(); c++)
+                        assertCell(group, c, i, value(c, row), "row " + row + " column " + c);
+            }
+            assertEquals(rows, row);
+        }
+    }
+
+    private static void assertCell(ColumnarFile.RowGroup group, int c, int i, Object expected, String where)
+    {
+        String name = COLUMNS.get(c).name;
+        assertEquals(expected == null, group.isNull(name, i), where);
+        switch (COLUMNS.get(c).type)
+        {
+            case INT:    assertEquals(expected == null ? 0 : (int) (Integer) expected, group.ints(name)[i], where); break;
+            case LONG:   assertEquals(expected == null ? 0 : (long) (Long) expected, group.longs(name)[i], where); break;
+            case DOUBLE: assertEquals(expected == null ? 0.0 : (double) (Double) expected, group.doubles(name)[i], where); break;
+            case BOOL:   assertEquals(expected != null && (Boolean) expected, group.bools(name)[i], where); break;
+            case STRING:
+                assertEquals(expected, group.strings(name).get(i), where);
+                assertEquals(expected == null, group.strings(name).code(i) == -1, where);
+                break;
+        }
+    }
+
+    @Test
+    void projectionDecodesOnlyRequestedColumns() throws Exception
+    {
+        Path file = dir.resolve("p.sgcf");
+        try (ColumnarFile.Writer w = ColumnarFile.writer(file, COLUMNS).rowGroupSize(100).build()) {
+            write(w, 250);
+        }
+        try (ColumnarFile.Reader r = ColumnarFile.open(file)) {
+            ColumnarFile.RowGroup group = r.read(2, "d", "");
+            assertEquals(50, group.size());
+            for (int i = 0; i < 50; i++)
+            {
+                assertCell(group, 2, i, value(2, 200 + i), "row " + (200 + i));
+                assertCell(group, 5, i, value(5, 200 + i), "row " + (200 + i));
+            }
+            // distinct values in order of first appearance, nulls left out
+            List<Object> distinct = new java.util.ArrayList<>();
+            for (int i = 200; i < 250; i++)
+                if (value(5, i) != null && !distinct.contains(value(5, i)))
+                    distinct.add(value(5, i));
+            assertEquals(distinct, group.strings("").dictionary());
+            assertThrows(IllegalArgumentException.class, () -> group.ints("i"));
+            assertThrows(IllegalArgumentException.class, () -> group.longs("d"));
+            assertThrows(IllegalArgumentException.class, () -> r.read(0, "missing"));
+            assertThrows(IndexOutOfBoundsException.class, () -> r.read(3));
+        }
+    }
+
+    @Test
+    void rowGroupsCloseEarlyOnStringBytes() throws Exception
+    {
+        Path file = dir.resolve("b.sgcf");
+        Random random = new Random(25);
+        String[] values = new String[1000];
+        try (ColumnarFile.Writer w = ColumnarFile.writer(file, List.of(new Column("s", Type.STRING))).rowGroupBytes(64 * 1024).build()) {
+            for (int i = 0; i < values.length; i++)
+            {
+                values[i] = Long.toString(random.nextLong(), 36).repeat(20);
+                w.setString(0, values[i]);
+                w.endRow();
+            }
+        }
+        try (ColumnarFile.Reader r = ColumnarFile.open(file)) {
+            assertTrue(r.rowGroupCount() > 1);
+            String[] read = new String[values.length];
+            int row = 0;
+            for (int g = 0; g < r.rowGroupCount(); g++)
+            {
+                ColumnarFile.Strings s = r.read(g, "s").strings("s");
+                for (int i = 0; i < s.size(); i++)
+                    read[row++] = s.get(i);
+            }
+            assertArrayEquals(values, read);
+        }
+    }
+
+    @Test
+    void emptyAndAllNull() throws Exception
+    {
+        Path empty = dir.resolve("empty.sgcf");
+        ColumnarFile.writer(empty, COLUMNS).build().close();
+        try (ColumnarFile.Reader r = ColumnarFile.open(empty)) {
+            assertEquals(0, r.rowCount());
+            assertEquals(0, r.rowGroupCount());
+        }
+
+        Path nulls = dir.resolve("nulls.sgcf");
+        try (ColumnarFile.Writer w = ColumnarFile.writer(nulls, COLUMNS).build()) {
+            for (int i = 0; i < 70; i++)
+            {
+                w.setString(4, null);
+                w.endRow();
+            }
+        }
+        try (ColumnarFile.Reader r = ColumnarFile.open(nulls)) {
+            ColumnarFile.RowGroup group = r.read(0);
+            for (int i = 0; i < 70; i++)
+                for (Column c : COLUMNS)
+                    assertTrue(group.isNull(c.name, i));
+            assertNull(group.strings("").get(69));
+            assertTrue(group.strings("").dictionary().isEmpty());
+            assertFalse(group.bools("b")[0]);
+        }
+    }
+
+    @Test
+    void rejectsOtherFiles() throws Exception
+    {
+        Path file = dir.resolve("junk");
+        Files.write(file, new byte[32]);
+        assertThrows(IllegalArgumentException.class, () -> ColumnarFile.open(file));
+    }
+}
@@ -0,0 +1,172 @@
+package com.robojudo;
+
+import com.robojudo.ColumnarFile.Column;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CorpusTablesTest
+{
+    @TempDir
+    Path dir;
+
+    /** Every row of a table, as column name to value with nulls left out. */
+    private static List<Map<String, Object>> rows(Path dir, String table) throws IOException
+    {
+        List<Map<String, Object>> ret = new ArrayList<>();
+        try (ColumnarFile.Reader r = CorpusTables.open(dir, table)) {
+            for (int g = 0; g < r.rowGroupCount(); g++)
+            {
+                ColumnarFile.RowGroup group = r.read(g);
+                int base = ret.size();
+                for (int row = 0; row < group.size(); row++)
+                    ret.add(new HashMap<>());
+                for (Column c : r.columns())
+                {
+                    for (int row = 0; row < group.size(); row++)
+                    {
+                        if (group.isNull(c.name, row))
+                            continue;
+                        Object v;
+                        switch (c.type)
+                        {
+                            case INT: v = group.ints(c.name)[row]; break;
+                            case LONG: v = group.longs(c.name)[row]; break;
+                            case DOUBLE: v = group.doubles(c.name)[row]; break;
+                            case BOOL: v = group.bools(c.name)[row]; break;
+                            default: v = group.strings(c.name).get(row);
+                        }
+                        ret.get(base + row).put(c.name, v);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    void tablesReferToTheirDocumentsAndFeatures() throws Exception
+    {
+        SnapGeneBatch.Summary summary = CorpusTables.export(Samples.dir(), dir);
+        assertEquals(0, summary.failures);
+
+        List<Map<String, Object>> documents = rows(dir, CorpusTables.DOCUMENTS);
+        assertEquals(Samples.files().size(), documents.size());
+        Map<Integer, SnapGeneDoc> docs = new HashMap<>();
+        for (Map<String, Object> d : documents)
+        {
+            SnapGeneDoc doc = SnapGene.parse(Samples.dir().resolve((String) d.get("path")));
+            assertNull(docs.put((Integer) d.get("doc_id"), doc), "doc_id " + d.get("doc_id"));
+            int features = doc.features() == null ? 0 : doc.features().features.size();
+            assertEquals(features, d.get("feature_count"), (String) d.get("path"));
+            assertEquals(doc.dna().sequence.length(), d.get("length"));
+        }
+
+        // one row per segment of each feature, in order
+        Map<Integer, Set<Integer>> seen = new HashMap<>();
+        for (Map<String, Object> f : rows(dir, CorpusTables.FEATURES))
+        {
+            SnapGeneDoc doc = docs.get((Integer) f.get("doc_id"));
+            assertNotNull(doc, "doc_id " + f.get("doc_id"));
+            Feature feature = doc.features().features.get((Integer) f.get("feature"));
+            assertEquals(feature.name, f.get("name"));
+            if (feature.segments.isEmpty())
+                assertNull(f.get("segment"));
+            else
+                assertEquals(feature.segments.get((Integer) f.get("segment")).type, f.get("segment_type"));
+            seen.computeIfAbsent((Integer) f.get("doc_id"), k -> new HashSet<>()).add((Integer) f.get("feature"));
+        }
+        for (Map.Entry<Integer, SnapGeneDoc> e : docs.entrySet())
+        {
+            int features = e.getValue().features() == null ? 0 : e.getValue().features().features.size();
+            assertEquals(features, seen.getOrDefault(e.getKey(), Set.of()).size(), "features of doc_id " + e.getKey());
+        }
+
+        // qualifiers in the order of each feature's Qualifiers
+        Map<List<Integer>, Integer> next = new HashMap<>();
+        for (Map<String, Object> q : rows(dir, CorpusTables.QUALIFIERS))
+        {
+            SnapGeneDoc doc = docs.get((Integer) q.get("doc_id"));
+            assertNotNull(doc, "doc_id " + q.get("doc_id"));
+            Qualifiers qualifiers = doc.features().features.get((Integer) q.get("feature")).qualifiers;
+            int i = next.merge(List.of((Integer) q.get("doc_id"), (Integer) q.get("feature")), 1, Integer::sum) - 1;
+            assertEquals(qualifiers.key(i), q.get("key"));
+            assertEquals(qualifiers.kind(i).name(), q.get("kind"));
+        }
+    }
+
+    @Test
+    void qualifierKindsAndValues() throws Exception
+    {
+        CorpusTables.export(Samples.dir(), dir);
+        int plasmid = -1;
+        for (Map<String, Object> d : rows(dir, CorpusTables.DOCUMENTS))
+            if (d.get("path").equals("plasmid.dna"))
+                plasmid = (Integer) d.get("doc_id");
+
+        Map<String, Map<String, Object>> byKey = new HashMap<>();
+        for (Map<String, Object> q : rows(dir, CorpusTables.QUALIFIERS))
+            if (q.get("doc_id").equals(plasmid))
+                byKey.put(q.get("feature") + " " + q.get("key"), q);
+
+        assertEquals(Map.of("doc_id", plasmid, "feature", 0, "key", "codon_start", "kind", "INT", "int_value", 1), byKey.get("0 codon_start"));
+        assertEquals(Map.of("doc_id", plasmid, "feature", 0, "key", "product", "kind", "PREDEF", "text_value", "green fluorescent protein"),
+                byKey.get("0 product"));
+        assertEquals(Map.of("doc_id", plasmid, "feature", 0, "key", "gene", "kind", "TEXT", "text_value", "gfp"), byKey.get("0 gene"));
+        assertEquals(Map.of("doc_id", plasmid, "feature", 1, "key", "pseudo", "kind", "BOOL", "int_value", 1), byKey.get("1 pseudo"));
+        assertEquals("NONE", byKey.get("2 note").get("kind"));
+        assertNull(byKey.get("2 note").get("text_value"));
+        assertEquals("", byKey.get("4 note").get("text_value"));
+    }
+
+    @Test
+    void lazyAndEagerDocumentsExportAlike() throws Exception
+    {
+        Path lazy = dir.resolve("lazy"), eager = dir.resolve("eager");
+        CorpusTables.export(Samples.dir(), lazy);
+        CorpusTables.export(SnapGeneBatch.builder().parser(SnapGene::parse).build(), Samples.dir(), eager);
+
+        for (String table : new String[] {CorpusTables.DOCUMENTS, CorpusTables.FEATURES, CorpusTables.QUALIFIERS})
+            assertEquals(byPath(lazy, table), byPath(eager, table), table);
+
+        for (Map<String, Object> d : rows(lazy, CorpusTables.DOCUMENTS))
+        {
+            SnapGeneDoc doc = SnapGene.parse(Samples.dir().resolve((String) d.get("path")));
+            assertEquals(doc.dna().topology, d.get("topology"));
+            assertEquals(doc.dna().strandedness, d.get("strandedness"));
+            assertEquals(doc.dna().Dam, d.get("dam"));
+            assertEquals(doc.dna().Dcm, d.get("dcm"));
+            assertEquals(doc.dna().EcoKI, d.get("ecoki"));
+        }
+    }
+
+    // rows with doc_id replaced by the document's path, since the batch may deliver files in any order
+    private static Set<Map<String, Object>> byPath(Path dir, String table) throws IOException
+    {
+        Map<Object, Object> paths = new HashMap<>();
+        for (Map<String, Object> d : rows(dir, CorpusTables.DOCUMENTS))
+            paths.put(d.get("doc_id"), d.get("path"));
+        Set<Map<String, Object>> ret = new HashSet<>();
+        for (Map<String, Object> row : rows(dir, table))
+        {
+            row.put("doc_id", paths.get(row.get("doc_id")));
+            assertTrue(ret.add(row), "duplicate row " + row);
+        }
+        return ret;
+    }
+}
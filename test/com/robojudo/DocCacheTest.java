@@ -0,0 +1,297 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DocCacheTest
+{
+    private final Path file = Samples.file("plasmid.dna");
+
+    @TempDir
+    Path dir;
+
+    // copies of one small file, so that every entry weighs the same
+    private List<Path> files(int n) throws IOException
+    {
+        List<Path> ret = new ArrayList<>();
+        for (int i = 0; i < n; i++)
+            ret.add(Files.copy(Samples.file("minimal.dna"), dir.resolve("file" + i + ".dna")));
+        return ret;
+    }
+
+    private static long entryWeight() throws IOException
+    {
+        return DocCache.weigh(SnapGene.parse(Samples.file("minimal.dna")));
+    }
+
+    private static boolean cached(DocCache cache, Path path, SnapGeneDoc doc) throws IOException
+    {
+        long hits = cache.hits();
+        SnapGeneDoc ret = cache.get(path);
+        assertEquals(ret == doc, cache.hits() > hits);
+        return ret == doc;
+    }
+
+    @Test
+    void oneOffLoadsDoNotDisplaceFrequentlyUsedEntries() throws Exception
+    {
+        long w = entryWeight();
+        // room for four entries; the window holds less than one, so new entries go straight to probation
+        DocCache cache = DocCache.builder().maximumWeight(4 * w + w / 2).maximumEntryWeight(w).build();
+        List<Path> files = files(30);
+
+        List<SnapGeneDoc> hot = new ArrayList<>();
+        for (int i = 0; i < 3; i++)
+        {
+            hot.add(cache.get(files.get(i)));
+            assertSame(hot.get(i), cache.get(files.get(i)));
+            assertSame(hot.get(i), cache.get(files.get(i)));
+        }
+        SnapGeneDoc fourth = cache.get(files.get(3));
+        assertEquals(4, cache.size());
+        assertEquals(4 * w, cache.weight());
+
+        // a scan of files requested once each: every one loses to the probation entry it would replace
+        for (int i = 4; i < files.size(); i++)
+        {
+            cache.get(files.get(i));
+            assertEquals(4, cache.size());
+        }
+        assertEquals(files.size() - 4, cache.rejections());
+        assertEquals(0, cache.evictions());
+        // the hot entries were promoted out of probation, so hits on them leave it alone
+        for (int i = 0; i < 3; i++)
+            assertTrue(cached(cache, files.get(i), hot.get(i)), "hot entry " + i);
+
+        // requested again, a file has been seen more often than the probation entry and replaces it
+        Path again = files.get(files.size() - 1);
+        SnapGeneDoc admitted = cache.get(again);
+        assertEquals(1, cache.evictions());
+        assertEquals(w, cache.evictedWeight());
+        assertTrue(cached(cache, again, admitted));
+        assertFalse(cached(cache, files.get(3), fourth));
+    }
+
+    @Test
+    void weightStaysWithinTheBudget() throws Exception
+    {
+        long w = entryWeight();
+        long budget = 5 * w + w / 3;
+        DocCache cache = DocCache.builder().maximumWeight(budget).maximumEntryWeight(w).build();
+        List<Path> files = files(12);
+        Random random = new Random(21);
+        for (int i = 0; i < 500; i++)
+        {
+            // a skewed workload, so that some entries are admitted and some evicted
+            int k = Math.min(random.nextInt(files.size()), random.nextInt(files.size()));
+            cache.get(files.get(k));
+            assertTrue(cache.weight() <= budget, "weight " + cache.weight());
+            assertEquals(cache.size() * w, cache.weight());
+        }
+        assertTrue(cache.evictions() > 0);
+        assertEquals(cache.evictions() * w, cache.evictedWeight());
+        assertEquals(cache.loads(), cache.misses());
+        assertEquals(500, cache.hits() + cache.misses());
+        assertEquals((double) cache.hits() / 500, cache.hitRate(), 1e-9);
+
+        cache.invalidate(files.get(0));
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+    }
+
+    @Test
+    void documentsHeavierThanTheEntryLimitAreNotCached() throws Exception
+    {
+        long heavy = DocCache.weigh(SnapGene.parse(file));
+        DocCache cache = DocCache.builder().maximumWeight(1L << 20).maximumEntryWeight(heavy - 1).build();
+        SnapGeneDoc doc = cache.get(file);
+        assertNotSame(doc, cache.get(file));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.rejections());
+        assertEquals(2, cache.loads());
+        assertEquals(0, cache.hitRate());
+
+        // the entry limit defaults to an eighth of the budget
+        DocCache small = DocCache.builder().maximumWeight(8 * heavy - 8).build();
+        small.get(file);
+        assertEquals(0, small.size());
+        DocCache large = DocCache.builder().maximumWeight(8 * heavy).build();
+        large.get(file);
+        assertEquals(1, large.size());
+        assertTrue(large.toString().contains("size=1"), large.toString());
+    }
+
+    @Test
+    void changedFilesAreReloaded() throws Exception
+    {
+        Path path = files(1).get(0);
+        DocCache cache = DocCache.builder().build();
+        SnapGeneDoc doc = cache.get(path);
+        assertSame(doc, cache.get(path));
+        Files.setLastModifiedTime(path, FileTime.fromMillis(Files.getLastModifiedTime(path).toMillis() + 60_000));
+        SnapGeneDoc changed = cache.get(path);
+        assertNotSame(doc, changed);
+        assertSame(changed, cache.get(path));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.loads());
+    }
+
+    @Test
+    void concurrentRequestsShareOneLoad() throws Exception
+    {
+        int threads = 8;
+        Path path = files(1).get(0);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger parses = new AtomicInteger();
+        DocCache cache = DocCache.builder().parser(p -> {
+            parses.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return SnapGene.parse(p);
+        }).build();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<SnapGeneDoc>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                results.add(pool.submit(() -> cache.get(path)));
+            // every request has missed and joined the load before it finishes
+            while (cache.misses() < threads)
+                Thread.sleep(1);
+            Thread.sleep(50);
+            release.countDown();
+
+            SnapGeneDoc doc = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<SnapGeneDoc> result : results)
+                assertSame(doc, result.get(10, TimeUnit.SECONDS));
+            assertEquals(1, parses.get());
+            assertEquals(1, cache.loads());
+            assertEquals(threads, cache.misses());
+            assertSame(doc, cache.get(path));
+            assertEquals(1, cache.hits());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void waitersSeeTheLoadersFailure() throws Exception
+    {
+        int threads = 4;
+        Path path = files(1).get(0);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger parses = new AtomicInteger();
+        DocCache cache = DocCache.builder().parser(p -> {
+            parses.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            throw new IOException("unreadable");
+        }).build();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<SnapGeneDoc>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                results.add(pool.submit(() -> cache.get(path)));
+            while (cache.misses() < threads)
+                Thread.sleep(1);
+            Thread.sleep(50);
+            release.countDown();
+
+            for (Future<SnapGeneDoc> result : results)
+            {
+                ExecutionException e = assertThrows(ExecutionException.class,
+                        () -> result.get(10, TimeUnit.SECONDS));
+                assertTrue(e.getCause() instanceof IOException);
+                assertTrue(e.getCause().getMessage().contains("unreadable"));
+            }
+            assertEquals(1, parses.get());
+            assertEquals(0, cache.size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void lazyDocumentsAreReweighedOnLookup() throws Exception
+    {
+        DocCache cache = DocCache.builder().parser(SnapGene::index).maximumWeight(1L << 20).build();
+        SnapGeneDoc doc = cache.get(file);
+        long lazy = cache.weight();
+        assertEquals(DocCache.weigh(doc), lazy);
+
+        doc.dna();
+        doc.features();
+        assertSame(doc, cache.get(file));
+        assertTrue(cache.weight() > lazy);
+        assertEquals(DocCache.weigh(doc), cache.weight());
+    }
+
+    @Test
+    void lazyDocumentsAreReweighedOnTheNextLoad() throws Exception
+    {
+        long lazy = DocCache.weigh(SnapGene.index(file)), other = DocCache.weigh(SnapGene.index(Samples.file("linear.dna")));
+        DocCache cache = DocCache.builder().parser(SnapGene::index).maximumWeight(1L << 20).build();
+        SnapGeneDoc doc = cache.get(file);
+        doc.segments();
+        long grown = DocCache.weigh(doc);
+        assertTrue(grown > lazy);
+
+        // the grown document is not looked up again, but loading another one catches up with it
+        cache.get(Samples.file("linear.dna"));
+        assertEquals(grown + other, cache.weight());
+
+        // and trims the cache if it no longer fits
+        DocCache tight = DocCache.builder().parser(SnapGene::index).maximumWeight(grown + other - 1).maximumEntryWeight(grown).build();
+        tight.get(file).segments();
+        tight.get(Samples.file("linear.dna"));
+        assertTrue(tight.weight() <= tight.maximumWeight(), tight.toString());
+        assertEquals(1, tight.size());
+    }
+
+    @Test
+    void lazyDocumentsThatOutgrowTheEntryLimitAreDropped() throws Exception
+    {
+        long lazy = DocCache.weigh(SnapGene.index(file));
+        DocCache cache = DocCache.builder().parser(SnapGene::index).maximumWeight(1L << 20).maximumEntryWeight(lazy + 1).build();
+        SnapGeneDoc doc = cache.get(file);
+        assertEquals(1, cache.size());
+
+        doc.segments();
+        assertSame(doc, cache.get(file));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.weight());
+        assertEquals(1, cache.rejections());
+        assertNotSame(doc, cache.get(file));
+    }
+}
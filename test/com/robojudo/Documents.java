@@ -0,0 +1,59 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.DescriptionSegment;
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import com.robojudo.SnapGene.UnsupportedSegment;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/** Assertions over whole documents. */
+final class Documents
+{
+    private Documents()
+    {
+    }
+
+    /** Same segments in the same order, of the same classes and with the same content. */
+    static void assertSameDocument(SnapGeneDoc expected, SnapGeneDoc actual, String where)
+    {
+        List<Segment> e = expected.segments(), a = actual.segments();
+        assertEquals(e.size(), a.size(), where + ": segment count");
+        for (int i = 0; i < e.size(); i++)
+            assertSameSegment(e.get(i), a.get(i), where + ": segment " + i);
+        assertEquals(expected.diagnostics().list().size(), actual.diagnostics().list().size(), where + ": diagnostics");
+    }
+
+    static void assertSameSegment(Segment expected, Segment actual, String where)
+    {
+        assertSame(expected.getClass(), actual.getClass(), where);
+        if (expected instanceof DescriptionSegment) {
+            DescriptionSegment e = (DescriptionSegment) expected, a = (DescriptionSegment) actual;
+            assertEquals(e.type, a.type, where);
+            assertEquals(e.exportVersion, a.exportVersion, where);
+            assertEquals(e.importVersion, a.importVersion, where);
+        }
+        else if (expected instanceof DNASegment) {
+            DNASegment e = (DNASegment) expected, a = (DNASegment) actual;
+            assertEquals(e.topology, a.topology, where);
+            assertEquals(e.strandedness, a.strandedness, where);
+            assertEquals(e.Dam, a.Dam, where);
+            assertEquals(e.Dcm, a.Dcm, where);
+            assertEquals(e.EcoKI, a.EcoKI, where);
+            assertEquals(e.sequence.toString(), a.sequence.toString(), where);
+        }
+        else if (expected instanceof UnsupportedSegment) {
+            UnsupportedSegment e = (UnsupportedSegment) expected, a = (UnsupportedSegment) actual;
+            assertEquals(e.type, a.type, where);
+            assertEquals(e.data, a.data, where);
+        }
+        else {
+            // Notes and Features compare by value
+            assertEquals(expected, actual, where);
+        }
+    }
+}
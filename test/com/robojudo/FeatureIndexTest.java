@@ -0,0 +1,181 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.Seg;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FeatureIndexTest
+{
+    @Test
+    void lazyDocumentsAreIndexedWithoutDecodingTheSequence() throws Exception
+    {
+        for (Path file : Samples.files())
+        {
+            SnapGeneDoc lazy = SnapGene.index(file);
+            FeatureIndex fromLazy = FeatureIndex.build(lazy);
+            assertNull(lazy.dna, file + ": sequence decoded");
+
+            FeatureIndex eager = FeatureIndex.build(SnapGene.parse(file));
+            assertEquals(eager.sequenceLength(), fromLazy.sequenceLength(), file.toString());
+            assertEquals(eager.isCircular(), fromLazy.isCircular(), file.toString());
+            for (int pos = 0; pos < eager.sequenceLength(); pos += 37)
+            {
+                int[] expected = eager.overlapIds(pos, pos + 50), actual = fromLazy.overlapIds(pos, pos + 50);
+                Arrays.sort(expected);
+                Arrays.sort(actual);
+                assertArrayEquals(expected, actual, file + " at " + pos);
+            }
+        }
+    }
+
+    // the 1-based positions of a range, which wraps around the origin of a circular sequence if start > end
+    private static BitSet positions(int start, int end, int length, boolean circular)
+    {
+        BitSet ret = new BitSet(length + 1);
+        if (start <= end)
+            ret.set(start, end + 1);
+        else if (circular) {
+            ret.set(start, length + 1);
+            ret.set(1, end + 1);
+        }
+        else
+            ret.set(end, start + 1);
+        return ret;
+    }
+
+    private static boolean subset(BitSet a, BitSet b)
+    {
+        BitSet c = (BitSet) a.clone();
+        c.andNot(b);
+        return c.isEmpty();
+    }
+
+    private static List<Feature> randomFeatures(Random random, int length, boolean circular)
+    {
+        StringBuilder xml = new StringBuilder("<Features>");
+        int n = random.nextInt(40);
+        for (int f = 0; f < n; f++)
+        {
+            xml.append("<Feature name=\"f").append(f).append("\" type=\"misc_feature\">");
+            // mostly short segments, some of them across the origin, and now and then a feature with none
+            int segments = random.nextInt(10) == 0 ? 0 : 1 + random.nextInt(3);
+            for (int i = 0; i < segments; i++)
+            {
+                int start = 1 + random.nextInt(length);
+                int end = random.nextInt(4) == 0 ? 1 + random.nextInt(length) : Math.min(length, start + random.nextInt(30));
+                xml.append("<Segment range=\"").append(start).append('-').append(end).append("\" type=\"standard\"/>");
+            }
+            xml.append("</Feature>");
+        }
+        xml.append("</Features>");
+        return FeaturesSegment.parse(xml.toString().getBytes(StandardCharsets.UTF_8)).features;
+    }
+
+    @Test
+    void queriesMatchABruteForceScan()
+    {
+        Random random = new Random(7);
+        for (int trial = 0; trial < 200; trial++)
+        {
+            int length = 20 + random.nextInt(300);
+            boolean circular = trial % 2 == 0;
+            List<Feature> features = randomFeatures(random, length, circular);
+            FeatureIndex index = FeatureIndex.build(features, length, circular);
+
+            for (int q = 0; q < 100; q++)
+            {
+                int start = 1 + random.nextInt(length), end = random.nextInt(3) == 0 ? 1 + random.nextInt(length) : Math.min(length, start + random.nextInt(40));
+                BitSet query = positions(start, end, length, circular);
+                // a query across the origin in its two parts
+                List<BitSet> parts = start > end && circular
+                        ? List.of(positions(start, length, length, false), positions(1, end, length, false))
+                        : List.of(query);
+
+                List<Integer> overlapping = new ArrayList<>();
+                List<Feature> containedIn = new ArrayList<>(), containing = new ArrayList<>();
+                for (int id = 0; id < features.size(); id++)
+                {
+                    List<BitSet> segs = new ArrayList<>();
+                    for (Seg seg : features.get(id).segments)
+                        segs.add(positions(seg.start, seg.end, length, circular));
+                    if (segs.stream().noneMatch(query::intersects))
+                        continue;
+                    overlapping.add(id);
+                    if (segs.stream().allMatch(seg -> subset(seg, query)))
+                        containedIn.add(features.get(id));
+                    if (parts.stream().allMatch(part -> segs.stream().anyMatch(seg -> subset(part, seg))))
+                        containing.add(features.get(id));
+                }
+
+                String where = "trial " + trial + " query " + start + ".." + end;
+                assertArrayEquals(overlapping.stream().mapToInt(Integer::intValue).toArray(), index.overlapIds(start, end), where);
+                assertEquals(overlapping.size(), index.overlapping(start, end).size(), where);
+                assertEquals(containedIn, index.containedIn(start, end), where);
+                assertEquals(containing, index.containing(start, end), where);
+
+                Feature nearest = index.nearest(start);
+                long best = Long.MAX_VALUE;
+                for (Feature f : features)
+                    best = Math.min(best, distance(f, start, length, circular));
+                if (best == Long.MAX_VALUE)
+                    assertNull(nearest, where);
+                else
+                    assertEquals(best, distance(nearest, start, length, circular), where);
+            }
+        }
+    }
+
+    // the gap between pos and the closest segment of a feature, 0 if one covers it
+    private static long distance(Feature feature, int pos, int length, boolean circular)
+    {
+        long ret = Long.MAX_VALUE;
+        for (Seg seg : feature.segments)
+        {
+            BitSet covered = positions(seg.start, seg.end, length, circular);
+            for (int i = covered.nextSetBit(1); i >= 0; i = covered.nextSetBit(i + 1))
+            {
+                long d = Math.abs(i - pos);
+                if (circular)
+                    d = Math.min(d, length - d);
+                ret = Math.min(ret, d);
+            }
+        }
+        return ret;
+    }
+
+    @Test
+    void featuresAcrossTheOrigin()
+    {
+        List<Feature> features = FeaturesSegment.parse(("<Features>"
+                + "<Feature name=\"ori\"><Segment range=\"90-10\"/></Feature>"
+                + "<Feature name=\"split\"><Segment range=\"95-100\"/><Segment range=\"1-5\"/></Feature>"
+                + "<Feature name=\"all\"><Segment range=\"51-50\"/></Feature>"
+                + "<Feature name=\"inner\"><Segment range=\"20-30\"/></Feature>"
+                + "</Features>").getBytes(StandardCharsets.UTF_8)).features;
+        FeatureIndex index = FeatureIndex.build(features, 100, true);
+
+        assertArrayEquals(new int[] {0, 1, 2}, index.overlapIds(99, 2));
+        assertEquals(List.of(features.get(0), features.get(1), features.get(2)), index.containing(98, 3));
+        // a segment covering the whole sequence contains any range
+        assertEquals(List.of(features.get(2), features.get(3)), index.containing(25, 28));
+        assertEquals(List.of(features.get(2)), index.containing(45, 55));
+        assertEquals(List.of(features.get(1)), index.containedIn(94, 6));
+        assertEquals(List.of(features.get(0), features.get(1), features.get(2), features.get(3)), index.containedIn(51, 50));
+        assertTrue(index.containedIn(1, 50).contains(features.get(3)));
+    }
+}
@@ -0,0 +1,197 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.HistoryNodeSegment;
+import com.robojudo.SnapGene.HistoryTreeSegment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class HistoryTreeTest
+{
+    // node 3 was made by inserting 2 into 1, and 2 by amplifying 0
+    private static final String XML = "<HistoryTree>"
+            + "<Node ID=\"3\" name=\"final.dna\" type=\"DNA\" seqLen=\"12\" circular=\"1\" strandedness=\"double\""
+            + " operation=\"insertFragment\" upstreamModification=\"Unmodified\">"
+            + "<InputSummary manipulation=\"insert\" val1=\"1\" val2=\"6\"/>"
+            + "<Node ID=\"1\" name=\"vector.dna\" type=\"DNA\" seqLen=\"8\" circular=\"1\" operation=\"invalid\"/>"
+            + "<Node ID=\"2\" name=\"insert\" type=\"DNA\" seqLen=\"6\" operation=\"amplifyFragment\">"
+            + "<Oligo name=\"p1\" sequence=\"GGA\"><Node ID=\"99\"/></Oligo>"
+            + "<Node ID=\"0\" name=\"template\" type=\"DNA\" seqLen=\"10\" operation=\"invalid\"/>"
+            + "</Node></Node></HistoryTree>";
+
+    private static byte[] zlib(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream z = new DeflaterOutputStream(out)) {
+            z.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] xz(byte[] data) throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (OutputStream z = new XZOutputStream(out, new LZMA2Options())) {
+            z.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /** A Compressed DNA payload before compression: the base count, then four bases to a byte, first base high. */
+    private static byte[] packed(String bases)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(4 + (bases.length() + 3) / 4);
+        bb.putInt(bases.length());
+        for (int i = 0; i < bases.length(); i += 4)
+        {
+            int b = 0;
+            for (int j = 0; j < 4; j++)
+                b = b << 2 | (i + j < bases.length() ? "ACGT".indexOf(bases.charAt(i + j)) : 0);
+            bb.put((byte) b);
+        }
+        return bb.array();
+    }
+
+    /** A History Node payload: the node ID, then segments framed like those of the file. */
+    private static byte[] node(int id, int type, byte[] payload)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(4 + 5 + payload.length);
+        bb.putInt(id).put((byte) type).putInt(payload.length).put(payload);
+        return bb.array();
+    }
+
+    private static byte[] file(byte[] tree) throws IOException
+    {
+        byte[] dna = "\u0002ACGTNNACGT".getBytes(StandardCharsets.US_ASCII);
+        byte[] file = Samples.withSegment(Samples.dnaFile("ACGTTGGGATCC", true), HistoryTreeSegment.TYPE, tree);
+        file = Samples.withSegment(file, HistoryNodeSegment.TYPE, node(1, HistoryTree.COMPRESSED_DNA, zlib(packed("ACGTTGCA"))));
+        file = Samples.withSegment(file, HistoryNodeSegment.TYPE, node(2, HistoryTree.COMPRESSED_DNA, xz(packed("GGATCC"))));
+        return Samples.withSegment(file, HistoryNodeSegment.TYPE, node(0, DNASegment.TYPE, dna));
+    }
+
+    private static List<SnapGeneDoc> docs(byte[] file) throws IOException
+    {
+        return List.of(SnapGene.parse(ByteBuffer.wrap(file)), SnapGene.index(ByteBuffer.wrap(file)));
+    }
+
+    private static List<Integer> ids(Iterable<HistoryTree.Node> nodes)
+    {
+        List<Integer> ret = new ArrayList<>();
+        for (HistoryTree.Node node : nodes)
+            ret.add(node.id);
+        return ret;
+    }
+
+    @Test
+    void lineageAndParents() throws Exception
+    {
+        byte[] xml = XML.getBytes(StandardCharsets.UTF_8);
+        for (byte[] tree : new byte[][] {xml, zlib(xml), xz(xml)})
+        {
+            for (SnapGeneDoc doc : docs(file(tree)))
+            {
+                HistoryTree history = doc.history();
+                assertSame(history, doc.history());
+                assertEquals(4, history.size());
+                assertNull(history.node(99));
+
+                HistoryTree.Node root = history.root();
+                assertEquals(3, root.id);
+                assertNull(root.parent());
+                assertEquals("insertFragment", root.operation);
+                assertEquals(12, root.sequenceLength);
+                assertTrue(root.circular);
+                assertEquals("double", root.strandedness);
+                assertEquals(Map.of("upstreamModification", "Unmodified"), root.otherAttributes());
+
+                assertEquals(List.of(3, 1, 2, 0), ids(history.lineage(root)));
+                assertEquals(List.of(2, 0), ids(history.lineage(history.node(2))));
+                assertEquals(List.of(1), ids(history.lineage(history.node(1))));
+                assertEquals(List.of(1, 2), ids(root.children()));
+
+                assertSame(root, history.node(1).parent());
+                assertSame(root, history.node(2).parent());
+                assertSame(history.node(2), history.node(0).parent());
+                assertFalse(history.node(0).circular);
+                assertEquals(10, history.node(0).sequenceLength);
+                assertEquals(Map.of(), history.node(0).otherAttributes());
+            }
+        }
+    }
+
+    @Test
+    void sequencesAreDecodedOnDemand() throws Exception
+    {
+        for (SnapGeneDoc doc : docs(file(XML.getBytes(StandardCharsets.UTF_8))))
+        {
+            HistoryTree history = doc.history();
+            assertFalse(history.hasSequence(history.root()));
+            assertNull(history.sequence(history.root()));
+
+            assertTrue(history.hasSequence(history.node(1)));
+            assertEquals("ACGTTGCA", history.sequence(history.node(1)).toString());
+            // four bases to a byte, with the last byte only partly used
+            assertEquals("GGATCC", history.sequence(history.node(2)).toString());
+            assertEquals("ACGTNNACGT", history.sequence(history.node(0)).toString());
+
+            // nothing is cached
+            assertNotSame(history.sequence(history.node(1)), history.sequence(history.node(1)));
+        }
+    }
+
+    @Test
+    void longCompressedSequencesRoundTrip() throws Exception
+    {
+        StringBuilder sb = new StringBuilder();
+        Random random = new Random(18);
+        for (int i = 0; i < 100_003; i++)
+            sb.append("ACGT".charAt(random.nextInt(4)));
+        String bases = sb.toString();
+        ByteBuffer payload = ByteBuffer.wrap(node(7, HistoryTree.COMPRESSED_DNA, zlib(packed(bases))));
+        assertEquals(7, HistoryNodeSegment.parse(payload).nodeId);
+        assertEquals(bases, HistoryNodeSegment.parse(payload).sequence().toString());
+    }
+
+    @Test
+    void malformedNodesAreRejected()
+    {
+        // fewer bases than the count promises
+        byte[] truncated = packed("ACGTACGT");
+        ByteBuffer bb = ByteBuffer.wrap(truncated);
+        bb.putInt(0, 100);
+        HistoryNodeSegment shortOfBases = HistoryNodeSegment.parse(ByteBuffer.wrap(node(1, HistoryTree.COMPRESSED_DNA, truncated)));
+        assertThrows(IllegalArgumentException.class, shortOfBases::sequence);
+
+        // an inner segment longer than the node
+        ByteBuffer overlong = ByteBuffer.wrap(node(1, HistoryTree.COMPRESSED_DNA, packed("ACGT")));
+        overlong.putInt(5, 1000);
+        assertThrows(IllegalArgumentException.class, () -> HistoryNodeSegment.parse(overlong).sequence());
+
+        assertThrows(IllegalArgumentException.class, () -> HistoryNodeSegment.parse(ByteBuffer.wrap(new byte[3])));
+        assertThrows(IllegalArgumentException.class, () -> HistoryTree.parse(ByteBuffer.wrap(
+                "<HistoryTree><Node ID=\"1\"/><Node ID=\"2\"/></HistoryTree>".getBytes(StandardCharsets.UTF_8))));
+        assertThrows(IllegalArgumentException.class, () -> HistoryTree.parse(ByteBuffer.wrap(
+                "<HistoryTree><Node ID=\"1\"><Node ID=\"1\"/></Node></HistoryTree>".getBytes(StandardCharsets.UTF_8))));
+    }
+}
@@ -0,0 +1,151 @@
+package com.robojudo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KmerIndexTest
+{
+    private static final int K = 8;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void indexMatchesSequences() throws Exception
+    {
+        Path corpus = Files.createDirectories(dir.resolve("corpus"));
+        Random random = new Random(11);
+        Map<Path, Set<String>> kmers = new HashMap<>();
+        List<String> sequences = new ArrayList<>(List.of("", "NNNNNNNN", "ACG", "acgtAnnnnCCGGT", "ACGTACGTAC"));
+        for (int i = 0; i < 40; i++)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(400); j > 0; j--)
+                sb.append("ACGTACGTacgtN".charAt(random.nextInt(13)));
+            sequences.add(sb.toString());
+        }
+        for (int i = 0; i < sequences.size(); i++)
+        {
+            boolean circular = i % 2 == 1;
+            Path file = corpus.resolve((i == 7 ? "with spaces " : "seq") + i + ".dna");
+            Files.write(file, Samples.dnaFile(sequences.get(i), circular));
+            kmers.put(file.toAbsolutePath().normalize(), canonicalKmers(sequences.get(i), circular));
+        }
+        Files.write(corpus.resolve("bad_notdna.dna"), new byte[] { 1, 2, 3 });
+
+        Path indexFile = dir.resolve("index.sgki");
+        // small in-memory runs, so that several are spilled and merged
+        KmerIndex.writer().k(K).parallelism(2).memoryPairs(1024).write(corpus, indexFile);
+        KmerIndex index = KmerIndex.open(indexFile);
+
+        assertEquals(K, index.k());
+        assertEquals(kmers.keySet(), new HashSet<>(index.files()));
+        Set<String> all = new TreeSet<>();
+        kmers.values().forEach(all::addAll);
+        assertEquals(all.size(), index.kmerCount());
+
+        for (String kmer : all)
+        {
+            Set<Path> expected = new HashSet<>();
+            kmers.forEach((file, set) -> {
+                if (set.contains(kmer))
+                    expected.add(file);
+            });
+            assertEquals(expected, new HashSet<>(index.candidates(kmer)), kmer);
+            assertEquals(expected, new HashSet<>(index.candidates(reverseComplement(kmer).toLowerCase())), kmer);
+        }
+        // a k-mer in no file
+        String absent = null;
+        for (int i = 0; absent == null; i++)
+        {
+            String s = Integer.toString(i, 4).replace('0', 'A').replace('1', 'C').replace('2', 'G').replace('3', 'T');
+            s = "A".repeat(K - s.length()) + s;
+            if (!all.contains(canonical(s)))
+                absent = s;
+        }
+        assertTrue(index.candidates(absent).isEmpty());
+        assertTrue(index.search(absent).isEmpty());
+
+        // verified search finds sequences across the origin of circular files
+        int found = 0;
+        for (int i = 1; i < sequences.size(); i += 2)
+        {
+            String seq = sequences.get(i);
+            String across = seq.length() < 2 * K ? "" : seq.substring(seq.length() - K / 2) + seq.substring(0, K);
+            if (across.isEmpty() || across.toUpperCase().contains("N"))
+                continue;
+            assertTrue(index.search(across).contains(corpus.resolve("seq" + i + ".dna").toAbsolutePath().normalize()), across);
+            found++;
+        }
+        assertTrue(found > 0);
+
+        // empty queries and queries without k ACGT bases in a row are rejected
+        assertThrows(IllegalArgumentException.class, () -> index.candidates(""));
+        assertThrows(IllegalArgumentException.class, () -> index.candidates("ACGTNACGTACG"));
+    }
+
+    @Test
+    void emptyCorpus() throws Exception
+    {
+        Path corpus = Files.createDirectories(dir.resolve("empty"));
+        Path indexFile = dir.resolve("empty.sgki");
+        KmerIndex.writer().k(K).write(corpus, indexFile);
+        KmerIndex index = KmerIndex.open(indexFile);
+        assertEquals(0, index.files().size());
+        assertEquals(0, index.kmerCount());
+        assertTrue(index.candidates("ACGTACGTAC").isEmpty());
+    }
+
+    @Test
+    void rejectsOtherFiles() throws Exception
+    {
+        Path file = dir.resolve("not-an-index");
+        Files.write(file, new byte[64]);
+        assertThrows(IllegalArgumentException.class, () -> KmerIndex.open(file));
+    }
+
+    private static Set<String> canonicalKmers(String seq, boolean circular)
+    {
+        String s = seq.toUpperCase();
+        Set<String> ret = new HashSet<>();
+        if (s.length() < K)
+            return ret;
+        String scan = circular ? s + s.substring(0, K - 1) : s;
+        for (int i = 0; i + K <= scan.length(); i++)
+        {
+            String kmer = scan.substring(i, i + K);
+            if (kmer.chars().allMatch(c -> "ACGT".indexOf(c) >= 0))
+                ret.add(canonical(kmer));
+        }
+        return ret;
+    }
+
+    private static String canonical(String kmer)
+    {
+        String rc = reverseComplement(kmer);
+        return kmer.compareTo(rc) <= 0 ? kmer : rc;
+    }
+
+    private static String reverseComplement(String s)
+    {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = s.length() - 1; i >= 0; i--)
+            sb.append("TGCA".charAt("ACGT".indexOf(s.charAt(i))));
+        return sb.toString();
+    }
+}
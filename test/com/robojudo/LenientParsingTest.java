@@ -0,0 +1,168 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LenientParsingTest
+{
+    private static final String FEATURES = "<Features>"
+            + "<Feature name=\"a\" type=\"CDS\" futureFlag=\"yes\">"
+            + "<Segment range=\"1-4\" color=\"#ffffff\" type=\"standard\" shade=\"dark\"/>"
+            + "<Q name=\"note\"><V text=\"kept\"/></Q>"
+            + "<Q name=\"score\"><V float=\"0.5\"/></Q>"
+            + "</Feature></Features>";
+
+    private static final byte[] HEAD = Samples.dnaFile("ACGTACGT", false);
+    private static final byte[] FILE = Samples.withSegment(HEAD, FeaturesSegment.TYPE, FEATURES);
+    // the Features payload follows the Description and DNA segments and its own header
+    private static final long FEATURES_OFFSET = HEAD.length + 5;
+
+    private static final SnapGeneParser LENIENT = SnapGeneParser.builder().strict(false).build();
+
+    @Test
+    void unknownAttributesAndValueTypesAreKept()
+    {
+        for (SnapGeneParser parser : List.of(LENIENT, SnapGeneParser.builder().strict(false).lazy(true).build()))
+        {
+            SnapGeneDoc doc = parser.parse(ByteBuffer.wrap(FILE));
+            Feature f = doc.features().features.get(0);
+            assertEquals(Map.of("futureFlag", "yes"), f.otherAttributes());
+            assertEquals(Map.of("shade", "dark"), f.segments.get(0).otherAttributes());
+
+            Qualifiers q = f.qualifiers;
+            assertEquals(Qualifiers.Kind.TEXT, q.kind(0));
+            assertEquals(Qualifiers.Kind.OTHER, q.kind(1));
+            assertEquals("float", q.valueType(1));
+            assertEquals("0.5", q.text(1));
+            assertEquals("0.5", q.value("score"));
+
+            List<Diagnostics.Diagnostic> list = doc.diagnostics().list();
+            assertEquals(3, list.size(), doc.diagnostics().toString());
+            assertDiagnostic(list.get(0), "Features/Feature[0]", "futureFlag");
+            assertDiagnostic(list.get(1), "Features/Feature[0]/Segment[0]", "shade");
+            assertDiagnostic(list.get(2), "Features/Feature[0]/Q[@name='score']", "float");
+            assertEquals(0, doc.diagnostics().dropped());
+        }
+    }
+
+    private static void assertDiagnostic(Diagnostics.Diagnostic d, String path, String attribute)
+    {
+        assertEquals(FeaturesSegment.TYPE, d.segmentType);
+        assertEquals(FEATURES_OFFSET, d.offset);
+        assertEquals(path, d.path);
+        assertEquals(attribute, d.attribute);
+        assertNotNull(d.message);
+    }
+
+    @Test
+    void strictParsingStillThrows()
+    {
+        assertThrows(IllegalArgumentException.class, () -> SnapGeneParser.DEFAULT.parse(ByteBuffer.wrap(FILE)));
+        SnapGeneDoc lazy = SnapGeneParser.builder().lazy(true).build().parse(ByteBuffer.wrap(FILE));
+        assertThrows(IllegalArgumentException.class, lazy::features);
+
+        String unknownValue = "<Features><Feature name=\"a\" type=\"CDS\"><Q name=\"score\"><V float=\"0.5\"/></Q></Feature></Features>";
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> SnapGeneParser.DEFAULT.parse(ByteBuffer.wrap(Samples.withSegment(HEAD, FeaturesSegment.TYPE, unknownValue))));
+        assertTrue(e.getMessage().contains("score"), e.getMessage());
+
+        byte[] duplicate = Samples.withSegment(HEAD, DNASegment.TYPE, new byte[] {2, 'A'});
+        assertThrows(IllegalArgumentException.class, () -> SnapGeneParser.DEFAULT.parse(ByteBuffer.wrap(duplicate)));
+        assertTrue(SnapGeneParser.DEFAULT.parse(ByteBuffer.wrap(HEAD)).diagnostics().isEmpty());
+    }
+
+    @Test
+    void duplicateSegmentsAreKeptRaw()
+    {
+        byte[] duplicate = Samples.withSegment(HEAD, DNASegment.TYPE, new byte[] {2, 'A'});
+        SnapGeneDoc doc = LENIENT.parse(ByteBuffer.wrap(duplicate));
+        assertEquals("ACGTACGT", doc.dna().sequence.toString());
+        assertTrue(doc.segments().get(2) instanceof SnapGene.UnsupportedSegment);
+        Diagnostics.Diagnostic d = doc.diagnostics().list().get(0);
+        assertEquals(DNASegment.TYPE, d.segmentType);
+        assertEquals(HEAD.length + 5, d.offset);
+        assertEquals("Duplicate DNA segment", d.message);
+    }
+
+    @Test
+    void diagnosticsBeyondTheLimitAreCounted()
+    {
+        StringBuilder xml = new StringBuilder("<Features>");
+        for (int i = 0; i < 5; i++)
+            xml.append("<Feature name=\"f").append(i).append("\" type=\"CDS\" futureFlag=\"").append(i).append("\"/>");
+        xml.append("</Features>");
+        byte[] file = Samples.withSegment(HEAD, FeaturesSegment.TYPE, xml.toString());
+
+        SnapGeneDoc doc = SnapGeneParser.builder().strict(false).maxDiagnostics(2).build().parse(ByteBuffer.wrap(file));
+        assertEquals(5, doc.features().features.size());
+        assertEquals("4", doc.features().features.get(4).otherAttributes().get("futureFlag"));
+        assertEquals(2, doc.diagnostics().capacity());
+        assertEquals(2, doc.diagnostics().list().size());
+        assertEquals("Features/Feature[1]", doc.diagnostics().list().get(1).path);
+        assertEquals(3, doc.diagnostics().dropped());
+        assertTrue(doc.diagnostics().toString().endsWith("3 more not recorded\n"), doc.diagnostics().toString());
+
+        SnapGeneDoc none = SnapGeneParser.builder().strict(false).maxDiagnostics(0).build().parse(ByteBuffer.wrap(file));
+        assertEquals(0, none.diagnostics().list().size());
+        assertEquals(5, none.diagnostics().dropped());
+        assertFalse(none.diagnostics().isEmpty());
+    }
+
+    @Test
+    void segmentHandlersReceiveTheDiagnostics() throws Exception
+    {
+        List<Diagnostics> received = new ArrayList<>();
+        List<Segment> segments = new ArrayList<>();
+        SegmentHandler handler = new SegmentHandler()
+        {
+            @Override
+            public Action onHeader(int type, long offset, int length)
+            {
+                return Action.DECODE;
+            }
+
+            @Override
+            public void onSegment(int type, Segment segment)
+            {
+                segments.add(segment);
+            }
+
+            @Override
+            public void onDiagnostics(Diagnostics diagnostics)
+            {
+                received.add(diagnostics);
+            }
+        };
+        LENIENT.parse(ByteBuffer.wrap(FILE), handler);
+        LENIENT.parse(new ByteArrayInputStream(FILE), handler);
+        assertEquals(2, received.size());
+        for (Diagnostics d : received)
+        {
+            assertEquals(3, d.list().size());
+            assertDiagnostic(d.list().get(1), "Features/Feature[0]/Segment[0]", "shade");
+        }
+        assertEquals(Map.of("futureFlag", "yes"), ((FeaturesSegment) segments.get(2)).features.get(0).otherAttributes());
+
+        // nothing to report
+        received.clear();
+        LENIENT.parse(ByteBuffer.wrap(HEAD), handler);
+        assertEquals(0, received.size());
+        assertThrows(IllegalArgumentException.class, () -> SnapGeneParser.DEFAULT.parse(ByteBuffer.wrap(FILE), handler));
+    }
+}
@@ -0,0 +1,68 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.NotesSegment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** The StAX Notes reader must give what the DOM path gives. */
+class NotesSegmentTest
+{
+    @Test
+    void staxMatchesDom() throws Exception
+    {
+        int compared = 0;
+        for (Path file : Samples.files())
+        {
+            ByteBuffer payload = Samples.segment(file, NotesSegment.TYPE);
+            if (payload == null)
+                continue;
+            NotesSegment stax = NotesSegment.parse(payload.duplicate());
+            NotesSegment dom = NotesSegment.parse(SnapGene.createDocument(payload.duplicate()));
+            assertFieldsEqual(dom, stax, file.getFileName().toString());
+            assertEquals(dom, stax, file.toString());
+            compared++;
+        }
+        assertTrue(compared >= 2, "expected sample files with Notes");
+    }
+
+    @Test
+    void staxMatchesDomOnEdgeCases()
+    {
+        String[] xml = {
+                "<Notes/>",
+                "<Notes><Type>Natural</Type><Type>Synthetic</Type><Description></Description><Organism/></Notes>",
+                "<Notes><Created UTC=\"1:2:3\">2001.2.3</Created><Unknown><Organism>nested</Organism></Unknown><Organism>top</Organism></Notes>",
+                "<Notes><Comments>&lt;b&gt;a &amp;amp; b&lt;/b&gt;</Comments><References><Reference title=\"t\" extra=\"x\"/><Other/><Reference/></References></Notes>",
+        };
+        for (String s : xml)
+        {
+            ByteBuffer payload = ByteBuffer.wrap(s.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            assertFieldsEqual(NotesSegment.parse(SnapGene.createDocument(payload.duplicate())), NotesSegment.parse(payload.duplicate()), s);
+        }
+    }
+
+    static void assertFieldsEqual(NotesSegment expected, NotesSegment actual, String where)
+    {
+        assertEquals(expected.uuid, actual.uuid, where);
+        assertEquals(expected.type, actual.type, where);
+        assertEquals(expected.confirmedExperimentally, actual.confirmedExperimentally, where);
+        assertEquals(expected.description, actual.description, where);
+        assertEquals(expected.created, actual.created, where);
+        assertEquals(expected.modified, actual.modified, where);
+        assertEquals(expected.createdBy, actual.createdBy, where);
+        assertEquals(expected.accessionNumber, actual.accessionNumber, where);
+        assertEquals(expected.codeNumber, actual.codeNumber, where);
+        assertEquals(expected.organism, actual.organism, where);
+        assertEquals(expected.sequenceClass, actual.sequenceClass, where);
+        assertEquals(expected.transformedInto, actual.transformedInto, where);
+        assertEquals(expected.customMapLabel, actual.customMapLabel, where);
+        assertEquals(expected.useCustomMapLabel, actual.useCustomMapLabel, where);
+        assertEquals(expected.comments, actual.comments, where);
+        assertEquals(expected.references, actual.references, where);
+    }
+}
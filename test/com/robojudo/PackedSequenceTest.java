@@ -0,0 +1,147 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackedSequenceTest
+{
+    private static final String FROM = "ACGTURYKMBVDHSWNacgturykmbvdhswn";
+    private static final String TO   = "TGCAAYRMKVBHDSWNtgcaayrmkvbhdswn";
+
+    private static String reverseComplement(String s)
+    {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = s.length() - 1; i >= 0; i--)
+        {
+            int j = FROM.indexOf(s.charAt(i));
+            sb.append(j == -1 ? s.charAt(i) : TO.charAt(j));
+        }
+        return sb.toString();
+    }
+
+    /** Mostly one case of ACGT, with runs of N, single ambiguity codes, gaps and stretches of the other case. */
+    private static String randomSequence(Random random, int length)
+    {
+        boolean lower = random.nextBoolean();
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length)
+        {
+            int run = 1 + random.nextInt(random.nextBoolean() ? 5 : 150);
+            switch (random.nextInt(8))
+            {
+                case 0:
+                    sb.append("N".repeat(run));
+                    break;
+                case 1:
+                    sb.append("RYKMSWBDHVU-".charAt(random.nextInt(12)));
+                    break;
+                case 2:
+                    for (int i = 0; i < run; i++)
+                        sb.append(lower ? "ACGT".charAt(random.nextInt(4)) : "acgtn".charAt(random.nextInt(5)));
+                    break;
+                default:
+                    for (int i = 0; i < run; i++)
+                        sb.append(lower ? "acgt".charAt(random.nextInt(4)) : "ACGT".charAt(random.nextInt(4)));
+            }
+        }
+        return sb.substring(0, length);
+    }
+
+    private static void assertSameBases(String expected, PackedSequence seq)
+    {
+        assertEquals(expected.length(), seq.length());
+        assertEquals(expected, seq.toString());
+        for (int i = 0; i < expected.length(); i++)
+        {
+            char c = expected.charAt(i);
+            assertEquals(c, seq.charAt(i), "at " + i);
+            // U reads as T
+            assertEquals(Math.min(3, "ACGTU".indexOf(Character.toUpperCase(c))), seq.code(i), "code at " + i);
+        }
+    }
+
+    @Test
+    void roundTripsAmbiguityCodesAndCase() throws Exception
+    {
+        Random random = new Random(4);
+        for (int trial = 0; trial < 200; trial++)
+        {
+            String s = randomSequence(random, random.nextInt(700));
+            PackedSequence seq = PackedSequence.pack(s);
+            assertSameBases(s, seq);
+
+            // views share the storage
+            int start = s.isEmpty() ? 0 : random.nextInt(s.length()), end = start + random.nextInt(s.length() - start + 1);
+            assertSameBases(s.substring(start, end), seq.subSequence(start, end));
+            assertSameBases(reverseComplement(s), seq.reverseComplement());
+            assertSameBases(reverseComplement(s.substring(start, end)), seq.subSequence(start, end).reverseComplement());
+            assertSameBases(reverseComplement(s).substring(start, end), seq.reverseComplement().subSequence(start, end));
+            assertSameBases(s, seq.reverseComplement().reverseComplement());
+            assertFalse(seq.reverseComplement().reverseComplement().isReverseComplement());
+
+            byte[] dst = new byte[end - start + 2];
+            seq.reverseComplement().getBytes(start, end, dst, 1);
+            assertEquals(reverseComplement(s).substring(start, end), new String(dst, 1, end - start, StandardCharsets.US_ASCII));
+
+            // from the middle of a larger buffer, and through the stored form
+            byte[] bytes = ("xx" + s + "yy").getBytes(StandardCharsets.US_ASCII);
+            assertSameBases(s, PackedSequence.pack(ByteBuffer.wrap(bytes, 2, s.length())));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            seq.subSequence(start, end).reverseComplement().writeTo(new DataOutputStream(out));
+            ByteBuffer stored = ByteBuffer.wrap(out.toByteArray());
+            assertSameBases(reverseComplement(s.substring(start, end)), PackedSequence.readFrom(stored));
+            assertFalse(stored.hasRemaining());
+        }
+    }
+
+    @Test
+    void cleanSequencesTakeTwoBitsPerBase()
+    {
+        String s = "GATTACA".repeat(10_000);
+        PackedSequence seq = PackedSequence.pack(s);
+        assertTrue(seq.storageBytes() < s.length() / 4 + 256, seq.storageBytes() + " bytes");
+        assertSameBases(s.toLowerCase(), PackedSequence.pack(s.toLowerCase()));
+
+        // one base of the other case and one N at the end of a block, and a run of N across blocks
+        char[] c = s.toCharArray();
+        c[63] = 'a';
+        c[127] = 'N';
+        for (int i = 200; i < 300; i++)
+            c[i] = 'N';
+        String dirty = new String(c);
+        assertSameBases(dirty, PackedSequence.pack(dirty));
+        assertTrue(PackedSequence.pack(dirty).storageBytes() < seq.storageBytes() + 64);
+    }
+
+    @Test
+    void dnaSegmentsKeepTheirBases()
+    {
+        String bases = randomSequence(new Random(40), 5000);
+        byte[] file = Samples.dnaFile(bases, true);
+        for (SnapGeneDoc doc : new SnapGeneDoc[] {SnapGene.parse(ByteBuffer.wrap(file)), SnapGene.index(ByteBuffer.wrap(file))})
+            assertSameBases(bases, doc.dna().sequence);
+    }
+
+    @Test
+    void indexesAreChecked()
+    {
+        PackedSequence seq = PackedSequence.pack("ACGTN");
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.charAt(5));
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.code(-1));
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.subSequence(3, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.reverseComplement().subSequence(0, 6));
+        assertThrows(IndexOutOfBoundsException.class, () -> seq.getBytes(0, 6, new byte[6], 0));
+        assertEquals("", PackedSequence.pack("").toString());
+    }
+}
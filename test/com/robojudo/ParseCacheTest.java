@@ -0,0 +1,116 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.PrimersSegment;
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParseCacheTest
+{
+    @TempDir
+    Path cacheDir;
+
+    @Test
+    void entriesReadBackAsParsed() throws Exception
+    {
+        ParseCache cache = new ParseCache(cacheDir);
+        for (Path file : Samples.files())
+        {
+            SnapGeneDoc parsed = SnapGene.parse(file);
+            SnapGeneDoc miss = cache.parse(file);
+            SnapGeneDoc hit = cache.parse(file);
+            Documents.assertSameDocument(parsed, miss, file.toString());
+            Documents.assertSameDocument(parsed, hit, file.toString());
+        }
+        assertEquals(Samples.files().size(), cache.misses());
+        assertEquals(Samples.files().size(), cache.hits());
+        assertEquals(0, cache.writeErrors());
+    }
+
+    @Test
+    void decodedPayloadSegmentsAreDecodedOnAHit() throws Exception
+    {
+        SnapGeneParser parser = SnapGeneParser.builder().decode(SnapGene.DNASegment.TYPE, NotesSegment.TYPE,
+                SnapGene.FeaturesSegment.TYPE, PrimersSegment.TYPE).build();
+        ParseCache cache = new ParseCache(cacheDir, parser);
+        Path file = Samples.file("plasmid.dna");
+        SnapGeneDoc parsed = parser.parse(file);
+        cache.parse(file);
+        SnapGeneDoc hit = cache.parse(file);
+        assertEquals(1, cache.hits());
+        Documents.assertSameDocument(parsed, hit, file.toString());
+
+        PrimersSegment primers = null;
+        for (Segment seg : hit.segments())
+            if (seg instanceof PrimersSegment)
+                primers = (PrimersSegment) seg;
+        assertTrue(primers != null, "Primers came back raw");
+        assertEquals(parsed.primers().primers.toString(), primers.primers.toString());
+        assertEquals(parsed.primers().hybridizationParams(), primers.hybridizationParams());
+    }
+
+    @Test
+    void segmentTypesAbove127ReadBackAsParsed() throws Exception
+    {
+        byte[] head = Samples.dnaFile("ACGT", false);
+        ByteBuffer bb = ByteBuffer.allocate(head.length + 5 + 3);
+        bb.put(head).put((byte) 200).putInt(3).put(new byte[] {1, 2, 3});
+        Path file = Files.createDirectory(cacheDir.resolve("files")).resolve("high.dna");
+        Files.write(file, bb.array());
+
+        ParseCache cache = new ParseCache(cacheDir);
+        SnapGeneDoc parsed = SnapGene.parse(file);
+        cache.parse(file);
+        SnapGeneDoc hit = cache.parse(file);
+        assertEquals(1, cache.hits());
+        Documents.assertSameDocument(parsed, hit, file.toString());
+    }
+
+    @Test
+    void nullsAndEmptyStringsSurvive() throws Exception
+    {
+        ParseCache cache = new ParseCache(cacheDir);
+        cache.parse(Samples.file("linear.dna"));
+        NotesSegment notes = cache.parse(Samples.file("linear.dna")).notes();
+        assertEquals(1, cache.hits());
+        // empty elements are empty strings, missing ones null
+        assertEquals("", notes.accessionNumber);
+        assertEquals("", notes.organism);
+        assertEquals("", notes.description);
+        assertNull(notes.customMapLabel);
+        assertNull(notes.useCustomMapLabel);
+        assertNull(notes.modified);
+        assertEquals(0, notes.references.size());
+
+        cache.parse(Samples.file("plasmid.dna"));
+        SnapGeneDoc plasmid = cache.parse(Samples.file("plasmid.dna"));
+        Feature unnamed = plasmid.features().features.get(4);
+        assertEquals("", unnamed.name);
+        assertNull(unnamed.directionality);
+        assertEquals(0, unnamed.segments.size());
+        assertEquals(Qualifiers.Kind.TEXT, unnamed.qualifiers.kind(0));
+        assertEquals("", unnamed.qualifiers.text(0));
+        Feature ori = plasmid.features().features.get(2);
+        assertEquals(Qualifiers.Kind.NONE, ori.qualifiers.kind(1));
+        assertNull(ori.qualifiers.value(1));
+        assertNull(ori.readingFrame());
+        assertNull(ori.geneticCode);
+
+        cache.parse(Samples.file("minimal.dna"));
+        SnapGeneDoc minimal = cache.parse(Samples.file("minimal.dna"));
+        assertNull(minimal.notes());
+        assertNull(minimal.features());
+        assertEquals(3, cache.hits());
+    }
+}
@@ -0,0 +1,165 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParseStatsTest
+{
+    @Test
+    void smallValuesHaveTheirOwnBuckets()
+    {
+        ParseStats.Histogram h = new ParseStats.Histogram();
+        for (int v = 0; v < 32; v++)
+            h.record(v);
+        assertEquals(32, h.count());
+        assertEquals(31, h.max());
+        assertEquals(0, h.percentile(0));
+        assertEquals(15, h.percentile(50));
+        assertEquals(31, h.percentile(100));
+    }
+
+    @Test
+    void bucketsAreWithinOneThirtySecond()
+    {
+        Random random = new Random(15);
+        for (int i = 0; i < 100_000; i++)
+        {
+            long v = random.nextLong() >>> (1 + random.nextInt(63));
+            long high = ParseStats.Histogram.highestEquivalent(ParseStats.Histogram.index(v));
+            assertTrue(high >= v && high - v <= v / 32, v + " reported as " + high);
+        }
+        assertEquals(ParseStats.Histogram.index(64), ParseStats.Histogram.index(65));
+        assertEquals(ParseStats.Histogram.index(64) + 1, ParseStats.Histogram.index(66));
+    }
+
+    @Test
+    void percentilesOfAKnownSample()
+    {
+        ParseStats.Histogram h = new ParseStats.Histogram();
+        assertEquals(0, h.percentile(50));
+        for (int v = 1; v <= 10_000; v++)
+            h.record(v);
+        h.record(-5);
+        assertEquals(10_001, h.count());
+        assertEquals(10_000, h.max());
+        assertWithin(5_000, h.percentile(50));
+        assertWithin(9_900, h.percentile(99));
+        assertEquals(10_000, h.percentile(100));
+        assertEquals(0, h.percentile(0));
+    }
+
+    private static void assertWithin(long expected, long actual)
+    {
+        assertTrue(actual >= expected && actual <= expected + expected / 32, "expected about " + expected + " but was " + actual);
+    }
+
+    @Test
+    void aggregatesPerSegmentType()
+    {
+        ParseStats stats = new ParseStats();
+        stats.segmentDecoded(DNASegment.TYPE, 100, 1_000, 64);
+        stats.segmentDecoded(DNASegment.TYPE, 50, 3_000, 32);
+        stats.segmentDecoded(10, 7, 500, -1);
+        stats.segmentDecoded(10, 3, 500, 16);
+        stats.segmentDecoded((byte) 200, 1, 10, 0);
+
+        List<ParseStats.SegmentStats> types = stats.getSegmentTypes();
+        assertEquals(3, types.size());
+        ParseStats.SegmentStats dna = types.get(0);
+        assertEquals("DNA", dna.getName());
+        assertEquals(2, dna.getCount());
+        assertEquals(150, dna.getBytes());
+        assertEquals(4_000, dna.getDecodeNanos());
+        assertEquals(96, dna.getAllocatedBytes());
+        assertEquals(3_000, dna.getMaxNanos());
+        // one call could not measure allocation, so the type reports none
+        assertEquals(-1, types.get(1).getAllocatedBytes());
+        assertEquals(200, types.get(2).getType());
+
+        assertEquals(5, stats.getSegmentCount());
+        assertEquals(161, stats.getBytes());
+        assertEquals(5_010, stats.getDecodeNanos());
+        stats.reset();
+        assertEquals(0, stats.getSegmentCount());
+    }
+
+    @Test
+    void listenerSeesEverySegmentWithItsLength() throws Exception
+    {
+        for (Path file : Samples.files())
+        {
+            List<long[]> calls = new ArrayList<>();
+            SnapGeneParser parser = SnapGeneParser.builder().listener((type, length, nanos, allocated) -> {
+                assertTrue(nanos >= 0);
+                assertTrue(allocated >= -1);
+                calls.add(new long[] {type, length});
+            }).build();
+            parser.parse(file);
+            assertHeaders(Files.readAllBytes(file), calls, file.toString());
+
+            // lazy documents report each segment as it is decoded
+            calls.clear();
+            SnapGeneDoc lazy = SnapGeneParser.builder().lazy(true).listener((type, length, nanos, allocated) -> calls.add(new long[] {type, length})).build().parse(file);
+            assertEquals(1, calls.size(), file.toString());
+            lazy.segments();
+            assertEquals(headers(Files.readAllBytes(file)).size(), calls.size(), file.toString());
+        }
+    }
+
+    @Test
+    void lenientlyKeptDuplicatesAreReported() throws Exception
+    {
+        byte[] head = Samples.dnaFile("ACGT", false);
+        ByteBuffer bb = ByteBuffer.allocate(head.length + 5 + 3);
+        bb.put(head).put((byte) DNASegment.TYPE).putInt(3).put(new byte[] {2, 'A', 'C'});
+        byte[] file = bb.array();
+
+        for (boolean lazy : new boolean[] {false, true})
+        {
+            List<long[]> calls = new ArrayList<>();
+            SnapGeneParser parser = SnapGeneParser.builder().strict(false).lazy(lazy)
+                    .listener((type, length, nanos, allocated) -> calls.add(new long[] {type, length})).build();
+            SnapGeneDoc doc = parser.parse(ByteBuffer.wrap(file));
+            doc.segments();
+            assertEquals(1, doc.diagnostics().list().size());
+            assertHeaders(file, calls, lazy ? "lazy" : "eager");
+        }
+    }
+
+    private static void assertHeaders(byte[] file, List<long[]> calls, String where)
+    {
+        List<long[]> expected = headers(file);
+        assertEquals(expected.size(), calls.size(), where);
+        for (int i = 0; i < expected.size(); i++)
+        {
+            assertEquals(expected.get(i)[0], calls.get(i)[0], where + ": type of segment " + i);
+            assertEquals(expected.get(i)[1], calls.get(i)[1], where + ": length of segment " + i);
+        }
+    }
+
+    // (type, length) of each segment, in file order
+    private static List<long[]> headers(byte[] file)
+    {
+        List<long[]> ret = new ArrayList<>();
+        ByteBuffer bb = ByteBuffer.wrap(file);
+        while (bb.remaining() >= 5)
+        {
+            int type = bb.get();
+            int length = bb.getInt();
+            ret.add(new long[] {type, length});
+            bb.position(bb.position() + length);
+        }
+        return ret;
+    }
+}
@@ -0,0 +1,319 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.PrimersSegment;
+import com.robojudo.SnapGene.PrimersSegment.Primer;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PrimerFinderTest
+{
+    @Test
+    void findsTheBindingSitesOfTheFilesPrimers() throws Exception
+    {
+        SnapGeneDoc doc = SnapGene.parse(Samples.file("plasmid.dna"));
+        PrimersSegment primers = doc.primers();
+        assertEquals(2, primers.primers.size());
+        assertThrows(UnsupportedOperationException.class, () -> primers.primers.add(primers.primers.get(0)));
+
+        List<PrimerFinder.Hit> hits = new ArrayList<>();
+        PrimerFinder.builder().build().search(PrimerFinder.compile(primers.primers), doc.dna(),
+                (p, start, length, reverse, differences) -> hits.add(new PrimerFinder.Hit(p, start, length, reverse, differences)));
+        String expected = primers.primers.get(0).bindingSites.get(0).location.replace("-", "..");
+        assertTrue(hits.stream().anyMatch(h -> h.primer == 0 && !h.reverse && h.differences == 0
+                && h.location(doc.dna().sequence.length()).equals(expected)), hits.toString());
+    }
+
+    @Test
+    void primersWithoutSequenceAreRejected()
+    {
+        List<Primer> primers = List.of(
+                new Primer("ok", "ACGTACGT", null, List.of(), null),
+                new Primer("no sequence", null, null, List.of(), null));
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> PrimerFinder.compile(primers));
+        assertTrue(e.getMessage().contains("no sequence"), e.getMessage());
+    }
+
+    private static List<String> find(PrimerFinder finder, String primer, String template, boolean circular)
+    {
+        List<String> ret = new ArrayList<>();
+        for (PrimerFinder.Hit hit : finder.find(primer, new DNASegment(circular ? "circular" : "linear", null, false, false, false,
+                PackedSequence.pack(template))))
+            ret.add(hit.location(template.length()) + (hit.reverse ? " reverse" : "") + " (" + hit.differences + ")");
+        return ret;
+    }
+
+    @Test
+    void mismatches()
+    {
+        String primer = "ACGTTGCAAGGC";
+        String template = "TTTTACGTTCCATGGCTTTT";
+        assertEquals(List.of(), find(PrimerFinder.builder().build(), primer, template, false));
+        assertEquals(List.of(), find(PrimerFinder.builder().mismatches(1).build(), primer, template, false));
+        assertEquals(List.of("5..16 (2)"), find(PrimerFinder.builder().mismatches(2).build(), primer, template, false));
+        // a site is reported once, with its fewest mismatches
+        assertEquals(List.of("5..16 (2)"), find(PrimerFinder.builder().mismatches(3).build(), primer, template, false));
+
+        // IUPAC codes in the primer match the bases they stand for; an N in the template only matches an N
+        assertEquals(List.of("3..6 (0)"), find(PrimerFinder.builder().build(), "GRCN", "TTGACCTT", false));
+        assertEquals(List.of("3..6 (0)"), find(PrimerFinder.builder().build(), "GANN", "TTGANCTT", false));
+        assertEquals(List.of(), find(PrimerFinder.builder().build(), "GATC", "TTGANCTT", false));
+        // lower-case primers
+        assertEquals(List.of("5..16 (2)"), find(PrimerFinder.builder().mismatches(2).build(), primer.toLowerCase(), template, false));
+
+        assertThrows(IllegalArgumentException.class, () -> PrimerFinder.builder().mismatches(-1));
+        assertThrows(IllegalArgumentException.class, () -> PrimerFinder.compile(""));
+        assertThrows(IllegalArgumentException.class, () -> PrimerFinder.compile("ACGX"));
+    }
+
+    @Test
+    void edits()
+    {
+        String primer = "ACGTTGCAAGGC";
+        PrimerFinder finder = PrimerFinder.builder().edits(1).build();
+        // one base of the primer missing from the template, then one extra base in it
+        assertEquals(List.of("5..15 (1)"), find(finder, primer, "TTTTACGTTGAAGGCTTTT", false));
+        assertEquals(List.of("5..17 (1)"), find(finder, primer, "TTTTACGTTGCCAAGGCTTTT", false));
+        assertEquals(List.of("5..16 (0)"), find(finder, primer, "TTTTACGTTGCAAGGCTTTT", false));
+        assertEquals(List.of(), find(finder, primer, "TTTTACGTTAAGGCTTTT", false));
+        assertEquals(List.of("5..14 (2)"), find(PrimerFinder.builder().edits(2).build(), primer, "TTTTACGTTAAGGCTTTT", false));
+
+        assertThrows(IllegalArgumentException.class, () -> PrimerFinder.builder().edits(-1));
+        assertThrows(IllegalArgumentException.class, () -> find(PrimerFinder.builder().edits(4).build(), "ACGT", "ACGTACGT", false));
+    }
+
+    @Test
+    void reverseAndCircularSites()
+    {
+        String primer = "ACGTTGCAAGGC";
+        // GCCTTGCAACGT is the primer on the bottom strand
+        for (PrimerFinder finder : new PrimerFinder[] {PrimerFinder.builder().build(), PrimerFinder.builder().edits(1).build()})
+        {
+            assertEquals(List.of("5..16 reverse (0)"), find(finder, primer, "TTTTGCCTTGCAACGTTTTT", false));
+            // across the origin, on either strand, and not at all on a linear template
+            assertEquals(List.of("15..8 (0)"), find(finder, primer, "TGCAAGGCTTTTTTACGT", true));
+            assertEquals(List.of("13..4 reverse (0)"), find(finder, primer, "ACGTTTTTTTTTGCCTTGCA", true));
+            assertEquals(List.of(), find(finder, primer, "TGCAAGGCTTTTTTACGT", false));
+            // a template that is the primer, turned
+            assertEquals(List.of("5..4 (0)"), find(finder, primer, "AGGCACGTTGCA", true));
+        }
+        // a site across the origin with a base missing
+        assertEquals(List.of("14..7 (1)"), find(PrimerFinder.builder().edits(1).build(), primer, "TGCAGGCTTTTTTACGT", true));
+        // a primer longer than the template
+        assertEquals(List.of(), find(PrimerFinder.builder().mismatches(2).build(), primer, "ACGTTGCAAG", true));
+    }
+
+    @Test
+    void primersLongerThanOneWord()
+    {
+        Random random = new Random(23);
+        String primer = randomBases(random, 150);
+        // a base changed in each of the three words, then one left out
+        char[] changed = primer.toCharArray();
+        for (int i : new int[] {10, 70, 140})
+            changed[i] = changed[i] == 'A' ? 'C' : 'A';
+        String mutated = new String(changed);
+        String deleted = primer.substring(0, 100) + primer.substring(101);
+        String template = randomBases(random, 40) + mutated + randomBases(random, 40) + reverseComplement(deleted) + randomBases(random, 40);
+
+        assertEquals(List.of("41..190 (3)"), find(PrimerFinder.builder().mismatches(3).build(), primer, template, false));
+        assertEquals(List.of("41..190 (3)", "231..379 reverse (1)"), find(PrimerFinder.builder().edits(3).build(), primer, template, false));
+        assertEquals(List.of(), find(PrimerFinder.builder().mismatches(2).build(), primer, template, false));
+        assertEquals(List.of("231..379 reverse (1)"), find(PrimerFinder.builder().edits(2).build(), primer, template, false));
+    }
+
+    @Test
+    void searchMatchesABruteForceScan()
+    {
+        Random random = new Random(64);
+        int found = 0;
+        for (int trial = 0; trial < 300; trial++)
+        {
+            int m = random.nextInt(3) == 0 ? 60 + random.nextInt(80) : 4 + random.nextInt(20);
+            char[] p = randomBases(random, m).toCharArray();
+            if (random.nextBoolean())
+                p[random.nextInt(m)] = "NRYW".charAt(random.nextInt(4));
+            String primer = new String(p);
+
+            // a few copies of the primer with changes, on either strand
+            StringBuilder sb = new StringBuilder(randomBases(random, random.nextInt(30)));
+            for (int copies = random.nextInt(4); copies > 0; copies--)
+            {
+                String copy = mutate(random, primer.replace('N', 'G').replace('R', 'A').replace('Y', 'C').replace('W', 'T'), random.nextInt(4));
+                sb.append(random.nextBoolean() ? copy : reverseComplement(copy)).append(randomBases(random, random.nextInt(30)));
+            }
+            if (random.nextInt(10) == 0)
+                sb.setCharAt(random.nextInt(sb.length()), 'N');
+            String template = sb.toString();
+            boolean circular = random.nextBoolean();
+            if (circular && template.length() > 1) {
+                int turn = random.nextInt(template.length());
+                template = template.substring(turn) + template.substring(0, turn);
+            }
+            if (template.isEmpty())
+                continue;
+
+            int k = random.nextInt(Math.min(4, m));
+            String where = primer + " in " + template + (circular ? " circular" : " linear") + ", k = " + k;
+            List<String> expected = bruteForceMismatches(primer, template, circular, k);
+            assertEquals(expected, sorted(search(PrimerFinder.builder().mismatches(k).build(), primer, template, circular)), where);
+            found += expected.size();
+            if (!circular)
+                assertEquals(bruteForceEdits(primer, template, k), sorted(search(PrimerFinder.builder().edits(k).build(), primer, template, false)),
+                        where + " with edits");
+        }
+        assertTrue(found > 100, found + " sites");
+    }
+
+    // hits of one primer on a template placed inside a larger array
+    private static List<String> search(PrimerFinder finder, String primer, String template, boolean circular)
+    {
+        byte[] t = ("NNN" + template + "ACGT").getBytes(StandardCharsets.US_ASCII);
+        List<String> ret = new ArrayList<>();
+        finder.search(PrimerFinder.compile(primer), 7, t, 3, 3 + template.length(), circular, (index, start, length, reverse, differences) -> {
+            assertEquals(7, index);
+            ret.add(start + "+" + length + (reverse ? " reverse" : "") + " (" + differences + ")");
+        });
+        return ret;
+    }
+
+    private static List<String> sorted(List<String> hits)
+    {
+        Collections.sort(hits);
+        return hits;
+    }
+
+    private static List<String> bruteForceMismatches(String primer, String template, boolean circular, int k)
+    {
+        int n = template.length(), m = primer.length();
+        List<String> ret = new ArrayList<>();
+        for (boolean reverse : new boolean[] {false, true})
+        {
+            String pattern = reverse ? reverseComplement(primer) : primer;
+            for (int start = 0; m <= n && start < (circular ? n : n - m + 1); start++)
+            {
+                int d = 0;
+                for (int i = 0; i < m; i++)
+                    if (!matches(pattern.charAt(i), template.charAt((start + i) % n)))
+                        d++;
+                if (d <= k)
+                    ret.add(start + "+" + m + (reverse ? " reverse" : "") + " (" + d + ")");
+            }
+        }
+        return sorted(ret);
+    }
+
+    // Sites on a linear template: each run of ends within k edits of the primer is one site, ending where the
+    // distance is lowest and starting where a full alignment to that end is best, nearest the primer's length
+    private static List<String> bruteForceEdits(String primer, String template, int k)
+    {
+        int n = template.length(), m = primer.length();
+        List<String> ret = new ArrayList<>();
+        for (boolean reverse : new boolean[] {false, true})
+        {
+            String pattern = reverse ? reverseComplement(primer) : primer;
+            // the lowest distance of the pattern to a stretch of the template ending at each base
+            int[] column = new int[m + 1];
+            for (int i = 0; i <= m; i++)
+                column[i] = i;
+            int best = -1, bestEnd = 0;
+            for (int j = 0; j <= n; j++)
+            {
+                if (j < n) {
+                    int diagonal = column[0];
+                    for (int i = 1; i <= m; i++)
+                    {
+                        int next = Math.min(Math.min(column[i] + 1, column[i - 1] + 1),
+                                diagonal + (matches(pattern.charAt(i - 1), template.charAt(j)) ? 0 : 1));
+                        diagonal = column[i];
+                        column[i] = next;
+                    }
+                }
+                if (j < n && column[m] <= k) {
+                    if (best < 0 || column[m] < best) {
+                        best = column[m];
+                        bestEnd = j;
+                    }
+                }
+                else if (best >= 0) {
+                    int bestLength = 0, bestScore = Integer.MAX_VALUE;
+                    for (int l = 1; l <= Math.min(m + k, bestEnd + 1); l++)
+                    {
+                        int d = distance(pattern, template.substring(bestEnd - l + 1, bestEnd + 1));
+                        if (d < bestScore || d == bestScore && Math.abs(l - m) < Math.abs(bestLength - m)) {
+                            bestScore = d;
+                            bestLength = l;
+                        }
+                    }
+                    ret.add((bestEnd - bestLength + 1) + "+" + bestLength + (reverse ? " reverse" : "") + " (" + bestScore + ")");
+                    best = -1;
+                }
+            }
+        }
+        return sorted(ret);
+    }
+
+    private static int distance(String pattern, String text)
+    {
+        int[][] d = new int[pattern.length() + 1][text.length() + 1];
+        for (int i = 0; i <= pattern.length(); i++)
+        {
+            for (int j = 0; j <= text.length(); j++)
+            {
+                if (i == 0 || j == 0)
+                    d[i][j] = i + j;
+                else
+                    d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1),
+                            d[i - 1][j - 1] + (matches(pattern.charAt(i - 1), text.charAt(j - 1)) ? 0 : 1));
+            }
+        }
+        return d[pattern.length()][text.length()];
+    }
+
+    // whether a template base is one of those a primer base stands for
+    private static boolean matches(char primer, char template)
+    {
+        int t = RestrictionEnzyme.mask(template);
+        return t != 0 && (RestrictionEnzyme.mask(primer) & t) == t;
+    }
+
+    private static String reverseComplement(String bases)
+    {
+        return RestrictionEnzyme.reverseComplement(bases);
+    }
+
+    private static String randomBases(Random random, int length)
+    {
+        char[] ret = new char[length];
+        for (int i = 0; i < length; i++)
+            ret[i] = "ACGT".charAt(random.nextInt(4));
+        return new String(ret);
+    }
+
+    // the bases with up to the given number of substitutions, insertions and deletions
+    private static String mutate(Random random, String bases, int changes)
+    {
+        StringBuilder sb = new StringBuilder(bases);
+        for (int c = 0; c < changes && sb.length() > 1; c++)
+        {
+            int i = random.nextInt(sb.length());
+            switch (random.nextInt(3))
+            {
+                case 0: sb.setCharAt(i, "ACGT".charAt(random.nextInt(4))); break;
+                case 1: sb.insert(i, "ACGT".charAt(random.nextInt(4))); break;
+                default: sb.deleteCharAt(i);
+            }
+        }
+        return sb.toString();
+    }
+}
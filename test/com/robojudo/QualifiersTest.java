@@ -0,0 +1,160 @@
+package com.robojudo;
+
+import com.robojudo.Qualifiers.Kind;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+// the table of symbols is shared by the whole test run, so it is filled up last
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class QualifiersTest
+{
+    private static final String ALL_KINDS = "<Q name=\"pseudo\"><V/></Q>"
+            + "<Q name=\"codon_start\"><V int=\"-3\"/></Q>"
+            + "<Q name=\"transl_except\"><V bool=\"1\"/></Q>"
+            + "<Q name=\"ribosomal_slippage\"><V bool=\"0\"/></Q>"
+            + "<Q name=\"note\"><V text=\"a &lt;note&gt;\"/></Q>"
+            + "<Q name=\"product\"><V predef=\"green fluorescent protein\"/></Q>"
+            + "<Q name=\"score\"><V float=\"0.5\"/></Q>";
+
+    private static List<Feature> features(String xml)
+    {
+        return FeaturesSegment.parse(ByteBuffer.wrap(xml.getBytes(StandardCharsets.UTF_8)), false).features;
+    }
+
+    @Test
+    void typedAccessorsForEachKind()
+    {
+        Qualifiers q = features("<Features><Feature name=\"f\">" + ALL_KINDS + "</Feature></Features>").get(0).qualifiers;
+        assertEquals(7, q.size());
+        assertEquals(List.of(Kind.NONE, Kind.INT, Kind.BOOL, Kind.BOOL, Kind.TEXT, Kind.PREDEF, Kind.OTHER),
+                Arrays.asList(q.kind(0), q.kind(1), q.kind(2), q.kind(3), q.kind(4), q.kind(5), q.kind(6)));
+        assertEquals(Arrays.asList(null, "int", "bool", "bool", "text", "predef", "float"),
+                Arrays.asList(q.valueType(0), q.valueType(1), q.valueType(2), q.valueType(3), q.valueType(4), q.valueType(5), q.valueType(6)));
+        assertEquals(Arrays.asList(null, -3, true, false, "a <note>", "green fluorescent protein", "0.5"),
+                Arrays.asList(q.value(0), q.value(1), q.value(2), q.value(3), q.value(4), q.value(5), q.value(6)));
+
+        assertEquals(-3, q.intValue(1));
+        assertEquals(1, q.intValue(2));
+        assertEquals(0, q.intValue(3));
+        assertNull(q.text(1));
+        assertNull(q.text(0));
+        assertEquals("a <note>", q.text(4));
+        assertEquals("0.5", q.text(6));
+
+        assertEquals(5, q.find("product"));
+        assertEquals(-1, q.find("gene"));
+        assertEquals(-3, q.value("codon_start"));
+        assertNull(q.value("pseudo"));
+        assertNull(q.value("gene"));
+
+        // as a list of entries
+        assertEquals(new AbstractMap.SimpleImmutableEntry<>("codon_start", -3), q.get(1));
+        assertEquals("pseudo", q.get(0).getKey());
+        assertNull(q.get(0).getValue());
+        assertThrows(UnsupportedOperationException.class, () -> q.add(Map.entry("gene", "gfp")));
+        assertThrows(IndexOutOfBoundsException.class, () -> q.key(7));
+    }
+
+    @Test
+    void entriesConvertToTheirKinds()
+    {
+        List<Map.Entry<String, ?>> entries = new ArrayList<>();
+        entries.add(new AbstractMap.SimpleImmutableEntry<>("pseudo", null));
+        entries.add(Map.entry("codon_start", 2));
+        entries.add(Map.entry("transl_except", true));
+        entries.add(Map.entry("note", "text"));
+        entries.add(Map.entry("number", 2L));
+        Qualifiers q = Qualifiers.of(entries);
+        assertEquals(List.of(Kind.NONE, Kind.INT, Kind.BOOL, Kind.TEXT, Kind.TEXT),
+                Arrays.asList(q.kind(0), q.kind(1), q.kind(2), q.kind(3), q.kind(4)));
+        assertEquals("2", q.text(4));
+        assertEquals(entries.subList(0, 4), q.subList(0, 4));
+        assertSame(q, Qualifiers.of(q));
+        assertSame(Qualifiers.EMPTY, Qualifiers.of(List.of()));
+        assertThrows(IllegalArgumentException.class, () -> Qualifiers.of(List.of(new AbstractMap.SimpleImmutableEntry<>(null, 1))));
+    }
+
+    @Test
+    void theBuilderIsReusedAcrossFeatures() throws Exception
+    {
+        // more qualifiers than the builder starts with, then fewer, then one without an unknown type after one with it
+        StringBuilder many = new StringBuilder("<Feature name=\"many\">");
+        for (int i = 0; i < 40; i++)
+            many.append("<Q name=\"q").append(i).append("\"><V int=\"").append(i).append("\"/></Q>");
+        many.append(ALL_KINDS).append("</Feature>");
+        List<Feature> features = features("<Features>" + many + "<Feature name=\"one\"><Q name=\"note\"><V text=\"x\"/></Q></Feature>"
+                + "<Feature name=\"none\"/><Feature name=\"other\"><Q name=\"note\"><V text=\"y\"/></Q>" + ALL_KINDS + "</Feature></Features>");
+
+        Qualifiers first = features.get(0).qualifiers;
+        assertEquals(47, first.size());
+        assertEquals(39, first.intValue(39));
+        assertEquals("float", first.valueType(46));
+        Qualifiers one = features.get(1).qualifiers;
+        assertEquals(List.of(Map.entry("note", "x")), one);
+        assertEquals("text", one.valueType(0));
+        assertSame(Qualifiers.EMPTY, features.get(2).qualifiers);
+        Qualifiers other = features.get(3).qualifiers;
+        assertEquals("text", other.valueType(0));
+        assertEquals("float", other.valueType(7));
+
+        // keys and predefined values are shared between features
+        assertSame(one.key(0), other.key(0));
+        assertSame(first.text(45), other.text(6));
+
+        // one builder per thread, emptied each time it is handed out
+        Qualifiers.Builder b = Qualifiers.builder();
+        b.add("gene", Kind.TEXT, 0, "gfp");
+        assertSame(b, Qualifiers.builder());
+        assertSame(Qualifiers.EMPTY, b.build());
+        assertNotSame(b, CompletableFuture.supplyAsync(Qualifiers::builder).get());
+        b.addOther("score", "float", "0.5");
+        b.add("gene", Kind.TEXT, 0, "gfp");
+        Qualifiers built = b.build();
+        assertEquals(Arrays.asList("float", "text"), Arrays.asList(built.valueType(0), built.valueType(1)));
+        assertSame(Qualifiers.EMPTY, b.build());
+        assertThrows(IllegalArgumentException.class, () -> Qualifiers.builder().add(null, Kind.NONE, 0, null));
+    }
+
+    @Test
+    @Order(Integer.MAX_VALUE)
+    void symbolsStopGrowingAtTheirLimit()
+    {
+        String known = Symbols.intern(new String("misc_feature"));
+        for (int i = 0; Symbols.size() < Symbols.MAX_SIZE; i++)
+            Symbols.intern("QualifiersTest symbol " + i);
+        assertEquals(Symbols.MAX_SIZE, Symbols.size());
+
+        // strings already in the table are still shared, new ones are returned as they are
+        assertSame(known, Symbols.intern(new String("misc_feature")));
+        String fresh = new String("QualifiersTest past the limit");
+        assertSame(fresh, Symbols.intern(fresh));
+        assertNotSame(fresh, Symbols.intern(new String("QualifiersTest past the limit")));
+        assertEquals(Symbols.MAX_SIZE, Symbols.size());
+        assertNull(Symbols.intern(null));
+
+        // parsing goes on with keys that are not interned
+        Qualifiers q = features("<Features><Feature name=\"f\"><Q name=\"QualifiersTest key\"><V predef=\"QualifiersTest value\"/></Q>"
+                + "</Feature></Features>").get(0).qualifiers;
+        assertEquals(List.of(Map.entry("QualifiersTest key", "QualifiersTest value")), q);
+        assertEquals(Kind.PREDEF, q.kind(0));
+    }
+}
@@ -0,0 +1,219 @@
+package com.robojudo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RestrictionScannerTest
+{
+    private static final RestrictionEnzyme ECORI = RestrictionEnzyme.parse("EcoRI G^AATTC");
+    private static final RestrictionEnzyme BSAI = RestrictionEnzyme.parse("BsaI GGTCTC(1/5)");
+
+    private static List<RestrictionScanner.Site> scan(List<RestrictionEnzyme> enzymes, String seq, boolean circular,
+                                                      boolean dam, boolean dcm, boolean ecoKI)
+    {
+        return new RestrictionScanner(enzymes).scan(PackedSequence.pack(seq), circular, dam, dcm, ecoKI);
+    }
+
+    private static List<String> names(List<RestrictionScanner.Site> sites)
+    {
+        List<String> ret = new ArrayList<>();
+        for (RestrictionScanner.Site site : sites)
+            ret.add(site.toString());
+        return ret;
+    }
+
+    @Test
+    void cutAtTheOriginIsAfterTheLastBase()
+    {
+        // G^AATTC across the origin: the top strand is cut between the last base and the first
+        String seq = "AATTCTTTTTTTTTTG";
+        List<RestrictionScanner.Site> sites = new RestrictionScanner(List.of(ECORI)).scan(PackedSequence.pack(seq), true, false, false, false);
+        assertEquals(1, sites.size());
+        RestrictionScanner.Site site = sites.get(0);
+        assertEquals(seq.length(), site.start);
+        assertEquals(5, site.end);
+        assertEquals(seq.length(), site.cut);
+        assertEquals(4, site.complementCut);
+    }
+
+    @Test
+    void cutsStayWithinOneToLengthOnCircularSequences()
+    {
+        RestrictionScanner scanner = new RestrictionScanner(RestrictionEnzyme.common());
+        Random random = new Random(12);
+        int found = 0;
+        for (int trial = 0; trial < 200; trial++)
+        {
+            char[] bases = new char[20 + random.nextInt(200)];
+            for (int i = 0; i < bases.length; i++)
+                bases[i] = "ACGT".charAt(random.nextInt(4));
+            for (RestrictionScanner.Site site : scanner.scan(PackedSequence.pack(new String(bases)), true, false, false, false))
+            {
+                assertTrue(site.cut >= 1 && site.cut <= bases.length, site.enzyme.name + " cut " + site.cut);
+                assertTrue(site.complementCut >= 1 && site.complementCut <= bases.length, site.enzyme.name + " complement cut " + site.complementCut);
+                found++;
+            }
+        }
+        assertTrue(found > 0);
+    }
+
+    @Test
+    void methylationBlocksOnlyOverlappingSites()
+    {
+        List<RestrictionEnzyme> enzymes = List.of(RestrictionEnzyme.parse("XbaI T^CTAGA dam"), RestrictionEnzyme.parse("ClaI AT^CGAT dam"),
+                RestrictionEnzyme.parse("ApaI GGGCC^C dcm"), RestrictionEnzyme.parse("StuI AGG^CCT dcm"),
+                RestrictionEnzyme.parse("EkoI AC^GAAT ecoki"), ECORI);
+        // XbaI followed by GATC, ClaI preceded by GA, ApaI followed by CCAGG, then the same sites with nothing after them
+        String seq = "TCTAGATCAAGATCGATAAGGGCCCAGGAAAAGGCCTGGAA" + "TCTAGAAAATCGATAAGGGCCCAAAAGGCCTAA";
+        assertEquals(List.of("XbaI 1..6 blocked by Dam", "ClaI 12..17 blocked by Dam", "ApaI 20..25 blocked by Dcm", "StuI 32..37 blocked by Dcm",
+                        "XbaI 42..47", "ClaI 50..55", "ApaI 58..63", "StuI 67..72"),
+                names(scan(enzymes, seq, false, true, true, true)));
+        // only the flagged host methylates
+        assertEquals(List.of("XbaI 1..6", "ClaI 12..17", "ApaI 20..25 blocked by Dcm", "StuI 32..37 blocked by Dcm",
+                        "XbaI 42..47", "ClaI 50..55", "ApaI 58..63", "StuI 67..72"),
+                names(scan(enzymes, seq, false, false, true, false)));
+
+        // AAC N6 GTGC methylates the A of AAC on the top strand and the A opposite the T of GTGC on the bottom strand
+        String ecoKI = "TTAACGAATTCGTGCTT";
+        // EkoI reads ACGAAT on the top strand at the first methylated base, and on the bottom strand at the second
+        assertEquals(List.of("EkoI 4..9 blocked by EcoKI", "EcoRI 6..11", "EkoI 8..13 (-) blocked by EcoKI"),
+                names(scan(enzymes, ecoKI, false, false, false, true)));
+        assertEquals(List.of("EkoI 4..9", "EkoI 8..13 (-)"), names(scan(enzymes.subList(4, 5), ecoKI, false, true, true, false)));
+        // the reverse complement, where the motif reads GCAC N6 GTT
+        String reverse = "AAGCACGAATTCGTTAA";
+        assertEquals(List.of("EkoI 5..10 blocked by EcoKI", "EcoRI 7..12", "EkoI 9..14 (-) blocked by EcoKI"),
+                names(scan(enzymes, reverse, false, false, false, true)));
+
+        // a methylation motif across the origin of a circular sequence still blocks
+        assertEquals(List.of("XbaI 3..8 blocked by Dam"), names(scan(enzymes.subList(0, 1), "TCTCTAGA", true, true, false, false)));
+        assertEquals(List.of("XbaI 3..8"), names(scan(enzymes.subList(0, 1), "TCTCTAGA", false, true, false, false)));
+    }
+
+    @Test
+    void degenerateSites()
+    {
+        List<RestrictionEnzyme> enzymes = List.of(RestrictionEnzyme.parse("AvaII G^GWCC"), RestrictionEnzyme.parse("BglI GCCNNNN^NGGC"),
+                RestrictionEnzyme.parse("SfiI GGCCNNNN^NGGCC"));
+        // GGACC and GGTCC but not GGCCC; N in the sequence never matches, even where the site has N
+        String seq = "GGACCTTGGTCCTTGGCCCTTGCCAAAAAGGCTTGCCAANAAGGCTTGGCCTGCATGGCCTT";
+        assertEquals(List.of("AvaII 1..5", "AvaII 8..12", "BglI 22..32", "SfiI 48..60", "BglI 49..59"),
+                names(scan(enzymes, seq, false, false, false, false)));
+        // the thirteen-base SfiI site goes into the automaton as a stretch of it and is checked in full
+        assertEquals(List.of(), names(scan(enzymes.subList(2, 3), "GGCCTGCATGGCA", false, false, false, false)));
+    }
+
+    @Test
+    void bottomStrandSitesOfNonPalindromicEnzymes()
+    {
+        // GGTCTC(1/5) on the top strand, then read as GAGACC on the bottom strand
+        List<RestrictionScanner.Site> sites = scan(List.of(BSAI), "GGTCTCAAAAAAAGAGACCAAAA", false, false, false, false);
+        assertEquals(List.of("BsaI 1..6", "BsaI 14..19 (-)"), names(sites));
+        assertEquals(7, sites.get(0).cut);
+        assertEquals(11, sites.get(0).complementCut);
+        // the bottom strand is cut one base before the site and the top strand five
+        assertEquals(8, sites.get(1).cut);
+        assertEquals(12, sites.get(1).complementCut);
+
+        // a degenerate site can match both strands at once, and is then reported once on the top strand
+        List<RestrictionScanner.Site> both = scan(List.of(RestrictionEnzyme.parse("TestI GAATTN(1/1)")), "AAGAATTCAA", false, false, false, false);
+        assertEquals(List.of("TestI 3..8"), names(both));
+        assertEquals(1, both.get(0).strand);
+        assertNull(both.get(0).blockedBy);
+    }
+
+    @Test
+    void sitesAcrossTheOrigin()
+    {
+        // GAGACC with the origin after GAG, and GGTC|TC
+        String seq = "ACCAAAAAAAAGAG";
+        assertEquals(List.of("BsaI 12..3 (-)"), names(scan(List.of(BSAI), seq, true, false, false, false)));
+        assertEquals(List.of(), names(scan(List.of(BSAI), seq, false, false, false, false)));
+        assertEquals(List.of("BsaI 11..2"), names(scan(List.of(BSAI), "TCAAAAAAAAGGTC", true, false, false, false)));
+        // a degenerate site across the origin
+        assertEquals(List.of("AvaII 9..3"), names(scan(List.of(RestrictionEnzyme.parse("AvaII G^GWCC")), "TCCAAAAAGG", true, false, false, false)));
+        // a site longer than the sequence is never found, even going round twice
+        assertEquals(List.of(), names(scan(List.of(BSAI), "GGTC", true, false, false, false)));
+    }
+
+    @Test
+    void scanMatchesABruteForceSearch()
+    {
+        List<RestrictionEnzyme> enzymes = new ArrayList<>(RestrictionEnzyme.common());
+        enzymes.add(RestrictionEnzyme.parse("SfiI GGCCNNNN^NGGCC"));
+        enzymes.add(RestrictionEnzyme.parse("EkoI AC^GAAT ecoki"));
+        enzymes.add(RestrictionEnzyme.parse("BsmBI CGTCTC(1/5) dcm"));
+        RestrictionScanner scanner = new RestrictionScanner(enzymes);
+        Random random = new Random(12);
+        int found = 0, blocked = 0;
+        for (int trial = 0; trial < 400; trial++)
+        {
+            // a small alphabet bias makes short palindromes and methylation motifs common
+            char[] bases = new char[5 + random.nextInt(150)];
+            for (int i = 0; i < bases.length; i++)
+                bases[i] = random.nextInt(50) == 0 ? 'N' : "ACGTGATC".charAt(random.nextInt(8));
+            String seq = new String(bases);
+            boolean circular = random.nextBoolean(), dam = random.nextBoolean(), dcm = random.nextBoolean(), ecoKI = random.nextBoolean();
+
+            List<String> expected = new ArrayList<>();
+            for (int start = 0; start < seq.length(); start++)
+            {
+                for (RestrictionEnzyme enzyme : enzymes)
+                {
+                    int n = enzyme.length();
+                    if (n > seq.length() || (!circular && start + n > seq.length()))
+                        continue;
+                    int strand = matches(seq, start, enzyme.site) ? 1
+                            : !enzyme.isPalindromic() && matches(seq, start, RestrictionEnzyme.reverseComplement(enzyme.site)) ? -1 : 0;
+                    if (strand == 0)
+                        continue;
+                    String blockedBy = enzyme.damSensitive && dam && methylated(seq, circular, start, n, "GATC", 1, 2) ? "Dam"
+                            : enzyme.dcmSensitive && dcm && methylated(seq, circular, start, n, "CCWGG", 1, 3) ? "Dcm"
+                            : enzyme.ecoKISensitive && ecoKI && (methylated(seq, circular, start, n, "AACNNNNNNGTGC", 1, 10)
+                                    || methylated(seq, circular, start, n, "GCACNNNNNNGTT", 2, 11)) ? "EcoKI" : null;
+                    expected.add(enzyme.name + " " + (start + 1) + ".." + ((start + n - 1) % seq.length() + 1) + (strand < 0 ? " (-)" : "")
+                            + (blockedBy != null ? " blocked by " + blockedBy : ""));
+                    found++;
+                    if (blockedBy != null)
+                        blocked++;
+                }
+            }
+            List<RestrictionScanner.Site> sites = scanner.scan(PackedSequence.pack(seq), circular, dam, dcm, ecoKI);
+            assertEquals(expected, names(sites), seq + (circular ? " circular" : " linear"));
+        }
+        assertTrue(found > 300 && blocked > 40, found + " sites, " + blocked + " blocked");
+    }
+
+    // whether the IUPAC pattern matches seq at start, wrapping around its end
+    private static boolean matches(String seq, int start, String pattern)
+    {
+        for (int j = 0; j < pattern.length(); j++)
+        {
+            char c = seq.charAt((start + j) % seq.length());
+            if (c == 'N' || (RestrictionEnzyme.mask(pattern.charAt(j)) & RestrictionEnzyme.mask(c)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // whether a base methylated by some instance of the motif lies within the n bases from start
+    private static boolean methylated(String seq, boolean circular, int start, int n, String motif, int... offsets)
+    {
+        int len = seq.length();
+        for (int i = 0; i < len; i++)
+        {
+            if (motif.length() > len || (!circular && i + motif.length() > len) || !matches(seq, i, motif))
+                continue;
+            for (int offset : offsets)
+                if (Math.floorMod((i + offset) % len - start, len) < n)
+                    return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,83 @@
+package com.robojudo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** The sample .dna files under test-resources/samples. */
+final class Samples
+{
+    private Samples()
+    {
+    }
+
+    static Path dir()
+    {
+        try {
+            return Paths.get(Samples.class.getResource("/samples").toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static List<Path> files()
+    {
+        try (Stream<Path> s = Files.list(dir())) {
+            return s.filter(SnapGeneBatch::isSnapGeneFile).sorted().collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Path file(String name)
+    {
+        return dir().resolve(name);
+    }
+
+    /** A .dna file with only the Description and DNA segments. */
+    static byte[] dnaFile(String bases, boolean circular)
+    {
+        byte[] seq = bases.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+        ByteBuffer bb = ByteBuffer.allocate(5 + 14 + 5 + 1 + seq.length);
+        bb.put((byte) SnapGene.DescriptionSegment.TYPE).putInt(14);
+        bb.put("SnapGene".getBytes(java.nio.charset.StandardCharsets.US_ASCII)).putShort((short) 1).putShort((short) 15).putShort((short) 19);
+        bb.put((byte) SnapGene.DNASegment.TYPE).putInt(1 + seq.length);
+        bb.put((byte) (circular ? 3 : 2)).put(seq);
+        return bb.array();
+    }
+
+    /** The file with one more segment at its end. */
+    static byte[] withSegment(byte[] file, int type, byte[] payload)
+    {
+        ByteBuffer bb = ByteBuffer.allocate(file.length + 5 + payload.length);
+        bb.put(file).put((byte) type).putInt(payload.length).put(payload);
+        return bb.array();
+    }
+
+    static byte[] withSegment(byte[] file, int type, String xml)
+    {
+        return withSegment(file, type, xml.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    /** The payload of the first segment of a type in a file, or null if it has none. */
+    static ByteBuffer segment(Path file, int type) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (bb.remaining() >= 5)
+        {
+            int t = bb.get() & 0xFF;
+            int length = bb.getInt();
+            if (t == type)
+                return bb.slice(bb.position(), length);
+            bb.position(bb.position() + length);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,192 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentHandlerTest
+{
+    private final Path file = Samples.file("plasmid.dna");
+
+    /** Records every call as a line of text. */
+    private static final class Recorder implements SegmentHandler
+    {
+        final List<String> events = new ArrayList<>();
+        final List<Segment> segments = new ArrayList<>();
+        final List<ByteBuffer> raw = new ArrayList<>();
+        final IntFunction<Action> actions;
+
+        Recorder(IntFunction<Action> actions)
+        {
+            this.actions = actions;
+        }
+
+        @Override
+        public Action onHeader(int type, long offset, int length)
+        {
+            events.add("header " + type + " " + offset + " " + length);
+            return actions.apply(type);
+        }
+
+        @Override
+        public void onSegment(int type, Segment segment)
+        {
+            events.add("segment " + type);
+            segments.add(segment);
+        }
+
+        @Override
+        public void onRaw(int type, ByteBuffer data)
+        {
+            events.add("raw " + type + " " + data.remaining());
+            ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+            copy.put(data.duplicate()).flip();
+            raw.add(copy);
+            assertTrue(data.isReadOnly());
+        }
+
+        @Override
+        public void onEnd()
+        {
+            events.add("end");
+        }
+    }
+
+    private interface Input
+    {
+        void parse(SegmentHandler handler) throws IOException;
+    }
+
+    private List<Input> inputs() throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(file);
+        SnapGeneParser parser = SnapGeneParser.DEFAULT;
+        return List.of(
+                h -> parser.parse(new ByteArrayInputStream(bytes), h),
+                h -> parser.parse(file, h),
+                h -> parser.parse(ByteBuffer.wrap(bytes), h));
+    }
+
+    // the events parsing with a handler should produce, from the segment headers
+    private List<String> expected(IntFunction<SegmentHandler.Action> actions) throws IOException
+    {
+        List<String> ret = new ArrayList<>();
+        ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (bb.remaining() >= 5)
+        {
+            int type = bb.get();
+            int length = bb.getInt();
+            ret.add("header " + type + " " + bb.position() + " " + length);
+            SegmentHandler.Action action = actions.apply(type);
+            if (action == SegmentHandler.Action.STOP)
+                return ret;
+            if (action == SegmentHandler.Action.DECODE)
+                ret.add("segment " + type);
+            else if (action == SegmentHandler.Action.RAW)
+                ret.add("raw " + type + " " + length);
+            bb.position(bb.position() + length);
+        }
+        ret.add("end");
+        return ret;
+    }
+
+    @Test
+    void eventsArriveInFileOrder() throws Exception
+    {
+        IntFunction<SegmentHandler.Action> actions = type -> type == DNASegment.TYPE ? SegmentHandler.Action.RAW
+                : type == NotesSegment.TYPE ? SegmentHandler.Action.SKIP : SegmentHandler.Action.DECODE;
+        SnapGeneDoc doc = SnapGene.parse(file);
+        for (Input input : inputs())
+        {
+            Recorder r = new Recorder(actions);
+            input.parse(r);
+            assertEquals(expected(actions), r.events);
+
+            // decoded segments are what parse gives, raw ones the payload bytes
+            List<Segment> decoded = new ArrayList<>();
+            for (Segment seg : doc.segments())
+                if (!(seg instanceof DNASegment) && !(seg instanceof NotesSegment))
+                    decoded.add(seg);
+            assertEquals(decoded.size(), r.segments.size());
+            for (int i = 0; i < decoded.size(); i++)
+                Documents.assertSameSegment(decoded.get(i), r.segments.get(i), "segment " + i);
+            assertEquals(1, r.raw.size());
+            assertEquals(Samples.segment(file, DNASegment.TYPE), r.raw.get(0));
+        }
+    }
+
+    @Test
+    void skippedPayloadsAreNotRead() throws Exception
+    {
+        byte[] bytes = Files.readAllBytes(file);
+        long[] read = new long[1];
+        FilterInputStream counting = new FilterInputStream(new ByteArrayInputStream(bytes))
+        {
+            @Override
+            public int read() throws IOException
+            {
+                int b = super.read();
+                if (b != -1)
+                    read[0]++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException
+            {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    read[0] += n;
+                return n;
+            }
+        };
+        Recorder r = new Recorder(type -> SegmentHandler.Action.SKIP);
+        SnapGeneParser.DEFAULT.parse(counting, r);
+        assertEquals(expected(type -> SegmentHandler.Action.SKIP), r.events);
+        // only the headers were read
+        assertEquals(5L * (r.events.size() - 1), read[0]);
+    }
+
+    @Test
+    void stopEndsParsingWithoutOnEnd() throws Exception
+    {
+        IntFunction<SegmentHandler.Action> actions = type -> type == NotesSegment.TYPE ? SegmentHandler.Action.STOP : SegmentHandler.Action.SKIP;
+        for (Input input : inputs())
+        {
+            Recorder r = new Recorder(actions);
+            input.parse(r);
+            assertEquals(expected(actions), r.events);
+            assertTrue(r.events.get(r.events.size() - 1).startsWith("header " + NotesSegment.TYPE + " "), r.events.toString());
+        }
+    }
+
+    @Test
+    void nullActionIsAnError() throws Exception
+    {
+        for (Input input : inputs())
+        {
+            Recorder r = new Recorder(type -> type == DNASegment.TYPE ? null : SegmentHandler.Action.DECODE);
+            IllegalStateException e = assertThrows(IllegalStateException.class, () -> input.parse(r));
+            assertTrue(e.getMessage().contains("type " + DNASegment.TYPE), e.getMessage());
+            assertTrue(r.raw.isEmpty());
+            assertFalse(r.events.contains("end"));
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SequenceExporterTest
+{
+    private static final String BASES = "ACGTTGCA".repeat(16) + "AC";
+
+    private static final byte[] FILE = Samples.withSegment(Samples.withSegment(Samples.dnaFile(BASES, true),
+            NotesSegment.TYPE, "<Notes><Type>Synthetic</Type><Created>2021.6.30</Created><AccessionNumber>X1</AccessionNumber>"
+                    + "<Organism>Escherichia coli</Organism><Description>A &lt;b&gt;test&lt;/b&gt; construct</Description></Notes>"),
+            FeaturesSegment.TYPE, "<Features>"
+                    + "<Feature name=\"rev\" directionality=\"2\" type=\"CDS\"><Segment range=\"10-20\" type=\"standard\"/>"
+                    + "<Segment range=\"21-25\" type=\"gap\"/><Segment range=\"30-40\" type=\"standard\"/>"
+                    + "<Q name=\"note\"><V text=\"say &quot;hi&quot;\"/></Q></Feature>"
+                    + "<Feature name=\"ori\" directionality=\"1\" type=\"rep_origin\"><Segment range=\"120-5\" type=\"standard\"/>"
+                    + "<Q name=\"pseudo\"><V bool=\"1\"/></Q><Q name=\"number\"><V int=\"3\"/></Q></Feature>"
+                    + "<Feature name=\"site\" type=\"misc_feature\"><Segment range=\"7-7\" type=\"standard\"/></Feature>"
+                    + "</Features>");
+
+    private static final String GENBANK = String.join("\n",
+            "LOCUS       test_construct           130 bp    DNA     circular SYN 30-JUN-2021",
+            "DEFINITION  A test construct",
+            "ACCESSION   X1",
+            "VERSION     X1",
+            "KEYWORDS    .",
+            "SOURCE      Escherichia coli",
+            "  ORGANISM  Escherichia coli",
+            "FEATURES             Location/Qualifiers",
+            "     source          1..130",
+            "                     /organism=\"Escherichia coli\"",
+            "                     /mol_type=\"other DNA\"",
+            "     CDS             complement(join(10..20,30..40))",
+            "                     /label=\"rev\"",
+            "                     /note=\"say \"\"hi\"\"\"",
+            "     rep_origin      join(120..130,1..5)",
+            "                     /label=\"ori\"",
+            "                     /pseudo",
+            "                     /number=3",
+            "     misc_feature    7",
+            "                     /label=\"site\"",
+            "ORIGIN",
+            "        1 acgttgcaac gttgcaacgt tgcaacgttg caacgttgca acgttgcaac gttgcaacgt",
+            "       61 tgcaacgttg caacgttgca acgttgcaac gttgcaacgt tgcaacgttg caacgttgca",
+            "      121 acgttgcaac",
+            "//",
+            "");
+
+    private static final String FASTA = String.join("\n",
+            ">test A test construct",
+            "ACGTTGCAACGTTGCAACGTTGCAACGTTGCAACGTTGCAACGTTGCAACGTTGCAACGT",
+            "TGCAACGTTGCAACGTTGCAACGTTGCAACGTTGCAACGTTGCAACGTTGCAACGTTGCA",
+            "ACGTTGCAAC",
+            "");
+
+    @Test
+    void genBankRecord() throws Exception
+    {
+        for (SnapGeneDoc doc : new SnapGeneDoc[] {SnapGene.parse(ByteBuffer.wrap(FILE)), SnapGene.index(ByteBuffer.wrap(FILE))})
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long written = SequenceExporter.writeGenBank(doc, "test construct", out);
+            assertEquals(GENBANK, out.toString(StandardCharsets.UTF_8));
+            assertEquals(out.size(), written);
+        }
+    }
+
+    @Test
+    void fastaRecord() throws Exception
+    {
+        for (SnapGeneDoc doc : new SnapGeneDoc[] {SnapGene.parse(ByteBuffer.wrap(FILE)), SnapGene.index(ByteBuffer.wrap(FILE))})
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long written = SequenceExporter.writeFasta(doc, "test", out);
+            assertEquals(FASTA, out.toString(StandardCharsets.UTF_8));
+            assertEquals(out.size(), written);
+
+            out.reset();
+            SequenceExporter.writeFasta(doc, "test", 65, Channels.newChannel(out));
+            assertEquals(">test A test construct\n" + BASES.substring(0, 65) + "\n" + BASES.substring(65) + "\n", out.toString(StandardCharsets.UTF_8));
+        }
+        assertThrows(IllegalArgumentException.class, () -> SequenceExporter.writeFasta(SnapGene.parse(ByteBuffer.wrap(FILE)), "test", 0,
+                Channels.newChannel(new ByteArrayOutputStream())));
+    }
+
+    @Test
+    void longSequencesWrapAcrossBlocks() throws Exception
+    {
+        // more than one block of bases, and a last line that is not full
+        String bases = "GATTACA".repeat(20_000) + "G";
+        SnapGeneDoc doc = SnapGene.parse(ByteBuffer.wrap(Samples.dnaFile(bases, false)));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SequenceExporter.writeFasta(doc, "long", out);
+        String[] lines = out.toString(StandardCharsets.US_ASCII).split("\n");
+        assertEquals(">long", lines[0]);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < lines.length; i++)
+        {
+            assertTrue(lines[i].length() == 60 || i == lines.length - 1, "line " + i);
+            sb.append(lines[i]);
+        }
+        assertEquals(bases, sb.toString());
+
+        out.reset();
+        SequenceExporter.writeGenBank(doc, "long", out);
+        String genBank = out.toString(StandardCharsets.US_ASCII);
+        assertTrue(genBank.startsWith("LOCUS       long                  140001 bp    DNA     linear   SYN "), genBank.substring(0, 80));
+        String lower = bases.toLowerCase();
+        assertTrue(genBank.contains("\n    61441 " + lower.substring(61440, 61450) + " " + lower.substring(61450, 61460) + " "),
+                "ORIGIN position past the first block");
+        assertTrue(genBank.endsWith("\n   139981 " + lower.substring(139980, 139990) + " " + lower.substring(139990, 140000)
+                + " " + lower.substring(140000) + "\n//\n"));
+    }
+
+    @Test
+    void strandednessDoesNotDependOnLaziness() throws IOException
+    {
+        // circular, single-stranded
+        byte[] file = Samples.dnaFile("ACGT", true);
+        file[5 + 14 + 5] = 1;
+        SnapGeneDoc eager = SnapGene.parse(ByteBuffer.wrap(file));
+        assertEquals("single-stranded", eager.dna().strandedness);
+        for (SnapGeneDoc doc : new SnapGeneDoc[] {eager, SnapGene.index(ByteBuffer.wrap(file))})
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            SequenceExporter.writeGenBank(doc, "ss", out);
+            assertTrue(out.toString(StandardCharsets.US_ASCII).startsWith("LOCUS       ss                         4 bp ss-DNA     circular SYN "));
+        }
+
+        DNASegment unknown = new DNASegment("linear", null, false, false, false, PackedSequence.pack("ACGT"));
+        SnapGeneDoc doc = SnapGene.parse(ByteBuffer.wrap(Samples.dnaFile("ACGT", false)));
+        doc.dna = unknown;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SequenceExporter.writeGenBank(doc, "ss", out);
+        assertTrue(out.toString(StandardCharsets.US_ASCII).startsWith("LOCUS       ss                         4 bp ss-DNA     linear   "));
+    }
+
+    @Test
+    void lazyAndEagerSamplesExportAlike() throws Exception
+    {
+        for (Path file : Samples.files())
+        {
+            byte[] bytes = Files.readAllBytes(file);
+            ByteArrayOutputStream eager = new ByteArrayOutputStream(), lazy = new ByteArrayOutputStream();
+            SequenceExporter.writeGenBank(SnapGene.parse(ByteBuffer.wrap(bytes)), "x", eager);
+            SequenceExporter.writeGenBank(SnapGene.index(ByteBuffer.wrap(bytes)), "x", lazy);
+            assertEquals(eager.toString(StandardCharsets.UTF_8), lazy.toString(StandardCharsets.UTF_8), file.toString());
+        }
+    }
+}
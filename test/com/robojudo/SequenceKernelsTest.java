@@ -0,0 +1,155 @@
+package com.robojudo;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/** The Vector API kernels must give the same results as the scalar loops on any bytes. */
+class SequenceKernelsTest
+{
+    // upper and lower case bases, N, the other IUPAC codes, gaps and bytes that are not bases at all
+    private static final byte[] ALPHABET = "ACGTACGTacgtacgtNnRYSWKMBDHVrysw-.*\0ÿ".getBytes(java.nio.charset.StandardCharsets.ISO_8859_1);
+
+    private static SequenceKernels vector;
+
+    @BeforeAll
+    static void vectorKernels()
+    {
+        // the build adds jdk.incubator.vector to the test JVM; without it this test would compare nothing
+        vector = SequenceKernels.VECTOR;
+        assertNotNull(vector, "Vector API kernels not available; run with --add-modules jdk.incubator.vector");
+    }
+
+    /** 0, 1, and one below, at and one above each multiple of the lane counts up to 512-bit vectors. */
+    private static List<Integer> lengths()
+    {
+        List<Integer> lengths = new ArrayList<>(List.of(0, 1, 2, 3, 7));
+        for (int lanes : new int[] { 8, 16, 32, 64 })
+            for (int k = 1; k <= 4; k++)
+                for (int d = -1; d <= 1; d++)
+                    if (!lengths.contains(k * lanes + d))
+                        lengths.add(k * lanes + d);
+        lengths.add(1000);
+        lengths.add(4099);
+        return lengths;
+    }
+
+    private static byte[] random(Random random, int length, double homopolymers)
+    {
+        byte[] a = new byte[length];
+        for (int i = 0; i < length; i++)
+            a[i] = i > 0 && random.nextDouble() < homopolymers ? a[i - 1] : ALPHABET[random.nextInt(ALPHABET.length)];
+        return a;
+    }
+
+    @Test
+    void kernelsAgree()
+    {
+        Random random = new Random(22);
+        for (int length : lengths())
+        {
+            for (int trial = 0; trial < 20; trial++)
+            {
+                // pad the range on both sides so that offsets other than 0 are covered too
+                int pad = trial % 3;
+                byte[] a = random(random, length + 2 * pad, trial % 2 == 0 ? 0.0 : 0.7);
+                int from = pad, to = pad + length;
+                String where = "length " + length + " trial " + trial;
+
+                assertEquals(SequenceKernels.SCALAR.gcCount(a, from, to), vector.gcCount(a, from, to), where);
+
+                long[] scalarCounts = new long[4], vectorCounts = new long[4];
+                SequenceKernels.SCALAR.composition(a, from, to, scalarCounts);
+                vector.composition(a, from, to, vectorCounts);
+                assertArrayEquals(scalarCounts, vectorCounts, where);
+
+                for (int minLength : new int[] { 1, 3 })
+                    assertEquals(runs(SequenceKernels.SCALAR, a, from, to, minLength), runs(vector, a, from, to, minLength), where);
+
+                byte[] scalarRc = new byte[length], vectorRc = new byte[length];
+                SequenceKernels.SCALAR.reverseComplement(a, from, to, scalarRc, 0);
+                vector.reverseComplement(a, from, to, vectorRc, 0);
+                assertArrayEquals(scalarRc, vectorRc, where);
+
+                for (int k : new int[] { 1, 3, 8 })
+                    assertEquals(canonicalKmers(SequenceKernels.SCALAR, a, from, to, k), canonicalKmers(vector, a, from, to, k), where + " k " + k);
+            }
+        }
+    }
+
+    @Test
+    void analyticsAgree()
+    {
+        Random random = new Random(23);
+        for (int length : lengths())
+        {
+            if (length == 0)
+                continue;
+            byte[] a = random(random, length, 0.5);
+            for (boolean circular : new boolean[] { false, true })
+            {
+                SequenceAnalytics scalar = SequenceAnalytics.of(a, 0, length, circular).using(SequenceKernels.SCALAR);
+                SequenceAnalytics vec = scalar.using(vector);
+                String where = "length " + length + (circular ? " circular" : "");
+                assertEquals(scalar.gcCount(), vec.gcCount(), where);
+                assertEquals(scalar.composition().toString(), vec.composition().toString(), where);
+                int window = Math.min(length, 17);
+                assertArrayEquals(scalar.slidingGc(window, 5), vec.slidingGc(window, 5), where);
+                assertEquals(runs(scalar.homopolymers(2)), runs(vec.homopolymers(2)), where);
+            }
+        }
+    }
+
+    private static String runs(SequenceKernels kernels, byte[] a, int from, int to, int minLength)
+    {
+        SequenceAnalytics.Runs runs = new SequenceAnalytics.Runs();
+        kernels.runs(a, from, to, minLength, runs);
+        return runs(runs);
+    }
+
+    private static String runs(SequenceAnalytics.Runs runs)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < runs.count(); i++)
+            sb.append(runs.start(i)).append(runs.base(i)).append(runs.length(i)).append(' ');
+        return sb.toString();
+    }
+
+    /** Counts of each k-mer or its reverse complement, whichever is smaller, upper-cased. */
+    private static Map<String, Integer> canonicalKmers(SequenceKernels kernels, byte[] a, int from, int to, int k)
+    {
+        int n = to - from;
+        byte[] rc = new byte[n];
+        kernels.reverseComplement(a, from, to, rc, 0);
+        long[] composition = new long[4];
+        kernels.composition(a, from, to, composition);
+
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i + k <= n; i++)
+        {
+            String forward = upper(a, from + i, k);
+            String reverse = upper(rc, n - i - k, k);
+            counts.merge(forward.compareTo(reverse) <= 0 ? forward : reverse, 1, Integer::sum);
+        }
+        counts.put("#composition " + Arrays.toString(composition), 1);
+        return counts;
+    }
+
+    private static String upper(byte[] a, int from, int k)
+    {
+        char[] c = new char[k];
+        for (int i = 0; i < k; i++)
+            c[i] = Character.toUpperCase((char) (a[from + i] & 0xFF));
+        return new String(c);
+    }
+}
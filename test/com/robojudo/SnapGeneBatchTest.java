@@ -0,0 +1,100 @@
+package com.robojudo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapGeneBatchTest
+{
+    private static final byte[] GARBAGE = {9, 0, 0, 0, 100, 1, 2, 3};
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void negativeTestCasesCountAsFailuresOnlyIfTheyParse() throws Exception
+    {
+        Path sub = Files.createDirectory(dir.resolve("sub"));
+        Files.copy(Samples.file("plasmid.dna"), dir.resolve("plasmid.dna"));
+        Files.copy(Samples.file("linear.dna"), sub.resolve("linear.dna"));
+        Files.write(dir.resolve("truncated.dna"), GARBAGE);
+        Files.write(dir.resolve("bad_truncated.dna"), GARBAGE);
+        Files.write(sub.resolve("bad_empty.dna"), new byte[0]);
+        Files.copy(Samples.file("minimal.dna"), sub.resolve("bad_minimal.dna"));
+        Files.write(dir.resolve("notes.txt"), GARBAGE);
+
+        Map<String, SnapGeneBatch.Result> results = new ConcurrentHashMap<>();
+        SnapGeneBatch.Summary summary = SnapGeneBatch.builder().parallelism(2).build()
+                .run(dir, r -> results.put(r.path.getFileName().toString(), r));
+
+        assertEquals(6, summary.files);
+        assertEquals(6, results.size());
+        assertEquals(Files.size(Samples.file("plasmid.dna")) + Files.size(Samples.file("linear.dna"))
+                + Files.size(Samples.file("minimal.dna")) + 2 * GARBAGE.length, summary.bytes);
+        // truncated.dna failed and bad_minimal.dna parsed
+        assertEquals(2, summary.failures);
+        assertEquals(2, summary.expectedFailures);
+
+        assertFalse(results.get("plasmid.dna").isFailure());
+        assertNotNull(results.get("plasmid.dna").doc);
+        assertTrue(results.get("truncated.dna").isFailure());
+        assertNull(results.get("truncated.dna").doc);
+        assertTrue(results.get("bad_truncated.dna").negativeTest);
+        assertFalse(results.get("bad_truncated.dna").isFailure());
+        assertFalse(results.get("bad_empty.dna").isFailure());
+        assertTrue(results.get("bad_minimal.dna").isFailure());
+        assertNull(results.get("bad_minimal.dna").error);
+    }
+
+    @Test
+    void sinkExceptionEndsTheWalk() throws Exception
+    {
+        for (int i = 0; i < 20; i++)
+            Files.copy(Samples.file("minimal.dna"), dir.resolve("file" + i + ".dna"));
+
+        AtomicInteger delivered = new AtomicInteger();
+        IllegalStateException thrown = new IllegalStateException("sink failed");
+        SnapGeneBatch batch = SnapGeneBatch.builder().parallelism(1).queueCapacity(0).build();
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> batch.run(dir, r -> {
+            delivered.incrementAndGet();
+            throw thrown;
+        }));
+        assertSame(thrown, e);
+        assertTrue(delivered.get() < 20, delivered + " files delivered");
+    }
+
+    @Test
+    void virtualMachineErrorsEndTheBatch() throws Exception
+    {
+        for (int i = 0; i < 20; i++)
+            Files.copy(Samples.file("minimal.dna"), dir.resolve("file" + i + ".dna"));
+        Files.write(dir.resolve("deep.dna"), GARBAGE);
+
+        AtomicInteger parsed = new AtomicInteger();
+        SnapGeneBatch overflow = SnapGeneBatch.builder().parallelism(1).parser(path -> {
+            throw new StackOverflowError();
+        }).build();
+        SnapGeneBatch.Summary summary = overflow.run(dir, r -> assertTrue(r.error instanceof StackOverflowError));
+        assertEquals(21, summary.failures);
+
+        SnapGeneBatch outOfMemory = SnapGeneBatch.builder().parallelism(1).queueCapacity(0).parser(path -> {
+            parsed.incrementAndGet();
+            throw new OutOfMemoryError("test");
+        }).build();
+        assertThrows(OutOfMemoryError.class, () -> outOfMemory.run(dir, r -> { }));
+        assertTrue(parsed.get() < 21, parsed + " files parsed");
+    }
+}
@@ -0,0 +1,390 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.Segment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import com.robojudo.SnapGene.UnsupportedSegment;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapGeneParserTest
+{
+    private static final int SEGMENTS = 2000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void cancellingParseAsyncStopsTheReads() throws Exception
+    {
+        // far more segments than one read returns
+        byte[] head = Samples.dnaFile("ACGT", false);
+        ByteBuffer bb = ByteBuffer.allocate(head.length + SEGMENTS * 205);
+        bb.put(head);
+        for (int i = 0; i < SEGMENTS; i++)
+            bb.put((byte) 20).putInt(200).put(new byte[200]);
+        Path file = dir.resolve("many.dna");
+        Files.write(file, bb.array());
+
+        CountDownLatch started = new CountDownLatch(1), cancelled = new CountDownLatch(1);
+        AtomicInteger decoded = new AtomicInteger();
+        SnapGeneParser parser = SnapGeneParser.builder().listener((type, length, nanos, allocated) -> {
+            decoded.incrementAndGet();
+            started.countDown();
+            try {
+                cancelled.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }).build();
+
+        CompletableFuture<SnapGeneDoc> future = parser.parseAsync(file);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(future.cancel(true));
+        cancelled.countDown();
+
+        // the read in progress is finished, then no more are issued
+        int last;
+        do {
+            last = decoded.get();
+            Thread.sleep(100);
+        } while (decoded.get() != last);
+        assertTrue(last < SEGMENTS, "decoded " + last + " of " + (SEGMENTS + 2) + " segments");
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    void decodeRejectsInvalidSegmentTypes()
+    {
+        SnapGeneParser.Builder builder = SnapGeneParser.builder();
+        assertThrows(IllegalArgumentException.class, () -> builder.decode(-1));
+        assertThrows(IllegalArgumentException.class, () -> builder.decode(SnapGene.NotesSegment.TYPE, 128));
+        // a rejected call leaves the builder as it was
+        assertTrue(builder.build().decodes(SnapGene.NotesSegment.TYPE));
+    }
+
+    @Test
+    void parseAsyncMatchesParse() throws Exception
+    {
+        for (Path file : Samples.files())
+        {
+            SnapGeneDoc doc = SnapGene.parse(file);
+            Documents.assertSameDocument(doc, SnapGeneParser.builder().build().parseAsync(file).get(10, TimeUnit.SECONDS), file.toString());
+        }
+    }
+
+    @Test
+    void mappedAndStreamedParsesAgree() throws Exception
+    {
+        int unsupported = 0;
+        for (Path file : Samples.files())
+        {
+            byte[] bytes = Files.readAllBytes(file);
+            SnapGeneDoc streamed;
+            try (InputStream in = Files.newInputStream(file)) {
+                streamed = SnapGene.parse(in);
+            }
+            SnapGeneDoc mapped;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapped = SnapGene.parse(ch);
+            }
+            Documents.assertSameDocument(streamed, mapped, file.toString());
+            Documents.assertSameDocument(streamed, SnapGene.parse(file), file.toString());
+
+            // a buffer whose position is not 0, and a direct one
+            ByteBuffer offset = ByteBuffer.allocate(bytes.length + 7).put(new byte[3]).put(bytes).put(new byte[4]);
+            offset.position(3).limit(3 + bytes.length);
+            Documents.assertSameDocument(streamed, SnapGene.parse(offset), file + " at an offset");
+            assertEquals(3, offset.position());
+            Documents.assertSameDocument(streamed, SnapGene.parse(ByteBuffer.allocateDirect(bytes.length).put(bytes).flip()), file + " direct");
+
+            // payloads kept as they are stay views of the mapping, readable after the channel is closed
+            for (Segment seg : mapped.segments())
+            {
+                if (seg.getClass() != UnsupportedSegment.class)
+                    continue;
+                ByteBuffer data = ((UnsupportedSegment) seg).data;
+                assertTrue(data.isDirect() && data.isReadOnly(), file.toString());
+                assertEquals(data, Samples.segment(file, ((UnsupportedSegment) seg).type));
+                unsupported++;
+            }
+        }
+        assertTrue(unsupported > 0, "expected sample files with segments kept raw");
+    }
+
+    @Test
+    void oneParserServesManyThreads() throws Exception
+    {
+        List<Path> files = Samples.files();
+        List<byte[]> bytes = new ArrayList<>();
+        List<SnapGeneDoc> expected = new ArrayList<>();
+        for (Path file : files)
+        {
+            bytes.add(Files.readAllBytes(file));
+            expected.add(SnapGene.parse(file));
+        }
+        // per-thread buffers smaller than most payloads, so they are grown and replaced while other threads parse
+        SnapGeneParser parser = SnapGeneParser.builder().initialBufferSize(16).maxBufferSize(512).build();
+        SnapGeneParser lazy = SnapGeneParser.builder().lazy(true).build();
+
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+            {
+                int offset = t;
+                tasks.add(pool.submit(() -> {
+                    start.await();
+                    for (int round = 0; round < 50; round++)
+                    {
+                        int i = (offset + round) % files.size();
+                        String where = files.get(i) + " round " + round;
+                        Documents.assertSameDocument(expected.get(i), parser.parse(new ByteArrayInputStream(bytes.get(i))), where);
+                        Documents.assertSameDocument(expected.get(i), parser.parse(ByteBuffer.wrap(bytes.get(i))), where);
+                        Documents.assertSameDocument(expected.get(i), lazy.parse(ByteBuffer.wrap(bytes.get(i))), where + " lazy");
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> task : tasks)
+                task.get(60, TimeUnit.SECONDS);
+
+            // one lazy document read from many threads at once hands them all the same segments
+            SnapGeneDoc doc = lazy.parse(ByteBuffer.wrap(bytes.get(files.indexOf(Samples.file("plasmid.dna")))));
+            CountDownLatch ready = new CountDownLatch(1);
+            List<Future<List<Object>>> reads = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+                reads.add(pool.submit(() -> {
+                    ready.await();
+                    return List.of(doc.features(), doc.dna(), doc.notes(), doc.segments(), doc.history() == null ? "none" : doc.history());
+                }));
+            ready.countDown();
+            List<Object> first = reads.get(0).get(60, TimeUnit.SECONDS);
+            for (Future<List<Object>> read : reads)
+            {
+                List<Object> got = read.get(60, TimeUnit.SECONDS);
+                for (int i = 0; i < first.size(); i++)
+                    assertSame(first.get(i), got.get(i));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Delivers a file in chunks of random sizes, some of them empty, through one buffer that is scribbled over
+     * once the subscriber is done with it. Chunks are delivered in a loop rather than from request(), so one
+     * byte at a time does not nest calls.
+     */
+    private static final class ChunkPublisher implements Flow.Publisher<ByteBuffer>
+    {
+        private final byte[] file;
+        private final Random random;
+        private final int maxChunk;
+        private final Throwable error;
+        private int pos;
+        private long demand;
+        private boolean draining;
+        private boolean cancelled;
+
+        ChunkPublisher(byte[] file, Random random, int maxChunk, Throwable error)
+        {
+            this.file = file;
+            this.random = random;
+            this.maxChunk = maxChunk;
+            this.error = error;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber)
+        {
+            byte[] chunk = new byte[maxChunk];
+            subscriber.onSubscribe(new Flow.Subscription()
+            {
+                @Override
+                public void request(long n)
+                {
+                    demand += n;
+                    if (draining)
+                        return;
+                    draining = true;
+                    while (demand > 0 && !cancelled && pos < file.length)
+                    {
+                        demand--;
+                        int size = Math.min(file.length - pos, random.nextInt(maxChunk + 1));
+                        System.arraycopy(file, pos, chunk, 0, size);
+                        pos += size;
+                        subscriber.onNext(ByteBuffer.wrap(chunk, 0, size));
+                        Arrays.fill(chunk, (byte) 0x55);
+                    }
+                    if (pos == file.length && !cancelled) {
+                        cancelled = true;
+                        if (error != null)
+                            subscriber.onError(error);
+                        else
+                            subscriber.onComplete();
+                    }
+                    draining = false;
+                }
+
+                @Override
+                public void cancel()
+                {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    @Test
+    void publishedChunksOfAnySizeParseAlike() throws Exception
+    {
+        Random random = new Random(20);
+        for (Path file : Samples.files())
+        {
+            byte[] bytes = Files.readAllBytes(file);
+            SnapGeneDoc expected = SnapGene.parse(file);
+            for (int maxChunk : new int[] {1, 2, 5, 64, 1000, bytes.length + 10})
+            {
+                String where = file + " in chunks of up to " + maxChunk;
+                for (SnapGeneParser parser : List.of(SnapGeneParser.DEFAULT, SnapGeneParser.builder().initialBufferSize(16).build(),
+                        SnapGeneParser.builder().lazy(true).build()))
+                {
+                    CompletableFuture<SnapGeneDoc> future = parser.parseAsync(new ChunkPublisher(bytes, random, maxChunk, null));
+                    Documents.assertSameDocument(expected, future.get(10, TimeUnit.SECONDS), where);
+                }
+            }
+        }
+    }
+
+    @Test
+    void publishedFilesFailLikeStreamedOnes() throws Exception
+    {
+        byte[] bytes = Files.readAllBytes(Samples.file("plasmid.dna"));
+        Random random = new Random(21);
+
+        // cut inside a payload fails; cut inside a header ends the file, as for a stream
+        byte[] inPayload = Arrays.copyOf(bytes, bytes.length - 10);
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> SnapGeneParser.DEFAULT.parseAsync(new ChunkPublisher(inPayload, random, 7, null)).get(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalArgumentException.class, e.getCause());
+        assertThrows(IllegalArgumentException.class, () -> SnapGene.parse(new ByteArrayInputStream(inPayload)));
+
+        byte[] inHeader = Arrays.copyOf(bytes, bytes.length + 3);
+        Documents.assertSameDocument(SnapGene.parse(new ByteArrayInputStream(inHeader)),
+                SnapGeneParser.DEFAULT.parseAsync(new ChunkPublisher(inHeader, random, 7, null)).get(10, TimeUnit.SECONDS), "cut in a header");
+
+        // an error from the publisher fails the future
+        IOException failure = new IOException("connection reset");
+        e = assertThrows(ExecutionException.class,
+                () -> SnapGeneParser.DEFAULT.parseAsync(new ChunkPublisher(bytes, random, 7, failure)).get(10, TimeUnit.SECONDS));
+        assertSame(failure, e.getCause());
+
+        // a parse error cancels the subscription
+        byte[] negative = Samples.withSegment(Samples.dnaFile("ACGT", false), SnapGene.DNASegment.TYPE, new byte[] {2, 'A'});
+        ChunkPublisher publisher = new ChunkPublisher(Samples.withSegment(negative, 20, new byte[1000]), random, 3, null);
+        assertThrows(ExecutionException.class, () -> SnapGeneParser.DEFAULT.parseAsync(publisher).get(10, TimeUnit.SECONDS));
+        assertTrue(publisher.cancelled);
+        assertTrue(publisher.pos < negative.length + 1005, "read " + publisher.pos + " bytes");
+
+        // as does cancelling the future
+        CountDownLatch cancelled = new CountDownLatch(1);
+        Flow.Publisher<ByteBuffer> idle = subscriber -> subscriber.onSubscribe(new Flow.Subscription()
+        {
+            @Override
+            public void request(long n)
+            {
+                // never delivers anything
+            }
+
+            @Override
+            public void cancel()
+            {
+                cancelled.countDown();
+            }
+        });
+        CompletableFuture<SnapGeneDoc> future = SnapGeneParser.DEFAULT.parseAsync(idle);
+        assertFalse(future.isDone());
+        assertTrue(future.cancel(true));
+        assertTrue(cancelled.await(10, TimeUnit.SECONDS));
+    }
+
+    /** Returns at most a few bytes per read, as a network stream may. */
+    private static final class TrickleInputStream extends InputStream
+    {
+        private final byte[] data;
+        private final Random random;
+        private int pos;
+
+        TrickleInputStream(byte[] data, Random random)
+        {
+            this.data = data;
+            this.random = random;
+        }
+
+        @Override
+        public int read()
+        {
+            return pos < data.length ? data[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+        {
+            if (len == 0)
+                return 0;
+            if (pos == data.length)
+                return -1;
+            int n = Math.min(Math.min(len, data.length - pos), 1 + random.nextInt(3));
+            System.arraycopy(data, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    @Test
+    void shortReadsFromAStreamAreNotMistakenForItsEnd() throws Exception
+    {
+        Random random = new Random(22);
+        for (Path file : Samples.files())
+        {
+            byte[] bytes = Files.readAllBytes(file);
+            SnapGeneDoc expected = SnapGene.parse(file);
+            for (SnapGeneParser parser : List.of(SnapGeneParser.DEFAULT, SnapGeneParser.builder().lazy(true).build()))
+                Documents.assertSameDocument(expected, parser.parse(new TrickleInputStream(bytes, random)), file.toString());
+        }
+        byte[] bytes = Files.readAllBytes(Samples.file("plasmid.dna"));
+        assertThrows(IllegalArgumentException.class,
+                () -> SnapGene.parse(new TrickleInputStream(Arrays.copyOf(bytes, bytes.length - 10), random)));
+    }
+}
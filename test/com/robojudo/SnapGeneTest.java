@@ -0,0 +1,124 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.DescriptionSegment;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.SnapGeneDoc;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapGeneTest
+{
+    private static final String XML = "<Feature name=\"a &amp; &quot;b&quot; &lt;c&gt;\" note=\"it&apos;s&#10;two lines\"/>";
+
+    @Test
+    void toXMLStringEscapesAttributeValues() throws Exception
+    {
+        Element el = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+                .parse(new ByteArrayInputStream(XML.getBytes(StandardCharsets.UTF_8))).getDocumentElement();
+        assertEquals(XML.replace("/>", ">"), SnapGene.toXMLString(el));
+
+        XMLStreamReader r = XMLInputFactory.newInstance().createXMLStreamReader(new StringReader(XML));
+        r.nextTag();
+        assertEquals(XML.replace("/>", ">"), SnapGene.toXMLString(r));
+    }
+
+    @Test
+    void lazyDocumentsEqualEagerOnes() throws Exception
+    {
+        for (Path file : Samples.files())
+        {
+            SnapGeneDoc eager = SnapGene.parse(file);
+            // each accessor on a fresh document, then all segments at once
+            assertEquals(eager.dna().sequence.toString(), SnapGene.index(file).dna().sequence.toString(), file.toString());
+            assertEquals(eager.dna().topology, SnapGene.index(file).topology(), file.toString());
+            assertEquals(eager.notes(), SnapGene.index(file).notes(), file.toString());
+            assertEquals(eager.features(), SnapGene.index(file).features(), file.toString());
+            Documents.assertSameDocument(eager, SnapGene.index(file), file.toString());
+
+            SnapGeneDoc lazy = SnapGene.index(ByteBuffer.wrap(Files.readAllBytes(file)));
+            assertTrue(lazy.isLazy());
+            assertEquals(eager.desc().type, lazy.desc().type);
+            Documents.assertSameDocument(eager, lazy, file.toString());
+            // the segments decoded by the accessors are the ones listed
+            assertSame(lazy.dna(), lazy.segments().get(lazy.index().find(DNASegment.TYPE)));
+        }
+    }
+
+    @Test
+    void untouchedSegmentsStayUndecoded() throws Exception
+    {
+        Path file = Samples.file("plasmid.dna");
+        List<Integer> decoded = new ArrayList<>();
+        SnapGeneParser parser = SnapGeneParser.builder().lazy(true).listener((type, length, nanos, allocated) -> decoded.add(type)).build();
+        SnapGeneDoc doc = parser.parse(file);
+        assertEquals(List.of(DescriptionSegment.TYPE), decoded);
+        assertTrue(doc.index().size() > 4);
+
+        // the topology and the bases for export are read without decoding the sequence
+        assertEquals("circular", doc.topology());
+        assertEquals(doc.index().length(doc.index().find(DNASegment.TYPE)), doc.rawDna().remaining());
+        assertEquals(List.of(DescriptionSegment.TYPE), decoded);
+        assertNull(doc.dna);
+
+        FeaturesSegment features = doc.features();
+        assertSame(features, doc.features());
+        assertEquals(List.of(DescriptionSegment.TYPE, FeaturesSegment.TYPE), decoded);
+        assertNull(doc.dna);
+        assertNull(doc.notes);
+        assertNull(doc.segments);
+
+        // once decoded, the sequence is no longer handed out raw
+        DNASegment dna = doc.dna();
+        assertNull(doc.rawDna());
+        assertSame(dna, doc.dna());
+        assertEquals(List.of(DescriptionSegment.TYPE, FeaturesSegment.TYPE, DNASegment.TYPE), decoded);
+
+        // listing the segments decodes only those not decoded yet
+        doc.segments();
+        assertEquals(doc.index().size(), decoded.size());
+        assertEquals(1, decoded.stream().filter(type -> type == NotesSegment.TYPE).count());
+        assertEquals(1, decoded.stream().filter(type -> type == FeaturesSegment.TYPE).count());
+        assertSame(features, doc.features());
+    }
+
+    @Test
+    void lazyAndEagerParsesRejectTheSameFiles()
+    {
+        byte[] head = Samples.dnaFile("ACGT", false);
+        byte[] twice = Samples.withSegment(head, DNASegment.TYPE, new byte[] {2, 'A'});
+        assertThrows(IllegalArgumentException.class, () -> SnapGene.parse(ByteBuffer.wrap(twice)));
+        assertThrows(IllegalArgumentException.class, () -> SnapGene.index(ByteBuffer.wrap(twice)));
+
+        byte[] truncated = Arrays.copyOf(head, head.length - 1);
+        assertThrows(IllegalArgumentException.class, () -> SnapGene.parse(ByteBuffer.wrap(truncated)));
+        assertThrows(IllegalArgumentException.class, () -> SnapGene.index(ByteBuffer.wrap(truncated)));
+
+        // a bad segment only fails a lazy document when it is decoded
+        byte[] badNotes = Samples.withSegment(head, NotesSegment.TYPE, "<Notes>");
+        assertThrows(IllegalArgumentException.class, () -> SnapGene.parse(ByteBuffer.wrap(badNotes)));
+        SnapGeneDoc lazy = SnapGene.index(ByteBuffer.wrap(badNotes));
+        assertEquals("ACGT", lazy.dna().sequence.toString());
+        assertThrows(IllegalArgumentException.class, lazy::notes);
+    }
+}
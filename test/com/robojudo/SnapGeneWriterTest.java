@@ -0,0 +1,191 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import com.robojudo.SnapGene.NotesSegment;
+import com.robojudo.SnapGene.Reference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SnapGeneWriterTest
+{
+    @TempDir
+    Path dir;
+
+    @Test
+    void unmodifiedNotesWriteThroughByteForByte() throws Exception
+    {
+        int written = 0;
+        for (Path file : Samples.files())
+        {
+            NotesSegment notes = SnapGene.parse(file).notes();
+            if (notes == null)
+                continue;
+            // an equal copy, not the parsed instance, must be recognised as unmodified too
+            Path out = dir.resolve(file.getFileName());
+            SnapGeneWriter.patch(file).replace(copy(notes, notes.organism, notes.created, notes.references)).write(out);
+            assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(out), file.toString());
+            written++;
+        }
+        assertTrue(written >= 2, "expected sample files with Notes");
+    }
+
+    @Test
+    void changedNotesKeepWhatTheModelDoesNotHold() throws Exception
+    {
+        Path file = Samples.file("plasmid.dna");
+        NotesSegment notes = SnapGene.parse(file).notes();
+        List<Reference> refs = new ArrayList<>(notes.references);
+        refs.set(1, new Reference("Changed", null, refs.get(1).journal, refs.get(1).authors));
+        NotesSegment changed = copy(notes, "Bacillus subtilis", new Date(notes.created.getTime() + 86_400_000L), refs);
+
+        Path out = dir.resolve("changed.dna");
+        SnapGeneWriter.patch(file).replace(changed).write(out);
+        assertEquals(changed, SnapGene.parse(out).notes());
+
+        String xml = StandardCharsets.UTF_8.decode(Samples.segment(out, NotesSegment.TYPE)).toString();
+        assertTrue(xml.contains("<Synonyms>pGFP, GFP vector</Synonyms>"), xml);
+        assertTrue(xml.contains("UTC=\"9:05:02\""), xml);
+        assertFalse(xml.contains("UTC=\"14:24:33\""), xml);
+        assertTrue(xml.contains("journalName=\"Gene\""), xml);
+        assertTrue(xml.contains("type=\"Direct Submission\""), xml);
+        assertTrue(xml.contains("<TransformedInto>DH5α™</TransformedInto>"), xml);
+
+        // the other segments are untouched
+        for (int type : new int[] { SnapGene.DNASegment.TYPE, SnapGene.FeaturesSegment.TYPE })
+            assertEquals(Samples.segment(file, type), Samples.segment(out, type));
+    }
+
+    @Test
+    void notesAreAppendedToFilesWithoutThem() throws Exception
+    {
+        Path file = Samples.file("minimal.dna");
+        NotesSegment notes = new NotesSegment("u", "Natural", null, null, null, null, null, null, null,
+                "Homo sapiens", null, null, null, null, null, List.of(new Reference("t", null, null, "a")));
+        Path out = dir.resolve("appended.dna");
+        SnapGeneWriter.patch(file).replace(notes).write(out);
+        assertEquals(notes, SnapGene.parse(out).notes());
+        ByteBuffer payload = Samples.segment(out, NotesSegment.TYPE);
+        assertEquals(ByteBuffer.wrap(SnapGeneWriter.encode(notes)), payload);
+    }
+
+    private static NotesSegment copy(NotesSegment n, String organism, Date created, List<Reference> references)
+    {
+        return new NotesSegment(n.uuid, n.type, n.confirmedExperimentally, n.description, created, n.modified,
+                n.createdBy, n.accessionNumber, n.codeNumber, organism, n.sequenceClass, n.transformedInto,
+                n.customMapLabel, n.useCustomMapLabel, n.comments, references);
+    }
+
+    @Test
+    void featuresRoundTrip() throws Exception
+    {
+        Path file = Samples.file("plasmid.dna");
+        FeaturesSegment features = SnapGene.parse(file).features();
+        assertEquals(features, FeaturesSegment.parse(SnapGeneWriter.encode(features)));
+
+        // one feature fewer, written back into the file
+        List<Feature> fewer = new ArrayList<>(features.features);
+        fewer.remove(1);
+        FeaturesSegment changed = new FeaturesSegment(fewer);
+        Path out = dir.resolve("features.dna");
+        SnapGeneWriter.patch(file).replace(changed).write(out);
+        assertEquals(changed, SnapGene.parse(out).features());
+        assertEquals(changed, SnapGene.index(ByteBuffer.wrap(Files.readAllBytes(out))).features());
+        assertEquals(ByteBuffer.wrap(SnapGeneWriter.encode(changed)), Samples.segment(out, FeaturesSegment.TYPE));
+
+        List<Map.Entry<Integer, ByteBuffer>> before = segments(file), after = segments(out);
+        assertEquals(before.size(), after.size());
+        for (int i = 0; i < before.size(); i++)
+        {
+            assertEquals(before.get(i).getKey(), after.get(i).getKey(), "segment " + i);
+            if (before.get(i).getKey() != FeaturesSegment.TYPE)
+                assertEquals(before.get(i).getValue(), after.get(i).getValue(), "segment " + i);
+        }
+    }
+
+    @Test
+    void replacedPayloadsLeaveTheOtherSegmentsByteIdentical() throws Exception
+    {
+        for (Path file : Samples.files())
+        {
+            List<Map.Entry<Integer, ByteBuffer>> before = segments(file);
+            // the last segment and one in the middle, which may be the same type, in which case the later payload wins
+            int last = before.get(before.size() - 1).getKey(), middle = before.get(before.size() / 2).getKey();
+            ByteBuffer a = ByteBuffer.wrap(new byte[] { 1, 2, 3 }), b = ByteBuffer.allocate(0);
+            Map<Integer, ByteBuffer> payloads = new HashMap<>(Map.of(last, a));
+            payloads.put(middle, b);
+            Path out = dir.resolve(file.getFileName());
+            long written = SnapGeneWriter.patch(file).replace(last, a).replace(middle, b).replace(200, a).write(out);
+            assertEquals(Files.size(out), written);
+
+            List<Map.Entry<Integer, ByteBuffer>> after = segments(out);
+            assertEquals(before.size() + 1, after.size(), file.toString());
+            boolean[] replaced = new boolean[256];
+            for (int i = 0; i < before.size(); i++)
+            {
+                int type = before.get(i).getKey();
+                assertEquals(type, after.get(i).getKey(), file + " segment " + i);
+                // only the first segment of a type is replaced
+                if (payloads.containsKey(type) && !replaced[type]) {
+                    replaced[type] = true;
+                    assertEquals(payloads.get(type), after.get(i).getValue(), file + " segment " + i);
+                }
+                else
+                    assertEquals(before.get(i).getValue(), after.get(i).getValue(), file + " segment " + i);
+            }
+            // a type the file does not have is appended
+            assertEquals(Map.entry(200, a), after.get(before.size()));
+        }
+    }
+
+    @Test
+    void patchInPlace() throws Exception
+    {
+        Path file = dir.resolve("plasmid.dna");
+        Files.copy(Samples.file("plasmid.dna"), file);
+        byte[] original = Files.readAllBytes(file);
+        ByteBuffer notes = Samples.segment(file, NotesSegment.TYPE);
+
+        SnapGeneWriter.patch(file).replace(NotesSegment.TYPE, notes).write(file);
+        assertArrayEquals(original, Files.readAllBytes(file));
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(List.of(file), files.collect(Collectors.toList()));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> SnapGeneWriter.patch(file).replace(256, notes));
+        assertThrows(IllegalArgumentException.class, () -> SnapGeneWriter.patch(file).replace(-1, notes));
+    }
+
+    // every segment of a file in order, as type and payload
+    private static List<Map.Entry<Integer, ByteBuffer>> segments(Path file) throws Exception
+    {
+        List<Map.Entry<Integer, ByteBuffer>> ret = new ArrayList<>();
+        ByteBuffer bb = ByteBuffer.wrap(Files.readAllBytes(file));
+        while (bb.remaining() >= 5)
+        {
+            int type = bb.get() & 0xFF;
+            int length = bb.getInt();
+            ret.add(Map.entry(type, bb.slice(bb.position(), length)));
+            bb.position(bb.position() + length);
+        }
+        return ret;
+    }
+}
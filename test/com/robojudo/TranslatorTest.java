@@ -0,0 +1,226 @@
+package com.robojudo;
+
+import com.robojudo.SnapGene.DNASegment;
+import com.robojudo.SnapGene.Feature;
+import com.robojudo.SnapGene.FeaturesSegment;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TranslatorTest
+{
+    // the start of the Aequorea victoria GFP coding sequence, and the protein it encodes
+    private static final String GFP_DNA = "ATGAGTAAAGGAGAAGAACTTTTCACTGGAGTTGTCCCAATTCTTGTTGAATTAGATGGTGATGTTAATGGGCACAAATTTTCTGTCAGTGGAGAGGGTGAAGG"
+            + "TGATGCAACATACGGAAAACTTACCCTTAAATTTATTTGCACTACTGGAAAACTACCTGTT";
+    private static final String GFP = "MSKGEELFTGVVPILVELDGDVNGHKFSVSGEGEGDATYGKLTLKFICTTGKLPV";
+
+    private static final String ORF = GFP_DNA + "TAA";
+    private static final String PREFIX = "GGCAT";
+    private static final String SUFFIX = "CCAGT";
+    // the ORF at 6..173
+    private static final String SEQ = PREFIX + ORF + SUFFIX;
+
+    private static String reverseComplement(String s)
+    {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = s.length() - 1; i >= 0; i--)
+            sb.append("TGCA".charAt("ACGT".indexOf(s.charAt(i))));
+        return sb.toString();
+    }
+
+    /** A CDS with the given Feature attributes; each segment is a range, optionally followed by "gap" or "untranslated". */
+    private static Feature feature(String attributes, String... segments)
+    {
+        StringBuilder xml = new StringBuilder("<Features><Feature name=\"f\" type=\"CDS\" ").append(attributes).append('>');
+        for (String segment : segments)
+        {
+            String[] parts = segment.split(" ");
+            xml.append("<Segment range=\"").append(parts[0]).append('"');
+            if (parts.length > 1 && parts[1].equals("gap"))
+                xml.append(" type=\"gap\"/>");
+            else
+                xml.append(" type=\"standard\" translated=\"").append(parts.length > 1 ? 0 : 1).append("\"/>");
+        }
+        xml.append("</Feature></Features>");
+        return FeaturesSegment.parse(xml.toString().getBytes(StandardCharsets.UTF_8)).features.get(0);
+    }
+
+    private static Translator.Translation translate(Feature feature, String seq, boolean circular)
+    {
+        return Translator.translate(feature, PackedSequence.pack(seq), circular);
+    }
+
+    @Test
+    void forwardFeature()
+    {
+        DNASegment dna = new DNASegment("linear", "double-stranded", false, false, false, PackedSequence.pack(SEQ));
+        Translator.Translation t = Translator.translate(feature("directionality=\"1\"", "6-173"), dna);
+        assertEquals(GFP + "*", t.protein);
+        assertEquals(1, t.stopCodons);
+        assertTrue(t.endsWithStop);
+        assertSame(GeneticCode.STANDARD, t.geneticCode);
+        assertEquals(Translator.molecularWeight(GFP), t.molecularWeight, 1e-9);
+
+        // a feature that is not a whole number of codons drops the partial codon at its end
+        assertEquals(GFP.substring(0, 10), translate(feature("", "6-37"), SEQ, false).protein);
+    }
+
+    @Test
+    void reverseFeature()
+    {
+        String seq = PREFIX + reverseComplement(ORF) + SUFFIX;
+        assertEquals(GFP + "*", translate(feature("directionality=\"2\"", "6-173"), seq, false).protein);
+        // reading frames count from the end of a reverse feature
+        assertEquals(GFP + "*", translate(feature("directionality=\"2\" readingFrame=\"-3\"", "6-175"), seq, false).protein);
+        assertEquals(GFP + "*", translate(feature("directionality=\"2\" readingFrame=\"-2\"", "6-174"), seq, false).protein);
+    }
+
+    @Test
+    void readingFrames()
+    {
+        assertEquals(GFP + "*", translate(feature("readingFrame=\"1\"", "6-173"), SEQ, false).protein);
+        assertEquals(GFP + "*", translate(feature("readingFrame=\"2\"", "5-173"), SEQ, false).protein);
+        assertEquals(GFP + "*", translate(feature("readingFrame=\"3\"", "4-173"), SEQ, false).protein);
+        assertEquals("", translate(feature("readingFrame=\"3\"", "6-9"), SEQ, false).protein);
+    }
+
+    @Test
+    void gapsAndUntranslatedSegmentsAreLeftOut()
+    {
+        String seq = PREFIX + ORF.substring(0, 60) + "AAAAAAAAAA" + ORF.substring(60) + SUFFIX;
+        assertEquals(GFP + "*", translate(feature("", "6-65", "66-75 gap", "76-183"), seq, false).protein);
+        assertEquals(GFP + "*", translate(feature("", "6-65", "66-75 untranslated", "76-183"), seq, false).protein);
+        // translated, the extra bases shift the frame
+        assertFalse(translate(feature("", "6-65", "66-75", "76-183"), seq, false).protein.startsWith(GFP));
+    }
+
+    @Test
+    void overlappingSegments()
+    {
+        // the last codon of the first segment is also the first of the second
+        assertEquals(GFP + "*", translate(feature("", "6-50", "48-173"), SEQ, false).protein);
+        assertEquals(GFP + "*", translate(feature("allowSegmentOverlaps=\"0\"", "6-50", "48-173"), SEQ, false).protein);
+        assertEquals(GFP.substring(0, 15) + GFP.substring(14) + "*",
+                translate(feature("allowSegmentOverlaps=\"1\"", "6-50", "48-173"), SEQ, false).protein);
+        // a segment within the previous one adds nothing
+        assertEquals(GFP + "*", translate(feature("", "6-173", "20-40"), SEQ, false).protein);
+    }
+
+    @Test
+    void featuresAcrossTheOrigin()
+    {
+        // the ORF starts at 129 and ends at 118
+        String seq = ORF.substring(50) + SUFFIX + PREFIX + ORF.substring(0, 50);
+        assertEquals(GFP + "*", translate(feature("", "129-118"), seq, true).protein);
+        assertEquals(GFP + "*", translate(feature("", "129-178", "1-118"), seq, true).protein);
+        assertEquals(GFP + "*", translate(feature("", "129-150", "151-178", "1-40", "41-118"), seq, true).protein);
+
+        String reverse = reverseComplement(seq);
+        assertEquals(GFP + "*", translate(feature("directionality=\"2\"", "61-50"), reverse, true).protein);
+        assertEquals(GFP + "*", translate(feature("directionality=\"2\"", "61-178", "1-50"), reverse, true).protein);
+
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> translate(feature("", "129-118"), seq, false));
+        assertTrue(e.getMessage().contains("origin"), e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> translate(feature("", "129-179"), seq, true));
+    }
+
+    @Test
+    void nonStandardGeneticCode()
+    {
+        String seq = "ATGAGAAGGATATGATAA";
+        Translator.Translation standard = translate(feature("", "1-18"), seq, false);
+        assertEquals("MRRI**", standard.protein);
+        assertEquals(2, standard.stopCodons);
+
+        // vertebrate mitochondrial: AGA and AGG are stops, ATA is Met and TGA is Trp
+        Translator.Translation mito = translate(feature("geneticCode=\"2\"", "1-18"), seq, false);
+        assertEquals("M**MW*", mito.protein);
+        assertEquals(3, mito.stopCodons);
+        assertEquals(2, mito.geneticCode.id);
+        assertEquals(Translator.molecularWeight("M"), mito.molecularWeight, 1e-9);
+
+        assertThrows(IllegalArgumentException.class, () -> translate(feature("geneticCode=\"7\"", "1-18"), seq, false));
+    }
+
+    @Test
+    void firstCodonAsMet()
+    {
+        String seq = "GTGAAATAA";
+        assertEquals("VK*", translate(feature("", "1-9"), seq, false).protein);
+        assertEquals("VK*", translate(feature("translateFirstCodonAsMet=\"0\"", "1-9"), seq, false).protein);
+        assertEquals("MK*", translate(feature("translateFirstCodonAsMet=\"1\"", "1-9"), seq, false).protein);
+        assertEquals("", translate(feature("translateFirstCodonAsMet=\"1\"", "1-2"), seq, false).protein);
+    }
+
+    @Test
+    void molecularWeight()
+    {
+        // average masses of the human insulin chains, glycine and tryptophan
+        assertEquals(3429.96, Translator.molecularWeight("FVNQHLCGSHLVEALYLVCGERGFFYTPKT"), 0.01);
+        assertEquals(2383.71, Translator.molecularWeight("GIVEQCCTSICSLYQLENYCN"), 0.01);
+        assertEquals(75.07, Translator.molecularWeight("G"), 0.01);
+        assertEquals(204.23, Translator.molecularWeight("W*G"), 0.01);
+        assertEquals(0, Translator.molecularWeight(""));
+        assertEquals(0, Translator.molecularWeight("*G"));
+
+        assertTrue(Double.isNaN(Translator.molecularWeight("GXG")));
+        // an X after the first stop does not count
+        assertEquals(Translator.molecularWeight("G"), Translator.molecularWeight("G*X"));
+
+        Translator.Translation ambiguous = translate(feature("", "1-9"), "ATGNNNAAA", false);
+        assertEquals("MXK", ambiguous.protein);
+        assertTrue(Double.isNaN(ambiguous.molecularWeight));
+
+        Translator.Translation t = translate(feature("translationMW=\"5785.6\"", "6-173"), SEQ, false);
+        assertEquals(5785.6, t.molecularWeight, 0.1);
+        assertTrue(t.matchesStoredWeight(feature("translationMW=\"5785.6\"", "6-173"), 0.1));
+        assertFalse(t.matchesStoredWeight(feature("translationMW=\"6000\"", "6-173"), 0.1));
+        assertTrue(t.matchesStoredWeight(feature("", "6-173"), 0.1));
+    }
+
+    @Test
+    void geneticCodes()
+    {
+        assertSame(GeneticCode.STANDARD, GeneticCode.forAttribute(null));
+        assertSame(GeneticCode.STANDARD, GeneticCode.forAttribute(""));
+        assertSame(GeneticCode.forId(2), GeneticCode.forAttribute(" 2 "));
+        assertEquals("Bacterial, Archaeal and Plant Plastid", GeneticCode.forId(11).name);
+        assertThrows(IllegalArgumentException.class, () -> GeneticCode.forId(7));
+        assertThrows(IllegalArgumentException.class, () -> GeneticCode.forAttribute("standard"));
+
+        List<Integer> ids = new ArrayList<>();
+        for (GeneticCode code : GeneticCode.all())
+            ids.add(code.id);
+        assertEquals(List.of(1, 2, 3, 4, 5, 6, 9, 10, 11, 12, 13, 14, 15, 16, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 33), ids);
+
+        GeneticCode standard = GeneticCode.STANDARD;
+        assertEquals('M', translate(standard, "ATG"));
+        assertEquals('W', translate(standard, "TGG"));
+        assertEquals('F', translate(standard, "TTT"));
+        assertEquals('G', translate(standard, "GGA"));
+        assertEquals('*', translate(standard, "TAA"));
+        assertEquals('*', translate(standard, "TAG"));
+        assertEquals('*', translate(standard, "TGA"));
+        assertEquals('X', standard.translate(0, -1, 0));
+        assertEquals('W', translate(GeneticCode.forId(4), "TGA"));
+        assertEquals('Q', translate(GeneticCode.forId(6), "TAA"));
+        assertEquals('S', translate(GeneticCode.forId(12), "CTG"));
+
+        // the bacterial code differs from the standard one only in its start codons, which are not translated
+        for (int codon = 0; codon < 64; codon++)
+            assertEquals(standard.translate(codon >> 4, codon >> 2 & 3, codon & 3), GeneticCode.forId(11).translate(codon >> 4, codon >> 2 & 3, codon & 3));
+    }
+
+    private static char translate(GeneticCode code, String codon)
+    {
+        return code.translate("ACGT".indexOf(codon.charAt(0)), "ACGT".indexOf(codon.charAt(1)), "ACGT".indexOf(codon.charAt(2)));
+    }
+}